@@ -0,0 +1,96 @@
+package org.cecatto.urlshortener.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The admission check of the requests of the endpoints: taking a token from the bucket of the client alone, and the
+ * whole filter (the bucket and the limit of requests in flight) for requests admitted and rate limited (answered with
+ * 429 by the filter, into a mock response). The clients are either a single one (every thread on the same bucket) or
+ * many. Run it on more threads (e.g. {@code @Threads(8)}) to measure the contention on the buckets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdmissionFilterBenchmark {
+
+  private static final int NUM_REQUESTS = 65536;
+  private static final FilterChain ENDPOINT = (request, response) -> {
+  };
+
+  @Param({"1", "100000"})
+  public int clients;
+
+  private ClientRateLimiter limiter;
+  private AdmissionFilter admittingFilter;
+  private AdmissionFilter rateLimitingFilter;
+  private String[] addresses;
+  private MockHttpServletRequest[] requests;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    private int next = new SplittableRandom().nextInt(NUM_REQUESTS);
+
+    int nextIndex() {
+      next = next + 1 == NUM_REQUESTS ? 0 : next + 1;
+      return next;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    // rates no client reaches, or that every client exceeds
+    limiter = new ClientRateLimiter(1e9, 1_000_000, 100_000, Duration.ofMinutes(10));
+    admittingFilter = newFilter(new UrlShortenerProperties.EndpointLimit(1e9, 1_000_000));
+    rateLimitingFilter = newFilter(new UrlShortenerProperties.EndpointLimit(0.001, 1));
+
+    var random = new SplittableRandom(42);
+    addresses = new String[NUM_REQUESTS];
+    requests = new MockHttpServletRequest[NUM_REQUESTS];
+    for (var i = 0; i < NUM_REQUESTS; i++) {
+      var client = random.nextInt(clients);
+      addresses[i] = "10." + (client >> 16) + "." + (client >> 8 & 0xff) + "." + (client & 0xff);
+      requests[i] = new MockHttpServletRequest("GET", "/s/5g73357h");
+      requests[i].setRemoteAddr(addresses[i]);
+    }
+  }
+
+  private static AdmissionFilter newFilter(UrlShortenerProperties.EndpointLimit limit) {
+    var properties = new UrlShortenerProperties();
+    properties.getRateLimit().getEndpoints().put("lookup", limit);
+    return new AdmissionFilter(properties, new ObjectMapper(), new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+  }
+
+  @Benchmark
+  public long acquireToken(ThreadState state) {
+    return limiter.acquire(addresses[state.nextIndex()]);
+  }
+
+  @Benchmark
+  public int admitRequest(ThreadState state) throws Exception {
+    var response = new MockHttpServletResponse();
+    admittingFilter.doFilter(requests[state.nextIndex()], response, ENDPOINT);
+    return response.getStatus();
+  }
+
+  @Benchmark
+  public int rejectRequest(ThreadState state) throws Exception {
+    var response = new MockHttpServletResponse();
+    rateLimitingFilter.doFilter(requests[state.nextIndex()], response, ENDPOINT);
+    return response.getStatus();
+  }
+
+}
@@ -0,0 +1,141 @@
+package org.cecatto.urlshortener.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.dto.BatchCreateRequest;
+import org.cecatto.urlshortener.persistence.InMemoryUrlStore;
+import org.cecatto.urlshortener.persistence.NoOpClickStatsRepository;
+import org.cecatto.urlshortener.persistence.PostgresUrlStore;
+import org.cecatto.urlshortener.persistence.ReadReplicas;
+import org.cecatto.urlshortener.persistence.ReplicatedPostgres;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.ClickStatsServiceImpl;
+import org.cecatto.urlshortener.service.impl.CompactUrlIndex;
+import org.cecatto.urlshortener.service.impl.HashServiceImpl;
+import org.cecatto.urlshortener.service.impl.KnownHashesFilter;
+import org.cecatto.urlshortener.service.impl.Murmur3ShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.StoredUrlBroadcast;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.cecatto.urlshortener.service.impl.WriteBehindCreates;
+import org.flywaydb.core.Flyway;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * New urls created through the whole Spring MVC stack (but no network), one {@code /v1/create} request per url against
+ * a single {@code /v2/create/batch} request for {@value #BATCH_SIZE} of them, reported as the time per url. Against the
+ * in-memory store only the overhead of the requests is compared; against Postgres (on a container, needs Docker) the
+ * round trips and commits as well, which is where most of the difference is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchCreateBenchmark {
+
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"in-memory", "postgres"})
+  public String store;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private MockMvc mockMvc;
+  private ReplicatedPostgres postgres;
+  private HikariDataSource dataSource;
+  // every url created is new, so that it is stored
+  private long created;
+
+  @Setup
+  public void setUp() {
+    var properties = new UrlShortenerProperties();
+    var meterRegistry = new SimpleMeterRegistry();
+    UrlStore urlStore;
+    if (store.equals("postgres")) {
+      postgres = ReplicatedPostgres.start(0);
+      var config = new HikariConfig();
+      config.setJdbcUrl(postgres.getPrimaryJdbcUrl());
+      config.setUsername(postgres.getUsername());
+      config.setPassword(postgres.getPassword());
+      dataSource = new HikariDataSource(config);
+      Flyway.configure()
+          .dataSource(dataSource)
+          .locations("classpath:db/migration", "classpath:org/cecatto/urlshortener/persistence/migration")
+          .load()
+          .migrate();
+      urlStore = new PostgresUrlStore(new JdbcTemplate(dataSource), ReadReplicas.none(),
+          new TransactionTemplate(new DataSourceTransactionManager(dataSource)), meterRegistry);
+    } else {
+      urlStore = new InMemoryUrlStore();
+    }
+    var knownHashes = new KnownHashesFilter(urlStore, properties, meterRegistry);
+    var lookupCache = new UrlLookupCache(properties);
+    var compactIndex = new CompactUrlIndex(urlStore, properties, meterRegistry);
+    // no notifications, there is no other instance
+    var broadcast = new StoredUrlBroadcast(urlStore, lookupCache, knownHashes, compactIndex, null, properties,
+        meterRegistry);
+    var hashService = new HashServiceImpl(urlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(urlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry), broadcast,
+        new Murmur3ShortCodeGenerator(properties), properties, meterRegistry);
+    var clickStatsService = new ClickStatsServiceImpl(new NoOpClickStatsRepository(), properties, meterRegistry);
+    var controller = new UrlShortenerController(hashService, clickStatsService, properties, meterRegistry);
+    mockMvc = MockMvcBuilders.standaloneSetup(controller)
+        .setControllerAdvice(new ExceptionsHandler(meterRegistry))
+        .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (dataSource != null) {
+      dataSource.close();
+      postgres.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public MockHttpServletResponse createV1() throws Exception {
+    MockHttpServletResponse response = null;
+    for (var i = 0; i < BATCH_SIZE; i++) {
+      response = mockMvc.perform(post(UrlShortenerController.PATH_CREATE_V1)
+              .param(UrlShortenerController.PARAM_URL, nextUrl()))
+          .andReturn()
+          .getResponse();
+    }
+    return response;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public MockHttpServletResponse createBatchV2() throws Exception {
+    var urls = new ArrayList<String>(BATCH_SIZE);
+    for (var i = 0; i < BATCH_SIZE; i++) {
+      urls.add(nextUrl());
+    }
+    return mockMvc.perform(post(UrlShortenerController.PATH_CREATE_BATCH_V2)
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsBytes(new BatchCreateRequest(urls))))
+        .andReturn()
+        .getResponse();
+  }
+
+  private String nextUrl() {
+    return "https://www.example.com/created/" + created++ + "?utm_source=benchmark";
+  }
+
+}
@@ -0,0 +1,131 @@
+package org.cecatto.urlshortener.controller;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.InMemoryUrlStore;
+import org.cecatto.urlshortener.persistence.NoOpClickStatsRepository;
+import org.cecatto.urlshortener.service.impl.ClickStatsServiceImpl;
+import org.cecatto.urlshortener.service.impl.CompactUrlIndex;
+import org.cecatto.urlshortener.service.impl.HashServiceImpl;
+import org.cecatto.urlshortener.service.impl.KnownHashesFilter;
+import org.cecatto.urlshortener.service.impl.Murmur3ShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.StoredUrlBroadcast;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.cecatto.urlshortener.service.impl.WriteBehindCreates;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * Create and lookup requests going through the whole Spring MVC stack (but no network), backed by an in-memory
+ * repository. Clicks are buffered and aggregated as in production, but not written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlShortenerControllerBenchmark {
+
+  private static final int NUM_URLS = 8192;
+
+  @Param({"true", "false"})
+  public boolean clicksEnabled;
+
+  private ClickStatsServiceImpl clickStatsService;
+  private UrlShortenerController controller;
+  private MockMvc mockMvc;
+  private final MockHttpServletResponse handlerResponse = new MockHttpServletResponse();
+  private String[] urls;
+  private String[] hashes;
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    var properties = new UrlShortenerProperties();
+    // the registry used in production, histograms included
+    var meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    var urlStore = new InMemoryUrlStore();
+    var knownHashes = new KnownHashesFilter(urlStore, properties, meterRegistry);
+    var lookupCache = new UrlLookupCache(properties);
+    var compactIndex = new CompactUrlIndex(urlStore, properties, meterRegistry);
+    // no notifications without Postgres
+    var broadcast = new StoredUrlBroadcast(urlStore, lookupCache, knownHashes, compactIndex, null, properties,
+        meterRegistry);
+    var hashService = new HashServiceImpl(urlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(urlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry), broadcast,
+        new Murmur3ShortCodeGenerator(properties), properties, meterRegistry);
+    properties.getClicks().setEnabled(clicksEnabled);
+    clickStatsService = new ClickStatsServiceImpl(new NoOpClickStatsRepository(), properties, meterRegistry);
+    clickStatsService.start();
+    controller = new UrlShortenerController(hashService, clickStatsService, properties, meterRegistry);
+    mockMvc = MockMvcBuilders.standaloneSetup(controller)
+        .setControllerAdvice(new ExceptionsHandler(meterRegistry))
+        .build();
+
+    urls = new String[NUM_URLS];
+    hashes = new String[NUM_URLS];
+    for (var i = 0; i < NUM_URLS; i++) {
+      urls[i] = "https://www.example.com/some/path/" + i + "?utm_source=benchmark";
+      var location = create(urls[i]).getHeader("Location");
+      hashes[i] = location.substring(location.lastIndexOf('/') + 1);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    clickStatsService.stop();
+  }
+
+  @Benchmark
+  public MockHttpServletResponse createV1() throws Exception {
+    return create(urls[nextIndex()]);
+  }
+
+  @Benchmark
+  public MockHttpServletResponse lookup() throws Exception {
+    return mockMvc.perform(get(UrlShortenerController.PATH_LOOKUP, hashes[nextIndex()])).andReturn().getResponse();
+  }
+
+  /**
+   * A lookup of a redirect cached by the client, revalidated with its entity tag.
+   */
+  @Benchmark
+  public MockHttpServletResponse lookupNotModified() throws Exception {
+    var hash = hashes[nextIndex()];
+    return mockMvc.perform(get(UrlShortenerController.PATH_LOOKUP, hash).header(HttpHeaders.IF_NONE_MATCH, '"' + hash + '"'))
+        .andReturn()
+        .getResponse();
+  }
+
+  /**
+   * The lookup handler alone, without the request mapping of the MVC stack, writing to a reused response.
+   */
+  @Benchmark
+  public MockHttpServletResponse lookupHandler() {
+    handlerResponse.reset();
+    controller.lookup(hashes[nextIndex()], null, handlerResponse);
+    return handlerResponse;
+  }
+
+  private MockHttpServletResponse create(String url) throws Exception {
+    return mockMvc.perform(post(UrlShortenerController.PATH_CREATE_V1).param(UrlShortenerController.PARAM_URL, url))
+        .andReturn()
+        .getResponse();
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (NUM_URLS - 1);
+    return next;
+  }
+
+}
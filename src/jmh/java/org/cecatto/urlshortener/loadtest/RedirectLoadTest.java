@@ -0,0 +1,199 @@
+package org.cecatto.urlshortener.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cecatto.urlshortener.controller.UrlShortenerController;
+import org.cecatto.urlshortener.dto.BatchCreateRequest;
+import org.cecatto.urlshortener.dto.BatchCreateResponse;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the redirects against a running instance, to compare the execution modes (see
+ * url-shortener.execution.mode) under an increasing number of concurrent connections.
+ * <p>
+ * It first creates the given number of urls through the batch endpoint, then for every concurrency level keeps that
+ * many connections busy for the given time, each one looking up random hashes one after the other (a closed loop, so
+ * latencies are those seen by the clients that got to send their request). Using more urls than fit in the lookup
+ * cache of the instance makes part of the redirects wait on the database.
+ * <p>
+ * Usage: {@code RedirectLoadTest <base url> <concurrency levels, comma separated> <seconds per level> [urls]}
+ */
+public class RedirectLoadTest {
+
+  private static final int DEFAULT_NUM_URLS = 10_000;
+  // the default url-shortener.batch.max-size
+  private static final int SEED_BATCH_SIZE = 10_000;
+
+  private final String baseUrl;
+  private final HttpClient httpClient;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public RedirectLoadTest(String baseUrl) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: RedirectLoadTest <base url> <concurrency levels, comma separated> <seconds per level> [urls]");
+      System.exit(1);
+    }
+    var concurrencyLevels = Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray();
+    var secondsPerLevel = Integer.parseInt(args[2]);
+    var numUrls = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_NUM_URLS;
+
+    var loadTest = new RedirectLoadTest(args[0]);
+    var hashes = loadTest.seed(numUrls);
+
+    System.out.printf("%12s %10s %10s %9s %9s %9s %9s %9s %8s%n",
+        "connections", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+    for (var concurrency : concurrencyLevels) {
+      System.out.println(loadTest.run(hashes, concurrency, Duration.ofSeconds(secondsPerLevel)));
+    }
+  }
+
+  /**
+   * Creates the urls to look up.
+   *
+   * @return their hashes
+   */
+  private String[] seed(int numUrls) throws Exception {
+    var runId = Long.toString(System.currentTimeMillis(), 36);
+    var hashes = new ArrayList<String>(numUrls);
+    for (var start = 0; start < numUrls; start += SEED_BATCH_SIZE) {
+      var urls = new ArrayList<String>(SEED_BATCH_SIZE);
+      for (var i = start; i < Math.min(numUrls, start + SEED_BATCH_SIZE); i++) {
+        urls.add("https://www.example.com/load-test/" + runId + "/" + i);
+      }
+      var request = HttpRequest.newBuilder(URI.create(baseUrl + UrlShortenerController.PATH_CREATE_BATCH_V2))
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(new BatchCreateRequest(urls))))
+          .build();
+      var response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+      if (response.statusCode() != 200) {
+        throw new IllegalStateException("Seeding failed with status " + response.statusCode() + ": " + new String(response.body()));
+      }
+      hashes.addAll(objectMapper.readValue(response.body(), BatchCreateResponse.class).hashes);
+    }
+    System.out.println("Created " + hashes.size() + " urls");
+    return hashes.toArray(new String[0]);
+  }
+
+  private Result run(String[] hashes, int concurrency, Duration duration) throws InterruptedException {
+    var deadline = System.nanoTime() + duration.toNanos();
+    var workers = new ArrayList<Worker>(concurrency);
+    var threads = new ArrayList<Thread>(concurrency);
+    for (var i = 0; i < concurrency; i++) {
+      var worker = new Worker(hashes, deadline);
+      workers.add(worker);
+      threads.add(Thread.ofVirtual().start(worker));
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+    return Result.of(concurrency, duration, workers);
+  }
+
+  private class Worker implements Runnable {
+
+    private final String[] hashes;
+    private final long deadline;
+    private long[] latencies = new long[1024];
+    private int numRequests;
+    private long numErrors;
+
+    private Worker(String[] hashes, long deadline) {
+      this.hashes = hashes;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      var random = ThreadLocalRandom.current();
+      while (System.nanoTime() < deadline) {
+        var hash = hashes[random.nextInt(hashes.length)];
+        var request = HttpRequest.newBuilder(URI.create(baseUrl + "/s/" + hash)).GET().build();
+        var start = System.nanoTime();
+        try {
+          var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+          if (response.statusCode() != 301) {
+            numErrors++;
+          }
+        } catch (Exception e) {
+          numErrors++;
+        }
+        record(System.nanoTime() - start);
+      }
+    }
+
+    private void record(long latency) {
+      if (numRequests == latencies.length) {
+        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+      }
+      latencies[numRequests++] = latency;
+    }
+
+  }
+
+  private static class Result {
+
+    private final int concurrency;
+    private final long numRequests;
+    private final double requestsPerSecond;
+    private final long[] sortedLatencies;
+    private final long numErrors;
+
+    private Result(int concurrency, long numRequests, double requestsPerSecond, long[] sortedLatencies, long numErrors) {
+      this.concurrency = concurrency;
+      this.numRequests = numRequests;
+      this.requestsPerSecond = requestsPerSecond;
+      this.sortedLatencies = sortedLatencies;
+      this.numErrors = numErrors;
+    }
+
+    private static Result of(int concurrency, Duration duration, List<Worker> workers) {
+      var numRequests = workers.stream().mapToLong(worker -> worker.numRequests).sum();
+      var latencies = new long[(int) numRequests];
+      var pos = 0;
+      var numErrors = 0L;
+      for (var worker : workers) {
+        System.arraycopy(worker.latencies, 0, latencies, pos, worker.numRequests);
+        pos += worker.numRequests;
+        numErrors += worker.numErrors;
+      }
+      Arrays.sort(latencies);
+      return new Result(concurrency, numRequests, numRequests / (double) duration.toSeconds(), latencies, numErrors);
+    }
+
+    private double percentileMillis(double percentile) {
+      if (sortedLatencies.length == 0) {
+        return 0;
+      }
+      var index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+      return sortedLatencies[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%12d %10d %10.0f %9.2f %9.2f %9.2f %9.2f %9.2f %8d",
+          concurrency, numRequests, requestsPerSecond,
+          percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9), percentileMillis(100),
+          numErrors);
+    }
+
+  }
+
+}
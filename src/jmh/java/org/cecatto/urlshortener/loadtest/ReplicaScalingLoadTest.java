@@ -0,0 +1,167 @@
+package org.cecatto.urlshortener.loadtest;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.persistence.PostgresUrlStore;
+import org.cecatto.urlshortener.persistence.ReadReplicas;
+import org.cecatto.urlshortener.persistence.ReplicatedPostgres;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the hash lookups (the database side of the redirects, without the lookup cache) as read replicas are
+ * added, while a writer keeps creating urls on the primary.
+ * <p>
+ * It starts a primary and the given number of streaming replicas in containers, each limited to the given cpus so
+ * that they don't share the cpus of the host, seeds the urls, and then runs the lookups for the given time with 0
+ * (everything on the primary), 1, ... replicas.
+ * <p>
+ * Usage: {@code ReplicaScalingLoadTest <max replicas> <concurrency> <seconds per step> [urls] [cpus per instance]}
+ */
+public class ReplicaScalingLoadTest {
+
+  private static final int DEFAULT_NUM_URLS = 100_000;
+  private static final double DEFAULT_CPUS_PER_INSTANCE = 1;
+  private static final int SEED_BATCH_SIZE = 10_000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: ReplicaScalingLoadTest <max replicas> <concurrency> <seconds per step> [urls] [cpus per instance]");
+      System.exit(1);
+    }
+    var maxReplicas = Integer.parseInt(args[0]);
+    var concurrency = Integer.parseInt(args[1]);
+    var duration = Duration.ofSeconds(Integer.parseInt(args[2]));
+    var numUrls = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_NUM_URLS;
+    var cpusPerInstance = args.length > 4 ? Double.parseDouble(args[4]) : DEFAULT_CPUS_PER_INSTANCE;
+
+    try (var postgres = ReplicatedPostgres.start(maxReplicas, cpusPerInstance)) {
+      var primary = dataSource("primary", postgres.getPrimaryJdbcUrl(), postgres, concurrency + 1);
+      Flyway.configure()
+          .dataSource(primary)
+          .locations("classpath:db/migration", "classpath:org/cecatto/urlshortener/persistence/migration")
+          .load()
+          .migrate();
+      var replicas = new ArrayList<HikariDataSource>();
+      for (var url : postgres.getReplicaJdbcUrls()) {
+        replicas.add(dataSource("replica-" + replicas.size(), url, postgres, concurrency));
+      }
+
+      var hashes = seed(new PostgresUrlStore(new JdbcTemplate(primary), ReadReplicas.none(),
+          TransactionOperations.withoutTransaction(), new SimpleMeterRegistry()), numUrls);
+      System.out.printf("%9s %10s %10s %9s %9s %9s %9s %9s%n",
+          "replicas", "lookups", "lookups/s", "p50 ms", "p99 ms", "p99.9 ms", "misses", "writes/s");
+      for (var numReplicas = 0; numReplicas <= maxReplicas; numReplicas++) {
+        var meterRegistry = new SimpleMeterRegistry();
+        var store = new PostgresUrlStore(new JdbcTemplate(primary), new ReadReplicas(replicas.subList(0, numReplicas)),
+            TransactionOperations.withoutTransaction(), meterRegistry);
+        run(store, hashes, numReplicas, concurrency, duration, meterRegistry);
+      }
+
+      replicas.forEach(HikariDataSource::close);
+      primary.close();
+    }
+  }
+
+  private static HikariDataSource dataSource(String name, String url, ReplicatedPostgres postgres, int poolSize) {
+    var config = new HikariConfig();
+    config.setPoolName(name);
+    config.setJdbcUrl(url);
+    config.setUsername(postgres.getUsername());
+    config.setPassword(postgres.getPassword());
+    config.setMaximumPoolSize(poolSize);
+    return new HikariDataSource(config);
+  }
+
+  private static String[] seed(PostgresUrlStore store, int numUrls) {
+    var hashes = new String[numUrls];
+    var batch = new ArrayList<StoredUrl>(SEED_BATCH_SIZE);
+    for (var i = 0; i < numUrls; i++) {
+      hashes[i] = String.format("%08x", i);
+      batch.add(new StoredUrl("https://www.example.com/replica-load-test/" + i, hashes[i]));
+      if (batch.size() == SEED_BATCH_SIZE || i == numUrls - 1) {
+        store.insertAllIgnoringConflicts(batch);
+        batch.clear();
+      }
+    }
+    System.out.println("Created " + numUrls + " urls");
+    return hashes;
+  }
+
+  private static void run(PostgresUrlStore store, String[] hashes, int numReplicas, int concurrency,
+                          Duration duration, SimpleMeterRegistry meterRegistry) throws InterruptedException {
+    var deadline = System.nanoTime() + duration.toNanos();
+    var running = new AtomicBoolean(true);
+    var writes = new AtomicLong();
+    var writer = Thread.ofPlatform().start(() -> {
+      var runId = System.nanoTime();
+      for (var i = 0; running.get(); i++) {
+        store.insertIfAbsent(new StoredUrl("https://www.example.com/replica-load-test/" + runId + "/" + i,
+            Long.toString(runId, 36) + "-" + i));
+        writes.incrementAndGet();
+      }
+    });
+
+    var latencies = new ArrayList<long[]>();
+    var counts = new int[concurrency];
+    var threads = new ArrayList<Thread>(concurrency);
+    for (var t = 0; t < concurrency; t++) {
+      var worker = t;
+      var workerLatencies = new long[1 << 20];
+      latencies.add(workerLatencies);
+      threads.add(Thread.ofPlatform().start(() -> {
+        var random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline && counts[worker] < workerLatencies.length) {
+          var start = System.nanoTime();
+          store.findLongUrlByHash(hashes[random.nextInt(hashes.length)]);
+          workerLatencies[counts[worker]++] = System.nanoTime() - start;
+        }
+      }));
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+    running.set(false);
+    writer.join();
+
+    var sorted = merge(latencies, counts);
+    var misses = meterRegistry.find("shortener.db.replica.fallbacks").counters().stream()
+        .mapToDouble(counter -> counter.count()).sum();
+    System.out.printf("%9d %10d %10.0f %9.2f %9.2f %9.2f %9.0f %9.0f%n",
+        numReplicas, sorted.length, sorted.length / (double) duration.toSeconds(),
+        percentileMillis(sorted, 50), percentileMillis(sorted, 99), percentileMillis(sorted, 99.9),
+        misses, writes.get() / (double) duration.toSeconds());
+  }
+
+  private static long[] merge(List<long[]> latencies, int[] counts) {
+    var merged = new long[Arrays.stream(counts).sum()];
+    var pos = 0;
+    for (var i = 0; i < counts.length; i++) {
+      System.arraycopy(latencies.get(i), 0, merged, pos, counts[i]);
+      pos += counts[i];
+    }
+    Arrays.sort(merged);
+    return merged;
+  }
+
+  private static double percentileMillis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    var index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+}
@@ -0,0 +1,425 @@
+package org.cecatto.urlshortener.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.Histogram;
+import org.cecatto.urlshortener.App;
+import org.cecatto.urlshortener.bulk.PostgresBulkTransfer;
+import org.cecatto.urlshortener.bulk.UrlRecord;
+import org.cecatto.urlshortener.bulk.UrlRecordReader;
+import org.cecatto.urlshortener.controller.UrlShortenerController;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Load test suite of the service against a real database: it starts a Postgres container, seeds it with the urls of a
+ * {@link TrafficProfile} through the bulk import, starts the application on a random port, and replays the traffic mix
+ * of the profile, reporting the throughput and latency percentiles of every endpoint.
+ * <p>
+ * Every connection sends its requests one after the other (a closed loop, like {@link RedirectLoadTest}), drawing
+ * them from a generator seeded from the profile, so runs of the same profile send the same requests. The results are
+ * written as JSON, along with the full latency histograms ({@code .hgrm}, which the HdrHistogram plotter reads), and
+ * compared with a baseline results file if given: the run fails when the throughput or the p99 latency of an endpoint
+ * is worse than in the baseline by more than the allowed regression. The load generator runs in the same JVM as the
+ * application, so results are only comparable between runs on the same machine.
+ * <p>
+ * Usage: {@code TrafficMixLoadTest <profile> [key=value ...]}, e.g. {@code TrafficMixLoadTest mixed urls=5000000
+ * baseline=loadtest-baseline.json max-regression=5}
+ */
+public class TrafficMixLoadTest {
+
+  private static final DockerImageName POSTGRES_IMAGE = DockerImageName.parse("postgres:14.2");
+  private static final String HASH_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+  // the latencies are recorded in microseconds
+  private static final double MICROS_PER_MILLI = TimeUnit.MILLISECONDS.toMicros(1);
+
+  enum Endpoint {
+    REDIRECT(301), CREATE(201), INVALID(404);
+
+    private final int expectedStatus;
+
+    Endpoint(int expectedStatus) {
+      this.expectedStatus = expectedStatus;
+    }
+
+    private String key() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private final String baseUrl;
+  private final TrafficProfile profile;
+  private final ZipfDistribution redirectDistribution;
+  private final HttpClient httpClient;
+  // keeps the urls of creates apart between runs
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+  public TrafficMixLoadTest(String baseUrl, TrafficProfile profile) {
+    this.baseUrl = baseUrl;
+    this.profile = profile;
+    this.redirectDistribution = new ZipfDistribution(profile.urls, profile.zipfExponent);
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: TrafficMixLoadTest <profile> [key=value ...]");
+      System.exit(1);
+    }
+    var profile = TrafficProfile.load(args[0], Arrays.copyOfRange(args, 1, args.length));
+    System.out.println(profile);
+
+    Results results;
+    try (var postgres = new PostgreSQLContainer<>(POSTGRES_IMAGE).withDatabaseName("url_shortener")) {
+      postgres.start();
+      var datasource = new String[]{
+          "--spring.datasource.url=" + postgres.getJdbcUrl(),
+          "--spring.datasource.username=" + postgres.getUsername(),
+          "--spring.datasource.password=" + postgres.getPassword()};
+      seed(profile, datasource);
+      try (var context = startApplication(datasource)) {
+        var port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+        results = new TrafficMixLoadTest("http://localhost:" + port, profile).run();
+      }
+    }
+
+    results.print(System.out);
+    results.write(profile);
+    // failing requests are usually faster, so a run with errors can't be compared with the baseline
+    var failures = results.errorsAbove(profile.maxErrors);
+    if (failures.isEmpty() && profile.baseline != null) {
+      failures = results.regressionsFrom(Results.read(profile), profile.maxRegression);
+      if (failures.isEmpty()) {
+        System.out.println("No regression of more than " + profile.maxRegression + "% from " + profile.baseline);
+      }
+    }
+    if (!failures.isEmpty()) {
+      failures.forEach(System.err::println);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Stores the urls of the profile through the bulk import, as a separate run of the application with the bulk profile
+   * (see BulkApp), which also migrates the schema.
+   */
+  private static void seed(TrafficProfile profile, String[] datasource) {
+    var application = new SpringApplication(App.class);
+    application.setAdditionalProfiles("bulk");
+    try (var context = application.run(datasource)) {
+      var result = context.getBean(PostgresBulkTransfer.class).importUrls(new SeedReader(profile.urls));
+      System.out.printf("Seeded %d urls in %d s%n", result.stored, result.elapsedSeconds);
+      if (result.stored != profile.urls) {
+        throw new IllegalStateException("Only " + result.stored + " of the " + profile.urls + " urls were seeded");
+      }
+    }
+  }
+
+  private static ConfigurableApplicationContext startApplication(String[] datasource) throws IOException {
+    // the snapshot of the cache warm-up would be left behind otherwise, and loaded by the next run
+    var snapshot = Files.createTempDirectory("load-test").resolve("hot-urls.snapshot");
+    var args = Stream.concat(Arrays.stream(datasource),
+        Stream.of("--server.port=0", "--url-shortener.warm-up.snapshot-path=" + snapshot)).toArray(String[]::new);
+    return SpringApplication.run(App.class, args);
+  }
+
+  /**
+   * @return the hash of the seeded url of the given rank (0 being the most requested one)
+   */
+  private static String seededHash(int rank) {
+    return String.format("lt%08d", rank);
+  }
+
+  public Results run() throws InterruptedException {
+    var start = System.nanoTime();
+    var measureStart = start + profile.warmUp.toNanos();
+    var deadline = measureStart + profile.duration.toNanos();
+    // split in order, so that every connection gets the same generator on every run
+    var random = new SplittableRandom(profile.seed);
+    var workers = new ArrayList<Worker>(profile.connections);
+    var threads = new ArrayList<Thread>(profile.connections);
+    for (var i = 0; i < profile.connections; i++) {
+      var worker = new Worker(i, random.split(), start, measureStart, deadline);
+      workers.add(worker);
+      threads.add(Thread.ofVirtual().start(worker));
+    }
+    for (var thread : threads) {
+      thread.join();
+    }
+    return Results.of(profile, workers);
+  }
+
+  private HttpRequest request(Endpoint endpoint, SplittableRandom random, int worker, long sequence) {
+    switch (endpoint) {
+      case REDIRECT:
+        return lookupRequest(seededHash(redirectDistribution.next(random)));
+      case CREATE:
+        var longUrl = "https://www.example.com/load-test/" + runId + "/" + worker + "/" + sequence;
+        return HttpRequest.newBuilder(URI.create(baseUrl + UrlShortenerController.PATH_CREATE_V1))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(
+                UrlShortenerController.PARAM_URL + "=" + URLEncoder.encode(longUrl, StandardCharsets.UTF_8)))
+            .build();
+      default:
+        return lookupRequest(invalidHash(random));
+    }
+  }
+
+  private HttpRequest lookupRequest(String hash) {
+    return HttpRequest.newBuilder(URI.create(baseUrl + "/s/" + hash)).GET().build();
+  }
+
+  /**
+   * @return a hash that doesn't match {@link UrlShortenerController#HASH_REGEX}: too short, too long, or with a
+   * character out of its alphabet
+   */
+  private static String invalidHash(SplittableRandom random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return randomHash(random, 7);
+      case 1:
+        return randomHash(random, 21);
+      case 2:
+        return randomHash(random, 7) + (char) ('A' + random.nextInt(26));
+      default:
+        return randomHash(random, 7) + '_';
+    }
+  }
+
+  private static String randomHash(SplittableRandom random, int length) {
+    var hash = new char[length];
+    for (var i = 0; i < length; i++) {
+      hash[i] = HASH_CHARS.charAt(random.nextInt(HASH_CHARS.length()));
+    }
+    return new String(hash);
+  }
+
+  private class Worker implements Runnable {
+
+    private final int id;
+    private final SplittableRandom random;
+    private final long start;
+    private final long measureStart;
+    private final long deadline;
+    private final Histogram[] latencies = new Histogram[Endpoint.values().length];
+    private final long[] errors = new long[Endpoint.values().length];
+
+    private Worker(int id, SplittableRandom random, long start, long measureStart, long deadline) {
+      this.id = id;
+      this.random = random;
+      this.start = start;
+      this.measureStart = measureStart;
+      this.deadline = deadline;
+      for (var i = 0; i < latencies.length; i++) {
+        // auto-resizing, with 3 significant digits
+        latencies[i] = new Histogram(3);
+      }
+    }
+
+    @Override
+    public void run() {
+      for (long sequence = 0, now = System.nanoTime(); now < deadline; sequence++) {
+        var endpoint = profile.nextEndpoint(random, Duration.ofNanos(now - start));
+        var request = request(endpoint, random, id, sequence);
+        var sent = System.nanoTime();
+        var failed = false;
+        try {
+          failed = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != endpoint.expectedStatus;
+        } catch (Exception e) {
+          failed = true;
+        }
+        now = System.nanoTime();
+        if (sent >= measureStart) {
+          latencies[endpoint.ordinal()].recordValue(TimeUnit.NANOSECONDS.toMicros(now - sent));
+          if (failed) {
+            errors[endpoint.ordinal()]++;
+          }
+        }
+      }
+    }
+
+  }
+
+  /**
+   * The urls of the profile, generated as they are read instead of held in memory.
+   */
+  private static class SeedReader implements UrlRecordReader {
+
+    private final int numUrls;
+    private int next;
+
+    private SeedReader(int numUrls) {
+      this.numUrls = numUrls;
+    }
+
+    @Override
+    public UrlRecord next() {
+      if (next == numUrls) {
+        return null;
+      }
+      var rank = next++;
+      return new UrlRecord(seededHash(rank), "https://www.example.com/load-test/seeded/" + rank, null);
+    }
+
+    @Override
+    public void close() {
+    }
+
+  }
+
+  /**
+   * The results of a run, as written to (and compared with) the results files.
+   */
+  public static class Results {
+
+    public String profile;
+    public Map<String, EndpointResult> endpoints = new LinkedHashMap<>();
+    // written next to the results file, not to it
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    private static Results of(TrafficProfile profile, List<Worker> workers) {
+      var results = new Results();
+      results.profile = profile.name;
+      for (var endpoint : Endpoint.values()) {
+        var histogram = new Histogram(3);
+        var errors = 0L;
+        for (var worker : workers) {
+          histogram.add(worker.latencies[endpoint.ordinal()]);
+          errors += worker.errors[endpoint.ordinal()];
+        }
+        if (histogram.getTotalCount() > 0) {
+          results.endpoints.put(endpoint.key(), EndpointResult.of(histogram, errors, profile.duration));
+          results.histograms.put(endpoint.key(), histogram);
+        }
+      }
+      return results;
+    }
+
+    private static Results read(TrafficProfile profile) throws IOException {
+      return new ObjectMapper().readValue(profile.baseline.toFile(), Results.class);
+    }
+
+    private void write(TrafficProfile profile) throws IOException {
+      var directory = profile.results.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(profile.results.toFile(), this);
+      for (var histogram : histograms.entrySet()) {
+        try (var out = new PrintStream(Files.newOutputStream(
+            directory.resolve(profile.name + "-" + histogram.getKey() + ".hgrm")), false, StandardCharsets.UTF_8)) {
+          histogram.getValue().outputPercentileDistribution(out, MICROS_PER_MILLI);
+        }
+      }
+      System.out.println("Results written to " + profile.results);
+    }
+
+    private void print(PrintStream out) {
+      out.printf("%10s %10s %10s %9s %9s %9s %9s %9s %8s%n",
+          "endpoint", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+      endpoints.forEach((endpoint, result) -> out.printf("%10s %10d %10.0f %9.2f %9.2f %9.2f %9.2f %9.2f %8d%n",
+          endpoint, result.requests, result.requestsPerSecond, result.p50Millis, result.p90Millis, result.p99Millis,
+          result.p999Millis, result.maxMillis, result.errors));
+    }
+
+    /**
+     * @param maxErrors the share of the requests of an endpoint that may fail (in %)
+     * @return the endpoints with more errors than that, explained
+     */
+    private List<String> errorsAbove(double maxErrors) {
+      var failures = new ArrayList<String>();
+      endpoints.forEach((endpoint, result) -> {
+        var errors = result.errors * 100.0 / result.requests;
+        if (errors > maxErrors) {
+          failures.add(String.format("%s: %.2f%% of the requests failed, more than the allowed %.2f%%",
+              endpoint, errors, maxErrors));
+        }
+      });
+      return failures;
+    }
+
+    /**
+     * @param maxRegression how much lower the throughput, or higher the p99 latency, of an endpoint may be (in %)
+     * @return the endpoints that got worse than that, explained
+     */
+    private List<String> regressionsFrom(Results baseline, double maxRegression) {
+      var regressions = new ArrayList<String>();
+      baseline.endpoints.forEach((endpoint, expected) -> {
+        var actual = endpoints.get(endpoint);
+        if (actual == null) {
+          regressions.add(endpoint + ": not requested, unlike in the baseline " + baseline.profile);
+          return;
+        }
+        var throughputChange = percentChange(expected.requestsPerSecond, actual.requestsPerSecond);
+        if (throughputChange < -maxRegression) {
+          regressions.add(String.format("%s: %.0f req/s, %.1f%% below the baseline (%.0f req/s), more than the " +
+              "allowed %.1f%%", endpoint, actual.requestsPerSecond, -throughputChange, expected.requestsPerSecond,
+              maxRegression));
+        }
+        var p99Change = percentChange(expected.p99Millis, actual.p99Millis);
+        if (p99Change > maxRegression) {
+          regressions.add(String.format("%s: p99 of %.2f ms, %.1f%% above the baseline (%.2f ms), more than the " +
+              "allowed %.1f%%", endpoint, actual.p99Millis, p99Change, expected.p99Millis, maxRegression));
+        }
+      });
+      return regressions;
+    }
+
+    private static double percentChange(double from, double to) {
+      return from == 0 ? 0 : (to - from) / from * 100;
+    }
+
+  }
+
+  public static class EndpointResult {
+
+    public long requests;
+    public double requestsPerSecond;
+    public double p50Millis;
+    public double p90Millis;
+    public double p99Millis;
+    public double p999Millis;
+    public double maxMillis;
+    // unexpected statuses, or no response at all
+    public long errors;
+
+    private static EndpointResult of(Histogram histogram, long errors, Duration duration) {
+      var result = new EndpointResult();
+      result.requests = histogram.getTotalCount();
+      result.requestsPerSecond = result.requests / (double) duration.toSeconds();
+      result.p50Millis = histogram.getValueAtPercentile(50) / MICROS_PER_MILLI;
+      result.p90Millis = histogram.getValueAtPercentile(90) / MICROS_PER_MILLI;
+      result.p99Millis = histogram.getValueAtPercentile(99) / MICROS_PER_MILLI;
+      result.p999Millis = histogram.getValueAtPercentile(99.9) / MICROS_PER_MILLI;
+      result.maxMillis = histogram.getMaxValue() / MICROS_PER_MILLI;
+      result.errors = errors;
+      return result;
+    }
+
+  }
+
+}
@@ -0,0 +1,141 @@
+package org.cecatto.urlshortener.loadtest;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.random.RandomGenerator;
+
+/**
+ * A traffic mix of {@link TrafficMixLoadTest}: how many urls are seeded, how many connections send requests and for
+ * how long, and how the requests are spread over the endpoints. It is read from properties, either one of the profiles
+ * bundled under {@code loadtest/} (by name) or a file, and any of them can be overridden by {@code key=value}
+ * arguments.
+ */
+public class TrafficProfile {
+
+  private static final String BUNDLED_PROFILES = "/loadtest/";
+
+  final String name;
+  // stored urls seeded before the run, and looked up by the redirects
+  final int urls;
+  final int connections;
+  // requests not measured, while the JIT and the caches warm up
+  final Duration warmUp;
+  final Duration duration;
+  // of the random generators of the connections, so that runs send the same requests
+  final long seed;
+
+  final int redirectWeight;
+  // the skew of the redirects over the seeded urls (see ZipfDistribution), 0 to spread them evenly
+  final double zipfExponent;
+  final int createWeight;
+  // creates go up to the burst weight for the burst length, every burst interval (none if 0)
+  final Duration createBurstInterval;
+  final Duration createBurstLength;
+  final int createBurstWeight;
+  // lookups of hashes that don't match UrlShortenerController.HASH_REGEX
+  final int invalidWeight;
+
+  // share of the requests of an endpoint (in %) that may fail (e.g. unexpected statuses), which fails the run otherwise
+  final double maxErrors;
+  // results to compare with, if any, and how much worse (in %) the throughput or p99 of an endpoint may get
+  final Path baseline;
+  final double maxRegression;
+  final Path results;
+
+  private TrafficProfile(String name, Properties properties) {
+    this.name = name;
+    this.urls = Integer.parseInt(properties.getProperty("urls", "1000000"));
+    this.connections = Integer.parseInt(properties.getProperty("connections", "64"));
+    this.warmUp = DurationStyle.detectAndParse(properties.getProperty("warm-up", "15s"));
+    this.duration = DurationStyle.detectAndParse(properties.getProperty("duration", "60s"));
+    this.seed = Long.parseLong(properties.getProperty("seed", "42"));
+    this.redirectWeight = Integer.parseInt(properties.getProperty("redirect.weight", "100"));
+    this.zipfExponent = Double.parseDouble(properties.getProperty("redirect.zipf-exponent", "1.0"));
+    this.createWeight = Integer.parseInt(properties.getProperty("create.weight", "0"));
+    this.createBurstInterval = DurationStyle.detectAndParse(properties.getProperty("create.burst-interval", "0s"));
+    this.createBurstLength = DurationStyle.detectAndParse(properties.getProperty("create.burst-length", "0s"));
+    this.createBurstWeight = Integer.parseInt(properties.getProperty("create.burst-weight", "0"));
+    this.invalidWeight = Integer.parseInt(properties.getProperty("invalid.weight", "0"));
+    this.maxErrors = Double.parseDouble(properties.getProperty("max-errors", "0.1"));
+    this.baseline = properties.containsKey("baseline") ? Path.of(properties.getProperty("baseline")) : null;
+    this.maxRegression = Double.parseDouble(properties.getProperty("max-regression", "10"));
+    this.results = Path.of(properties.getProperty("results", "build/reports/loadtest/" + name + ".json"));
+
+    if (urls < 1 || connections < 1) {
+      throw new IllegalArgumentException("There must be at least one url and one connection");
+    }
+    if (redirectWeight < 0 || createWeight < 0 || createBurstWeight < 0 || invalidWeight < 0 ||
+        redirectWeight + createWeight + invalidWeight == 0) {
+      throw new IllegalArgumentException("The weights can't be negative, and at least one outside of the bursts must " +
+          "be positive");
+    }
+  }
+
+  /**
+   * @param profile   the name of a bundled profile, or the path of a properties file
+   * @param overrides {@code key=value} pairs replacing those of the profile
+   */
+  public static TrafficProfile load(String profile, String... overrides) {
+    var properties = new Properties();
+    try (var in = open(profile)) {
+      properties.load(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (var override : overrides) {
+      var separator = override.indexOf('=');
+      if (separator < 1) {
+        throw new IllegalArgumentException("Not a key=value pair: " + override);
+      }
+      properties.setProperty(override.substring(0, separator), override.substring(separator + 1));
+    }
+    var name = Path.of(profile).getFileName().toString().replaceFirst("\\.properties$", "");
+    return new TrafficProfile(name, properties);
+  }
+
+  private static InputStream open(String profile) throws IOException {
+    var bundled = TrafficProfile.class.getResourceAsStream(BUNDLED_PROFILES + profile + ".properties");
+    if (bundled != null) {
+      return bundled;
+    }
+    if (!Files.isRegularFile(Path.of(profile))) {
+      throw new IllegalArgumentException("No bundled profile nor file named " + profile);
+    }
+    return Files.newInputStream(Path.of(profile));
+  }
+
+  /**
+   * @param elapsed since the start of the run, to place the create bursts
+   * @return the endpoint of the next request
+   */
+  TrafficMixLoadTest.Endpoint nextEndpoint(RandomGenerator random, Duration elapsed) {
+    var creates = inCreateBurst(elapsed) ? createBurstWeight : createWeight;
+    var pick = random.nextInt(redirectWeight + creates + invalidWeight);
+    if (pick < redirectWeight) {
+      return TrafficMixLoadTest.Endpoint.REDIRECT;
+    }
+    return pick < redirectWeight + creates ? TrafficMixLoadTest.Endpoint.CREATE : TrafficMixLoadTest.Endpoint.INVALID;
+  }
+
+  private boolean inCreateBurst(Duration elapsed) {
+    return !createBurstInterval.isZero() &&
+        elapsed.toNanos() % createBurstInterval.toNanos() < createBurstLength.toNanos();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d urls, %d connections for %d s (after %d s of warm-up), seed %d%n" +
+            "  redirect %d (zipf %.2f), create %d (%d for %d s every %d s), invalid %d",
+        name, urls, connections, duration.toSeconds(), warmUp.toSeconds(), seed,
+        redirectWeight, zipfExponent, createWeight, createBurstWeight, createBurstLength.toSeconds(),
+        createBurstInterval.toSeconds(), invalidWeight);
+  }
+
+}
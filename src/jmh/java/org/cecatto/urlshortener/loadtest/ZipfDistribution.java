@@ -0,0 +1,47 @@
+package org.cecatto.urlshortener.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Skewed choice of keys, as requests to short links are: the key of rank k (from 0) is picked with a probability
+ * proportional to 1 / (k + 1)^exponent, so a few keys get most of the requests (with an exponent of 1 and 10000 keys,
+ * the first one gets ~10% of them and the first 100 ~53%).
+ */
+public class ZipfDistribution {
+
+  private final double[] cumulativeProbabilities;
+
+  public ZipfDistribution(int numKeys, double exponent) {
+    if (numKeys < 1) {
+      throw new IllegalArgumentException("There must be at least one key");
+    }
+    cumulativeProbabilities = new double[numKeys];
+    var total = 0.0;
+    for (var rank = 0; rank < numKeys; rank++) {
+      total += 1 / Math.pow(rank + 1, exponent);
+      cumulativeProbabilities[rank] = total;
+    }
+    for (var rank = 0; rank < numKeys; rank++) {
+      cumulativeProbabilities[rank] /= total;
+    }
+  }
+
+  /**
+   * @return the rank of a random key, from 0 (the most frequent) to the number of keys - 1
+   */
+  public int next() {
+    return next(ThreadLocalRandom.current());
+  }
+
+  /**
+   * @return the rank of a random key drawn from the given generator, so that seeded generators give the same ranks
+   */
+  public int next(RandomGenerator random) {
+    var index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+    // not found gives -(insertion point) - 1, the first rank whose cumulative probability is above the random value
+    return Math.min(index >= 0 ? index : -index - 1, cumulativeProbabilities.length - 1);
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.cecatto.urlshortener.persistence;
+
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stand-in for {@link UrlStore} keeping everything in memory, so that benchmarks measure the application code and not
+ * the database.
+ */
+public class InMemoryUrlStore implements UrlStore {
+
+  // same as the increment of short_code_id_seq
+  private static final long ID_BLOCK_SIZE = 10_000;
+
+  private final ConcurrentHashMap<String, String> hashesByLongUrl = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StoredUrl> urlsByHash = new ConcurrentHashMap<>();
+  private final AtomicLong idSequence = new AtomicLong();
+
+  @Override
+  public synchronized Optional<String> insertIfAbsent(StoredUrl storedUrl) {
+    var existingHash = hashesByLongUrl.get(storedUrl.getLongUrl());
+    if (existingHash != null) {
+      return Optional.of(existingHash);
+    }
+    if (urlsByHash.containsKey(storedUrl.getHash())) {
+      return Optional.empty();
+    }
+    urlsByHash.put(storedUrl.getHash(), new StoredUrl(storedUrl.getLongUrl(), storedUrl.getHash(), OffsetDateTime.now()));
+    hashesByLongUrl.put(storedUrl.getLongUrl(), storedUrl.getHash());
+    return Optional.of(storedUrl.getHash());
+  }
+
+  @Override
+  public Optional<String> findHashByLongUrl(String longUrl) {
+    return Optional.ofNullable(hashesByLongUrl.get(longUrl));
+  }
+
+  @Override
+  public Optional<String> findLongUrlByHash(String hash) {
+    var storedUrl = urlsByHash.get(hash);
+    return storedUrl == null ? Optional.empty() : Optional.of(storedUrl.getLongUrl());
+  }
+
+  @Override
+  public Optional<StoredUrl> findByHash(String hash) {
+    return Optional.ofNullable(urlsByHash.get(hash));
+  }
+
+  @Override
+  public void insertAllIgnoringConflicts(Collection<StoredUrl> storedUrls) {
+    storedUrls.forEach(this::insertIfAbsent);
+  }
+
+  @Override
+  public Map<String, String> findHashesByLongUrls(Collection<String> longUrls) {
+    var found = new HashMap<String, String>();
+    for (var longUrl : longUrls) {
+      var hash = hashesByLongUrl.get(longUrl);
+      if (hash != null) {
+        found.put(longUrl, hash);
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public IdBlock allocateIdBlock() {
+    var start = idSequence.getAndAdd(ID_BLOCK_SIZE);
+    return new IdBlock(start, start + ID_BLOCK_SIZE);
+  }
+
+  @Override
+  public void forEachHash(Consumer<String> consumer) {
+    urlsByHash.keySet().forEach(consumer);
+  }
+
+  @Override
+  public void forEachUrl(BiConsumer<String, String> consumer) {
+    urlsByHash.forEach((hash, storedUrl) -> consumer.accept(hash, storedUrl.getLongUrl()));
+  }
+
+  @Override
+  public void forEachHashCreatedSince(OffsetDateTime since, Consumer<String> consumer) {
+    urlsByHash.values().forEach(storedUrl -> {
+      if (!storedUrl.getCreatedAt().isBefore(since)) {
+        consumer.accept(storedUrl.getHash());
+      }
+    });
+  }
+
+  @Override
+  public void forEachUrlCreatedSince(OffsetDateTime since, BiConsumer<String, String> consumer) {
+    urlsByHash.values().forEach(storedUrl -> {
+      if (!storedUrl.getCreatedAt().isBefore(since)) {
+        consumer.accept(storedUrl.getHash(), storedUrl.getLongUrl());
+      }
+    });
+  }
+
+  @Override
+  public long estimateCount() {
+    return urlsByHash.size();
+  }
+
+  @Override
+  public long count() {
+    return urlsByHash.size();
+  }
+
+  @Override
+  public synchronized void deleteAll() {
+    urlsByHash.clear();
+    hashesByLongUrl.clear();
+  }
+
+}
@@ -0,0 +1,31 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.cecatto.urlshortener.dto.ClickStats;
+
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * Stand-in for {@link ClickStatsRepository} discarding the clicks, so that benchmarks include the buffering and the
+ * aggregation of clicks but not the database.
+ */
+public class NoOpClickStatsRepository implements ClickStatsRepository {
+
+  @Override
+  public void addClicks(String[] hashes, long[] clicks, long[] lastAccessEpochMillis) {
+  }
+
+  @Override
+  public Optional<ClickStats> findByHash(String hash) {
+    return Optional.empty();
+  }
+
+  @Override
+  public void forEachMostClicked(int limit, BiConsumer<String, String> consumer) {
+  }
+
+  @Override
+  public void deleteAll() {
+  }
+
+}
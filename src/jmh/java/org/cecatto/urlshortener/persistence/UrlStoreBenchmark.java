@@ -0,0 +1,156 @@
+package org.cecatto.urlshortener.persistence;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.persistence.mapped.MappedFileUrlStore;
+import org.flywaydb.core.Flyway;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookups and creates straight on the url stores, without any cache in front: a local {@link MappedFileUrlStore}
+ * against {@link PostgresUrlStore} on a Postgres container (needs Docker), with stored_url as a single table or hash
+ * partitioned (see {@link StoredUrlPartitions}). The bytes taken per url by each store, and the size of every index in
+ * Postgres, are printed after loading them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlStoreBenchmark {
+
+  private static final int BATCH_SIZE = 10_000;
+
+  @Param({"mapped-file", "postgres", "postgres-partitioned"})
+  public String store;
+
+  // of stored_url, with postgres-partitioned
+  @Param({"16"})
+  public int partitions;
+
+  @Param({"1000000"})
+  public int numUrls;
+
+  private UrlStore urlStore;
+  private String[] hashes;
+  private String[] unknownHashes;
+  // urls created by the insert benchmark, after the loaded ones
+  private final AtomicLong created = new AtomicLong();
+
+  private ReplicatedPostgres postgres;
+  private HikariDataSource dataSource;
+  private MappedFileUrlStore mappedFileUrlStore;
+
+  @Setup
+  public void setUp() throws IOException {
+    if (store.startsWith("postgres")) {
+      postgres = ReplicatedPostgres.start(0);
+      var config = new HikariConfig();
+      config.setJdbcUrl(postgres.getPrimaryJdbcUrl());
+      config.setUsername(postgres.getUsername());
+      config.setPassword(postgres.getPassword());
+      dataSource = new HikariDataSource(config);
+      var locations = new ArrayList<>(List.of("classpath:db/migration",
+          "classpath:org/cecatto/urlshortener/persistence/migration"));
+      if (store.equals("postgres-partitioned")) {
+        locations.add("classpath:org/cecatto/urlshortener/persistence/partitioning");
+      }
+      Flyway.configure()
+          .dataSource(dataSource)
+          .locations(locations.toArray(String[]::new))
+          .placeholders(Map.of("stored-url-partitions", String.valueOf(partitions)))
+          .load()
+          .migrate();
+      urlStore = new PostgresUrlStore(new JdbcTemplate(dataSource), ReadReplicas.none(),
+          TransactionOperations.withoutTransaction(), new SimpleMeterRegistry());
+    } else {
+      var directory = Files.createTempDirectory("url-store-benchmark");
+      directory.toFile().deleteOnExit();
+      var path = directory.resolve("urls.store");
+      path.toFile().deleteOnExit();
+      mappedFileUrlStore = new MappedFileUrlStore(path, 64 << 20, false);
+      urlStore = mappedFileUrlStore;
+    }
+
+    hashes = new String[numUrls];
+    unknownHashes = new String[numUrls];
+    var batch = new ArrayList<StoredUrl>(BATCH_SIZE);
+    for (var i = 0; i < numUrls; i++) {
+      hashes[i] = String.format("%08x", i);
+      unknownHashes[i] = String.format("u%07x", i);
+      batch.add(new StoredUrl("https://www.example.com/some/path/" + i + "?utm_source=benchmark", hashes[i]));
+      if (batch.size() == BATCH_SIZE || i == numUrls - 1) {
+        urlStore.insertAllIgnoringConflicts(batch);
+        batch.clear();
+      }
+    }
+    printBytesPerUrl();
+  }
+
+  private void printBytesPerUrl() {
+    if (mappedFileUrlStore != null) {
+      System.out.printf("%n%s: %.1f bytes per url in the file, %.1f bytes per url of off-heap index%n", store,
+          (double) mappedFileUrlStore.logBytes() / numUrls, (double) mappedFileUrlStore.indexMemoryBytes() / numUrls);
+    } else {
+      var jdbcTemplate = new JdbcTemplate(dataSource);
+      jdbcTemplate.execute("vacuum analyze");
+      // the partitions and the table deduplicating the urls, if partitioned
+      var tables = "select oid from pg_class where relname in ('stored_url', 'stored_url_long_url') " +
+          "union all select inhrelid from pg_inherits " +
+          "where inhparent in ('stored_url'::regclass, to_regclass('stored_url_long_url'))";
+      var bytes = jdbcTemplate.queryForObject("select sum(pg_total_relation_size(oid)) from (" + tables + ") t",
+          Long.class);
+      System.out.printf("%n%s: %.1f bytes per url in the tables and their indexes%n", store, (double) bytes / numUrls);
+      jdbcTemplate.query("select i.indexrelid::regclass::text, pg_relation_size(i.indexrelid) from pg_index i " +
+          "where i.indrelid in (" + tables + ") order by 1", rs -> {
+        System.out.printf("  %s: %.1f MB%n", rs.getString(1), rs.getLong(2) / (1024.0 * 1024));
+      });
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (mappedFileUrlStore != null) {
+      mappedFileUrlStore.close();
+    }
+    if (dataSource != null) {
+      dataSource.close();
+      postgres.close();
+    }
+  }
+
+  @Benchmark
+  public Optional<String> lookupFound() {
+    return urlStore.findLongUrlByHash(hashes[ThreadLocalRandom.current().nextInt(hashes.length)]);
+  }
+
+  /**
+   * Creates of new urls, one statement each (as the creates that don't go through a batch).
+   */
+  @Benchmark
+  public Optional<String> insertNew() {
+    var i = created.getAndIncrement();
+    return urlStore.insertIfAbsent(new StoredUrl("https://www.example.com/created/" + i + "?utm_source=benchmark",
+        String.format("c%07x", i)));
+  }
+
+  @Benchmark
+  public Optional<String> lookupNotFound() {
+    return urlStore.findLongUrlByHash(unknownHashes[ThreadLocalRandom.current().nextInt(unknownHashes.length)]);
+  }
+
+}
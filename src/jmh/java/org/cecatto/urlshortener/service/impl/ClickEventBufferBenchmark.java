@@ -0,0 +1,54 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request threads recording clicks into {@link ClickEventBuffer} while the flusher drains it, i.e. the cost added to
+ * every redirect under contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClickEventBufferBenchmark {
+
+  private static final int NUM_HASHES = 1024;
+
+  private ClickEventBuffer buffer;
+  private String[] hashes;
+
+  @State(Scope.Thread)
+  public static class Producer {
+    int next;
+  }
+
+  @Setup
+  public void setUp() {
+    buffer = new ClickEventBuffer(65_536);
+    hashes = new String[NUM_HASHES];
+    for (var i = 0; i < NUM_HASHES; i++) {
+      hashes[i] = String.format("%08x", i);
+    }
+  }
+
+  @Benchmark
+  @Group("recordAndDrain")
+  @GroupThreads(3)
+  public boolean offer(Producer producer) {
+    producer.next = (producer.next + 1) & (NUM_HASHES - 1);
+    return buffer.offer(hashes[producer.next], System.currentTimeMillis());
+  }
+
+  @Benchmark
+  @Group("recordAndDrain")
+  @GroupThreads(1)
+  public int drain(Blackhole blackhole) {
+    return buffer.drain((hash, epochMillis) -> blackhole.consume(hash), 1024);
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in {@link CompactUrlMap}, with and without the dictionary of prefixes, against a
+ * {@code ConcurrentHashMap<String, String>} of the same urls. The bytes per url taken by each are printed after
+ * filling them: the table and the slabs used for the compact map, the growth of the heap after a full GC for the
+ * other one (which needs a heap big enough to hold it, e.g. 4 GB for 10 million urls).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CompactUrlMapBenchmark {
+
+  // the sites most urls point to, plus a long tail of others
+  private static final String[] POPULAR_HOSTS = {
+      "https://www.youtube.com/watch?v=", "https://www.amazon.com/dp/", "https://www.linkedin.com/in/",
+      "https://docs.google.com/document/d/", "https://twitter.com/", "https://www.instagram.com/p/",
+      "https://github.com/", "https://medium.com/@", "https://www.nytimes.com/2023/", "https://en.wikipedia.org/wiki/"};
+  private static final double POPULAR_SHARE = 0.6;
+
+  @Param({"compact", "compact-without-prefixes", "concurrent-hash-map"})
+  public String map;
+
+  @Param({"1000000"})
+  public int numUrls;
+
+  private CompactUrlMap compactMap;
+  private ConcurrentHashMap<String, String> hashMap;
+  private String[] hashes;
+  private String[] unknownHashes;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    var generator = new Murmur3ShortCodeGenerator(8);
+    var random = new SplittableRandom(42);
+    var urls = new String[numUrls];
+    var storedHashes = new String[numUrls];
+    for (var i = 0; i < numUrls; i++) {
+      urls[i] = randomUrl(random);
+      storedHashes[i] = generator.generate(urls[i], 0);
+    }
+
+    var heapBefore = usedHeap();
+    if (map.equals("concurrent-hash-map")) {
+      hashMap = new ConcurrentHashMap<>();
+      for (var i = 0; i < numUrls; i++) {
+        // copies, as the strings read from the store would be
+        hashMap.put(String.valueOf(storedHashes[i].toCharArray()), String.valueOf(urls[i].toCharArray()));
+      }
+      System.out.printf(" [%.1f bytes per url on heap]", (double) (usedHeap() - heapBefore) / hashMap.size());
+    } else {
+      compactMap = new CompactUrlMap(numUrls, 64 << 20, map.equals("compact"));
+      // as the index does when loading
+      compactMap.learnPrefixes(Arrays.asList(urls).subList(0, Math.min(numUrls, 100_000)));
+      for (var i = 0; i < numUrls; i++) {
+        compactMap.put(storedHashes[i], urls[i]);
+      }
+      System.out.printf(" [%.1f bytes per url off heap, %.1f of them in the slabs]",
+          (double) (compactMap.tableBytes() + compactMap.usedSlabBytes()) / compactMap.size(),
+          (double) compactMap.usedSlabBytes() / compactMap.size());
+    }
+
+    // looked up in random order, as the redirects do, so neither map gets the entries next to the previous ones from
+    // the caches; the hashes looked up are new strings, as parsed from the requests
+    hashes = new String[numUrls];
+    unknownHashes = new String[numUrls];
+    for (var i = 0; i < numUrls; i++) {
+      var stored = random.nextInt(numUrls);
+      hashes[i] = String.valueOf(storedHashes[stored].toCharArray());
+      unknownHashes[i] = generator.generate(urls[stored], 1);
+    }
+  }
+
+  private static String randomUrl(SplittableRandom random) {
+    var path = Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "/" +
+        Long.toString(random.nextLong(1L << (4 * random.nextInt(1, 16))), 36);
+    if (random.nextDouble() < POPULAR_SHARE) {
+      return POPULAR_HOSTS[random.nextInt(POPULAR_HOSTS.length)] + path;
+    }
+    var scheme = random.nextBoolean() ? "https://" : "http://";
+    var www = random.nextBoolean() ? "www." : "";
+    return scheme + www + "site" + random.nextInt(100_000) + ".com/" + path;
+  }
+
+  private static long usedHeap() {
+    for (var i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  @Benchmark
+  public String lookupFound() {
+    return get(hashes[nextIndex()]);
+  }
+
+  @Benchmark
+  public String lookupNotFound() {
+    return get(unknownHashes[nextIndex()]);
+  }
+
+  private String get(String hash) {
+    return compactMap != null ? compactMap.get(hash) : hashMap.get(hash);
+  }
+
+  private int nextIndex() {
+    next = next + 1 == numUrls ? 0 : next + 1;
+    return next;
+  }
+
+}
@@ -0,0 +1,89 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.InMemoryUrlStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates and lookups through {@link HashServiceImpl}, backed by an in-memory repository.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashServiceImplBenchmark {
+
+  private static final int NUM_URLS = 8192;
+
+  @Param({"true", "false"})
+  public boolean cacheEnabled;
+
+  @Param({"true", "false"})
+  public boolean bloomFilterEnabled;
+
+  private HashServiceImpl hashService;
+  private URI[] urls;
+  private String[] hashes;
+  private String[] unknownHashes;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    var properties = new UrlShortenerProperties();
+    // the registry used in production, histograms included
+    var meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    properties.getCache().setEnabled(cacheEnabled);
+    var urlStore = new InMemoryUrlStore();
+    var knownHashes = new KnownHashesFilter(urlStore, properties, meterRegistry);
+    var lookupCache = new UrlLookupCache(properties);
+    var compactIndex = new CompactUrlIndex(urlStore, properties, meterRegistry);
+    // no notifications without Postgres
+    var broadcast = new StoredUrlBroadcast(urlStore, lookupCache, knownHashes, compactIndex, null, properties,
+        meterRegistry);
+    hashService = new HashServiceImpl(urlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(urlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry), broadcast,
+        new Murmur3ShortCodeGenerator(properties), properties, meterRegistry);
+
+    urls = new URI[NUM_URLS];
+    hashes = new String[NUM_URLS];
+    unknownHashes = new String[NUM_URLS];
+    for (var i = 0; i < NUM_URLS; i++) {
+      urls[i] = URI.create("https://www.example.com/some/path/" + i + "?utm_source=benchmark");
+      hashes[i] = hashService.hashUrl(urls[i]);
+      unknownHashes[i] = String.format("%08x", i);
+    }
+    if (bloomFilterEnabled) {
+      // sized as in production (10 million hashes by default)
+      knownHashes.rebuild();
+    }
+  }
+
+  @Benchmark
+  public String hashExistingUrl() {
+    return hashService.hashUrl(urls[nextIndex()]);
+  }
+
+  @Benchmark
+  public Optional<String> lookupFound() {
+    return hashService.lookup(hashes[nextIndex()]);
+  }
+
+  @Benchmark
+  public Optional<String> lookupNotFound() {
+    return hashService.lookup(unknownHashes[nextIndex()]);
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (NUM_URLS - 1);
+    return next;
+  }
+
+}
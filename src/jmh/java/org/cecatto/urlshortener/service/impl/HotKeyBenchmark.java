@@ -0,0 +1,145 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.loadtest.ZipfDistribution;
+import org.cecatto.urlshortener.persistence.InMemoryUrlStore;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Many threads looking up and creating urls picked with a skewed (Zipf) distribution through {@link HashServiceImpl},
+ * against a store taking a fixed time per call over a pool of connections, as a database would, with and without
+ * coalescing the concurrent calls for the same hash or url. The lookup cache is disabled by default, as it is for the
+ * urls not cached yet when they go viral; the store calls per operation are printed at the end of each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class HotKeyBenchmark {
+
+  private static final int NUM_URLS = 10_000;
+
+  @Param({"true", "false"})
+  public boolean coalescing;
+
+  @Param({"false"})
+  public boolean cacheEnabled;
+
+  @Param({"1.0"})
+  public double zipfExponent;
+
+  @Param({"200"})
+  public long storeLatencyMicros;
+
+  // the default maximum pool size of Hikari
+  @Param({"10"})
+  public int connections;
+
+  private SlowUrlStore urlStore;
+  private HashServiceImpl hashService;
+  private ZipfDistribution keys;
+  private URI[] urls;
+  private String[] hashes;
+  private final LongAdder operations = new LongAdder();
+
+  @Setup
+  public void setUp() {
+    var properties = new UrlShortenerProperties();
+    properties.getCache().setEnabled(cacheEnabled);
+    properties.getCoalescing().setEnabled(coalescing);
+    var meterRegistry = new SimpleMeterRegistry();
+    urlStore = new SlowUrlStore(TimeUnit.MICROSECONDS.toNanos(storeLatencyMicros), connections);
+    // not started, so every hash may be known
+    var knownHashes = new KnownHashesFilter(urlStore, properties, meterRegistry);
+    var lookupCache = new UrlLookupCache(properties);
+    var compactIndex = new CompactUrlIndex(urlStore, properties, meterRegistry);
+    // no notifications without Postgres
+    var broadcast = new StoredUrlBroadcast(urlStore, lookupCache, knownHashes, compactIndex, null, properties,
+        meterRegistry);
+    hashService = new HashServiceImpl(urlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(urlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry), broadcast,
+        new Murmur3ShortCodeGenerator(properties), properties, meterRegistry);
+
+    keys = new ZipfDistribution(NUM_URLS, zipfExponent);
+    urls = new URI[NUM_URLS];
+    hashes = new String[NUM_URLS];
+    for (var i = 0; i < NUM_URLS; i++) {
+      urls[i] = URI.create("https://www.example.com/some/path/" + i + "?utm_source=benchmark");
+      hashes[i] = hashService.hashUrl(urls[i]);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void resetCounters() {
+    urlStore.calls.reset();
+    operations.reset();
+  }
+
+  @TearDown(Level.Iteration)
+  public void printStoreCalls() {
+    System.out.printf(" [%.3f store calls per operation]", (double) urlStore.calls.sum() / operations.sum());
+  }
+
+  @Benchmark
+  public Optional<String> lookup() {
+    operations.increment();
+    return hashService.lookup(hashes[keys.next()]);
+  }
+
+  @Benchmark
+  public String create() {
+    operations.increment();
+    return hashService.hashUrl(urls[keys.next()]);
+  }
+
+  /**
+   * Parks every lookup and insert for the latency of a query, holding one of the connections meanwhile, and counts
+   * them.
+   */
+  private static class SlowUrlStore extends InMemoryUrlStore {
+
+    private final long latencyNanos;
+    private final Semaphore connections;
+    private final LongAdder calls = new LongAdder();
+
+    private SlowUrlStore(long latencyNanos, int connections) {
+      this.latencyNanos = latencyNanos;
+      this.connections = new Semaphore(connections, true);
+    }
+
+    @Override
+    public Optional<String> findLongUrlByHash(String hash) {
+      query();
+      return super.findLongUrlByHash(hash);
+    }
+
+    @Override
+    public Optional<String> insertIfAbsent(StoredUrl storedUrl) {
+      query();
+      return super.insertIfAbsent(storedUrl);
+    }
+
+    private void query() {
+      calls.increment();
+      connections.acquireUninterruptibly();
+      try {
+        LockSupport.parkNanos(latencyNanos);
+      } finally {
+        connections.release();
+      }
+    }
+  }
+
+}
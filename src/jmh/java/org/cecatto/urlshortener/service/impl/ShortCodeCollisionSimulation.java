@@ -0,0 +1,65 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many first-attempt codes collide (i.e. would need a retry when stored) when shortening N distinct urls,
+ * next to the number expected from a perfectly uniform code space.
+ * <p>
+ * Usage: {@code ./gradlew collisionSimulation -PsimulationArgs="<md5|murmur3> <numUrls> [length]"}; 100M urls need
+ * a heap of ~1GB.
+ */
+public class ShortCodeCollisionSimulation {
+
+  public static void main(String[] args) {
+    var generatorName = args.length > 0 ? args[0] : "murmur3";
+    var numUrls = args.length > 1 ? Integer.parseInt(args[1]) : 100_000_000;
+    var length = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+    ShortCodeGenerator generator;
+    double codeSpace;
+    if ("md5".equals(generatorName)) {
+      generator = new Md5ShortCodeGenerator();
+      codeSpace = Math.pow(16, 8);
+    } else {
+      generator = new Murmur3ShortCodeGenerator(length);
+      codeSpace = Math.pow(36, length);
+    }
+
+    var start = System.nanoTime();
+    var codes = new long[numUrls];
+    for (var i = 0; i < numUrls; i++) {
+      codes[i] = pack(generator.generate("https://www.example.com/some/path/" + i + "?utm_source=simulation", 0));
+    }
+    var generationSeconds = (System.nanoTime() - start) / 1e9;
+
+    Arrays.sort(codes);
+    var collisions = 0L;
+    for (var i = 1; i < numUrls; i++) {
+      if (codes[i] == codes[i - 1]) {
+        collisions++;
+      }
+    }
+
+    // n - (occupied codes), with the expected occupation of n balls thrown into codeSpace bins
+    var expectedCollisions = numUrls - codeSpace * -Math.expm1(numUrls * Math.log1p(-1 / codeSpace));
+    System.out.printf("generator=%s urls=%,d codeSpace=%.3e generation=%.1fs (%.0f ns/url)%n",
+        generatorName, numUrls, codeSpace, generationSeconds, generationSeconds * 1e9 / numUrls);
+    System.out.printf("colliding codes: %,d (%.5f%%), expected for a uniform hash: %,.0f%n",
+        collisions, 100.0 * collisions / numUrls, expectedCollisions);
+  }
+
+  /**
+   * Codes up to 12 characters of [0-9a-z-] fit in a long; longer codes are folded, which can only add collisions.
+   */
+  private static long pack(String code) {
+    var packed = 0L;
+    for (var i = 0; i < code.length(); i++) {
+      packed = packed * 37 + Character.digit(code.charAt(i), 36) + 1;
+    }
+    return packed;
+  }
+
+}
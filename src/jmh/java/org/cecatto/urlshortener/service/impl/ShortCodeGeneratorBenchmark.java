@@ -0,0 +1,53 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.persistence.InMemoryUrlStore;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost (time and allocated bytes) of deriving the short code of a url, without storing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShortCodeGeneratorBenchmark {
+
+  private static final int NUM_URLS = 1024;
+
+  @Param({"md5", "murmur3", "sequence"})
+  public String generator;
+
+  private ShortCodeGenerator shortCodeGenerator;
+  private String[] urls;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    switch (generator) {
+      case "md5":
+        shortCodeGenerator = new Md5ShortCodeGenerator();
+        break;
+      case "sequence":
+        shortCodeGenerator = new SequenceShortCodeGenerator(new InMemoryUrlStore()::allocateIdBlock, 8, 42);
+        break;
+      default:
+        shortCodeGenerator = new Murmur3ShortCodeGenerator(8);
+    }
+    urls = new String[NUM_URLS];
+    for (var i = 0; i < NUM_URLS; i++) {
+      urls[i] = "https://www.example.com/some/path/" + i + "?utm_source=benchmark";
+    }
+  }
+
+  @Benchmark
+  public String generate() {
+    next = (next + 1) & (NUM_URLS - 1);
+    return shortCodeGenerator.generate(urls[next], 0);
+  }
+
+}
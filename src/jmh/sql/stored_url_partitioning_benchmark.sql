@@ -0,0 +1,207 @@
+-- Compares stored_url as a single table (primary key on hash, unique index on the sha256 digest of long_url) with the
+-- hash partitioned layout of V6_1__Partition_stored_url (partitions by hash, the urls claimed in stored_url_long_url
+-- by a trigger): time to insert the rows, size of the tables and of every index, and the latency of looking a row up
+-- by hash (redirects, through the partitioned table and straight on its partition) and by long url (deduplication of
+-- creates).
+--
+-- Run it against a scratch database (Postgres 13 or later), not the one of the application:
+--   psql -d scratch -v rows=200000000 -v partitions=16 -f src/jmh/sql/stored_url_partitioning_benchmark.sql
+-- It needs ~150GB of disk for 200M rows. Use e.g. -v rows=1000000 for a quick run.
+
+\if :{?rows}
+\else
+  \set rows 200000000
+\endif
+\if :{?partitions}
+\else
+  \set partitions 16
+\endif
+\if :{?lookups}
+\else
+  \set lookups 100000
+\endif
+\set ON_ERROR_STOP on
+\timing on
+
+set bench.rows = :rows;
+set bench.partitions = :partitions;
+
+-- the same urls and codes as stored_url_schema_benchmark.sql
+create or replace function pg_temp.bench_url(i bigint) returns text language sql immutable as $$
+  select 'https://www.example.com/articles/' || md5(i::text) || repeat('/' || substr(md5((i * 7)::text), 1, 8), (i % 20)::int)
+$$;
+create or replace function pg_temp.bench_hash(i bigint) returns varchar language sql immutable as $$
+  select lpad(to_hex((i * 2654435761) % 4294967296), 8, '0')
+$$;
+
+drop table if exists bench_url_single, bench_url_partitioned, bench_url_long_url;
+
+create table bench_url_single (
+    long_url         text                        not null,
+    hash             varchar(20)                 primary key,
+    created_at       timestamp with time zone    not null default now(),
+    long_url_digest  bytea                       unique not null
+);
+create index bench_url_single_created_at_idx on bench_url_single (created_at);
+
+create table bench_url_long_url (
+    long_url_digest  bytea                       primary key,
+    hash             varchar(20)                 not null
+) partition by hash (long_url_digest);
+
+create table bench_url_partitioned (
+    long_url         text                        not null,
+    hash             varchar(20)                 primary key,
+    created_at       timestamp with time zone    not null default now(),
+    long_url_digest  bytea                       not null
+) partition by hash (hash);
+create index bench_url_partitioned_created_at_idx on bench_url_partitioned (created_at);
+
+do $$
+declare
+  n int := current_setting('bench.partitions')::int;
+begin
+  for r in 0..n - 1 loop
+    execute format('create table bench_url_long_url_p%s partition of bench_url_long_url ' ||
+                   'for values with (modulus %s, remainder %s)', r, n, r);
+    execute format('create table bench_url_partitioned_p%s partition of bench_url_partitioned ' ||
+                   'for values with (modulus %s, remainder %s)', r, n, r);
+  end loop;
+end;
+$$;
+
+-- the claim of stored_url_claim_long_url, on the bench tables
+create or replace function bench_claim_long_url() returns trigger language plpgsql as $$
+declare
+  claimed varchar(20);
+begin
+  new.long_url_digest := sha256(convert_to(new.long_url, 'UTF8'));
+  insert into bench_url_long_url (long_url_digest, hash) values (new.long_url_digest, new.hash) on conflict do nothing;
+  if found then
+    return new;
+  end if;
+  select hash into claimed from bench_url_long_url where long_url_digest = new.long_url_digest;
+  if exists (select 1 from bench_url_partitioned where hash = claimed and long_url = new.long_url) then
+    return null;
+  end if;
+  update bench_url_long_url set hash = new.hash where long_url_digest = new.long_url_digest and hash = claimed;
+  return case when found then new end;
+end;
+$$;
+create trigger bench_claim_long_url before insert on bench_url_partitioned
+    for each row execute function bench_claim_long_url();
+
+-- inserts as the creates do them (on conflict do nothing), in batches of 10000 rows
+create or replace procedure pg_temp.bench_insert(layout text) language plpgsql as $$
+declare
+  num_rows bigint := current_setting('bench.rows')::bigint;
+  started timestamp with time zone := clock_timestamp();
+begin
+  for batch_start in 1..num_rows by 10000 loop
+    if layout = 'single' then
+      insert into bench_url_single (long_url, hash, long_url_digest)
+      select pg_temp.bench_url(i), pg_temp.bench_hash(i), sha256(convert_to(pg_temp.bench_url(i), 'UTF8'))
+      from generate_series(batch_start, least(batch_start + 9999, num_rows)) i
+      on conflict do nothing;
+    else
+      insert into bench_url_partitioned (long_url, hash)
+      select pg_temp.bench_url(i), pg_temp.bench_hash(i)
+      from generate_series(batch_start, least(batch_start + 9999, num_rows)) i
+      on conflict do nothing;
+    end if;
+    commit;
+  end loop;
+  raise notice '% layout: % rows inserted per second', layout,
+      round(num_rows / extract(epoch from clock_timestamp() - started));
+end;
+$$;
+
+call pg_temp.bench_insert('single');
+call pg_temp.bench_insert('partitioned');
+
+vacuum analyze bench_url_single;
+vacuum analyze bench_url_partitioned;
+vacuum analyze bench_url_long_url;
+
+-- the partitioned layout in total, and its largest partition
+select c.relname,
+       pg_size_pretty(sum(pg_table_size(p.oid)))          as table_size,
+       pg_size_pretty(sum(pg_indexes_size(p.oid)))        as indexes_size,
+       pg_size_pretty(sum(pg_total_relation_size(p.oid))) as total_size,
+       pg_size_pretty(max(pg_indexes_size(p.oid)))        as largest_partition_indexes_size
+from pg_class c
+left join pg_inherits i on i.inhparent = c.oid
+join pg_class p on p.oid = coalesce(i.inhrelid, c.oid)
+where c.relname in ('bench_url_single', 'bench_url_partitioned', 'bench_url_long_url')
+group by c.relname
+order by c.relname desc;
+
+select relname, indexrelname, pg_size_pretty(pg_relation_size(indexrelid)) as index_size
+from pg_stat_user_indexes
+where relname like 'bench_url%'
+order by relname, indexrelname;
+
+-- server side latency of random lookups (no network or client overhead), the key is computed outside of the timing.
+-- The lookups by hash on a partition query it alone, as the store does when it routes them; they are parsed and planned
+-- every time though, so they are an upper bound of those of the store, whose statements are prepared.
+create or replace function pg_temp.time_lookups(layout text, lookup_by text, n int)
+    returns table (layout_name text, lookup text, p50_us numeric, p99_us numeric, avg_us numeric)
+    language plpgsql as $$
+declare
+  num_rows bigint := current_setting('bench.rows')::bigint;
+  i bigint;
+  key_hash varchar;
+  key_url text;
+  key_partition text;
+  started timestamp with time zone;
+  result text;
+  timings float8[] := '{}';
+begin
+  for k in 1..n loop
+    i := 1 + floor(random() * num_rows)::bigint;
+    key_hash := pg_temp.bench_hash(i);
+    key_url := pg_temp.bench_url(i);
+    if lookup_by = 'hash_on_partition' then
+      select tableoid::regclass::text into key_partition from bench_url_partitioned where hash = key_hash;
+    end if;
+    started := clock_timestamp();
+    if layout = 'single' and lookup_by = 'hash' then
+      select long_url into result from bench_url_single where hash = key_hash;
+    elsif layout = 'single' then
+      select hash into result
+      from bench_url_single
+      where long_url_digest = sha256(convert_to(key_url, 'UTF8')) and long_url = key_url;
+    elsif lookup_by = 'hash' then
+      select long_url into result from bench_url_partitioned where hash = key_hash;
+    elsif lookup_by = 'hash_on_partition' then
+      execute format('select long_url from %s where hash = $1', key_partition) into result using key_hash;
+    else
+      select s.hash into result
+      from bench_url_long_url d join bench_url_partitioned s on s.hash = d.hash
+      where d.long_url_digest = sha256(convert_to(key_url, 'UTF8')) and s.long_url = key_url;
+    end if;
+    timings := timings || extract(epoch from clock_timestamp() - started) * 1000000;
+    if result is null then
+      raise exception 'Row % not found in % by %', i, layout, lookup_by;
+    end if;
+  end loop;
+  return query
+    select layout, lookup_by,
+           round(percentile_cont(0.5) within group (order by t)::numeric, 1),
+           round(percentile_cont(0.99) within group (order by t)::numeric, 1),
+           round(avg(t)::numeric, 1)
+    from unnest(timings) t;
+end;
+$$;
+
+-- a first pass warms the caches, the second one is the result
+select * from pg_temp.time_lookups('single', 'hash', :lookups);
+select * from pg_temp.time_lookups('partitioned', 'hash', :lookups);
+select * from pg_temp.time_lookups('single', 'hash', :lookups)
+union all select * from pg_temp.time_lookups('partitioned', 'hash', :lookups)
+union all select * from pg_temp.time_lookups('partitioned', 'hash_on_partition', :lookups)
+union all select * from pg_temp.time_lookups('single', 'long_url', :lookups)
+union all select * from pg_temp.time_lookups('partitioned', 'long_url', :lookups);
+
+drop table bench_url_single, bench_url_partitioned, bench_url_long_url;
+drop function bench_claim_long_url();
@@ -0,0 +1,118 @@
+-- Compares the original layout of stored_url (primary key on long_url, unique index on hash) with the current one
+-- (primary key on hash, unique index on the sha256 digest of long_url): size of the table and of every index, and the
+-- latency of looking a row up by hash (redirects) and by long url (deduplication of creates).
+--
+-- Run it against a scratch database, not the one of the application:
+--   psql -d scratch -v rows=50000000 -f src/jmh/sql/stored_url_schema_benchmark.sql
+-- It needs ~40GB of disk for 50M rows. Use e.g. -v rows=1000000 for a quick run.
+
+\if :{?rows}
+\else
+  \set rows 50000000
+\endif
+\if :{?lookups}
+\else
+  \set lookups 100000
+\endif
+\set ON_ERROR_STOP on
+\timing on
+
+set bench.rows = :rows;
+
+-- urls from ~60 to ~250 characters, and distinct scattered 8 character codes (i * odd constant is a bijection mod 2^32)
+create or replace function pg_temp.bench_url(i bigint) returns text language sql immutable as $$
+  select 'https://www.example.com/articles/' || md5(i::text) || repeat('/' || substr(md5((i * 7)::text), 1, 8), (i % 20)::int)
+$$;
+create or replace function pg_temp.bench_hash(i bigint) returns varchar language sql immutable as $$
+  select lpad(to_hex((i * 2654435761) % 4294967296), 8, '0')
+$$;
+
+drop table if exists bench_url_before, bench_url_after;
+
+create table bench_url_before (
+    long_url    text                        primary key,
+    hash        varchar(20)                 unique not null,
+    created_at  timestamp with time zone    not null default now()
+);
+
+create table bench_url_after (
+    long_url         text                        not null,
+    hash             varchar(20)                 primary key,
+    created_at       timestamp with time zone    not null default now(),
+    long_url_digest  bytea                       unique not null
+);
+
+insert into bench_url_before (long_url, hash)
+select pg_temp.bench_url(i), pg_temp.bench_hash(i) from generate_series(1, :rows) i;
+
+insert into bench_url_after (long_url, hash, created_at, long_url_digest)
+select long_url, hash, created_at, sha256(convert_to(long_url, 'UTF8')) from bench_url_before;
+
+vacuum analyze bench_url_before;
+vacuum analyze bench_url_after;
+
+select c.relname,
+       pg_size_pretty(pg_table_size(c.oid))          as table_size,
+       pg_size_pretty(pg_indexes_size(c.oid))        as indexes_size,
+       pg_size_pretty(pg_total_relation_size(c.oid)) as total_size
+from pg_class c
+where c.relname in ('bench_url_before', 'bench_url_after')
+order by c.relname desc;
+
+select relname, indexrelname, pg_size_pretty(pg_relation_size(indexrelid)) as index_size
+from pg_stat_user_indexes
+where relname in ('bench_url_before', 'bench_url_after')
+order by relname desc, indexrelname;
+
+-- server side latency of random lookups (no network or client overhead), the key is computed outside of the timing
+create or replace function pg_temp.time_lookups(layout text, lookup_by text, n int)
+    returns table (layout_name text, lookup text, p50_us numeric, p99_us numeric, avg_us numeric)
+    language plpgsql as $$
+declare
+  num_rows bigint := current_setting('bench.rows')::bigint;
+  i bigint;
+  key_hash varchar;
+  key_url text;
+  started timestamp with time zone;
+  result text;
+  timings float8[] := '{}';
+begin
+  for k in 1..n loop
+    i := 1 + floor(random() * num_rows)::bigint;
+    key_hash := pg_temp.bench_hash(i);
+    key_url := pg_temp.bench_url(i);
+    started := clock_timestamp();
+    if layout = 'before' and lookup_by = 'hash' then
+      select long_url into result from bench_url_before where hash = key_hash;
+    elsif layout = 'before' then
+      select hash into result from bench_url_before where long_url = key_url;
+    elsif lookup_by = 'hash' then
+      select long_url into result from bench_url_after where hash = key_hash;
+    else
+      select hash into result
+      from bench_url_after
+      where long_url_digest = sha256(convert_to(key_url, 'UTF8')) and long_url = key_url;
+    end if;
+    timings := timings || extract(epoch from clock_timestamp() - started) * 1000000;
+    if result is null then
+      raise exception 'Row % not found in % by %', i, layout, lookup_by;
+    end if;
+  end loop;
+  return query
+    select layout, lookup_by,
+           round(percentile_cont(0.5) within group (order by t)::numeric, 1),
+           round(percentile_cont(0.99) within group (order by t)::numeric, 1),
+           round(avg(t)::numeric, 1)
+    from unnest(timings) t;
+end;
+$$;
+
+-- a first pass warms the caches, the second one is the result
+select * from pg_temp.time_lookups('before', 'hash', :lookups);
+select * from pg_temp.time_lookups('after', 'hash', :lookups);
+select * from pg_temp.time_lookups('before', 'hash', :lookups)
+union all select * from pg_temp.time_lookups('after', 'hash', :lookups)
+union all select * from pg_temp.time_lookups('before', 'long_url', :lookups)
+union all select * from pg_temp.time_lookups('after', 'long_url', :lookups);
+
+drop table bench_url_before, bench_url_after;
@@ -0,0 +1,59 @@
+package org.cecatto.urlshortener;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cecatto.urlshortener.bulk.BulkFormat;
+import org.cecatto.urlshortener.bulk.PostgresBulkTransfer;
+import org.springframework.boot.SpringApplication;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Entry point of the bulk import and export of the stored urls, to seed or migrate a database with more urls than
+ * would be practical through the API. It runs the application with the bulk profile (no web server, nor any of the
+ * background work of the service) against the configured database, and exits once done.
+ * <p>
+ * Usage: {@code BulkApp <import|export> <csv|ndjson> <file> [--property=value ...]}
+ */
+public class BulkApp {
+
+  private static final String USAGE = "Usage: BulkApp <import|export> <csv|ndjson> <file> [--property=value ...]";
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    var format = BulkFormat.of(args[1]);
+    var path = Path.of(args[2]);
+
+    var application = new SpringApplication(App.class);
+    application.setAdditionalProfiles("bulk");
+    try (var context = application.run(Arrays.copyOfRange(args, 3, args.length))) {
+      var transfer = context.getBean(PostgresBulkTransfer.class);
+      var objectMapper = context.getBean(ObjectMapper.class);
+      if (args[0].equals("import")) {
+        var in = new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8),
+            IO_BUFFER_SIZE);
+        try (var reader = format.reader(in, objectMapper)) {
+          transfer.importUrls(reader);
+        }
+      } else {
+        var out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+            IO_BUFFER_SIZE);
+        try (var writer = format.writer(out, objectMapper)) {
+          transfer.exportUrls(writer);
+        }
+      }
+    }
+  }
+
+}
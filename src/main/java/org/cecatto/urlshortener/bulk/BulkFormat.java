@@ -0,0 +1,33 @@
+package org.cecatto.urlshortener.bulk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Formats of the files of the bulk import and export, read and written one record at a time.
+ */
+public enum BulkFormat {
+
+  CSV,
+  NDJSON;
+
+  public static BulkFormat of(String name) {
+    return Arrays.stream(values())
+        .filter(format -> format.name().equalsIgnoreCase(name))
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown format " + name + ", expected csv or ndjson"));
+  }
+
+  public UrlRecordReader reader(Reader in, ObjectMapper objectMapper) throws IOException {
+    return this == CSV ? CsvUrlRecords.reader(in) : NdjsonUrlRecords.reader(in, objectMapper);
+  }
+
+  public UrlRecordWriter writer(Writer out, ObjectMapper objectMapper) throws IOException {
+    return this == CSV ? CsvUrlRecords.writer(out) : NdjsonUrlRecords.writer(out, objectMapper);
+  }
+
+}
@@ -0,0 +1,193 @@
+package org.cecatto.urlshortener.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Url records as CSV (RFC 4180), with a header naming the columns as those of stored_url: hash, long_url and
+ * created_at. Only long_url is required on import, and the columns may come in any order, so the output of
+ * {@code \copy stored_url (hash, long_url, created_at) to 'urls.csv' csv header} in psql can be imported as it is.
+ */
+final class CsvUrlRecords {
+
+  private static final String HASH = "hash";
+  private static final String LONG_URL = "long_url";
+  private static final String CREATED_AT = "created_at";
+
+  // ISO 8601 as written by the export, or as Postgres prints timestamps (e.g. 2024-01-31 10:00:00.123+00)
+  private static final DateTimeFormatter TIMESTAMP = new DateTimeFormatterBuilder()
+      .append(DateTimeFormatter.ISO_LOCAL_DATE)
+      .optionalStart().appendLiteral('T').optionalEnd()
+      .optionalStart().appendLiteral(' ').optionalEnd()
+      .append(DateTimeFormatter.ISO_LOCAL_TIME)
+      .appendOffset("+HH:mm", "Z")
+      .toFormatter();
+
+  private CsvUrlRecords() {
+  }
+
+  static UrlRecordReader reader(Reader in) throws IOException {
+    return new CsvReader(in);
+  }
+
+  static UrlRecordWriter writer(Writer out) throws IOException {
+    return new CsvWriter(out);
+  }
+
+  private static class CsvReader implements UrlRecordReader {
+
+    private final Reader in;
+    private final List<String> fields = new ArrayList<>();
+    private final StringBuilder field = new StringBuilder();
+    private final int hashColumn;
+    private final int longUrlColumn;
+    private final int createdAtColumn;
+    private long line;
+
+    private CsvReader(Reader in) throws IOException {
+      this.in = in;
+      if (!readRow()) {
+        throw new IOException("The CSV has no header");
+      }
+      var header = fields.stream().map(name -> name.trim().toLowerCase()).toList();
+      this.hashColumn = header.indexOf(HASH);
+      this.longUrlColumn = header.indexOf(LONG_URL);
+      this.createdAtColumn = header.indexOf(CREATED_AT);
+      if (longUrlColumn < 0) {
+        throw new IOException("The CSV header has no " + LONG_URL + " column: " + String.join(",", header));
+      }
+    }
+
+    @Override
+    public UrlRecord next() throws IOException {
+      while (readRow()) {
+        if (fields.size() == 1 && fields.get(0).isEmpty()) {
+          // blank line
+          continue;
+        }
+        var createdAt = field(createdAtColumn);
+        try {
+          return new UrlRecord(field(hashColumn), field(longUrlColumn),
+              createdAt == null ? null : OffsetDateTime.parse(createdAt, TIMESTAMP));
+        } catch (DateTimeParseException e) {
+          throw new IOException("Invalid " + CREATED_AT + " at line " + line + ": " + createdAt, e);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the value of the column in the current row, or null if it is empty or missing
+     */
+    private String field(int column) {
+      if (column < 0 || column >= fields.size() || fields.get(column).isEmpty()) {
+        return null;
+      }
+      return fields.get(column);
+    }
+
+    /**
+     * Reads the fields of the next row, which may span several lines within quotes.
+     *
+     * @return false at the end of the input
+     */
+    private boolean readRow() throws IOException {
+      fields.clear();
+      field.setLength(0);
+      var c = in.read();
+      if (c == -1) {
+        return false;
+      }
+      line++;
+
+      var quoted = false;
+      while (true) {
+        if (c == -1) {
+          if (quoted) {
+            throw new IOException("Unterminated quoted field at line " + line);
+          }
+          fields.add(field.toString());
+          return true;
+        }
+        if (quoted) {
+          if (c == '"') {
+            var next = in.read();
+            if (next != '"') {
+              // the closing quote, the next character is handled as unquoted
+              quoted = false;
+              c = next;
+              continue;
+            }
+          } else if (c == '\n') {
+            line++;
+          }
+          field.append((char) c);
+        } else if (c == '"') {
+          quoted = true;
+        } else if (c == ',') {
+          fields.add(field.toString());
+          field.setLength(0);
+        } else if (c == '\n') {
+          fields.add(field.toString());
+          return true;
+        } else if (c != '\r') {
+          field.append((char) c);
+        }
+        c = in.read();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class CsvWriter implements UrlRecordWriter {
+
+    private final Writer out;
+
+    private CsvWriter(Writer out) throws IOException {
+      this.out = out;
+      out.write(HASH + "," + LONG_URL + "," + CREATED_AT + "\n");
+    }
+
+    @Override
+    public void write(UrlRecord record) throws IOException {
+      writeField(record.hash);
+      out.write(',');
+      writeField(record.longUrl);
+      out.write(',');
+      if (record.createdAt != null) {
+        out.write(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(record.createdAt));
+      }
+      out.write('\n');
+    }
+
+    private void writeField(String value) throws IOException {
+      if (value == null) {
+        return;
+      }
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+        out.write(value);
+        return;
+      }
+      out.write('"');
+      out.write(value.replace("\"", "\"\""));
+      out.write('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+}
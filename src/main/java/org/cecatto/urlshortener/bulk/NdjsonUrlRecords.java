@@ -0,0 +1,75 @@
+package org.cecatto.urlshortener.bulk;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Url records as newline delimited JSON, one object per line with the fields of {@link UrlRecord} (named as in the
+ * JSON of the API, e.g. {@code {"hash":"c0xt4es4","longUrl":"http://www.example.com","createdAt":"..."}}).
+ */
+final class NdjsonUrlRecords {
+
+  private NdjsonUrlRecords() {
+  }
+
+  static UrlRecordReader reader(Reader in, ObjectMapper objectMapper) throws IOException {
+    return new NdjsonReader(objectMapper.readerFor(UrlRecord.class).readValues(in));
+  }
+
+  static UrlRecordWriter writer(Writer out, ObjectMapper objectMapper) {
+    return new NdjsonWriter(out, objectMapper.writerFor(UrlRecord.class));
+  }
+
+  private static class NdjsonReader implements UrlRecordReader {
+
+    private final MappingIterator<UrlRecord> records;
+
+    private NdjsonReader(MappingIterator<UrlRecord> records) {
+      this.records = records;
+    }
+
+    @Override
+    public UrlRecord next() throws IOException {
+      try {
+        return records.hasNextValue() ? records.nextValue() : null;
+      } catch (JsonProcessingException e) {
+        var location = e.getLocation();
+        throw new IOException("Invalid JSON at line " + (location == null ? "?" : location.getLineNr()), e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      records.close();
+    }
+  }
+
+  private static class NdjsonWriter implements UrlRecordWriter {
+
+    private final Writer out;
+    private final ObjectWriter objectWriter;
+
+    private NdjsonWriter(Writer out, ObjectWriter objectWriter) {
+      this.out = out;
+      this.objectWriter = objectWriter;
+    }
+
+    @Override
+    public void write(UrlRecord record) throws IOException {
+      out.write(objectWriter.writeValueAsString(record));
+      out.write('\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,351 @@
+package org.cecatto.urlshortener.bulk;
+
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.controller.UrlShortenerController;
+import org.cecatto.urlshortener.persistence.StoredUrlPartitions;
+import org.cecatto.urlshortener.service.HashService;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Imports and exports the stored urls in bulk, streaming them with constant memory whatever their number.
+ * <p>
+ * The import stages every batch of records in a temporary table with COPY, and merges it into stored_url in the same
+ * transaction, skipping the urls that are already stored (keeping their hash). Records without a hash get the one a
+ * create would give them: the urls whose hash turns out to be taken by another url are stored afterwards through
+ * {@link HashService#hashUrls}, which retries with the next hashes as for any create. Records with a hash that is
+ * taken by another url are rejected, as are invalid urls and hashes that the lookups don't accept. Every batch is
+ * committed on its own, and importing the same records again only skips them, so a failed import can be simply run
+ * again.
+ * <p>
+ * The export reads stored_url through a server-side cursor.
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "postgres", matchIfMissing = true)
+public class PostgresBulkTransfer {
+
+  private static final Logger log = LoggerFactory.getLogger(PostgresBulkTransfer.class);
+
+  // emptied by every commit, so it only ever holds the batch being imported
+  private static final String CREATE_STAGING_TABLE =
+      "create temporary table if not exists stored_url_import (" +
+      "  long_url text not null," +
+      "  hash varchar(20) not null," +
+      "  created_at timestamp with time zone," +
+      "  hash_given boolean not null" +
+      ") on commit delete rows";
+  private static final String COPY_TO_STAGING_TABLE =
+      "copy stored_url_import (long_url, hash, created_at, hash_given) from stdin (format csv)";
+  private static final String MERGE_STAGING_TABLE =
+      "insert into stored_url (long_url, hash, created_at) " +
+      "select long_url, hash, coalesce(created_at, now()) from stored_url_import " +
+      "on conflict do nothing";
+  // the staged urls that are still not stored after the merge, because their hash is taken by another url
+  private static final String NOT_STORED =
+      "select s.long_url, s.hash, s.hash_given from stored_url_import s where not exists (" +
+      "  select 1 from stored_url u " +
+      "  where u.long_url_digest = sha256(convert_to(s.long_url, 'UTF8')) and u.long_url = s.long_url" +
+      ")";
+  // hash partitioned stored_url, whose urls are found by their digest through stored_url_long_url
+  private static final String NOT_STORED_PARTITIONED =
+      "select s.long_url, s.hash, s.hash_given from stored_url_import s where not exists (" +
+      "  select 1 from stored_url_long_url d join stored_url u on u.hash = d.hash " +
+      "  where d.long_url_digest = sha256(convert_to(s.long_url, 'UTF8')) and u.long_url = s.long_url" +
+      ")";
+  private static final String ALL_URLS = "select hash, long_url, created_at from stored_url";
+  // the hashes that can be looked up, anything else would be stored but never reachable through /s/{hash}
+  private static final Pattern VALID_HASH = Pattern.compile(UrlShortenerController.HASH_REGEX);
+  private static final int COPY_BUFFER_CHARS = 1 << 16;
+  // a file full of invalid records shouldn't flood the logs
+  private static final int MAX_LOGGED_REJECTIONS = 100;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionOperations transactionOperations;
+  private final ShortCodeGenerator shortCodeGenerator;
+  private final HashService hashService;
+  private final int batchSize;
+  private final int fetchSize;
+  private final String notStoredQuery;
+
+  @Autowired
+  public PostgresBulkTransfer(JdbcTemplate jdbcTemplate, TransactionOperations transactionOperations,
+                              ShortCodeGenerator shortCodeGenerator, HashService hashService,
+                              UrlShortenerProperties properties) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.transactionOperations = transactionOperations;
+    this.shortCodeGenerator = shortCodeGenerator;
+    this.hashService = hashService;
+    this.batchSize = properties.getBulk().getBatchSize();
+    this.fetchSize = properties.getBulk().getFetchSize();
+    this.notStoredQuery = StoredUrlPartitions.load(jdbcTemplate).isPartitioned() ? NOT_STORED_PARTITIONED : NOT_STORED;
+  }
+
+  public ImportResult importUrls(UrlRecordReader reader) {
+    var result = jdbcTemplate.execute((ConnectionCallback<ImportResult>) connection -> {
+      var autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+        return new Import(connection, reader).run();
+      } catch (IOException e) {
+        connection.rollback();
+        throw new UncheckedIOException(e);
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+    });
+    log.info("Imported {} records in {} s ({} rows/s): {} stored, {} already stored, {} stored with another hash " +
+            "after a collision, {} rejected", result.records, result.elapsedSeconds, Math.round(result.rowsPerSecond),
+        result.stored, result.alreadyStored, result.rehashed, result.rejected);
+    return result;
+  }
+
+  /**
+   * @return the number of urls written
+   */
+  public long exportUrls(UrlRecordWriter writer) {
+    var throughput = new Throughput("Exported");
+    // in a transaction, which is what makes Postgres use a cursor for the fetch size
+    transactionOperations.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+      var ps = connection.prepareStatement(ALL_URLS);
+      ps.setFetchSize(fetchSize);
+      return ps;
+    }, rs -> {
+      try {
+        writer.write(new UrlRecord(rs.getString(1), rs.getString(2), rs.getObject(3, OffsetDateTime.class)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      throughput.add(1);
+    }));
+    log.info("Exported {} urls in {} s ({} rows/s)", throughput.rows(), throughput.elapsed().toSeconds(),
+        Math.round(throughput.rowsPerSecond()));
+    return throughput.rows();
+  }
+
+  /**
+   * State of a single import, on its own connection (the staging table is only visible to it).
+   */
+  private class Import {
+
+    private final Connection connection;
+    private final UrlRecordReader reader;
+    private final CopyManager copyManager;
+    private final StringBuilder copyBuffer = new StringBuilder(COPY_BUFFER_CHARS + 4096);
+    private final Throughput throughput = new Throughput("Imported");
+    private final ImportResult result = new ImportResult();
+    // urls of the batch left out of the merge by a hash collision
+    private final LinkedHashSet<String> toRehash = new LinkedHashSet<>();
+    private boolean endOfInput;
+
+    private Import(Connection connection, UrlRecordReader reader) throws SQLException {
+      this.connection = connection;
+      this.reader = reader;
+      this.copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+    }
+
+    private ImportResult run() throws SQLException, IOException {
+      try (var statement = connection.createStatement()) {
+        statement.execute(CREATE_STAGING_TABLE);
+        connection.commit();
+
+        while (!endOfInput) {
+          var read = result.records;
+          var staged = stageBatch();
+          if (staged > 0) {
+            var stored = statement.executeUpdate(MERGE_STAGING_TABLE);
+            var notStored = findNotStored();
+            connection.commit();
+            result.stored += stored;
+            result.alreadyStored += staged - stored - notStored;
+            rehash();
+          }
+          throughput.add(result.records - read);
+        }
+      }
+
+      result.elapsedSeconds = throughput.elapsed().toSeconds();
+      result.rowsPerSecond = throughput.rowsPerSecond();
+      return result;
+    }
+
+    /**
+     * Copies up to a batch of valid records to the staging table.
+     *
+     * @return the number of records staged
+     */
+    private long stageBatch() throws SQLException, IOException {
+      CopyIn copyIn = null;
+      var staged = 0L;
+      try {
+        while (staged < batchSize) {
+          var record = reader.next();
+          if (record == null) {
+            endOfInput = true;
+            break;
+          }
+          result.records++;
+          var longUrl = toStoredUrl(record);
+          if (longUrl == null) {
+            continue;
+          }
+
+          var hashGiven = StringUtils.hasText(record.hash);
+          var hash = hashGiven ? record.hash : shortCodeGenerator.generate(longUrl, 0);
+          appendCsv(longUrl).append(',');
+          appendCsv(hash).append(',');
+          if (record.createdAt != null) {
+            copyBuffer.append(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(record.createdAt));
+          }
+          copyBuffer.append(',').append(hashGiven).append('\n');
+          staged++;
+
+          if (copyIn == null) {
+            copyIn = copyManager.copyIn(COPY_TO_STAGING_TABLE);
+          }
+          if (copyBuffer.length() >= COPY_BUFFER_CHARS) {
+            flush(copyIn);
+          }
+        }
+        if (copyIn != null) {
+          flush(copyIn);
+          copyIn.endCopy();
+        }
+        return staged;
+      } finally {
+        copyBuffer.setLength(0);
+        if (copyIn != null && copyIn.isActive()) {
+          copyIn.cancelCopy();
+        }
+      }
+    }
+
+    /**
+     * @return the url as a create would store it, or null if the record is rejected
+     */
+    private String toStoredUrl(UrlRecord record) {
+      if (!StringUtils.hasText(record.longUrl)) {
+        reject(record, "no url");
+        return null;
+      }
+      if (StringUtils.hasText(record.hash) && !VALID_HASH.matcher(record.hash).matches()) {
+        reject(record, "hash not matching " + UrlShortenerController.HASH_REGEX);
+        return null;
+      }
+      try {
+        var uri = new URI(record.longUrl);
+        // defaulted as HashServiceImpl does
+        return StringUtils.hasText(uri.getScheme()) ? uri.toString() : "http://" + uri;
+      } catch (URISyntaxException e) {
+        reject(record, "invalid URI syntax: " + e.getMessage());
+        return null;
+      }
+    }
+
+    private void reject(UrlRecord record, String reason) {
+      result.rejected++;
+      if (result.rejected <= MAX_LOGGED_REJECTIONS) {
+        log.warn("Rejected record {} ({}) - {}: {}", result.records, record.hash, record.longUrl, reason);
+      } else if (result.rejected == MAX_LOGGED_REJECTIONS + 1) {
+        log.warn("More than {} records rejected, not logging the next ones", MAX_LOGGED_REJECTIONS);
+      }
+    }
+
+    private StringBuilder appendCsv(String value) {
+      copyBuffer.append('"');
+      for (var i = 0; i < value.length(); i++) {
+        var c = value.charAt(i);
+        if (c == '"') {
+          copyBuffer.append('"');
+        }
+        copyBuffer.append(c);
+      }
+      return copyBuffer.append('"');
+    }
+
+    private void flush(CopyIn copyIn) throws SQLException {
+      var bytes = copyBuffer.toString().getBytes(StandardCharsets.UTF_8);
+      copyIn.writeToCopy(bytes, 0, bytes.length);
+      copyBuffer.setLength(0);
+    }
+
+    /**
+     * Rejects the records whose given hash is taken by another url, and keeps the other urls left out of the merge
+     * to be stored with the following hashes.
+     *
+     * @return the number of staged records that were not stored by the merge
+     */
+    private long findNotStored() throws SQLException {
+      var notStored = 0L;
+      try (var statement = connection.createStatement(); var rs = statement.executeQuery(notStoredQuery)) {
+        while (rs.next()) {
+          notStored++;
+          if (rs.getBoolean(3)) {
+            reject(new UrlRecord(rs.getString(2), rs.getString(1), null), "hash taken by another url");
+          } else {
+            toRehash.add(rs.getString(1));
+          }
+        }
+      }
+      return notStored;
+    }
+
+    /**
+     * Stores the urls left out of the merge as a create would, retrying with the following hashes. It runs on other
+     * connections, after the batch is committed.
+     */
+    private void rehash() {
+      if (toRehash.isEmpty()) {
+        return;
+      }
+      var longUrls = new ArrayList<URI>(toRehash.size());
+      toRehash.forEach(longUrl -> longUrls.add(URI.create(longUrl)));
+      hashService.hashUrls(longUrls);
+      result.rehashed += longUrls.size();
+      toRehash.clear();
+    }
+  }
+
+  public static class ImportResult {
+
+    // records read, whether valid or not
+    public long records;
+    // urls inserted by the merge of the batches
+    public long stored;
+    // urls that were already stored, by this import or before, and kept their hash
+    public long alreadyStored;
+    // urls stored with another hash than the first one of the generator, because it was taken
+    public long rehashed;
+    // records with an invalid url or hash, or with a hash taken by another url
+    public long rejected;
+    public long elapsedSeconds;
+    public double rowsPerSecond;
+  }
+
+}
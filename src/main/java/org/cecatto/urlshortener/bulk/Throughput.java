@@ -0,0 +1,52 @@
+package org.cecatto.urlshortener.bulk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the rows of a bulk import or export, logging their number and rate every few seconds.
+ */
+final class Throughput {
+
+  private static final Logger log = LoggerFactory.getLogger(Throughput.class);
+
+  private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final String action;
+  private final long start = System.nanoTime();
+  private long lastLog = start;
+  private long rows;
+
+  /**
+   * @param action what is done with the rows, e.g. Imported
+   */
+  Throughput(String action) {
+    this.action = action;
+  }
+
+  void add(long moreRows) {
+    rows += moreRows;
+    var now = System.nanoTime();
+    if (now - lastLog >= LOG_INTERVAL_NANOS) {
+      lastLog = now;
+      log.info("{} {} rows so far ({} rows/s)", action, rows, Math.round(rowsPerSecond()));
+    }
+  }
+
+  long rows() {
+    return rows;
+  }
+
+  Duration elapsed() {
+    return Duration.ofNanos(System.nanoTime() - start);
+  }
+
+  double rowsPerSecond() {
+    var seconds = (System.nanoTime() - start) / 1e9;
+    return seconds > 0 ? rows / seconds : 0;
+  }
+
+}
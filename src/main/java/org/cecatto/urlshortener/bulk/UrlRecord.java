@@ -0,0 +1,25 @@
+package org.cecatto.urlshortener.bulk;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A stored url as read and written by the bulk import and export.
+ */
+public class UrlRecord {
+
+  // on import, null to have one generated as for a create
+  public String hash;
+  public String longUrl;
+  // on import, null for the time of the import
+  public OffsetDateTime createdAt;
+
+  public UrlRecord() {
+  }
+
+  public UrlRecord(String hash, String longUrl, OffsetDateTime createdAt) {
+    this.hash = hash;
+    this.longUrl = longUrl;
+    this.createdAt = createdAt;
+  }
+
+}
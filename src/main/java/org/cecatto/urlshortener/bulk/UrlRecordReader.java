@@ -0,0 +1,13 @@
+package org.cecatto.urlshortener.bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface UrlRecordReader extends Closeable {
+
+  /**
+   * @return the next record, or null at the end of the input
+   */
+  UrlRecord next() throws IOException;
+
+}
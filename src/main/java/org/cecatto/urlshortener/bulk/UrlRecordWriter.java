@@ -0,0 +1,10 @@
+package org.cecatto.urlshortener.bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface UrlRecordWriter extends Closeable {
+
+  void write(UrlRecord record) throws IOException;
+
+}
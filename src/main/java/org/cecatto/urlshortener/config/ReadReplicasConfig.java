@@ -0,0 +1,54 @@
+package org.cecatto.urlshortener.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.persistence.ReadReplicas;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+
+/**
+ * Connection pools of the read replicas (url-shortener.read-replicas), next to the primary datasource. The pools
+ * don't fail the startup if a replica is down: the queries sent to it fall back to the primary instead.
+ */
+@Configuration
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "postgres", matchIfMissing = true)
+public class ReadReplicasConfig {
+
+  private static final Logger log = LoggerFactory.getLogger(ReadReplicasConfig.class);
+
+  @Bean
+  public ReadReplicas readReplicas(UrlShortenerProperties properties, DataSourceProperties primaryProperties,
+                                   MeterRegistry meterRegistry) {
+    var config = properties.getReadReplicas();
+    var username = config.getUsername() != null ? config.getUsername() : primaryProperties.determineUsername();
+    var password = config.getPassword() != null ? config.getPassword() : primaryProperties.determinePassword();
+
+    var dataSources = new ArrayList<HikariDataSource>();
+    for (var i = 0; i < config.getUrls().size(); i++) {
+      var hikariConfig = new HikariConfig();
+      hikariConfig.setPoolName("replica-" + i);
+      hikariConfig.setJdbcUrl(config.getUrls().get(i));
+      hikariConfig.setUsername(username);
+      hikariConfig.setPassword(password);
+      hikariConfig.setReadOnly(true);
+      hikariConfig.setMaximumPoolSize(config.getMaximumPoolSize());
+      hikariConfig.setInitializationFailTimeout(-1);
+      // same hikaricp_* metrics as the primary pool, tagged with the pool name
+      hikariConfig.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+      dataSources.add(new HikariDataSource(hikariConfig));
+    }
+    if (!dataSources.isEmpty()) {
+      log.info("Serving lookups from {} read replicas", dataSources.size());
+    }
+    return new ReadReplicas(dataSources);
+  }
+
+}
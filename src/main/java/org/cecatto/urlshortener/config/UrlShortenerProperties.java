@@ -0,0 +1,840 @@
+package org.cecatto.urlshortener.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@ConfigurationProperties("url-shortener")
+public class UrlShortenerProperties {
+
+  private Cache cache = new Cache();
+  private Batch batch = new Batch();
+  private Hash hash = new Hash();
+  private Execution execution = new Execution();
+  private Clicks clicks = new Clicks();
+  private ReadReplicas readReplicas = new ReadReplicas();
+  private BloomFilter bloomFilter = new BloomFilter();
+  private Store store = new Store();
+  private WarmUp warmUp = new WarmUp();
+  private Coalescing coalescing = new Coalescing();
+  private Bulk bulk = new Bulk();
+  private Http http = new Http();
+  private WriteBehind writeBehind = new WriteBehind();
+  private CompactIndex compactIndex = new CompactIndex();
+  private RateLimit rateLimit = new RateLimit();
+  private Notifications notifications = new Notifications();
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public void setCache(Cache cache) {
+    this.cache = cache;
+  }
+
+  public Batch getBatch() {
+    return batch;
+  }
+
+  public void setBatch(Batch batch) {
+    this.batch = batch;
+  }
+
+  public Hash getHash() {
+    return hash;
+  }
+
+  public void setHash(Hash hash) {
+    this.hash = hash;
+  }
+
+  public Execution getExecution() {
+    return execution;
+  }
+
+  public void setExecution(Execution execution) {
+    this.execution = execution;
+  }
+
+  public Clicks getClicks() {
+    return clicks;
+  }
+
+  public void setClicks(Clicks clicks) {
+    this.clicks = clicks;
+  }
+
+  public ReadReplicas getReadReplicas() {
+    return readReplicas;
+  }
+
+  public void setReadReplicas(ReadReplicas readReplicas) {
+    this.readReplicas = readReplicas;
+  }
+
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
+  }
+
+  public void setBloomFilter(BloomFilter bloomFilter) {
+    this.bloomFilter = bloomFilter;
+  }
+
+  public Store getStore() {
+    return store;
+  }
+
+  public void setStore(Store store) {
+    this.store = store;
+  }
+
+  public WarmUp getWarmUp() {
+    return warmUp;
+  }
+
+  public void setWarmUp(WarmUp warmUp) {
+    this.warmUp = warmUp;
+  }
+
+  public Coalescing getCoalescing() {
+    return coalescing;
+  }
+
+  public void setCoalescing(Coalescing coalescing) {
+    this.coalescing = coalescing;
+  }
+
+  public Bulk getBulk() {
+    return bulk;
+  }
+
+  public void setBulk(Bulk bulk) {
+    this.bulk = bulk;
+  }
+
+  public Http getHttp() {
+    return http;
+  }
+
+  public void setHttp(Http http) {
+    this.http = http;
+  }
+
+  public WriteBehind getWriteBehind() {
+    return writeBehind;
+  }
+
+  public void setWriteBehind(WriteBehind writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  public CompactIndex getCompactIndex() {
+    return compactIndex;
+  }
+
+  public void setCompactIndex(CompactIndex compactIndex) {
+    this.compactIndex = compactIndex;
+  }
+
+  public RateLimit getRateLimit() {
+    return rateLimit;
+  }
+
+  public void setRateLimit(RateLimit rateLimit) {
+    this.rateLimit = rateLimit;
+  }
+
+  public Notifications getNotifications() {
+    return notifications;
+  }
+
+  public void setNotifications(Notifications notifications) {
+    this.notifications = notifications;
+  }
+
+  public static class Cache {
+
+    private boolean enabled = true;
+    // maximum number of hash -> url mappings kept in memory
+    private long maximumSize = 100_000;
+    // maximum number of unknown hashes remembered as misses
+    private long negativeMaximumSize = 10_000;
+    // how long an unknown hash is remembered as a miss
+    private Duration negativeTtl = Duration.ofSeconds(10);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getMaximumSize() {
+      return maximumSize;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+      this.maximumSize = maximumSize;
+    }
+
+    public long getNegativeMaximumSize() {
+      return negativeMaximumSize;
+    }
+
+    public void setNegativeMaximumSize(long negativeMaximumSize) {
+      this.negativeMaximumSize = negativeMaximumSize;
+    }
+
+    public Duration getNegativeTtl() {
+      return negativeTtl;
+    }
+
+    public void setNegativeTtl(Duration negativeTtl) {
+      this.negativeTtl = negativeTtl;
+    }
+  }
+
+  public static class Batch {
+
+    // maximum number of urls accepted by a single batch create request
+    private int maxSize = 10_000;
+
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+    }
+  }
+
+  public static class Hash {
+
+    // murmur3, sequence or md5 (the original generator)
+    private String generator = "murmur3";
+    // length of the generated codes, from 8 to 20 (murmur3) or 12 (sequence)
+    private int length = 8;
+    // secret scrambling the ids of the sequence generator, must be the same on every instance and never change
+    private long sequenceKey;
+
+    public String getGenerator() {
+      return generator;
+    }
+
+    public void setGenerator(String generator) {
+      this.generator = generator;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    public void setLength(int length) {
+      this.length = length;
+    }
+
+    public long getSequenceKey() {
+      return sequenceKey;
+    }
+
+    public void setSequenceKey(long sequenceKey) {
+      this.sequenceKey = sequenceKey;
+    }
+  }
+
+  public static class Execution {
+
+    // platform-threads (a thread of the tomcat pool per request) or virtual-threads (a new virtual thread per request)
+    private String mode = "platform-threads";
+
+    public String getMode() {
+      return mode;
+    }
+
+    public void setMode(String mode) {
+      this.mode = mode;
+    }
+  }
+
+  public static class Clicks {
+
+    // whether redirects are counted (the stats endpoint is always available)
+    private boolean enabled = true;
+    // maximum number of clicks waiting to be written, rounded up to a power of two; more are dropped
+    private int bufferSize = 65_536;
+    // how often the pending clicks are written
+    private Duration flushInterval = Duration.ofSeconds(1);
+    // maximum number of hashes upserted by a single statement
+    private int flushBatchSize = 5_000;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+    }
+
+    public Duration getFlushInterval() {
+      return flushInterval;
+    }
+
+    public void setFlushInterval(Duration flushInterval) {
+      this.flushInterval = flushInterval;
+    }
+
+    public int getFlushBatchSize() {
+      return flushBatchSize;
+    }
+
+    public void setFlushBatchSize(int flushBatchSize) {
+      this.flushBatchSize = flushBatchSize;
+    }
+  }
+
+  public static class ReadReplicas {
+
+    // jdbc urls of read-only replicas of the datasource, serving the lookups; none by default
+    private List<String> urls = new ArrayList<>();
+    // credentials of the replicas, the ones of the datasource if not set
+    private String username;
+    private String password;
+    // maximum number of connections to each replica
+    private int maximumPoolSize = 10;
+
+    public List<String> getUrls() {
+      return urls;
+    }
+
+    public void setUrls(List<String> urls) {
+      this.urls = urls;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public void setUsername(String username) {
+      this.username = username;
+    }
+
+    public String getPassword() {
+      return password;
+    }
+
+    public void setPassword(String password) {
+      this.password = password;
+    }
+
+    public int getMaximumPoolSize() {
+      return maximumPoolSize;
+    }
+
+    public void setMaximumPoolSize(int maximumPoolSize) {
+      this.maximumPoolSize = maximumPoolSize;
+    }
+  }
+
+  public static class BloomFilter {
+
+    // whether lookups of hashes that were never stored are answered without querying the database
+    private boolean enabled = true;
+    // number of hashes the filter is sized for, at least (it is sized for 1.5 times the stored ones otherwise)
+    private long expectedInsertions = 10_000_000;
+    // share of unknown hashes that still go to the database, at the expected insertions
+    private double falsePositiveRate = 0.01;
+    // how often the filter is rebuilt from the stored hashes, resizing it
+    private Duration rebuildInterval = Duration.ofHours(6);
+    // how often the hashes created by other instances are added
+    private Duration refreshInterval = Duration.ofSeconds(1);
+    // how far back the refreshes look, covering clock skew and transactions committing after their created_at
+    private Duration refreshOverlap = Duration.ofSeconds(10);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getExpectedInsertions() {
+      return expectedInsertions;
+    }
+
+    public void setExpectedInsertions(long expectedInsertions) {
+      this.expectedInsertions = expectedInsertions;
+    }
+
+    public double getFalsePositiveRate() {
+      return falsePositiveRate;
+    }
+
+    public void setFalsePositiveRate(double falsePositiveRate) {
+      this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public Duration getRebuildInterval() {
+      return rebuildInterval;
+    }
+
+    public void setRebuildInterval(Duration rebuildInterval) {
+      this.rebuildInterval = rebuildInterval;
+    }
+
+    public Duration getRefreshInterval() {
+      return refreshInterval;
+    }
+
+    public void setRefreshInterval(Duration refreshInterval) {
+      this.refreshInterval = refreshInterval;
+    }
+
+    public Duration getRefreshOverlap() {
+      return refreshOverlap;
+    }
+
+    public void setRefreshOverlap(Duration refreshOverlap) {
+      this.refreshOverlap = refreshOverlap;
+    }
+  }
+
+  public static class Store {
+
+    // postgres (the datasource) or mapped-file (a local file, without a database)
+    private String type = "postgres";
+    private MappedFile mappedFile = new MappedFile();
+
+    public String getType() {
+      return type;
+    }
+
+    public void setType(String type) {
+      this.type = type;
+    }
+
+    public MappedFile getMappedFile() {
+      return mappedFile;
+    }
+
+    public void setMappedFile(MappedFile mappedFile) {
+      this.mappedFile = mappedFile;
+    }
+  }
+
+  public static class MappedFile {
+
+    // file holding the urls, created if missing
+    private String path = "data/urls.store";
+    // the file grows by chunks of this size, each mapped on its own; no url can be longer
+    private DataSize chunkSize = DataSize.ofMegabytes(64);
+    // whether every create waits for its urls to be written to disk, and not only to the page cache
+    private boolean fsync = true;
+
+    public String getPath() {
+      return path;
+    }
+
+    public void setPath(String path) {
+      this.path = path;
+    }
+
+    public DataSize getChunkSize() {
+      return chunkSize;
+    }
+
+    public void setChunkSize(DataSize chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    public boolean isFsync() {
+      return fsync;
+    }
+
+    public void setFsync(boolean fsync) {
+      this.fsync = fsync;
+    }
+  }
+
+  public static class WarmUp {
+
+    // whether the lookup cache is loaded with the hottest urls before the instance reports ready
+    private boolean enabled = true;
+    // number of urls kept in the snapshot, and loaded at startup
+    private int size = 10_000;
+    // how long the startup waits for the warm-up, after which the instance gets ready with the urls loaded so far
+    private Duration timeBudget = Duration.ofSeconds(30);
+    // file keeping the hottest urls of the cache between restarts, written periodically and on shutdown
+    private String snapshotPath = "data/hot-urls.snapshot";
+    private Duration snapshotInterval = Duration.ofMinutes(5);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public void setSize(int size) {
+      this.size = size;
+    }
+
+    public Duration getTimeBudget() {
+      return timeBudget;
+    }
+
+    public void setTimeBudget(Duration timeBudget) {
+      this.timeBudget = timeBudget;
+    }
+
+    public String getSnapshotPath() {
+      return snapshotPath;
+    }
+
+    public void setSnapshotPath(String snapshotPath) {
+      this.snapshotPath = snapshotPath;
+    }
+
+    public Duration getSnapshotInterval() {
+      return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(Duration snapshotInterval) {
+      this.snapshotInterval = snapshotInterval;
+    }
+  }
+
+  public static class Coalescing {
+
+    // whether concurrent lookups of the same hash, and creates of the same url, share a single call to the store
+    private boolean enabled = true;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+  }
+
+  public static class Bulk {
+
+    // rows staged and merged by each transaction of an import, which bounds the memory used by a batch
+    private int batchSize = 50_000;
+    // rows fetched at a time by the cursor of an export
+    private int fetchSize = 10_000;
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public int getFetchSize() {
+      return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+      this.fetchSize = fetchSize;
+    }
+  }
+
+  public static class Http {
+
+    // scheme and authority of the short links (e.g. https://sho.rt), or empty to take those of each create request
+    private String baseUrl = "";
+    // how long browsers and CDNs may reuse a redirect before asking again, or 0 to have them revalidate every time
+    private Duration redirectMaxAge = Duration.ofHours(1);
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    public void setBaseUrl(String baseUrl) {
+      this.baseUrl = baseUrl;
+    }
+
+    public Duration getRedirectMaxAge() {
+      return redirectMaxAge;
+    }
+
+    public void setRedirectMaxAge(Duration redirectMaxAge) {
+      this.redirectMaxAge = redirectMaxAge;
+    }
+  }
+
+  public static class WriteBehind {
+
+    // whether creates return as soon as the url is journaled, and are written to the store in the background
+    private boolean enabled = false;
+    // urls accepted and not written yet; creates are written synchronously while it is full
+    private int queueCapacity = 10_000;
+    // maximum number of urls written by a single statement
+    private int batchSize = 1000;
+    // directory of the journal of the accepted urls, replayed at startup
+    private String journalPath = "data/create-journal";
+    // the journal is written in segments of this size, each deleted once its urls are all written
+    private DataSize journalSegmentSize = DataSize.ofMegabytes(16);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public String getJournalPath() {
+      return journalPath;
+    }
+
+    public void setJournalPath(String journalPath) {
+      this.journalPath = journalPath;
+    }
+
+    public DataSize getJournalSegmentSize() {
+      return journalSegmentSize;
+    }
+
+    public void setJournalSegmentSize(DataSize journalSegmentSize) {
+      this.journalSegmentSize = journalSegmentSize;
+    }
+  }
+
+  public static class CompactIndex {
+
+    // whether every stored url is kept in memory (off heap), serving the lookups before the cache and the store
+    private boolean enabled = false;
+    // number of urls the index is sized for at startup, it grows beyond
+    private long expectedSize = 10_000_000;
+    // the urls are kept in slabs of this size, allocated as needed; longer urls are not indexed
+    private DataSize slabSize = DataSize.ofMegabytes(64);
+    // whether common prefixes of the urls (schemes, and hosts learned from the first urls loaded) are stored as an id
+    private boolean prefixCompression = true;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getExpectedSize() {
+      return expectedSize;
+    }
+
+    public void setExpectedSize(long expectedSize) {
+      this.expectedSize = expectedSize;
+    }
+
+    public DataSize getSlabSize() {
+      return slabSize;
+    }
+
+    public void setSlabSize(DataSize slabSize) {
+      this.slabSize = slabSize;
+    }
+
+    public boolean isPrefixCompression() {
+      return prefixCompression;
+    }
+
+    public void setPrefixCompression(boolean prefixCompression) {
+      this.prefixCompression = prefixCompression;
+    }
+  }
+
+  public static class RateLimit {
+
+    // whether the requests of each client are rate limited, and the requests in flight bounded
+    private boolean enabled = false;
+    // header identifying the client (e.g. an api key checked by a gateway in front), or empty to use the remote address
+    private String clientHeader = "";
+    // clients whose buckets are kept; the least recently seen are evicted first
+    private long maxClients = 100_000;
+    // buckets of clients idle for this long are evicted (never before they would have refilled)
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    // requests of the limited endpoints served at the same time, beyond which they are rejected, or 0 for no limit
+    private int maxConcurrentRequests = 100;
+    // by endpoint: create, create-batch, lookup and stats
+    private Map<String, EndpointLimit> endpoints = new HashMap<>(Map.of(
+        "create", new EndpointLimit(20, 40),
+        "create-batch", new EndpointLimit(1, 5),
+        "lookup", new EndpointLimit(500, 1000),
+        "stats", new EndpointLimit(20, 40)));
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getClientHeader() {
+      return clientHeader;
+    }
+
+    public void setClientHeader(String clientHeader) {
+      this.clientHeader = clientHeader;
+    }
+
+    public long getMaxClients() {
+      return maxClients;
+    }
+
+    public void setMaxClients(long maxClients) {
+      this.maxClients = maxClients;
+    }
+
+    public Duration getIdleTimeout() {
+      return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+      this.idleTimeout = idleTimeout;
+    }
+
+    public int getMaxConcurrentRequests() {
+      return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+      this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public Map<String, EndpointLimit> getEndpoints() {
+      return endpoints;
+    }
+
+    public void setEndpoints(Map<String, EndpointLimit> endpoints) {
+      this.endpoints = endpoints;
+    }
+  }
+
+  public static class EndpointLimit {
+
+    // sustained requests per second of each client, or 0 for no limit
+    private double requestsPerSecond;
+    // requests a client can make at once after being idle
+    private int burst;
+
+    public EndpointLimit() {
+    }
+
+    public EndpointLimit(double requestsPerSecond, int burst) {
+      this.requestsPerSecond = requestsPerSecond;
+      this.burst = burst;
+    }
+
+    public double getRequestsPerSecond() {
+      return requestsPerSecond;
+    }
+
+    public void setRequestsPerSecond(double requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getBurst() {
+      return burst;
+    }
+
+    public void setBurst(int burst) {
+      this.burst = burst;
+    }
+  }
+
+  public static class Notifications {
+
+    // whether the instances notify each other of the urls they store, through Postgres (LISTEN/NOTIFY)
+    private boolean enabled = false;
+    // whether the urls stored by other instances are put in the lookup cache, or only their remembered misses dropped
+    private boolean populateCache = true;
+    // stored urls waiting to be sent; further ones are not sent
+    private int queueCapacity = 10_000;
+    // how long the listener waits before connecting again, after losing its connection
+    private Duration reconnectDelay = Duration.ofSeconds(1);
+    // how far before losing its connection the listener catches up from, covering clock skew and slow commits
+    private Duration catchUpOverlap = Duration.ofSeconds(10);
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public boolean isPopulateCache() {
+      return populateCache;
+    }
+
+    public void setPopulateCache(boolean populateCache) {
+      this.populateCache = populateCache;
+    }
+
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+    public Duration getReconnectDelay() {
+      return reconnectDelay;
+    }
+
+    public void setReconnectDelay(Duration reconnectDelay) {
+      this.reconnectDelay = reconnectDelay;
+    }
+
+    public Duration getCatchUpOverlap() {
+      return catchUpOverlap;
+    }
+
+    public void setCatchUpOverlap(Duration catchUpOverlap) {
+      this.catchUpOverlap = catchUpOverlap;
+    }
+  }
+
+}
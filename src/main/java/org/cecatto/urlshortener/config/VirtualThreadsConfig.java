@@ -0,0 +1,31 @@
+package org.cecatto.urlshortener.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Runs every request on its own virtual thread instead of a thread of the Tomcat pool, so requests waiting on the
+ * database (or for a connection of the pool) don't use up the worker threads. Tomcat still accepts connections and
+ * polls them on its own platform threads, and server.tomcat.threads.max no longer applies.
+ */
+@Configuration
+@ConditionalOnProperty(name = "url-shortener.execution.mode", havingValue = "virtual-threads")
+public class VirtualThreadsConfig {
+
+  private static final Logger log = LoggerFactory.getLogger(VirtualThreadsConfig.class);
+
+  @Bean
+  public TomcatProtocolHandlerCustomizer<?> virtualThreadsProtocolHandlerCustomizer() {
+    return protocolHandler -> {
+      log.info("Serving requests on virtual threads");
+      protocolHandler.setExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-vt-", 0).factory()));
+    };
+  }
+
+}
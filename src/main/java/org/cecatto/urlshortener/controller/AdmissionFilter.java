@@ -0,0 +1,204 @@
+package org.cecatto.urlshortener.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.dto.ApiError;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits the requests of the endpoints of {@link UrlShortenerController} before they reach it, answering 429 to:
+ * <ul>
+ *   <li>the clients that exceed the rate of the endpoint (a {@link ClientRateLimiter} per endpoint), so that a single
+ *   client can't flood the creates or the lookups;</li>
+ *   <li>every client while the maximum number of requests is in flight, so that requests are shed right away instead
+ *   of queueing for a connection of the pool once the database can't keep up.</li>
+ * </ul>
+ * Both checks are non-blocking (a compare-and-set each). The other requests (e.g. the actuator) are not limited.
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.rate-limit.enabled", havingValue = "true")
+// after the metrics filter, so the rejected requests are timed as well
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class AdmissionFilter extends OncePerRequestFilter {
+
+  private static final String PATH_LOOKUP_PREFIX =
+      UrlShortenerController.PATH_LOOKUP.substring(0, UrlShortenerController.PATH_LOOKUP.indexOf('{'));
+  private static final String PATH_STATS_PREFIX =
+      UrlShortenerController.PATH_STATS_V1.substring(0, UrlShortenerController.PATH_STATS_V1.indexOf('{'));
+
+  enum Endpoint {
+    CREATE("create"), CREATE_BATCH("create-batch"), LOOKUP("lookup"), STATS("stats");
+
+    final String key;
+
+    Endpoint(String key) {
+      this.key = key;
+    }
+  }
+
+  private final String clientHeader;
+  // by endpoint, none for the endpoints without a rate
+  private final Map<Endpoint, ClientRateLimiter> limiters = new EnumMap<>(Endpoint.class);
+  private final Map<Endpoint, Counter> rateLimitedRequests = new EnumMap<>(Endpoint.class);
+  private final Map<Endpoint, Counter> overloadedRequests = new EnumMap<>(Endpoint.class);
+  private final int maxConcurrentRequests;
+  // null if not limited
+  private final Semaphore inFlight;
+  private final byte[] rateLimitedBody;
+  private final byte[] overloadedBody;
+
+  @Autowired
+  public AdmissionFilter(UrlShortenerProperties properties, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+    var config = properties.getRateLimit();
+    this.clientHeader = StringUtils.hasText(config.getClientHeader()) ? config.getClientHeader() : null;
+    for (var endpoint : Endpoint.values()) {
+      var limit = config.getEndpoints().get(endpoint.key);
+      if (limit != null && limit.getRequestsPerSecond() > 0) {
+        limiters.put(endpoint, new ClientRateLimiter(limit.getRequestsPerSecond(), Math.max(1, limit.getBurst()),
+            config.getMaxClients(), config.getIdleTimeout()));
+      }
+      rateLimitedRequests.put(endpoint, rejectedRequests(meterRegistry, endpoint, "rate_limited"));
+      overloadedRequests.put(endpoint, rejectedRequests(meterRegistry, endpoint, "overloaded"));
+    }
+    this.maxConcurrentRequests = config.getMaxConcurrentRequests();
+    this.inFlight = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+    this.rateLimitedBody = body(objectMapper, "Too many requests, retry later");
+    this.overloadedBody = body(objectMapper, "The service is overloaded, retry later");
+
+    Gauge.builder("shortener.admission.in.flight", this, AdmissionFilter::requestsInFlight)
+        .description("Requests of the limited endpoints being served")
+        .register(meterRegistry);
+    Gauge.builder("shortener.admission.clients", this, AdmissionFilter::clients)
+        .description("Clients whose rate limits are tracked, over every endpoint")
+        .register(meterRegistry);
+  }
+
+  private static Counter rejectedRequests(MeterRegistry meterRegistry, Endpoint endpoint, String reason) {
+    return Counter.builder("shortener.admission.rejected")
+        .description("Requests answered with 429 before reaching the endpoint")
+        .tag("endpoint", endpoint.key)
+        .tag("reason", reason)
+        .register(meterRegistry);
+  }
+
+  private static byte[] body(ObjectMapper objectMapper, String message) {
+    try {
+      return objectMapper.writeValueAsBytes(new ApiError(message));
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+      throws ServletException, IOException {
+    var endpoint = endpointOf(request);
+    if (endpoint == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    // the concurrency limit first, so that a request shed for the overload doesn't use up the rate of its client
+    if (inFlight != null && !inFlight.tryAcquire()) {
+      overloadedRequests.get(endpoint).increment();
+      reject(response, 0, overloadedBody);
+      return;
+    }
+    try {
+      var limiter = limiters.get(endpoint);
+      var wait = limiter == null ? 0 : limiter.acquire(clientOf(request));
+      if (wait > 0) {
+        rateLimitedRequests.get(endpoint).increment();
+        reject(response, wait, rateLimitedBody);
+        return;
+      }
+      chain.doFilter(request, response);
+    } finally {
+      if (inFlight != null) {
+        inFlight.release();
+      }
+    }
+  }
+
+  /**
+   * @return the limited endpoint the request is for, or null if none
+   */
+  static Endpoint endpointOf(HttpServletRequest request) {
+    var path = request.getRequestURI().substring(request.getContextPath().length());
+    var method = request.getMethod();
+    if (HttpMethod.POST.matches(method)) {
+      if (path.equals(UrlShortenerController.PATH_CREATE_V1)) {
+        return Endpoint.CREATE;
+      }
+      if (path.equals(UrlShortenerController.PATH_CREATE_BATCH_V2)) {
+        return Endpoint.CREATE_BATCH;
+      }
+    } else if (HttpMethod.GET.matches(method) || HttpMethod.HEAD.matches(method)) {
+      if (path.startsWith(PATH_LOOKUP_PREFIX)) {
+        return Endpoint.LOOKUP;
+      }
+      if (path.startsWith(PATH_STATS_PREFIX)) {
+        return Endpoint.STATS;
+      }
+    }
+    return null;
+  }
+
+  private String clientOf(HttpServletRequest request) {
+    if (clientHeader != null) {
+      var client = request.getHeader(clientHeader);
+      if (StringUtils.hasText(client)) {
+        return client;
+      }
+    }
+    return request.getRemoteAddr();
+  }
+
+  private static void reject(HttpServletResponse response, long waitNanos, byte[] body) throws IOException {
+    response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+    // at least a second, the finest Retry-After there is
+    var retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter));
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+  private double requestsInFlight() {
+    return inFlight == null ? 0 : maxConcurrentRequests - inFlight.availablePermits();
+  }
+
+  private double clients() {
+    var clients = 0L;
+    for (var limiter : limiters.values()) {
+      clients += limiter.clients();
+    }
+    return clients;
+  }
+
+}
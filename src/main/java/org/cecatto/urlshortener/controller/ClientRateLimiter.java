@@ -0,0 +1,85 @@
+package org.cecatto.urlshortener.controller;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per client, refilled at a steady rate up to a burst.
+ * <p>
+ * Each bucket is a single {@link AtomicLong}, the time at which it will be full again (the generic cell rate
+ * algorithm): taking a token moves it forward by the interval between two tokens, and is refused if that would put it
+ * further ahead of now than the burst allows. So a token is taken by a single compare-and-set, without locks nor a
+ * thread refilling the buckets. The buckets are held in a cache bounded by the number of clients, which drops the ones
+ * idle for long enough to have refilled (a dropped bucket is the same as a new, full one).
+ */
+public final class ClientRateLimiter {
+
+  private final long tokenInterval;
+  // how far ahead of now the bucket may be full again, i.e. the tokens after the first of a burst
+  private final long burstTolerance;
+  private final Ticker ticker;
+  private final Cache<String, AtomicLong> buckets;
+
+  public ClientRateLimiter(double tokensPerSecond, int burst, long maxClients, Duration idleTimeout) {
+    this(tokensPerSecond, burst, maxClients, idleTimeout, Ticker.systemTicker());
+  }
+
+  ClientRateLimiter(double tokensPerSecond, int burst, long maxClients, Duration idleTimeout, Ticker ticker) {
+    if (tokensPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("The rate must be positive and the burst at least 1");
+    }
+    this.tokenInterval = Math.max(1, Math.round(1e9 / tokensPerSecond));
+    this.burstTolerance = (burst - 1) * tokenInterval;
+    this.ticker = ticker;
+    this.buckets = Caffeine.newBuilder()
+        .maximumSize(maxClients)
+        .expireAfterAccess(Math.max(idleTimeout.toNanos(), burstTolerance + tokenInterval), TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        // the bookkeeping of the accesses (and evictions) is done by the requests themselves, under a lock that is only
+        // tried, rather than handed to the common pool every time the buffer of reads fills up
+        .executor(Runnable::run)
+        .build();
+  }
+
+  /**
+   * Takes a token from the bucket of the client.
+   *
+   * @return 0 if a token was taken, otherwise the nanoseconds until the bucket holds one
+   */
+  public long acquire(String client) {
+    var now = ticker.read();
+    var bucket = buckets.getIfPresent(client);
+    if (bucket == null) {
+      bucket = buckets.get(client, k -> new AtomicLong(now));
+    }
+    while (true) {
+      var full = bucket.get();
+      // a bucket full since before now is full now
+      var next = full - now < 0 ? now : full;
+      var wait = next - now - burstTolerance;
+      if (wait > 0) {
+        return wait;
+      }
+      if (bucket.compareAndSet(full, next + tokenInterval)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * @return the number of clients whose bucket is kept (an estimate)
+   */
+  public long clients() {
+    return buckets.estimatedSize();
+  }
+
+  void cleanUp() {
+    buckets.cleanUp();
+  }
+
+}
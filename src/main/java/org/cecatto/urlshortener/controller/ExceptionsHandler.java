@@ -1,25 +1,59 @@
 package org.cecatto.urlshortener.controller;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.cecatto.urlshortener.dto.ApiError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 @RestControllerAdvice
 public class ExceptionsHandler {
 
   private static final Logger log = LoggerFactory.getLogger(ExceptionsHandler.class);
 
+  private final MeterRegistry meterRegistry;
+  // by the simple name of the exception, registered on its first rejection
+  private final Map<String, Counter> badRequestResponses = new ConcurrentHashMap<>();
+
+  @Autowired
+  public ExceptionsHandler(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Counter of the requests rejected with the given status, for the given reason (e.g. the exception).
+   */
+  static Counter rejectedResponses(MeterRegistry meterRegistry, String status, String reason) {
+    return Counter.builder("shortener.responses.rejected")
+        .description("Requests answered with a client error")
+        .tag("status", status)
+        .tag("reason", reason)
+        .register(meterRegistry);
+  }
+
   @ExceptionHandler({
       IllegalArgumentException.class,
       MissingServletRequestParameterException.class,
-      MethodArgumentTypeMismatchException.class
+      MethodArgumentTypeMismatchException.class,
+      HttpMessageNotReadableException.class
   })
   public ResponseEntity<ApiError> handleBadRequest(Exception e) {
+    var reason = e.getClass().getSimpleName();
+    var counter = badRequestResponses.get(reason);
+    if (counter == null) {
+      counter = badRequestResponses.computeIfAbsent(reason, key -> rejectedResponses(meterRegistry, "400", key));
+    }
+    counter.increment();
     return ResponseEntity.badRequest().body(new ApiError(e.getMessage()));
   }
 
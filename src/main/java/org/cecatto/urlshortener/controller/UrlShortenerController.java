@@ -1,16 +1,26 @@
 package org.cecatto.urlshortener.controller;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.dto.BatchCreateRequest;
+import org.cecatto.urlshortener.dto.BatchCreateResponse;
+import org.cecatto.urlshortener.dto.ClickStats;
+import org.cecatto.urlshortener.service.ClickStatsService;
 import org.cecatto.urlshortener.service.HashService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
-import org.springframework.web.util.UriTemplate;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 
 @RestController
 @RequestMapping("/")
@@ -20,39 +30,111 @@ public class UrlShortenerController {
   // ideally, this should come from configuration
   public static final String HASH_REGEX = "[a-z0-9-]{8,20}";
   public static final String PARAM_URL = "url";
+  public static final String PARAM_URLS = "urls";
   public static final String PARAM_HASH = "hash";
   public static final String PATH_LOOKUP = "/s/{" + PARAM_HASH + "}";
   public static final String PATH_LOOKUP_VALIDATED = "/s/{" + PARAM_HASH + ":" + HASH_REGEX + "}";
   public static final String PATH_CREATE_V1 = "/v1/create";
+  public static final String PATH_CREATE_BATCH_V2 = "/v2/create/batch";
+  public static final String PATH_STATS_V1 = "/v1/stats/{" + PARAM_HASH + "}";
+  public static final String PATH_STATS_V1_VALIDATED = "/v1/stats/{" + PARAM_HASH + ":" + HASH_REGEX + "}";
+  // the lookup path up to the hash
+  private static final String PATH_LOOKUP_PREFIX = PATH_LOOKUP.substring(0, PATH_LOOKUP.indexOf('{'));
 
   private final HashService hashService;
+  private final ClickStatsService clickStatsService;
+  private final int maxBatchSize;
+  private final Counter notFoundResponses;
+  // the short links up to the hash, or null to take the scheme and authority of each create request
+  private final String lookupUrlPrefix;
+  private final String redirectCacheControl;
 
   @Autowired
-  public UrlShortenerController(HashService hashService) {
+  public UrlShortenerController(HashService hashService, ClickStatsService clickStatsService,
+                                UrlShortenerProperties properties, MeterRegistry meterRegistry) {
     this.hashService = hashService;
+    this.clickStatsService = clickStatsService;
+    this.maxBatchSize = properties.getBatch().getMaxSize();
+    this.notFoundResponses = ExceptionsHandler.rejectedResponses(meterRegistry, "404", "UnknownHash");
+
+    var http = properties.getHttp();
+    var baseUrl = StringUtils.trimTrailingCharacter(http.getBaseUrl(), '/');
+    this.lookupUrlPrefix = StringUtils.hasText(baseUrl) ? baseUrl + PATH_LOOKUP_PREFIX : null;
+    this.redirectCacheControl = http.getRedirectMaxAge().isZero()
+        ? "no-cache"
+        : "public, max-age=" + http.getRedirectMaxAge().toSeconds();
   }
 
   @PostMapping(PATH_CREATE_V1)
-  public ResponseEntity<Void> createV1(@RequestParam(PARAM_URL) URI longUrl) {
+  public ResponseEntity<Void> createV1(@RequestParam(PARAM_URL) URI longUrl, HttpServletRequest request) {
     checkEmpty(longUrl, PARAM_URL);
 
     var hash = hashService.hashUrl(longUrl);
-    var requestUri = ServletUriComponentsBuilder.fromCurrentRequestUri().build();
-    var location = new UriTemplate(requestUri.getScheme() + "://" + requestUri.toUri().getAuthority() + PATH_LOOKUP).expand(hash);
-    return ResponseEntity.created(location).build();
+    return ResponseEntity.status(HttpStatus.CREATED).header(HttpHeaders.LOCATION, lookupUrl(hash, request)).build();
+  }
+
+  @PostMapping(PATH_CREATE_BATCH_V2)
+  public ResponseEntity<BatchCreateResponse> createBatchV2(@RequestBody BatchCreateRequest request) {
+    if (request.urls == null || request.urls.isEmpty()) {
+      throw new IllegalArgumentException(PARAM_URLS + " cannot be null or empty");
+    }
+    if (request.urls.size() > maxBatchSize) {
+      throw new IllegalArgumentException(PARAM_URLS + " cannot have more than " + maxBatchSize + " elements");
+    }
+
+    var longUrls = new ArrayList<URI>(request.urls.size());
+    for (var url : request.urls) {
+      checkEmpty(url, PARAM_URL);
+      longUrls.add(toUri(url));
+    }
+
+    var hashes = hashService.hashUrls(longUrls);
+    return ResponseEntity.ok(new BatchCreateResponse(hashes));
   }
 
+  /**
+   * Writes the redirect straight to the response, as the hottest path of the service: going through a
+   * {@link ResponseEntity} would build and copy a map of headers on every request.
+   * <p>
+   * The url of a hash never changes, so the hash itself is the entity tag of the redirect, and a cached redirect whose
+   * tag is sent in If-None-Match is confirmed with 304 (and counted as a click, as it is followed).
+   */
   @GetMapping(PATH_LOOKUP_VALIDATED)
-  public ResponseEntity<Void> lookup(@PathVariable(PARAM_HASH) String hash) {
+  public void lookup(@PathVariable(PARAM_HASH) String hash,
+                     @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                     HttpServletResponse response) {
     checkEmpty(hash, PARAM_HASH);
 
     var longUrl = hashService.lookup(hash);
 
     if (longUrl.isEmpty()) {
-      return ResponseEntity.notFound().build();
+      notFoundResponses.increment();
+      response.setStatus(HttpStatus.NOT_FOUND.value());
+      return;
+    }
+
+    clickStatsService.recordClick(hash);
+    response.setHeader(HttpHeaders.CACHE_CONTROL, redirectCacheControl);
+    response.setHeader(HttpHeaders.ETAG, '"' + hash + '"');
+    if (ifNoneMatch != null && matchesEntityTag(ifNoneMatch, hash)) {
+      response.setStatus(HttpStatus.NOT_MODIFIED.value());
+      return;
     }
+    response.setStatus(HttpStatus.MOVED_PERMANENTLY.value());
+    response.setHeader(HttpHeaders.LOCATION, toLocation(longUrl.get()));
+  }
+
+  @GetMapping(PATH_STATS_V1_VALIDATED)
+  public ResponseEntity<ClickStats> statsV1(@PathVariable(PARAM_HASH) String hash) {
+    checkEmpty(hash, PARAM_HASH);
+
+    var stats = clickStatsService.getStats(hash);
 
-    return ResponseEntity.status(HttpStatus.MOVED_PERMANENTLY).location(longUrl.get()).build();
+    if (stats.isEmpty()) {
+      notFoundResponses.increment();
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok(stats.get());
   }
 
   private void checkEmpty(Object param, String paramName) {
@@ -61,4 +143,66 @@ public class UrlShortenerController {
     }
   }
 
+  /**
+   * @return the short link of the hash, from the base url if configured, or else from the scheme and authority of the
+   * request (dropping the default ports, as {@link URI}s do)
+   */
+  private String lookupUrl(String hash, HttpServletRequest request) {
+    if (lookupUrlPrefix != null) {
+      return lookupUrlPrefix + hash;
+    }
+    var scheme = request.getScheme();
+    var port = request.getServerPort();
+    var url = new StringBuilder(64).append(scheme).append("://").append(request.getServerName());
+    if (port > 0 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+      url.append(':').append(port);
+    }
+    return url.append(PATH_LOOKUP_PREFIX).append(hash).toString();
+  }
+
+  /**
+   * Whether the If-None-Match header is * or lists the entity tag of the hash, weak or not (as If-None-Match compares
+   * them), without splitting it.
+   */
+  static boolean matchesEntityTag(String ifNoneMatch, String hash) {
+    for (var i = 0; i < ifNoneMatch.length(); i++) {
+      var c = ifNoneMatch.charAt(i);
+      if (c == '*') {
+        return true;
+      }
+      if (c == '"') {
+        var end = ifNoneMatch.indexOf('"', i + 1);
+        if (end < 0) {
+          return false;
+        }
+        if (end - i - 1 == hash.length() && ifNoneMatch.regionMatches(i + 1, hash, 0, hash.length())) {
+          return true;
+        }
+        i = end;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stored urls went through {@link URI} when created, so they can be used as they are unless they have non-ASCII
+   * characters, which URIs allow but headers don't.
+   */
+  private String toLocation(String longUrl) {
+    for (var i = 0; i < longUrl.length(); i++) {
+      if (longUrl.charAt(i) >= 0x80) {
+        return URI.create(longUrl).toASCIIString();
+      }
+    }
+    return longUrl;
+  }
+
+  private URI toUri(String url) {
+    try {
+      return new URI(url);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid URI syntax: " + e.getMessage(), e);
+    }
+  }
+
 }
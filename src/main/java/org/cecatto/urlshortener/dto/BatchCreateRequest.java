@@ -0,0 +1,16 @@
+package org.cecatto.urlshortener.dto;
+
+import java.util.List;
+
+public class BatchCreateRequest {
+
+  public List<String> urls;
+
+  public BatchCreateRequest() {
+  }
+
+  public BatchCreateRequest(List<String> urls) {
+    this.urls = urls;
+  }
+
+}
@@ -0,0 +1,16 @@
+package org.cecatto.urlshortener.dto;
+
+import java.util.List;
+
+public class BatchCreateResponse {
+
+  public List<String> hashes;
+
+  public BatchCreateResponse() {
+  }
+
+  public BatchCreateResponse(List<String> hashes) {
+    this.hashes = hashes;
+  }
+
+}
@@ -0,0 +1,21 @@
+package org.cecatto.urlshortener.dto;
+
+import java.time.OffsetDateTime;
+
+public class ClickStats {
+
+  public String hash;
+  public long clicks;
+  // null if never accessed
+  public OffsetDateTime lastAccessAt;
+
+  public ClickStats() {
+  }
+
+  public ClickStats(String hash, long clicks, OffsetDateTime lastAccessAt) {
+    this.hash = hash;
+    this.clicks = clicks;
+    this.lastAccessAt = lastAccessAt;
+  }
+
+}
@@ -0,0 +1,34 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.cecatto.urlshortener.dto.ClickStats;
+
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * Click counters of the stored urls.
+ */
+public interface ClickStatsRepository {
+
+  /**
+   * Adds the given clicks to the counters of the hashes, with a single statement, and moves their last access
+   * forward. The arrays are indexed alike.
+   */
+  void addClicks(String[] hashes, long[] clicks, long[] lastAccessEpochMillis);
+
+  /**
+   * @return the stats of the hash, with no clicks if it was never accessed; empty if the hash is not stored
+   */
+  Optional<ClickStats> findByHash(String hash);
+
+  /**
+   * Streams the hashes with the most clicks, with their long urls, the most clicked first.
+   */
+  void forEachMostClicked(int limit, BiConsumer<String, String> consumer);
+
+  /**
+   * Removes every counter.
+   */
+  void deleteAll();
+
+}
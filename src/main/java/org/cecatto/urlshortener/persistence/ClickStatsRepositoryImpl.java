@@ -0,0 +1,75 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.cecatto.urlshortener.dto.ClickStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+@Repository
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "postgres", matchIfMissing = true)
+public class ClickStatsRepositoryImpl implements ClickStatsRepository {
+
+  private static final String ADD_CLICKS =
+      "insert into url_click_stats (hash, clicks, last_access_at) " +
+      "select hash, clicks, to_timestamp(last_access / 1000.0) from unnest(?::varchar[], ?::bigint[], ?::bigint[]) " +
+      "as u (hash, clicks, last_access) " +
+      "on conflict (hash) do update set " +
+      "clicks = url_click_stats.clicks + excluded.clicks, " +
+      "last_access_at = greatest(url_click_stats.last_access_at, excluded.last_access_at)";
+  private static final String FIND_BY_HASH =
+      "select s.hash, coalesce(c.clicks, 0), c.last_access_at " +
+      "from stored_url s left join url_click_stats c on c.hash = s.hash " +
+      "where s.hash = ?";
+  // a top-n sort of the counters, only run at startup
+  private static final String MOST_CLICKED =
+      "select s.hash, s.long_url from url_click_stats c join stored_url s on s.hash = c.hash " +
+      "order by c.clicks desc limit ?";
+  private static final String DELETE_ALL = "delete from url_click_stats";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public ClickStatsRepositoryImpl(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  @Override
+  public void addClicks(String[] hashes, long[] clicks, long[] lastAccessEpochMillis) {
+    if (hashes.length == 0) {
+      return;
+    }
+
+    jdbcTemplate.update(ADD_CLICKS, ps -> {
+      ps.setArray(1, ps.getConnection().createArrayOf("varchar", hashes));
+      ps.setArray(2, ps.getConnection().createArrayOf("bigint", Arrays.stream(clicks).boxed().toArray()));
+      ps.setArray(3, ps.getConnection().createArrayOf("bigint", Arrays.stream(lastAccessEpochMillis).boxed().toArray()));
+    });
+  }
+
+  @Override
+  public Optional<ClickStats> findByHash(String hash) {
+    var stats = jdbcTemplate.query(FIND_BY_HASH,
+        (rs, rowNum) -> new ClickStats(rs.getString(1), rs.getLong(2), rs.getObject(3, OffsetDateTime.class)),
+        hash);
+    return stats.stream().findFirst();
+  }
+
+  @Override
+  public void forEachMostClicked(int limit, BiConsumer<String, String> consumer) {
+    jdbcTemplate.query(MOST_CLICKED, rs -> {
+      consumer.accept(rs.getString(1), rs.getString(2));
+    }, limit);
+  }
+
+  @Override
+  public void deleteAll() {
+    jdbcTemplate.update(DELETE_ALL);
+  }
+
+}
@@ -0,0 +1,29 @@
+package org.cecatto.urlshortener.persistence;
+
+/**
+ * A range of ids reserved for exclusive use, from start (inclusive) to end (exclusive).
+ */
+public class IdBlock {
+
+  private final long start;
+  private final long end;
+
+  public IdBlock(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + start + ", " + end + ")";
+  }
+
+}
@@ -0,0 +1,217 @@
+package org.cecatto.urlshortener.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Notifications of the stored urls between the instances, over the LISTEN/NOTIFY of Postgres: no other service is
+ * needed, and every instance connected to the database gets them.
+ * <p>
+ * The urls are packed in as few notifications as fit in the payload limit of Postgres (8000 bytes), and sent with a
+ * single statement. Each payload is a header line, with the instance that stored the urls and when it sent them,
+ * followed by a line per url, its hash and long url separated by a tab (neither can hold one). A long url that doesn't
+ * fit in a payload on its own is left out, and only its hash sent.
+ * <p>
+ * Notifications are not kept for the instances that are not listening: see {@link UrlStore#forEachUrlCreatedSince} to
+ * catch up after reconnecting.
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "postgres", matchIfMissing = true)
+public class PostgresUrlNotifications {
+
+  public static final String CHANNEL = "stored_url_created";
+  // of the listening connections, as shown in pg_stat_activity
+  public static final String APPLICATION_NAME = "url-shortener-notifications";
+  // the payload must be shorter than 8000 bytes
+  static final int MAX_PAYLOAD_BYTES = 7999;
+
+  private static final String NOTIFY = "select pg_notify('" + CHANNEL + "', p) from unnest(?::text[]) p";
+  private static final String LISTEN = "listen " + CHANNEL;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final DataSourceProperties dataSourceProperties;
+
+  @Autowired
+  public PostgresUrlNotifications(JdbcTemplate jdbcTemplate, DataSourceProperties dataSourceProperties) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.dataSourceProperties = dataSourceProperties;
+  }
+
+  /**
+   * Notifies the listening instances (this one included) of the stored urls.
+   */
+  public void notify(String sender, Collection<StoredUrl> storedUrls) {
+    if (storedUrls.isEmpty()) {
+      return;
+    }
+    var payloads = encode(sender, System.currentTimeMillis(), storedUrls);
+    jdbcTemplate.query(NOTIFY, ps -> ps.setArray(1, ps.getConnection().createArrayOf("text", payloads.toArray())),
+        rs -> {
+        });
+  }
+
+  static List<String> encode(String sender, long sentAtMillis, Collection<StoredUrl> storedUrls) {
+    var header = sender + " " + sentAtMillis;
+    var headerBytes = utf8Length(header);
+    var payloads = new ArrayList<String>();
+    var payload = new StringBuilder(header);
+    var payloadBytes = headerBytes;
+    for (var storedUrl : storedUrls) {
+      var line = storedUrl.getHash() + "\t" + storedUrl.getLongUrl();
+      var lineBytes = 1 + utf8Length(line);
+      if (headerBytes + lineBytes > MAX_PAYLOAD_BYTES) {
+        line = storedUrl.getHash();
+        lineBytes = 1 + line.length();
+      }
+      if (payloadBytes + lineBytes > MAX_PAYLOAD_BYTES) {
+        payloads.add(payload.toString());
+        payload.setLength(0);
+        payload.append(header);
+        payloadBytes = headerBytes;
+      }
+      payload.append('\n').append(line);
+      payloadBytes += lineBytes;
+    }
+    payloads.add(payload.toString());
+    return payloads;
+  }
+
+  static Notification decode(String payload) {
+    var lines = payload.split("\n");
+    var header = lines[0].split(" ");
+    var storedUrls = new ArrayList<StoredUrl>(lines.length - 1);
+    for (var i = 1; i < lines.length; i++) {
+      var tab = lines[i].indexOf('\t');
+      storedUrls.add(tab < 0
+          ? new StoredUrl(null, lines[i])
+          : new StoredUrl(lines[i].substring(tab + 1), lines[i].substring(0, tab)));
+    }
+    return new Notification(header[0], Long.parseLong(header[1]), storedUrls);
+  }
+
+  private static int utf8Length(String s) {
+    var length = s.length();
+    for (var i = 0; i < s.length(); i++) {
+      var c = s.charAt(i);
+      if (c >= 0x800) {
+        // 3 bytes, or 4 for a surrogate pair (2 chars)
+        length += Character.isSurrogate(c) ? 1 : 2;
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Starts listening on a connection of its own, outside of the pool (but with the driver properties of the pool, e.g.
+   * for SSL), which it holds until closed.
+   */
+  public Subscription subscribe() throws SQLException {
+    var properties = new Properties();
+    var dataSource = jdbcTemplate.getDataSource();
+    if (dataSource != null && dataSource.isWrapperFor(HikariDataSource.class)) {
+      properties.putAll(dataSource.unwrap(HikariDataSource.class).getDataSourceProperties());
+    }
+    // e.g. none with trust authentication, or given in the url
+    var username = dataSourceProperties.determineUsername();
+    if (username != null) {
+      properties.setProperty("user", username);
+    }
+    var password = dataSourceProperties.determinePassword();
+    if (password != null) {
+      properties.setProperty("password", password);
+    }
+    properties.setProperty("ApplicationName", APPLICATION_NAME);
+    // so that a connection dropped by the network is noticed
+    properties.setProperty("tcpKeepAlive", "true");
+    var connection = DriverManager.getConnection(dataSourceProperties.determineUrl(), properties);
+    try {
+      try (var statement = connection.createStatement()) {
+        statement.execute(LISTEN);
+      }
+      return new Subscription(connection);
+    } catch (SQLException | RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  public static class Subscription implements AutoCloseable {
+
+    private final Connection connection;
+    private final PGConnection pgConnection;
+
+    private Subscription(Connection connection) throws SQLException {
+      this.connection = connection;
+      this.pgConnection = connection.unwrap(PGConnection.class);
+    }
+
+    /**
+     * Waits up to the timeout for notifications, and returns all of those received.
+     *
+     * @throws SQLException if the connection is lost, after which nothing else is received
+     */
+    public List<Notification> poll(Duration timeout) throws SQLException {
+      var received = pgConnection.getNotifications(Math.toIntExact(Math.max(1, timeout.toMillis())));
+      var notifications = new ArrayList<Notification>(received == null ? 0 : received.length);
+      if (received != null) {
+        for (var notification : received) {
+          notifications.add(decode(notification.getParameter()));
+        }
+      }
+      return notifications;
+    }
+
+    @Override
+    public void close() throws SQLException {
+      connection.close();
+    }
+
+  }
+
+  public static final class Notification {
+
+    private final String sender;
+    private final long sentAtMillis;
+    // without their long url if it didn't fit
+    private final List<StoredUrl> storedUrls;
+
+    public Notification(String sender, long sentAtMillis, List<StoredUrl> storedUrls) {
+      this.sender = sender;
+      this.sentAtMillis = sentAtMillis;
+      this.storedUrls = storedUrls;
+    }
+
+    public String getSender() {
+      return sender;
+    }
+
+    public long getSentAtMillis() {
+      return sentAtMillis;
+    }
+
+    /**
+     * @return the stored urls, some of them possibly without their long url (null), if it was too long to be sent
+     */
+    public List<StoredUrl> getStoredUrls() {
+      return storedUrls;
+    }
+
+  }
+
+}
@@ -0,0 +1,314 @@
+package org.cecatto.urlshortener.persistence;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stores the urls in Postgres, with plain JDBC: every operation is either a bulk operation or on the hot path, where
+ * going through JPA would only add overhead.
+ * <p>
+ * The queries depend on the layout of stored_url, read at startup (see {@link StoredUrlPartitions}): when it is hash
+ * partitioned, the urls are found by their digest through stored_url_long_url, and the lookups by hash query the
+ * partition of the hash directly.
+ */
+@Repository
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "postgres", matchIfMissing = true)
+public class PostgresUrlStore implements UrlStore {
+
+  private static final Logger log = LoggerFactory.getLogger(PostgresUrlStore.class);
+
+  // urls are deduplicated through the unique index on their digest (kept by a trigger), which is fixed-width unlike
+  // the url itself. The url is compared as well, so a digest collision can never return the hash of another url.
+  private static final String LONG_URL_DIGEST = "sha256(convert_to(?, 'UTF8'))";
+
+  // the select only sees rows committed before the statement started, hence the union with the inserted row
+  private static final String INSERT_IF_ABSENT =
+      "with inserted as (" +
+      "  insert into stored_url (long_url, hash) values (?, ?) on conflict do nothing returning hash" +
+      ") " +
+      "select hash from inserted " +
+      "union all " +
+      "select hash from stored_url where long_url_digest = " + LONG_URL_DIGEST + " and long_url = ? " +
+      "limit 1";
+  private static final String FIND_HASH_BY_LONG_URL =
+      "select hash from stored_url where long_url_digest = " + LONG_URL_DIGEST + " and long_url = ?";
+  private static final String FIND_LONG_URL_BY_HASH = "select long_url from stored_url where hash = ?";
+  private static final String FIND_BY_HASH = "select long_url, hash, created_at from stored_url where hash = ?";
+  private static final String ALLOCATE_ID_BLOCK =
+      "select nextval('short_code_id_seq'), increment_by from pg_sequences " +
+      "where schemaname = current_schema() and sequencename = 'short_code_id_seq'";
+  private static final String INSERT_ALL_IGNORING_CONFLICTS =
+      "insert into stored_url (long_url, hash) select * from unnest(?::text[], ?::varchar[]) on conflict do nothing";
+  private static final String FIND_HASHES_BY_LONG_URLS =
+      "select long_url, hash from stored_url " +
+      "where long_url_digest in (select sha256(convert_to(u, 'UTF8')) from unnest(?::text[]) u)";
+  // the partitioned layout deduplicates the urls through stored_url_long_url, where the insert trigger claims them
+  private static final String STORED_URL_BY_LONG_URL_DIGEST =
+      "stored_url_long_url d join stored_url s on s.hash = d.hash where d.long_url_digest = ";
+  private static final String INSERT_IF_ABSENT_PARTITIONED =
+      "with inserted as (" +
+      "  insert into stored_url (long_url, hash) values (?, ?) on conflict do nothing returning hash" +
+      ") " +
+      "select hash from inserted " +
+      "union all " +
+      "select s.hash from " + STORED_URL_BY_LONG_URL_DIGEST + LONG_URL_DIGEST + " and s.long_url = ? " +
+      "limit 1";
+  private static final String FIND_HASH_BY_LONG_URL_PARTITIONED =
+      "select s.hash from " + STORED_URL_BY_LONG_URL_DIGEST + LONG_URL_DIGEST + " and s.long_url = ?";
+  private static final String FIND_HASHES_BY_LONG_URLS_PARTITIONED =
+      "select s.long_url, s.hash from stored_url_long_url d join stored_url s on s.hash = d.hash " +
+      "where d.long_url_digest in (select sha256(convert_to(u, 'UTF8')) from unnest(?::text[]) u)";
+  private static final String ESTIMATE_COUNT_PARTITIONED =
+      "select coalesce(sum(greatest(c.reltuples, 0)), 0)::bigint " +
+      "from pg_inherits i join pg_class c on c.oid = i.inhrelid where i.inhparent = 'stored_url'::regclass";
+  // including the claims left by inserts whose hash was taken
+  private static final String DELETE_ALL_PARTITIONED = "delete from stored_url; delete from stored_url_long_url";
+  private static final String ALL_HASHES = "select hash from stored_url";
+  private static final String ALL_URLS = "select hash, long_url from stored_url";
+  private static final String HASHES_CREATED_SINCE = "select hash from stored_url where created_at >= ?";
+  private static final String URLS_CREATED_SINCE = "select hash, long_url from stored_url where created_at >= ?";
+  // reltuples is -1 until the table is first analyzed
+  private static final String ESTIMATE_COUNT =
+      "select greatest(reltuples, 0)::bigint from pg_class where oid = 'stored_url'::regclass";
+  private static final String COUNT = "select count(*) from stored_url";
+  private static final String DELETE_ALL = "delete from stored_url";
+  private static final int HASH_FETCH_SIZE = 10_000;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ReadReplicas readReplicas;
+  private final TransactionOperations transactionOperations;
+  private final StoredUrlPartitions partitions;
+  private final String insertIfAbsentQuery;
+  private final String findHashByLongUrlQuery;
+  private final String findHashesByLongUrlsQuery;
+  private final String estimateCountQuery;
+  private final String deleteAllQuery;
+  // by partition, when the lookups are routed to them
+  private final String[] findLongUrlByHashQueries;
+  private final String[] findByHashQueries;
+
+  private final Timer insertIfAbsentTimer;
+  private final Timer findHashByLongUrlTimer;
+  private final Timer findLongUrlByHashTimer;
+  private final Timer findLongUrlByHashOnReplicaTimer;
+  private final Counter replicaMisses;
+  private final Counter replicaErrors;
+  private final Timer insertAllTimer;
+  private final Timer findHashesByLongUrlsTimer;
+  private final Timer allocateIdBlockTimer;
+
+  @Autowired
+  public PostgresUrlStore(JdbcTemplate jdbcTemplate, ReadReplicas readReplicas,
+                          TransactionOperations transactionOperations, MeterRegistry meterRegistry) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.readReplicas = readReplicas;
+    this.transactionOperations = transactionOperations;
+    this.partitions = StoredUrlPartitions.load(jdbcTemplate);
+    var partitioned = partitions.isPartitioned();
+    this.insertIfAbsentQuery = partitioned ? INSERT_IF_ABSENT_PARTITIONED : INSERT_IF_ABSENT;
+    this.findHashByLongUrlQuery = partitioned ? FIND_HASH_BY_LONG_URL_PARTITIONED : FIND_HASH_BY_LONG_URL;
+    this.findHashesByLongUrlsQuery = partitioned ? FIND_HASHES_BY_LONG_URLS_PARTITIONED : FIND_HASHES_BY_LONG_URLS;
+    this.estimateCountQuery = partitioned ? ESTIMATE_COUNT_PARTITIONED : ESTIMATE_COUNT;
+    this.deleteAllQuery = partitioned ? DELETE_ALL_PARTITIONED : DELETE_ALL;
+    var names = partitions.isRouted() ? partitions.partitions() : new String[0];
+    this.findLongUrlByHashQueries = new String[names.length];
+    this.findByHashQueries = new String[names.length];
+    for (var i = 0; i < names.length; i++) {
+      findLongUrlByHashQueries[i] = FIND_LONG_URL_BY_HASH.replace("from stored_url", "from " + names[i]);
+      findByHashQueries[i] = FIND_BY_HASH.replace("from stored_url", "from " + names[i]);
+    }
+    this.insertIfAbsentTimer = queryTimer(meterRegistry, "insert_if_absent");
+    this.findHashByLongUrlTimer = queryTimer(meterRegistry, "find_hash_by_long_url");
+    this.findLongUrlByHashTimer = queryTimer(meterRegistry, "find_long_url_by_hash");
+    this.findLongUrlByHashOnReplicaTimer = queryTimer(meterRegistry, "find_long_url_by_hash_on_replica");
+    this.replicaMisses = replicaFallbacks(meterRegistry, "miss");
+    this.replicaErrors = replicaFallbacks(meterRegistry, "error");
+    this.insertAllTimer = queryTimer(meterRegistry, "insert_all_ignoring_conflicts");
+    this.findHashesByLongUrlsTimer = queryTimer(meterRegistry, "find_hashes_by_long_urls");
+    this.allocateIdBlockTimer = queryTimer(meterRegistry, "allocate_id_block");
+  }
+
+  private static Timer queryTimer(MeterRegistry meterRegistry, String query) {
+    return Timer.builder("shortener.db.query")
+        .description("Time to run a query against the database, including the connection checkout")
+        .tag("query", query)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(100_000))
+        .maximumExpectedValue(Duration.ofSeconds(10))
+        .register(meterRegistry);
+  }
+
+  private static Counter replicaFallbacks(MeterRegistry meterRegistry, String reason) {
+    return Counter.builder("shortener.db.replica.fallbacks")
+        .description("Queries sent to a read replica that had to be run again on the primary")
+        .tag("reason", reason)
+        .register(meterRegistry);
+  }
+
+  @Override
+  public Optional<String> insertIfAbsent(StoredUrl storedUrl) {
+    var hashes = insertIfAbsentTimer.record(() -> jdbcTemplate.queryForList(insertIfAbsentQuery, String.class,
+        storedUrl.getLongUrl(), storedUrl.getHash(), storedUrl.getLongUrl(), storedUrl.getLongUrl()));
+    return hashes.stream().findFirst();
+  }
+
+  @Override
+  public Optional<String> findHashByLongUrl(String longUrl) {
+    var hashes = findHashByLongUrlTimer.record(() ->
+        jdbcTemplate.queryForList(findHashByLongUrlQuery, String.class, longUrl, longUrl));
+    return hashes.stream().findFirst();
+  }
+
+  /**
+   * Runs on a read replica, if any. A hash that is not found there may have just been created on the primary (and
+   * not replicated yet), so it is looked up on the primary as well, as is any hash whose replica is failing.
+   */
+  @Override
+  public Optional<String> findLongUrlByHash(String hash) {
+    var query = findLongUrlByHashQueries.length > 0 ?
+        findLongUrlByHashQueries[partitions.partitionOf(hash)] : FIND_LONG_URL_BY_HASH;
+    var replica = readReplicas.next();
+    if (replica != null) {
+      try {
+        var longUrls = findLongUrlByHashOnReplicaTimer.record(() ->
+            replica.queryForList(query, String.class, hash));
+        if (!longUrls.isEmpty()) {
+          return Optional.of(longUrls.get(0));
+        }
+        replicaMisses.increment();
+      } catch (DataAccessException e) {
+        // counted, as logging every lookup while a replica is down would flood the logs
+        log.debug("Lookup failed on a read replica, falling back to the primary", e);
+        replicaErrors.increment();
+      }
+    }
+
+    var longUrls = findLongUrlByHashTimer.record(() -> jdbcTemplate.queryForList(query, String.class, hash));
+    return longUrls.stream().findFirst();
+  }
+
+  @Override
+  public Optional<StoredUrl> findByHash(String hash) {
+    var query = findByHashQueries.length > 0 ? findByHashQueries[partitions.partitionOf(hash)] : FIND_BY_HASH;
+    var storedUrls = jdbcTemplate.query(query, (rs, rowNum) ->
+        new StoredUrl(rs.getString(1), rs.getString(2), rs.getObject(3, OffsetDateTime.class)), hash);
+    return storedUrls.stream().findFirst();
+  }
+
+  @Override
+  public void insertAllIgnoringConflicts(Collection<StoredUrl> storedUrls) {
+    if (storedUrls.isEmpty()) {
+      return;
+    }
+
+    var longUrls = new String[storedUrls.size()];
+    var hashes = new String[storedUrls.size()];
+    var i = 0;
+    for (var storedUrl : storedUrls) {
+      longUrls[i] = storedUrl.getLongUrl();
+      hashes[i] = storedUrl.getHash();
+      i++;
+    }
+
+    insertAllTimer.record(() -> jdbcTemplate.update(INSERT_ALL_IGNORING_CONFLICTS, ps -> {
+      ps.setArray(1, ps.getConnection().createArrayOf("text", longUrls));
+      ps.setArray(2, ps.getConnection().createArrayOf("varchar", hashes));
+    }));
+  }
+
+  @Override
+  public Map<String, String> findHashesByLongUrls(Collection<String> longUrls) {
+    var hashesByLongUrl = new HashMap<String, String>(longUrls.size() * 2);
+    if (longUrls.isEmpty()) {
+      return hashesByLongUrl;
+    }
+
+    findHashesByLongUrlsTimer.record(() -> jdbcTemplate.query(findHashesByLongUrlsQuery,
+        ps -> ps.setArray(1, ps.getConnection().createArrayOf("text", longUrls.toArray())),
+        rs -> {
+          hashesByLongUrl.put(rs.getString(1), rs.getString(2));
+        }));
+    return hashesByLongUrl;
+  }
+
+  @Override
+  public IdBlock allocateIdBlock() {
+    return allocateIdBlockTimer.record(() -> jdbcTemplate.queryForObject(ALLOCATE_ID_BLOCK,
+        (rs, rowNum) -> new IdBlock(rs.getLong(1), rs.getLong(1) + rs.getLong(2))));
+  }
+
+  /**
+   * Runs in a transaction, which is what makes Postgres use a cursor for the fetch size.
+   */
+  @Override
+  public void forEachHash(Consumer<String> consumer) {
+    transactionOperations.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+      var ps = connection.prepareStatement(ALL_HASHES);
+      ps.setFetchSize(HASH_FETCH_SIZE);
+      return ps;
+    }, rs -> {
+      consumer.accept(rs.getString(1));
+    }));
+  }
+
+  @Override
+  public void forEachUrl(BiConsumer<String, String> consumer) {
+    transactionOperations.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+      var ps = connection.prepareStatement(ALL_URLS);
+      ps.setFetchSize(HASH_FETCH_SIZE);
+      return ps;
+    }, rs -> {
+      consumer.accept(rs.getString(1), rs.getString(2));
+    }));
+  }
+
+  @Override
+  public void forEachHashCreatedSince(OffsetDateTime since, Consumer<String> consumer) {
+    jdbcTemplate.query(HASHES_CREATED_SINCE, rs -> {
+      consumer.accept(rs.getString(1));
+    }, since);
+  }
+
+  @Override
+  public void forEachUrlCreatedSince(OffsetDateTime since, BiConsumer<String, String> consumer) {
+    jdbcTemplate.query(URLS_CREATED_SINCE, rs -> {
+      consumer.accept(rs.getString(1), rs.getString(2));
+    }, since);
+  }
+
+  @Override
+  public long estimateCount() {
+    var count = jdbcTemplate.queryForObject(estimateCountQuery, Long.class);
+    return count == null ? 0 : count;
+  }
+
+  @Override
+  public long count() {
+    var count = jdbcTemplate.queryForObject(COUNT, Long.class);
+    return count == null ? 0 : count;
+  }
+
+  @Override
+  public void deleteAll() {
+    jdbcTemplate.update(deleteAllQuery);
+  }
+
+}
@@ -0,0 +1,65 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only replicas of the primary database, picked in turn for the queries that can tolerate replication lag.
+ * <p>
+ * Deliberately not a {@link DataSource} bean itself, so the primary one is still the one auto-configured by Spring
+ * Boot (and used by JPA, Flyway and the transactions).
+ */
+public class ReadReplicas implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ReadReplicas.class);
+
+  private final List<? extends DataSource> dataSources;
+  private final JdbcTemplate[] jdbcTemplates;
+  private final AtomicInteger next = new AtomicInteger();
+
+  public ReadReplicas(List<? extends DataSource> dataSources) {
+    this.dataSources = List.copyOf(dataSources);
+    this.jdbcTemplates = dataSources.stream().map(JdbcTemplate::new).toArray(JdbcTemplate[]::new);
+  }
+
+  public static ReadReplicas none() {
+    return new ReadReplicas(List.of());
+  }
+
+  public int size() {
+    return jdbcTemplates.length;
+  }
+
+  /**
+   * @return the replica to run the next query on, or null if there are no replicas
+   */
+  public JdbcTemplate next() {
+    switch (jdbcTemplates.length) {
+      case 0:
+        return null;
+      case 1:
+        return jdbcTemplates[0];
+      default:
+        return jdbcTemplates[Math.floorMod(next.getAndIncrement(), jdbcTemplates.length)];
+    }
+  }
+
+  @Override
+  public void close() {
+    for (var dataSource : dataSources) {
+      if (dataSource instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) dataSource).close();
+        } catch (Exception e) {
+          log.warn("Could not close the read replica {}", dataSource, e);
+        }
+      }
+    }
+  }
+
+}
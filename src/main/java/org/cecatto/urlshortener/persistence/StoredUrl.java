@@ -11,8 +11,8 @@ import java.util.Objects;
 @Entity
 public class StoredUrl {
 
-  @Id
   private String longUrl;
+  @Id
   private String hash;
   @CreationTimestamp
   @Column(updatable = false)
@@ -27,6 +27,12 @@ public class StoredUrl {
     this.hash = hash;
   }
 
+  public StoredUrl(String longUrl, String hash, OffsetDateTime createdAt) {
+    this.longUrl = longUrl;
+    this.hash = hash;
+    this.createdAt = createdAt;
+  }
+
   public String getLongUrl() {
     return longUrl;
   }
@@ -0,0 +1,213 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.regex.Pattern;
+
+/**
+ * The layout of stored_url: a single table, or hash partitioned on the hash column (see
+ * {@link org.cecatto.urlshortener.persistence.partitioning.V6_1__Partition_stored_url}), in which case the long urls
+ * are deduplicated through stored_url_long_url instead of a unique index on stored_url itself.
+ * <p>
+ * When partitioned, the partition holding a hash is computed here, the same way Postgres routes the rows (its
+ * extended hash of text, seeded for partitioning), so the lookups can query that partition directly instead of
+ * having the planner prune the others on every execution. As this depends on Postgres internals, the computed
+ * partitions are checked against the server ({@code satisfies_hash_partition}) when loading the layout, and the
+ * lookups go through the partitioned table if any of them is wrong.
+ */
+public final class StoredUrlPartitions {
+
+  private static final Logger log = LoggerFactory.getLogger(StoredUrlPartitions.class);
+
+  // HASH_PARTITION_SEED of partbounds.h, given to the hash function of every column of the partition key
+  private static final long HASH_PARTITION_SEED = 0x7A5B22367996DCFDL;
+  // added by hash_combine64, when combining the hash of the only column of the key with 0
+  private static final long HASH_COMBINE_CONSTANT = 0x49a0f4dd15e5a5e3L;
+
+  private static final String PARTITIONS =
+      "select c.oid::regclass::text, pg_get_expr(c.relpartbound, c.oid) " +
+      "from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+      "where i.inhparent = to_regclass('stored_url')";
+  private static final Pattern HASH_BOUND = Pattern.compile("FOR VALUES WITH \\(modulus (\\d+), remainder (\\d+)\\)");
+  private static final String MISROUTED =
+      "select count(*) from unnest(?::varchar[], ?::int[]) as t(hash, remainder) " +
+      "where not satisfies_hash_partition('stored_url'::regclass, ?, t.remainder, t.hash)";
+  private static final int CHECKED_HASHES = 1000;
+  private static final char[] CHECKED_ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  private static final StoredUrlPartitions NONE = new StoredUrlPartitions(new String[0], false);
+
+  // by remainder, empty if not partitioned
+  private final String[] partitions;
+  private final boolean routed;
+
+  private StoredUrlPartitions(String[] partitions, boolean routed) {
+    this.partitions = partitions;
+    this.routed = routed;
+  }
+
+  /**
+   * Reads the layout of stored_url from the catalog, which must be migrated already.
+   */
+  public static StoredUrlPartitions load(JdbcTemplate jdbcTemplate) {
+    var bounds = jdbcTemplate.query(PARTITIONS, (rs, rowNum) -> new String[]{rs.getString(1), rs.getString(2)});
+    if (bounds == null || bounds.isEmpty()) {
+      return NONE;
+    }
+
+    var partitions = new String[bounds.size()];
+    for (var bound : bounds) {
+      var matcher = HASH_BOUND.matcher(bound[1]);
+      if (!matcher.matches() || Integer.parseInt(matcher.group(1)) != partitions.length ||
+          partitions[Integer.parseInt(matcher.group(2))] != null) {
+        // e.g. partitions of different moduli, only routed by Postgres
+        log.warn("Partition {} of stored_url is not one of {} hash partitions of the same modulus ({}), the lookups " +
+            "won't be routed to the partitions", bound[0], partitions.length, bound[1]);
+        return new StoredUrlPartitions(new String[bounds.size()], false);
+      }
+      partitions[Integer.parseInt(matcher.group(2))] = bound[0];
+    }
+
+    var misrouted = countMisrouted(jdbcTemplate, partitions.length);
+    if (misrouted > 0) {
+      log.warn("{} of {} hashes were not routed to the partition Postgres puts them in, the lookups won't be routed " +
+          "to the partitions", misrouted, CHECKED_HASHES);
+    }
+    log.info("stored_url is hash partitioned in {} partitions", partitions.length);
+    return new StoredUrlPartitions(partitions, misrouted == 0);
+  }
+
+  /**
+   * Checks the partitions computed for random hashes of every supported length.
+   */
+  private static long countMisrouted(JdbcTemplate jdbcTemplate, int modulus) {
+    var random = new SplittableRandom(CHECKED_HASHES);
+    var hashes = new String[CHECKED_HASHES];
+    var remainders = new Integer[CHECKED_HASHES];
+    for (var i = 0; i < CHECKED_HASHES; i++) {
+      var hash = new char[8 + i % 13];
+      for (var j = 0; j < hash.length; j++) {
+        hash[j] = CHECKED_ALPHABET[random.nextInt(CHECKED_ALPHABET.length)];
+      }
+      hashes[i] = new String(hash);
+      remainders[i] = remainder(hashes[i], modulus);
+    }
+    var misrouted = jdbcTemplate.query(MISROUTED, ps -> {
+      ps.setArray(1, ps.getConnection().createArrayOf("varchar", hashes));
+      ps.setArray(2, ps.getConnection().createArrayOf("int4", remainders));
+      ps.setInt(3, modulus);
+    }, rs -> rs.next() ? rs.getLong(1) : CHECKED_HASHES);
+    return misrouted == null ? CHECKED_HASHES : misrouted;
+  }
+
+  public boolean isPartitioned() {
+    return partitions.length > 0;
+  }
+
+  /**
+   * @return whether the lookups can query the partition of the hash directly
+   */
+  public boolean isRouted() {
+    return routed;
+  }
+
+  /**
+   * @return the names of the partitions, by remainder
+   */
+  public String[] partitions() {
+    return partitions.clone();
+  }
+
+  /**
+   * @return the index of the partition holding the hash, only meaningful if {@link #isRouted()}
+   */
+  public int partitionOf(String hash) {
+    return remainder(hash, partitions.length);
+  }
+
+  static int remainder(String hash, int modulus) {
+    var rowHash = hashTextExtended(hash.getBytes(StandardCharsets.UTF_8), HASH_PARTITION_SEED) + HASH_COMBINE_CONSTANT;
+    return (int) Long.remainderUnsigned(rowHash, modulus);
+  }
+
+  /**
+   * hash_bytes_extended of Postgres (common/hashfn.c), Bob Jenkins' lookup3 with a 64 bit seed, as hashtextextended
+   * applies it to text of a deterministic collation, on a little endian server.
+   */
+  static long hashTextExtended(byte[] k, long seed) {
+    var length = k.length;
+    var abc = new int[3];
+    Arrays.fill(abc, 0x9e3779b9 + length + 3923095);
+    if (seed != 0) {
+      abc[0] += (int) (seed >>> 32);
+      abc[1] += (int) seed;
+      mix(abc);
+    }
+
+    var offset = 0;
+    for (; length - offset >= 12; offset += 12) {
+      abc[0] += intLe(k, offset);
+      abc[1] += intLe(k, offset + 4);
+      abc[2] += intLe(k, offset + 8);
+      mix(abc);
+    }
+
+    // the lowest byte of c is reserved for the length
+    switch (length - offset) {
+      case 11: abc[2] += (k[offset + 10] & 0xff) << 24;
+      case 10: abc[2] += (k[offset + 9] & 0xff) << 16;
+      case 9: abc[2] += (k[offset + 8] & 0xff) << 8;
+      case 8: abc[1] += (k[offset + 7] & 0xff) << 24;
+      case 7: abc[1] += (k[offset + 6] & 0xff) << 16;
+      case 6: abc[1] += (k[offset + 5] & 0xff) << 8;
+      case 5: abc[1] += k[offset + 4] & 0xff;
+      case 4: abc[0] += (k[offset + 3] & 0xff) << 24;
+      case 3: abc[0] += (k[offset + 2] & 0xff) << 16;
+      case 2: abc[0] += (k[offset + 1] & 0xff) << 8;
+      case 1: abc[0] += k[offset] & 0xff;
+      default:
+        break;
+    }
+
+    finalMix(abc);
+    return ((long) abc[1] << 32) | (abc[2] & 0xffffffffL);
+  }
+
+  private static int intLe(byte[] k, int offset) {
+    return (k[offset] & 0xff) | (k[offset + 1] & 0xff) << 8 | (k[offset + 2] & 0xff) << 16 |
+        (k[offset + 3] & 0xff) << 24;
+  }
+
+  private static void mix(int[] abc) {
+    int a = abc[0], b = abc[1], c = abc[2];
+    a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+    b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+    c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+    a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+    b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+    c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+    abc[0] = a;
+    abc[1] = b;
+    abc[2] = c;
+  }
+
+  private static void finalMix(int[] abc) {
+    int a = abc[0], b = abc[1], c = abc[2];
+    c ^= b; c -= Integer.rotateLeft(b, 14);
+    a ^= c; a -= Integer.rotateLeft(c, 11);
+    b ^= a; b -= Integer.rotateLeft(a, 25);
+    c ^= b; c -= Integer.rotateLeft(b, 16);
+    a ^= c; a -= Integer.rotateLeft(c, 4);
+    b ^= a; b -= Integer.rotateLeft(a, 14);
+    c ^= b; c -= Integer.rotateLeft(b, 24);
+    abc[0] = a;
+    abc[1] = b;
+    abc[2] = c;
+  }
+
+}
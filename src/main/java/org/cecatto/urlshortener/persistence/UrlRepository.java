@@ -2,10 +2,9 @@ package org.cecatto.urlshortener.persistence;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 
-import java.util.Optional;
-
+/**
+ * JPA access to the urls stored in Postgres. The services go through {@link UrlStore} instead.
+ */
 public interface UrlRepository extends JpaRepository<StoredUrl, String> {
 
-  Optional<StoredUrl> findByHash(String hash);
-
 }
@@ -0,0 +1,91 @@
+package org.cecatto.urlshortener.persistence;
+
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the urls and their hashes used by the services, implemented by {@link PostgresUrlStore} (the default) and
+ * by {@link org.cecatto.urlshortener.persistence.mapped.MappedFileUrlStore} (a local file, for deployments without a
+ * database), as selected by {@code url-shortener.store.type}.
+ */
+public interface UrlStore {
+
+  /**
+   * Atomically inserts the given url unless its long url or its hash are already taken, in a single round trip and
+   * without raising unique violations.
+   *
+   * @return the hash stored for the long url, either the given one or the one it already had; empty if the hash is
+   * taken by another url, or if the long url was stored by a concurrent transaction that is not visible yet
+   */
+  Optional<String> insertIfAbsent(StoredUrl storedUrl);
+
+  Optional<String> findHashByLongUrl(String longUrl);
+
+  /**
+   * Read path of the redirects: selects only the long url, without building a managed entity.
+   */
+  Optional<String> findLongUrlByHash(String hash);
+
+  /**
+   * @return the stored url with its creation time
+   */
+  Optional<StoredUrl> findByHash(String hash);
+
+  /**
+   * Inserts all the given urls with a single statement, silently skipping the ones that conflict with existing rows
+   * (either by long url or by hash).
+   */
+  void insertAllIgnoringConflicts(Collection<StoredUrl> storedUrls);
+
+  /**
+   * @return a map of long url to hash, containing only the long urls that are stored
+   */
+  Map<String, String> findHashesByLongUrls(Collection<String> longUrls);
+
+  /**
+   * Reserves the next block of ids from the short code sequence, sized by the increment of the sequence.
+   */
+  IdBlock allocateIdBlock();
+
+  /**
+   * Streams every stored hash to the consumer, fetching them in chunks so they never have to fit in memory at once.
+   */
+  void forEachHash(Consumer<String> consumer);
+
+  /**
+   * Streams every stored url to the consumer, as its hash and long url, fetching them in chunks like
+   * {@link #forEachHash}.
+   */
+  void forEachUrl(BiConsumer<String, String> consumer);
+
+  /**
+   * Streams the hashes created at or after the given time (as given by the clock of the store when inserted).
+   */
+  void forEachHashCreatedSince(OffsetDateTime since, Consumer<String> consumer);
+
+  /**
+   * Streams the urls created at or after the given time, as their hash and long url, like
+   * {@link #forEachHashCreatedSince}.
+   */
+  void forEachUrlCreatedSince(OffsetDateTime since, BiConsumer<String, String> consumer);
+
+  /**
+   * @return the number of stored urls, as cheaply as the store can tell it (possibly an estimate)
+   */
+  long estimateCount();
+
+  /**
+   * @return the exact number of stored urls
+   */
+  long count();
+
+  /**
+   * Removes every stored url.
+   */
+  void deleteAll();
+
+}
@@ -0,0 +1,81 @@
+package org.cecatto.urlshortener.persistence.mapped;
+
+import org.cecatto.urlshortener.dto.ClickStats;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Click counters of the urls of a {@link MappedFileUrlStore}, kept in memory only: they start from zero again when
+ * the instance restarts.
+ */
+@Repository
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "mapped-file")
+public class InMemoryClickStatsRepository implements ClickStatsRepository {
+
+  private final UrlStore urlStore;
+  private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+  @Autowired
+  public InMemoryClickStatsRepository(UrlStore urlStore) {
+    this.urlStore = urlStore;
+  }
+
+  @Override
+  public void addClicks(String[] hashes, long[] clicks, long[] lastAccessEpochMillis) {
+    for (var i = 0; i < hashes.length; i++) {
+      var added = new Counter(clicks[i], lastAccessEpochMillis[i]);
+      counters.merge(hashes[i], added, (current, more) ->
+          new Counter(current.clicks + more.clicks, Math.max(current.lastAccess, more.lastAccess)));
+    }
+  }
+
+  @Override
+  public Optional<ClickStats> findByHash(String hash) {
+    if (urlStore.findLongUrlByHash(hash).isEmpty()) {
+      return Optional.empty();
+    }
+    var counter = counters.get(hash);
+    if (counter == null) {
+      return Optional.of(new ClickStats(hash, 0, null));
+    }
+    return Optional.of(new ClickStats(hash, counter.clicks,
+        Instant.ofEpochMilli(counter.lastAccess).atOffset(ZoneOffset.UTC)));
+  }
+
+  @Override
+  public void forEachMostClicked(int limit, BiConsumer<String, String> consumer) {
+    counters.entrySet().stream()
+        .sorted(Comparator.comparingLong((Map.Entry<String, Counter> entry) -> entry.getValue().clicks).reversed())
+        .limit(limit)
+        .forEach(entry -> urlStore.findLongUrlByHash(entry.getKey())
+            .ifPresent(longUrl -> consumer.accept(entry.getKey(), longUrl)));
+  }
+
+  @Override
+  public void deleteAll() {
+    counters.clear();
+  }
+
+  private static class Counter {
+
+    private final long clicks;
+    private final long lastAccess;
+
+    private Counter(long clicks, long lastAccess) {
+      this.clicks = clicks;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+}
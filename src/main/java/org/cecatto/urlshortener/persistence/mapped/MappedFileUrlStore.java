@@ -0,0 +1,695 @@
+package org.cecatto.urlshortener.persistence.mapped;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.IdBlock;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores the urls in a local file instead of a database, for deployments where running Postgres is not an option.
+ * Every url is appended as a record to a log, which is memory-mapped in chunks, and found through two
+ * {@link OffHeapIndex}es, by hash and by long url, that point into it. Lookups don't lock and compare the keys in
+ * place in the mapped file, so the long url is the only thing copied out of it.
+ * <p>
+ * Records are written under a lock, their length last, and checksummed, so that reopening the file after a crash
+ * finds where the last complete record ends and discards whatever comes after it. The indexes are rebuilt from the log
+ * when the file is opened. With fsync enabled, the records are forced to disk before a create returns.
+ * <p>
+ * The file is locked while open, so it can only be used by a single instance.
+ */
+@Repository
+@ConditionalOnProperty(name = "url-shortener.store.type", havingValue = "mapped-file")
+public class MappedFileUrlStore implements UrlStore, AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(MappedFileUrlStore.class);
+
+  // "URLSTORE"
+  private static final long MAGIC = 0x55524c53544f5245L;
+  private static final int VERSION = 1;
+
+  // header: magic, version, chunk size and the next id to hand out, followed by the chunks of the log
+  private static final int HEADER_SIZE = 4096;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 8;
+  private static final int CHUNK_SIZE_OFFSET = 12;
+  private static final int NEXT_ID_OFFSET = 16;
+
+  // record: length, crc32c of what follows it, creation time in epoch millis, hash (ascii) and long url (utf-8), each
+  // after its length. Records start at multiples of 8 and never span chunks.
+  private static final int LENGTH_OFFSET = 0;
+  private static final int CRC_OFFSET = 4;
+  private static final int CREATED_AT_OFFSET = 8;
+  private static final int HASH_LENGTH_OFFSET = 16;
+  private static final int HASH_OFFSET = 18;
+  private static final int MIN_RECORD_LENGTH = HASH_OFFSET + Integer.BYTES;
+  private static final int ALIGNMENT = 8;
+  // length of the record following the last one, as the file is zero-filled when it grows
+  private static final int END = 0;
+  // length of the record following the last one of a chunk when the next record didn't fit in it
+  private static final int PADDING = -1;
+
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 1 << 30;
+  // same as the increment of short_code_id_seq
+  private static final long ID_BLOCK_SIZE = 10_000;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final FileLock fileLock;
+  private final MappedByteBuffer header;
+  private final int chunkSize;
+  private final boolean fsync;
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  // only grows; a chunk is added before the first position in it is indexed, which publishes it to the readers
+  private volatile MappedByteBuffer[] chunks;
+  private volatile OffHeapIndex hashIndex;
+  private volatile OffHeapIndex longUrlIndex;
+  // position in the log where the next record goes
+  private volatile long end;
+
+  // only used by the writer, under the lock
+  private ByteBuffer scratch = ByteBuffer.allocate(1024);
+  private final CRC32C crc = new CRC32C();
+
+  @Autowired
+  public MappedFileUrlStore(UrlShortenerProperties properties, MeterRegistry meterRegistry) {
+    this(Path.of(properties.getStore().getMappedFile().getPath()),
+        properties.getStore().getMappedFile().getChunkSize().toBytes(),
+        properties.getStore().getMappedFile().isFsync());
+
+    Gauge.builder("shortener.store.log.size", this, MappedFileUrlStore::logBytes)
+        .description("Size of the log of the stored urls, up to the last record")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("shortener.store.index.memory", this, MappedFileUrlStore::indexMemoryBytes)
+        .description("Off-heap memory used by the indexes of the stored urls")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  public MappedFileUrlStore(Path path, long chunkSize, boolean fsync) {
+    if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE || chunkSize % ALIGNMENT != 0) {
+      throw new IllegalArgumentException("Chunk size must be a multiple of " + ALIGNMENT + " between "
+          + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + " bytes");
+    }
+    this.path = path;
+    this.fsync = fsync;
+
+    try {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      this.fileLock = lock(path, channel);
+
+      var isNew = channel.size() == 0;
+      this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      if (isNew) {
+        header.putLong(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(CHUNK_SIZE_OFFSET, (int) chunkSize);
+        header.putLong(NEXT_ID_OFFSET, 0);
+        header.force();
+      } else if (header.getLong(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+        throw new IllegalStateException(path + " is not a url store of version " + VERSION);
+      }
+      // positions in the log depend on the chunk size, so the one of the file wins
+      this.chunkSize = header.getInt(CHUNK_SIZE_OFFSET);
+      if (this.chunkSize != chunkSize) {
+        log.warn("Using the chunk size of {} ({} bytes) instead of the configured one", path, this.chunkSize);
+      }
+
+      var numChunks = (int) Math.max(1, (channel.size() - HEADER_SIZE + this.chunkSize - 1) / this.chunkSize);
+      var mapped = new MappedByteBuffer[numChunks];
+      for (var i = 0; i < numChunks; i++) {
+        mapped[i] = mapChunk(i);
+      }
+      this.chunks = mapped;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the url store " + path, e);
+    }
+
+    recover();
+  }
+
+  private static FileLock lock(Path path, FileChannel channel) throws IOException {
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // already locked by this process
+      lock = null;
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IllegalStateException(path + " is already in use");
+    }
+    return lock;
+  }
+
+  private MappedByteBuffer mapChunk(int chunk) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) chunk * chunkSize, chunkSize);
+  }
+
+  /**
+   * Rebuilds the indexes from the log, up to the last complete record. Anything after it was being written when the
+   * process (or the machine) stopped, and is erased so it can't be mistaken for records later on.
+   */
+  private void recover() {
+    var start = System.nanoTime();
+    var hashes = new OffHeapIndex(0);
+    var longUrls = new OffHeapIndex(0);
+    var position = 0L;
+    while (chunkOf(position) < chunks.length) {
+      var chunk = chunks[chunkOf(position)];
+      var offset = offsetOf(position);
+      var length = chunk.getInt(offset + LENGTH_OFFSET);
+      if (length == END) {
+        break;
+      }
+      if (length == PADDING) {
+        position = nextChunkStart(position);
+        continue;
+      }
+      if (!isValidRecord(chunk, offset, length)) {
+        log.warn("Discarding the incomplete records of {} from position {}", path, position);
+        erase(position, nextChunkStart(position));
+        truncateAfter(chunkOf(position));
+        break;
+      }
+      hashes.put(hashKey(chunk, offset), position);
+      longUrls.put(longUrlKey(chunk, offset), position);
+      position += align(length);
+    }
+    this.hashIndex = hashes;
+    this.longUrlIndex = longUrls;
+    this.end = position;
+    log.info("Opened {} with {} urls in {} ms", path, hashes.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private boolean isValidRecord(MappedByteBuffer chunk, int offset, int length) {
+    if (length < MIN_RECORD_LENGTH || length > chunkSize - offset) {
+      return false;
+    }
+    var hashLength = chunk.getShort(offset + HASH_LENGTH_OFFSET);
+    if (hashLength < 0 || HASH_OFFSET + hashLength + Integer.BYTES > length) {
+      return false;
+    }
+    var longUrlLength = chunk.getInt(offset + HASH_OFFSET + hashLength);
+    if (longUrlLength != length - HASH_OFFSET - hashLength - Integer.BYTES) {
+      return false;
+    }
+    crc.reset();
+    crc.update(chunk.slice(offset + CREATED_AT_OFFSET, length - CREATED_AT_OFFSET));
+    return (int) crc.getValue() == chunk.getInt(offset + CRC_OFFSET);
+  }
+
+  /**
+   * Zero-fills the log between the given positions, which must be in mapped chunks.
+   */
+  private void erase(long from, long to) {
+    var zeros = new byte[MIN_CHUNK_SIZE];
+    var position = from;
+    while (position < to) {
+      var chunk = chunks[chunkOf(position)];
+      var count = (int) Math.min(Math.min(zeros.length, to - position), chunkSize - offsetOf(position));
+      chunk.put(offsetOf(position), zeros, 0, count);
+      position += count;
+      if (offsetOf(position) == 0 || position == to) {
+        chunk.force();
+      }
+    }
+  }
+
+  private void truncateAfter(int lastChunk) {
+    chunks = Arrays.copyOf(chunks, lastChunk + 1);
+    try {
+      channel.truncate(HEADER_SIZE + (long) (lastChunk + 1) * chunkSize);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not truncate the url store " + path, e);
+    }
+  }
+
+  @PreDestroy
+  @Override
+  public void close() {
+    writeLock.lock();
+    try {
+      if (!channel.isOpen()) {
+        return;
+      }
+      for (var chunk : chunks) {
+        chunk.force();
+      }
+      header.force();
+      fileLock.release();
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not close the url store " + path, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<String> insertIfAbsent(StoredUrl storedUrl) {
+    var longUrl = storedUrl.getLongUrl().getBytes(StandardCharsets.UTF_8);
+    // the common case of a url stored before doesn't need the lock
+    var existing = positionOfLongUrl(longUrl, longUrlKey(longUrl));
+    if (existing >= 0) {
+      return Optional.of(readHash(existing));
+    }
+
+    writeLock.lock();
+    try {
+      var from = end;
+      var inserted = insert(storedUrl.getHash(), longUrl);
+      sync(from);
+      return inserted;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return the hash stored for the url, or empty if the hash is taken by another url
+   */
+  private Optional<String> insert(String hash, byte[] longUrl) {
+    var longUrlKey = longUrlKey(longUrl);
+    var existing = positionOfLongUrl(longUrl, longUrlKey);
+    if (existing >= 0) {
+      return Optional.of(readHash(existing));
+    }
+    var hashKey = hashKey(hash);
+    if (positionOfHash(hash, hashKey) >= 0) {
+      return Optional.empty();
+    }
+
+    var position = append(hash, longUrl, System.currentTimeMillis());
+    hashIndex.put(hashKey, position);
+    longUrlIndex.put(longUrlKey, position);
+    return Optional.of(hash);
+  }
+
+  private long append(String hash, byte[] longUrl, long createdAt) {
+    var length = HASH_OFFSET + hash.length() + Integer.BYTES + longUrl.length;
+    if (length > chunkSize || hash.length() > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Url of " + longUrl.length + " bytes is too long for the store");
+    }
+
+    var position = end;
+    if (offsetOf(position) + length > chunkSize) {
+      if (offsetOf(position) < chunkSize) {
+        chunks[chunkOf(position)].putInt(offsetOf(position) + LENGTH_OFFSET, PADDING);
+      }
+      position = nextChunkStart(position);
+    }
+    var chunk = chunk(chunkOf(position));
+    var offset = offsetOf(position);
+
+    if (scratch.capacity() < length) {
+      scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+    }
+    scratch.clear();
+    scratch.putLong(createdAt);
+    scratch.putShort((short) hash.length());
+    for (var i = 0; i < hash.length(); i++) {
+      var c = hash.charAt(i);
+      if (c >= 0x80) {
+        throw new IllegalArgumentException("Hash " + hash + " is not ascii");
+      }
+      scratch.put((byte) c);
+    }
+    scratch.putInt(longUrl.length);
+    scratch.put(longUrl);
+    scratch.flip();
+    crc.reset();
+    crc.update(scratch);
+
+    // the length goes last, so that a record is either complete or ignored if the process stops meanwhile
+    chunk.put(offset + CREATED_AT_OFFSET, scratch, 0, length - CREATED_AT_OFFSET);
+    chunk.putInt(offset + CRC_OFFSET, (int) crc.getValue());
+    chunk.putInt(offset + LENGTH_OFFSET, length);
+    end = position + align(length);
+    return position;
+  }
+
+  private MappedByteBuffer chunk(int index) {
+    if (index < chunks.length) {
+      return chunks[index];
+    }
+    try {
+      var grown = Arrays.copyOf(chunks, index + 1);
+      grown[index] = mapChunk(index);
+      chunks = grown;
+      return grown[index];
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not grow the url store " + path, e);
+    }
+  }
+
+  /**
+   * Forces the records from the given position to the end to disk, if enabled.
+   */
+  private void sync(long from) {
+    if (!fsync || from == end) {
+      return;
+    }
+    for (var chunk = chunkOf(from); chunk <= chunkOf(end - 1); chunk++) {
+      var start = chunk == chunkOf(from) ? offsetOf(from) : 0;
+      var stop = chunk == chunkOf(end - 1) ? offsetOf(end - 1) + 1 : chunkSize;
+      chunks[chunk].force(start, stop - start);
+    }
+  }
+
+  @Override
+  public Optional<String> findHashByLongUrl(String longUrl) {
+    var bytes = longUrl.getBytes(StandardCharsets.UTF_8);
+    var position = positionOfLongUrl(bytes, longUrlKey(bytes));
+    return position < 0 ? Optional.empty() : Optional.of(readHash(position));
+  }
+
+  @Override
+  public Optional<String> findLongUrlByHash(String hash) {
+    var position = positionOfHash(hash, hashKey(hash));
+    return position < 0 ? Optional.empty() : Optional.of(readLongUrl(position));
+  }
+
+  @Override
+  public Optional<StoredUrl> findByHash(String hash) {
+    var position = positionOfHash(hash, hashKey(hash));
+    if (position < 0) {
+      return Optional.empty();
+    }
+    var createdAt = chunks[chunkOf(position)].getLong(offsetOf(position) + CREATED_AT_OFFSET);
+    return Optional.of(new StoredUrl(readLongUrl(position), hash,
+        Instant.ofEpochMilli(createdAt).atOffset(ZoneOffset.UTC)));
+  }
+
+  @Override
+  public void insertAllIgnoringConflicts(Collection<StoredUrl> storedUrls) {
+    if (storedUrls.isEmpty()) {
+      return;
+    }
+
+    writeLock.lock();
+    try {
+      var from = end;
+      for (var storedUrl : storedUrls) {
+        insert(storedUrl.getHash(), storedUrl.getLongUrl().getBytes(StandardCharsets.UTF_8));
+      }
+      sync(from);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public Map<String, String> findHashesByLongUrls(Collection<String> longUrls) {
+    var hashesByLongUrl = new HashMap<String, String>(longUrls.size() * 2);
+    for (var longUrl : longUrls) {
+      findHashByLongUrl(longUrl).ifPresent(hash -> hashesByLongUrl.put(longUrl, hash));
+    }
+    return hashesByLongUrl;
+  }
+
+  @Override
+  public IdBlock allocateIdBlock() {
+    writeLock.lock();
+    try {
+      var start = header.getLong(NEXT_ID_OFFSET);
+      header.putLong(NEXT_ID_OFFSET, start + ID_BLOCK_SIZE);
+      // always forced, a block handed out twice would give colliding codes
+      header.force();
+      return new IdBlock(start, start + ID_BLOCK_SIZE);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void forEachHash(Consumer<String> consumer) {
+    forEachRecord(position -> consumer.accept(readHash(position)));
+  }
+
+  @Override
+  public void forEachUrl(BiConsumer<String, String> consumer) {
+    forEachRecord(position -> consumer.accept(readHash(position), readLongUrl(position)));
+  }
+
+  /**
+   * Scans the whole log, as records are not sorted by creation time.
+   */
+  @Override
+  public void forEachHashCreatedSince(OffsetDateTime since, Consumer<String> consumer) {
+    var sinceMillis = since.toInstant().toEpochMilli();
+    forEachRecord(position -> {
+      if (chunks[chunkOf(position)].getLong(offsetOf(position) + CREATED_AT_OFFSET) >= sinceMillis) {
+        consumer.accept(readHash(position));
+      }
+    });
+  }
+
+  /**
+   * Scans the whole log, like {@link #forEachHashCreatedSince}.
+   */
+  @Override
+  public void forEachUrlCreatedSince(OffsetDateTime since, BiConsumer<String, String> consumer) {
+    var sinceMillis = since.toInstant().toEpochMilli();
+    forEachRecord(position -> {
+      if (chunks[chunkOf(position)].getLong(offsetOf(position) + CREATED_AT_OFFSET) >= sinceMillis) {
+        consumer.accept(readHash(position), readLongUrl(position));
+      }
+    });
+  }
+
+  private void forEachRecord(LongConsumer consumer) {
+    var last = end;
+    var position = 0L;
+    while (position < last) {
+      var length = chunks[chunkOf(position)].getInt(offsetOf(position) + LENGTH_OFFSET);
+      if (length == PADDING) {
+        position = nextChunkStart(position);
+        continue;
+      }
+      consumer.accept(position);
+      position += align(length);
+    }
+  }
+
+  @Override
+  public long estimateCount() {
+    return hashIndex.size();
+  }
+
+  @Override
+  public long count() {
+    return hashIndex.size();
+  }
+
+  /**
+   * Erases the log and the indexes. Meant for tests: lookups running meanwhile may or may not find the urls.
+   */
+  @Override
+  public void deleteAll() {
+    writeLock.lock();
+    try {
+      erase(0, end);
+      hashIndex = new OffHeapIndex(0);
+      longUrlIndex = new OffHeapIndex(0);
+      end = 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return bytes taken by the records in the file, including the padding at the end of the chunks
+   */
+  public long logBytes() {
+    return end;
+  }
+
+  /**
+   * @return bytes of off-heap memory taken by the indexes
+   */
+  public long indexMemoryBytes() {
+    return hashIndex.memoryBytes() + longUrlIndex.memoryBytes();
+  }
+
+  private long positionOfHash(String hash, long key) {
+    var table = hashIndex.table();
+    for (var slot = table.home(key); ; slot = table.next(slot)) {
+      var position = table.position(slot);
+      if (position < 0) {
+        return -1;
+      }
+      if (table.key(slot) == key && hashEquals(position, hash)) {
+        return position;
+      }
+    }
+  }
+
+  private long positionOfLongUrl(byte[] longUrl, long key) {
+    var table = longUrlIndex.table();
+    for (var slot = table.home(key); ; slot = table.next(slot)) {
+      var position = table.position(slot);
+      if (position < 0) {
+        return -1;
+      }
+      if (table.key(slot) == key && longUrlEquals(position, longUrl)) {
+        return position;
+      }
+    }
+  }
+
+  private boolean hashEquals(long position, String hash) {
+    var chunk = chunks[chunkOf(position)];
+    var offset = offsetOf(position);
+    if (chunk.getShort(offset + HASH_LENGTH_OFFSET) != hash.length()) {
+      return false;
+    }
+    for (var i = 0; i < hash.length(); i++) {
+      // a non-ascii char never equals a (signed) byte of the stored ascii hash
+      if (chunk.get(offset + HASH_OFFSET + i) != hash.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean longUrlEquals(long position, byte[] longUrl) {
+    var chunk = chunks[chunkOf(position)];
+    var offset = offsetOf(position) + HASH_OFFSET + chunk.getShort(offsetOf(position) + HASH_LENGTH_OFFSET);
+    if (chunk.getInt(offset) != longUrl.length) {
+      return false;
+    }
+    offset += Integer.BYTES;
+    for (var i = 0; i < longUrl.length; i++) {
+      if (chunk.get(offset + i) != longUrl[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String readHash(long position) {
+    var chunk = chunks[chunkOf(position)];
+    var offset = offsetOf(position);
+    var bytes = new byte[chunk.getShort(offset + HASH_LENGTH_OFFSET)];
+    chunk.get(offset + HASH_OFFSET, bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  private String readLongUrl(long position) {
+    var chunk = chunks[chunkOf(position)];
+    var offset = offsetOf(position) + HASH_OFFSET + chunk.getShort(offsetOf(position) + HASH_LENGTH_OFFSET);
+    var bytes = new byte[chunk.getInt(offset)];
+    chunk.get(offset + Integer.BYTES, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private int chunkOf(long position) {
+    return (int) (position / chunkSize);
+  }
+
+  private int offsetOf(long position) {
+    return (int) (position % chunkSize);
+  }
+
+  private long nextChunkStart(long position) {
+    return (position / chunkSize + 1) * chunkSize;
+  }
+
+  private static long align(int length) {
+    return (length + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  // FNV-1a, finished with fmix64 to spread the bits over the whole key as the index takes the lowest ones
+
+  private static long hashKey(String hash) {
+    var h = 0xcbf29ce484222325L;
+    for (var i = 0; i < hash.length(); i++) {
+      h ^= hash.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return fmix64(h);
+  }
+
+  private static long hashKey(MappedByteBuffer chunk, int offset) {
+    var h = 0xcbf29ce484222325L;
+    var length = chunk.getShort(offset + HASH_LENGTH_OFFSET);
+    for (var i = 0; i < length; i++) {
+      h ^= chunk.get(offset + HASH_OFFSET + i);
+      h *= 0x100000001b3L;
+    }
+    return fmix64(h);
+  }
+
+  private static long longUrlKey(byte[] longUrl) {
+    var h = 0xcbf29ce484222325L;
+    for (var b : longUrl) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return fmix64(h);
+  }
+
+  private static long longUrlKey(MappedByteBuffer chunk, int offset) {
+    var h = 0xcbf29ce484222325L;
+    var start = offset + HASH_OFFSET + chunk.getShort(offset + HASH_LENGTH_OFFSET);
+    var length = chunk.getInt(start);
+    for (var i = 0; i < length; i++) {
+      h ^= chunk.get(start + Integer.BYTES + i) & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return fmix64(h);
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb93fe1a85ec3L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
@@ -0,0 +1,148 @@
+package org.cecatto.urlshortener.persistence.mapped;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing (linear probing) hash table from 64-bit keys to positions in the log, held in direct buffers so the
+ * entries cost neither heap nor garbage collection work: 16 bytes per slot, at most {@link #MAX_LOAD_FACTOR} full.
+ * <p>
+ * Keys are hashes of the indexed values, so different values may share a key: lookups go through every slot holding
+ * the key, comparing the value at each position with the one looked up. Positions are never removed.
+ * <p>
+ * Only one thread may put at a time, while any number of threads read without locking: a slot's position is published
+ * with release semantics after its key, and read with acquire semantics before it. Growing builds a bigger table and
+ * swaps it in, so readers keep probing the one they started with.
+ */
+final class OffHeapIndex {
+
+  static final double MAX_LOAD_FACTOR = 0.7;
+
+  // a table is split in buffers of this many slots, as a single buffer can't go over 2 GB
+  private static final int SEGMENT_SHIFT = 16;
+  private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+  private static final int SLOT_BYTES = 16;
+  private static final int MIN_CAPACITY = 1 << 10;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  // the position of the slot is stored plus one, so an empty slot (all zeros) is told apart from position 0
+  private static final long EMPTY = 0;
+
+  private volatile Table table;
+  // only written by the thread putting
+  private volatile long size;
+
+  OffHeapIndex(long expectedSize) {
+    this.table = new Table(capacityFor(expectedSize));
+  }
+
+  private static long capacityFor(long size) {
+    return Math.max(MIN_CAPACITY, Long.highestOneBit((long) (size / MAX_LOAD_FACTOR)) << 1);
+  }
+
+  /**
+   * @return the table to probe, which stays valid (though it may stop receiving new entries) after growing
+   */
+  Table table() {
+    return table;
+  }
+
+  /**
+   * Adds the position under the key, which the caller must have checked is not indexed yet. Not thread-safe.
+   */
+  void put(long key, long position) {
+    var current = table;
+    if (size + 1 > current.capacity * MAX_LOAD_FACTOR) {
+      current = grow(current);
+    }
+    current.insert(key, position);
+    size++;
+  }
+
+  private Table grow(Table current) {
+    var next = new Table(current.capacity << 1);
+    for (var slot = 0L; slot < current.capacity; slot++) {
+      var value = current.value(slot);
+      if (value != EMPTY) {
+        next.insert(current.key(slot), value - 1);
+      }
+    }
+    table = next;
+    return next;
+  }
+
+  long size() {
+    return size;
+  }
+
+  long memoryBytes() {
+    return table.capacity * SLOT_BYTES;
+  }
+
+  static final class Table {
+
+    private final ByteBuffer[] segments;
+    private final long capacity;
+    private final long mask;
+
+    private Table(long capacity) {
+      this.capacity = capacity;
+      this.mask = capacity - 1;
+      var slotsPerSegment = (int) Math.min(capacity, SEGMENT_SLOTS);
+      this.segments = new ByteBuffer[(int) (capacity / slotsPerSegment)];
+      for (var i = 0; i < segments.length; i++) {
+        segments[i] = ByteBuffer.allocateDirect(slotsPerSegment * SLOT_BYTES).order(ByteOrder.nativeOrder());
+      }
+    }
+
+    /**
+     * @return the first slot to probe for the key
+     */
+    long home(long key) {
+      return key & mask;
+    }
+
+    long next(long slot) {
+      return (slot + 1) & mask;
+    }
+
+    /**
+     * @return the position stored in the slot, or -1 if the slot is empty, which ends the probing of every key
+     * reaching it. To be read before the key of the slot.
+     */
+    long position(long slot) {
+      return value(slot) - 1;
+    }
+
+    long key(long slot) {
+      return (long) LONGS.get(segment(slot), offset(slot));
+    }
+
+    private long value(long slot) {
+      return (long) LONGS.getAcquire(segment(slot), offset(slot) + Long.BYTES);
+    }
+
+    private void insert(long key, long position) {
+      var slot = home(key);
+      while (value(slot) != EMPTY) {
+        slot = next(slot);
+      }
+      var segment = segment(slot);
+      var offset = offset(slot);
+      LONGS.set(segment, offset, key);
+      LONGS.setRelease(segment, offset + Long.BYTES, position + 1);
+    }
+
+    private ByteBuffer segment(long slot) {
+      return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+      return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+package org.cecatto.urlshortener.persistence.migration;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Second step of the schema change started by V3: backfills the digest of the existing rows, builds the new indexes
+ * and moves the primary key from long_url to hash, all without blocking reads and writes for longer than a few catalog
+ * updates. It runs outside of a transaction, so every batch is committed on its own and the indexes can be built
+ * concurrently.
+ * <p>
+ * For the same reason, a failed run (e.g. a lock timeout) is not rolled back: Flyway records it as failed in
+ * flyway_schema_history, and refuses to start the application until that row is removed, with {@code flyway repair}
+ * or {@code delete from flyway_schema_history where version = '4' and not success}. The next startup then runs it
+ * again, and as every step is idempotent it picks up where the failed run stopped (an index whose concurrent build was
+ * interrupted is dropped and built again).
+ */
+public class V4__Move_primary_key_to_hash extends BaseJavaMigration {
+
+  private static final Logger log = LoggerFactory.getLogger(V4__Move_primary_key_to_hash.class);
+
+  private static final int BACKFILL_BATCH_SIZE = 10_000;
+
+  // batches are walked in the order of the current primary key, so each one is a short index range scan
+  private static final String NEXT_BATCH_END =
+      "select long_url from stored_url where long_url > ? order by long_url offset " + (BACKFILL_BATCH_SIZE - 1) + " limit 1";
+  private static final String BACKFILL_BATCH =
+      "update stored_url set long_url_digest = sha256(convert_to(long_url, 'UTF8')) " +
+      "where long_url > ? and long_url <= ? and long_url_digest is null";
+  private static final String BACKFILL_REMAINING =
+      "update stored_url set long_url_digest = sha256(convert_to(long_url, 'UTF8')) where long_url_digest is null";
+
+  @Override
+  public boolean canExecuteInTransaction() {
+    return false;
+  }
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    var connection = context.getConnection();
+    connection.setAutoCommit(true);
+
+    // waiting behind a long running transaction would block every query queued after the alter statements
+    execute(connection, "set lock_timeout = '5s'");
+    try {
+      movePrimaryKey(connection);
+    } finally {
+      // even when failing: the connection is Flyway's, and used for its own statements afterwards
+      execute(connection, "reset lock_timeout");
+    }
+  }
+
+  private void movePrimaryKey(Connection connection) throws SQLException {
+    backfillDigests(connection);
+
+    createIndexConcurrently(connection, "stored_url_long_url_digest_key",
+        "create unique index concurrently stored_url_long_url_digest_key on stored_url (long_url_digest)");
+    createIndexConcurrently(connection, "stored_url_hash_pkey",
+        "create unique index concurrently stored_url_hash_pkey on stored_url (hash)");
+
+    // a validated check constraint lets set not null skip the full table scan under an exclusive lock
+    execute(connection, "alter table stored_url drop constraint if exists stored_url_long_url_digest_not_null");
+    execute(connection, "alter table stored_url add constraint stored_url_long_url_digest_not_null " +
+        "check (long_url_digest is not null) not valid");
+    execute(connection, "alter table stored_url validate constraint stored_url_long_url_digest_not_null");
+    execute(connection, "alter table stored_url alter column long_url_digest set not null");
+    execute(connection, "alter table stored_url drop constraint stored_url_long_url_digest_not_null");
+
+    // the swap itself only touches the catalog, the indexes backing the new constraints are already built
+    connection.setAutoCommit(false);
+    try {
+      execute(connection, "alter table stored_url alter column long_url set not null");
+      execute(connection, "alter table stored_url drop constraint if exists stored_url_pkey");
+      execute(connection, "alter table stored_url add constraint stored_url_pkey primary key using index stored_url_hash_pkey");
+      execute(connection, "alter table stored_url drop constraint if exists stored_url_hash_key");
+      execute(connection, "alter table stored_url add constraint stored_url_long_url_digest_key " +
+          "unique using index stored_url_long_url_digest_key");
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+
+  private void backfillDigests(Connection connection) throws SQLException {
+    var total = 0L;
+    var batches = 0L;
+    var batchStart = "";
+    String batchEnd;
+    while ((batchEnd = nextBatchEnd(connection, batchStart)) != null) {
+      try (var statement = connection.prepareStatement(BACKFILL_BATCH)) {
+        statement.setString(1, batchStart);
+        statement.setString(2, batchEnd);
+        total += statement.executeUpdate();
+      }
+      batchStart = batchEnd;
+      if (++batches % 100 == 0) {
+        log.info("Backfilled the digest of {} stored urls so far", total);
+      }
+    }
+    // the last partial batch, plus anything the ranges couldn't reach
+    try (var statement = connection.createStatement()) {
+      total += statement.executeUpdate(BACKFILL_REMAINING);
+    }
+    log.info("Backfilled the digest of {} stored urls", total);
+  }
+
+  private String nextBatchEnd(Connection connection, String batchStart) throws SQLException {
+    try (var statement = connection.prepareStatement(NEXT_BATCH_END)) {
+      statement.setString(1, batchStart);
+      try (var rs = statement.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    }
+  }
+
+  private void createIndexConcurrently(Connection connection, String indexName, String createIndex) throws SQLException {
+    // a failed concurrent build leaves an invalid index behind, which has to be dropped before trying again
+    try (var statement = connection.prepareStatement(
+        "select indisvalid from pg_index where indexrelid = to_regclass(?)")) {
+      statement.setString(1, indexName);
+      try (var rs = statement.executeQuery()) {
+        if (rs.next()) {
+          if (rs.getBoolean(1)) {
+            return;
+          }
+          log.warn("Dropping invalid index {} left by a previous run", indexName);
+          execute(connection, "drop index concurrently " + indexName);
+        }
+      }
+    }
+    log.info("Creating index {}", indexName);
+    execute(connection, createIndex);
+  }
+
+  private static void execute(Connection connection, String sql) throws SQLException {
+    try (var statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+}
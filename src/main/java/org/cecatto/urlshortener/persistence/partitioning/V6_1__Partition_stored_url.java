@@ -0,0 +1,255 @@
+package org.cecatto.urlshortener.persistence.partitioning;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Optional migration, in its own location (see application-partitioned.yml): moves stored_url to a table hash
+ * partitioned on the hash, in as many partitions as the {@code stored-url-partitions} placeholder (16 by default),
+ * so that every partition and its indexes stay small enough for vacuum and the lookups at hundreds of millions of rows.
+ * <p>
+ * A unique index of a partitioned table must include the partition key, so the long urls can't be deduplicated by a
+ * unique index on their digest anymore. Instead, every url is claimed in stored_url_long_url (digest to hash, itself
+ * hash partitioned on the digest) by a trigger before its row is inserted, and the row is skipped if the url is
+ * already stored, as the conflict of the unique index did. An insert skipped by a conflict on the hash leaves its
+ * claim behind, which the next insert of the url takes over; the lookups by url always compare the url of the row
+ * claimed, so such stale claims are never visible.
+ * <p>
+ * The migration runs online, like V4: the new table is filled in batches while a trigger on the old one copies the
+ * rows written meanwhile, and both are swapped in a short transaction. The old table is kept, renamed to
+ * stored_url_unpartitioned, until dropped by hand.
+ * <p>
+ * A failed run (e.g. a lock timeout) is not rolled back either: Flyway records it as failed in flyway_schema_history,
+ * and refuses to start the application until that row is removed, with {@code flyway repair} or
+ * {@code delete from flyway_schema_history where version = '6.1' and not success}. The next startup then runs it
+ * again, and as every step is idempotent it picks up where the failed run stopped.
+ * <p>
+ * Instances started before the swap keep deduplicating and finding the urls by their digest in stored_url, which is
+ * indexed on every partition for them (not unique, the claims do that), and route their lookups to the partitions
+ * once restarted with the partitioned profile. Needs Postgres 13 or later (row triggers on partitioned tables).
+ */
+public class V6_1__Partition_stored_url extends BaseJavaMigration {
+
+  private static final Logger log = LoggerFactory.getLogger(V6_1__Partition_stored_url.class);
+
+  static final String PARTITIONS_PLACEHOLDER = "stored-url-partitions";
+  private static final int DEFAULT_PARTITIONS = 16;
+  private static final int COPY_BATCH_SIZE = 10_000;
+
+  // the insert of a url that is already stored (by another hash) is skipped, as a conflict would be. The url of a
+  // stale claim is checked through the root of the partitions, whatever its name (it is renamed by the swap).
+  private static final String CLAIM_LONG_URL_FUNCTION =
+      "create or replace function stored_url_claim_long_url() returns trigger as $$\n" +
+      "declare\n" +
+      "    claimed varchar(20);\n" +
+      "    stored boolean;\n" +
+      "begin\n" +
+      "    new.long_url_digest := sha256(convert_to(new.long_url, 'UTF8'));\n" +
+      "    insert into stored_url_long_url (long_url_digest, hash) values (new.long_url_digest, new.hash)\n" +
+      "        on conflict do nothing;\n" +
+      "    if found then\n" +
+      "        return new;\n" +
+      "    end if;\n" +
+      "    select hash into claimed from stored_url_long_url where long_url_digest = new.long_url_digest;\n" +
+      "    execute format('select exists (select 1 from %s where hash = $1 and long_url = $2)', " +
+      "pg_partition_root(tg_relid))\n" +
+      "        into stored using claimed, new.long_url;\n" +
+      "    if stored then\n" +
+      "        return null;\n" +
+      "    end if;\n" +
+      "    -- claimed by an insert whose hash was taken, unless another insert took it over meanwhile\n" +
+      "    update stored_url_long_url set hash = new.hash\n" +
+      "        where long_url_digest = new.long_url_digest and hash = claimed;\n" +
+      "    if found then\n" +
+      "        return new;\n" +
+      "    end if;\n" +
+      "    return null;\n" +
+      "end;\n" +
+      "$$ language plpgsql";
+  private static final String RELEASE_LONG_URL_FUNCTION =
+      "create or replace function stored_url_release_long_url() returns trigger as $$\n" +
+      "begin\n" +
+      "    delete from stored_url_long_url where long_url_digest = old.long_url_digest and hash = old.hash;\n" +
+      "    return null;\n" +
+      "end;\n" +
+      "$$ language plpgsql";
+  // keeps the new table up to date with the old one while it is filled
+  private static final String COPY_WRITES_FUNCTION =
+      "create or replace function stored_url_copy_to_partitioned() returns trigger as $$\n" +
+      "begin\n" +
+      "    if tg_op = 'INSERT' then\n" +
+      "        insert into stored_url_partitioned (long_url, hash, created_at)\n" +
+      "            values (new.long_url, new.hash, new.created_at) on conflict do nothing;\n" +
+      "    else\n" +
+      "        delete from stored_url_partitioned where hash = old.hash;\n" +
+      "    end if;\n" +
+      "    return null;\n" +
+      "end;\n" +
+      "$$ language plpgsql";
+
+  // batches are walked in the order of the primary key of the old table, so each one is a short index range scan
+  private static final String NEXT_BATCH_END =
+      "select hash from stored_url where hash > ? order by hash offset " + (COPY_BATCH_SIZE - 1) + " limit 1";
+  private static final String COPY_BATCH =
+      "insert into stored_url_partitioned (long_url, hash, created_at) " +
+      "select long_url, hash, created_at from stored_url where hash > ? and hash <= ? on conflict do nothing";
+  private static final String COPY_REMAINING =
+      "insert into stored_url_partitioned (long_url, hash, created_at) " +
+      "select long_url, hash, created_at from stored_url where hash > ? on conflict do nothing";
+
+  @Override
+  public boolean canExecuteInTransaction() {
+    return false;
+  }
+
+  @Override
+  public void migrate(Context context) throws Exception {
+    var partitions = Integer.parseInt(context.getConfiguration().getPlaceholders()
+        .getOrDefault(PARTITIONS_PLACEHOLDER, String.valueOf(DEFAULT_PARTITIONS)));
+    if (partitions < 1) {
+      throw new IllegalArgumentException("stored_url needs at least one partition, not " + partitions);
+    }
+    var connection = context.getConnection();
+    connection.setAutoCommit(true);
+
+    if (isPartitioned(connection)) {
+      // a previous run failed right after the swap
+      execute(connection, "drop function if exists stored_url_copy_to_partitioned()");
+      log.info("stored_url is already partitioned");
+      return;
+    }
+
+    // waiting behind a long running transaction would block every query queued after the alter statements
+    execute(connection, "set lock_timeout = '5s'");
+    try {
+      partition(connection, partitions);
+    } finally {
+      // the connection goes back to Flyway, which may run other migrations with it
+      execute(connection, "reset lock_timeout");
+    }
+    log.info("stored_url is now hash partitioned in {} partitions, the previous table is kept as " +
+        "stored_url_unpartitioned", partitions);
+  }
+
+  private void partition(Connection connection, int partitions) throws SQLException {
+    execute(connection, "create table if not exists stored_url_long_url (" +
+        "long_url_digest bytea primary key, " +
+        "hash varchar(20) not null" +
+        ") partition by hash (long_url_digest)");
+    createPartitions(connection, "stored_url_long_url", "stored_url_long_url", partitions);
+    execute(connection, "create table if not exists stored_url_partitioned (" +
+        "long_url text not null, " +
+        "hash varchar(20) primary key, " +
+        "created_at timestamp with time zone not null default now(), " +
+        "long_url_digest bytea not null" +
+        ") partition by hash (hash)");
+    // named after the table they will be part of once swapped
+    createPartitions(connection, "stored_url_partitioned", "stored_url", partitions);
+    execute(connection, "create index if not exists stored_url_partitioned_created_at_idx " +
+        "on stored_url_partitioned (created_at)");
+    // for the lookups by url of the instances started before the swap, which don't go through the claims
+    execute(connection, "create index if not exists stored_url_partitioned_long_url_digest_idx " +
+        "on stored_url_partitioned (long_url_digest)");
+
+    execute(connection, CLAIM_LONG_URL_FUNCTION);
+    execute(connection, RELEASE_LONG_URL_FUNCTION);
+    execute(connection, "drop trigger if exists stored_url_claim_long_url on stored_url_partitioned");
+    execute(connection, "create trigger stored_url_claim_long_url before insert on stored_url_partitioned " +
+        "for each row execute function stored_url_claim_long_url()");
+    execute(connection, "drop trigger if exists stored_url_release_long_url on stored_url_partitioned");
+    execute(connection, "create trigger stored_url_release_long_url after delete on stored_url_partitioned " +
+        "for each row execute function stored_url_release_long_url()");
+
+    // installed before the copy, so that no row written meanwhile is missed
+    execute(connection, COPY_WRITES_FUNCTION);
+    execute(connection, "drop trigger if exists stored_url_copy_to_partitioned on stored_url");
+    execute(connection, "create trigger stored_url_copy_to_partitioned after insert or delete on stored_url " +
+        "for each row execute function stored_url_copy_to_partitioned()");
+
+    copyRows(connection);
+
+    // the swap only touches the catalog
+    connection.setAutoCommit(false);
+    try {
+      execute(connection, "drop trigger stored_url_copy_to_partitioned on stored_url");
+      execute(connection, "alter table stored_url rename to stored_url_unpartitioned");
+      execute(connection, "alter table stored_url_unpartitioned rename constraint stored_url_pkey " +
+          "to stored_url_unpartitioned_pkey");
+      execute(connection, "alter index stored_url_created_at_idx rename to stored_url_unpartitioned_created_at_idx");
+      execute(connection, "alter table stored_url_unpartitioned rename constraint stored_url_long_url_digest_key " +
+          "to stored_url_unpartitioned_long_url_digest_key");
+      execute(connection, "alter table stored_url_partitioned rename to stored_url");
+      execute(connection, "alter table stored_url rename constraint stored_url_partitioned_pkey to stored_url_pkey");
+      execute(connection, "alter index stored_url_partitioned_created_at_idx rename to stored_url_created_at_idx");
+      execute(connection, "alter index stored_url_partitioned_long_url_digest_idx " +
+          "rename to stored_url_long_url_digest_idx");
+      connection.commit();
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+    execute(connection, "drop function stored_url_copy_to_partitioned()");
+  }
+
+  private boolean isPartitioned(Connection connection) throws SQLException {
+    try (var statement = connection.createStatement();
+         var rs = statement.executeQuery("select relkind from pg_class where oid = to_regclass('stored_url')")) {
+      return rs.next() && rs.getString(1).equals("p");
+    }
+  }
+
+  private void createPartitions(Connection connection, String table, String prefix, int partitions)
+      throws SQLException {
+    for (var remainder = 0; remainder < partitions; remainder++) {
+      execute(connection, String.format("create table if not exists %s_p%d partition of %s " +
+          "for values with (modulus %d, remainder %d)", prefix, remainder, table, partitions, remainder));
+    }
+  }
+
+  private void copyRows(Connection connection) throws SQLException {
+    var total = 0L;
+    var batches = 0L;
+    var batchStart = "";
+    String batchEnd;
+    while ((batchEnd = nextBatchEnd(connection, batchStart)) != null) {
+      try (var statement = connection.prepareStatement(COPY_BATCH)) {
+        statement.setString(1, batchStart);
+        statement.setString(2, batchEnd);
+        total += statement.executeUpdate();
+      }
+      batchStart = batchEnd;
+      if (++batches % 100 == 0) {
+        log.info("Copied {} stored urls to the partitioned table so far", total);
+      }
+    }
+    // the last partial batch
+    try (var statement = connection.prepareStatement(COPY_REMAINING)) {
+      statement.setString(1, batchStart);
+      total += statement.executeUpdate();
+    }
+    log.info("Copied {} stored urls to the partitioned table", total);
+  }
+
+  private String nextBatchEnd(Connection connection, String batchStart) throws SQLException {
+    try (var statement = connection.prepareStatement(NEXT_BATCH_END)) {
+      statement.setString(1, batchStart);
+      try (var rs = statement.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    }
+  }
+
+  private static void execute(Connection connection, String sql) throws SQLException {
+    try (var statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+
+}
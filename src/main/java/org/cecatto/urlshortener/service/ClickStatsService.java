@@ -0,0 +1,20 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.dto.ClickStats;
+
+import java.util.Optional;
+
+public interface ClickStatsService {
+
+  /**
+   * Counts an access to the hash. Never blocks: the click is stored asynchronously, and dropped if too many are
+   * pending.
+   */
+  void recordClick(String hash);
+
+  /**
+   * @return the clicks stored for the hash so far (pending ones not included); empty if the hash is not stored
+   */
+  Optional<ClickStats> getStats(String hash);
+
+}
@@ -1,12 +1,23 @@
 package org.cecatto.urlshortener.service;
 
 import java.net.URI;
+import java.util.List;
 import java.util.Optional;
 
 public interface HashService {
 
   String hashUrl(URI longUrl);
 
-  Optional<URI> lookup(String hash);
+  /**
+   * Same as {@link #hashUrl(URI)} for many urls at once, storing them with as few database round trips as possible.
+   *
+   * @return the hashes, in the same order as the given urls
+   */
+  List<String> hashUrls(List<URI> longUrls);
+
+  /**
+   * @return the long url stored for the hash, as it was stored (i.e. a valid URI)
+   */
+  Optional<String> lookup(String hash);
 
 }
@@ -0,0 +1,24 @@
+package org.cecatto.urlshortener.service;
+
+/**
+ * Derives the short code (hash) under which a long url is stored.
+ */
+public interface ShortCodeGenerator {
+
+  /**
+   * @param longUrl the url to derive the code for
+   * @param attempt 0 for the first code of a url, then incremented every time the previous code was taken by another
+   *                url; each attempt must yield a different code
+   * @return a code matching {@link org.cecatto.urlshortener.controller.UrlShortenerController#HASH_REGEX}
+   */
+  String generate(String longUrl, int attempt);
+
+  /**
+   * @return whether the codes only depend on the url and the attempt, so every instance derives the same codes for the
+   * same url
+   */
+  default boolean isDerivedFromUrl() {
+    return true;
+  }
+
+}
@@ -0,0 +1,115 @@
+package org.cecatto.urlshortener.service.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bloom filter of short strings (the hashes), on a plain {@code long[]} bitset: 64 bits of overhead in total, so ~9.6
+ * bits per entry at a 1% false positive rate (~120MB for 100 million hashes).
+ * <p>
+ * Adding is lock-free (an atomic OR per bit) and safe to run concurrently with other adds and with lookups. The bits
+ * of an entry are derived from two 64-bit hashes of it, the i-th being {@code h1 + i * h2} (Kirsch and Mitzenmacher),
+ * mapped to the bitset with a multiply instead of a modulo.
+ */
+public class BloomFilter {
+
+  // a long[] is limited to 2^31 - 1 elements
+  private static final long MAX_BITS = (long) Integer.MAX_VALUE * Long.SIZE;
+  private static final int MAX_HASH_FUNCTIONS = 30;
+  private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  private final long[] words;
+  private final long numBits;
+  private final int numHashFunctions;
+
+  /**
+   * @param expectedInsertions number of entries at which the false positive rate is the given one (it grows beyond)
+   * @param falsePositiveRate  probability of an absent entry being reported as present, between 0 and 1 (exclusive)
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions < 1) {
+      throw new IllegalArgumentException("expectedInsertions must be positive");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1 (exclusive)");
+    }
+    var optimalBits = Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    var numWords = (long) Math.ceil(Math.min(optimalBits, MAX_BITS) / Long.SIZE);
+    this.words = new long[(int) Math.max(1, numWords)];
+    this.numBits = (long) words.length * Long.SIZE;
+    var optimalHashFunctions = (int) Math.round((double) numBits / expectedInsertions * Math.log(2));
+    this.numHashFunctions = Math.max(1, Math.min(MAX_HASH_FUNCTIONS, optimalHashFunctions));
+  }
+
+  public void put(CharSequence value) {
+    var h = hash(value);
+    var h1 = fmix64(h);
+    var h2 = fmix64(h ^ 0x9e3779b97f4a7c15L) | 1;
+    for (var i = 0; i < numHashFunctions; i++) {
+      var bit = Math.unsignedMultiplyHigh(h1 + i * h2, numBits);
+      LONGS.getAndBitwiseOr(words, (int) (bit >>> 6), 1L << bit);
+    }
+  }
+
+  /**
+   * @return false if the value was definitely never added, true if it probably was
+   */
+  public boolean mightContain(CharSequence value) {
+    var h = hash(value);
+    var h1 = fmix64(h);
+    var h2 = fmix64(h ^ 0x9e3779b97f4a7c15L) | 1;
+    for (var i = 0; i < numHashFunctions; i++) {
+      var bit = Math.unsignedMultiplyHigh(h1 + i * h2, numBits);
+      if (((long) LONGS.getAcquire(words, (int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long bitSize() {
+    return numBits;
+  }
+
+  public int hashFunctions() {
+    return numHashFunctions;
+  }
+
+  /**
+   * @return size of the bitset, in bytes
+   */
+  public long memoryBytes() {
+    return numBits / Byte.SIZE;
+  }
+
+  /**
+   * @return expected false positive rate of the current contents, from the share of set bits (scans the bitset)
+   */
+  public double expectedFalsePositiveRate() {
+    var setBits = 0L;
+    for (var i = 0; i < words.length; i++) {
+      setBits += Long.bitCount((long) LONGS.getOpaque(words, i));
+    }
+    return Math.pow((double) setBits / numBits, numHashFunctions);
+  }
+
+  // FNV-1a over the chars, good enough as a seed of fmix64 for the short ASCII hashes
+  private static long hash(CharSequence value) {
+    var h = 0xcbf29ce484222325L;
+    for (var i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb93fe1a85ec3L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
@@ -0,0 +1,115 @@
+package org.cecatto.urlshortener.service.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free ring of click events (hash and time), written by the request threads and drained by a single
+ * flusher.
+ * <p>
+ * Every slot has a sequence number telling whether it is free for the producer at a given position (sequence ==
+ * position) or holds the event of that position (sequence == position + 1), as in Vyukov's bounded queue. Producers
+ * claim positions with a CAS on the tail and never wait: when the ring is full, {@link #offer} fails and the caller
+ * decides what to do with the event.
+ */
+class ClickEventBuffer {
+
+  /**
+   * Receives the drained events.
+   */
+  interface Consumer {
+    void accept(String hash, long epochMillis);
+  }
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final String[] hashes;
+  private final long[] times;
+  private final AtomicLong tail = new AtomicLong();
+  // only read and written by the draining thread
+  private long head;
+
+  /**
+   * @param capacity maximum number of pending events, rounded up to a power of two
+   */
+  ClickEventBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+    }
+    var size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    this.hashes = new String[size];
+    this.times = new long[size];
+    for (var i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return false if the buffer is full, in which case the event is not added
+   */
+  boolean offer(String hash, long epochMillis) {
+    var position = tail.get();
+    while (true) {
+      var slot = (int) position & mask;
+      var sequence = sequences.getAcquire(slot);
+      if (sequence == position) {
+        if (tail.weakCompareAndSetVolatile(position, position + 1)) {
+          hashes[slot] = hash;
+          times[slot] = epochMillis;
+          sequences.setRelease(slot, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (sequence < position) {
+        // the slot still holds the event of the previous lap, not drained yet
+        return false;
+      } else {
+        // another producer took this position
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Hands the pending events to the consumer, in order, up to the given number. Must be called by one thread at a
+   * time.
+   *
+   * @return number of drained events
+   */
+  int drain(Consumer consumer, int maxEvents) {
+    var drained = 0;
+    while (drained < maxEvents) {
+      var slot = (int) head & mask;
+      if (sequences.getAcquire(slot) != head + 1) {
+        // empty, or the producer of this position has not finished writing it
+        break;
+      }
+      var hash = hashes[slot];
+      var time = times[slot];
+      hashes[slot] = null;
+      sequences.setRelease(slot, head + mask + 1);
+      head++;
+      drained++;
+      consumer.accept(hash, time);
+    }
+    return drained;
+  }
+
+  /**
+   * @return approximate number of pending events
+   */
+  int size() {
+    var size = tail.get() - head;
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+}
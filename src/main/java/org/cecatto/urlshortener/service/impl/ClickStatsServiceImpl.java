@@ -0,0 +1,177 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.dto.ClickStats;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
+import org.cecatto.urlshortener.service.ClickStatsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Clicks are pushed to a bounded in-memory buffer by the redirects, which never wait for the database, and written
+ * periodically by a background flusher: it aggregates the pending clicks per hash and adds them to the stored
+ * counters with one upsert per batch of hashes. If the buffer is full (the database is slow or down), clicks are
+ * dropped and counted instead of slowing down the redirects.
+ */
+@Component
+public class ClickStatsServiceImpl implements ClickStatsService {
+
+  private static final Logger log = LoggerFactory.getLogger(ClickStatsServiceImpl.class);
+
+  private final ClickStatsRepository clickStatsRepository;
+  private final boolean enabled;
+  private final Duration flushInterval;
+  private final int flushBatchSize;
+  private final ClickEventBuffer buffer;
+  // the buffer must be drained by one thread at a time
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private ScheduledExecutorService flusher;
+
+  private final Counter droppedBufferFull;
+  private final Counter droppedFlushFailed;
+  private final Counter flushedClicks;
+  private final Timer flushTimer;
+
+  @Autowired
+  public ClickStatsServiceImpl(ClickStatsRepository clickStatsRepository, UrlShortenerProperties properties,
+                               MeterRegistry meterRegistry) {
+    var config = properties.getClicks();
+    this.clickStatsRepository = clickStatsRepository;
+    this.enabled = config.isEnabled();
+    this.flushInterval = config.getFlushInterval();
+    this.flushBatchSize = config.getFlushBatchSize();
+    this.buffer = new ClickEventBuffer(config.getBufferSize());
+
+    this.droppedBufferFull = droppedClicks(meterRegistry, "buffer_full");
+    this.droppedFlushFailed = droppedClicks(meterRegistry, "flush_failed");
+    this.flushedClicks = Counter.builder("shortener.clicks.flushed")
+        .description("Clicks written to the database")
+        .register(meterRegistry);
+    this.flushTimer = Timer.builder("shortener.clicks.flush")
+        .description("Time to write the pending clicks to the database")
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofMillis(1))
+        .maximumExpectedValue(Duration.ofSeconds(10))
+        .register(meterRegistry);
+    Gauge.builder("shortener.clicks.pending", buffer, ClickEventBuffer::size)
+        .description("Clicks waiting in the buffer to be written")
+        .register(meterRegistry);
+  }
+
+  private static Counter droppedClicks(MeterRegistry meterRegistry, String reason) {
+    return Counter.builder("shortener.clicks.dropped")
+        .description("Clicks that were not counted")
+        .tag("reason", reason)
+        .register(meterRegistry);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "click-stats-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    var intervalMillis = flushInterval.toMillis();
+    flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    if (flusher == null) {
+      return;
+    }
+    flusher.shutdown();
+    if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+      log.warn("Click stats flusher did not finish in time");
+    }
+    // whatever was clicked since the last run
+    flush();
+  }
+
+  @Override
+  public void recordClick(String hash) {
+    if (enabled && !buffer.offer(hash, System.currentTimeMillis())) {
+      droppedBufferFull.increment();
+    }
+  }
+
+  @Override
+  public Optional<ClickStats> getStats(String hash) {
+    return clickStatsRepository.findByHash(hash);
+  }
+
+  /**
+   * Writes the pending clicks, at most the capacity of the buffer, so that a constant stream of clicks cannot keep
+   * the flusher in a single run.
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      // hash -> {clicks, last access}
+      var pending = new HashMap<String, long[]>();
+      buffer.drain((hash, epochMillis) -> {
+        var counts = pending.computeIfAbsent(hash, h -> new long[2]);
+        counts[0]++;
+        counts[1] = Math.max(counts[1], epochMillis);
+      }, buffer.capacity());
+      if (!pending.isEmpty()) {
+        flushTimer.record(() -> write(pending));
+      }
+    } catch (RuntimeException e) {
+      // the flusher must keep running, next runs may succeed
+      log.error("Unexpected error flushing click stats", e);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void write(HashMap<String, long[]> pending) {
+    // always locking the rows in the same order, so concurrent flushes of other instances cannot deadlock
+    var hashes = pending.keySet().toArray(new String[0]);
+    Arrays.sort(hashes);
+
+    for (var from = 0; from < hashes.length; from += flushBatchSize) {
+      var to = Math.min(from + flushBatchSize, hashes.length);
+      var batchHashes = Arrays.copyOfRange(hashes, from, to);
+      var clicks = new long[batchHashes.length];
+      var lastAccess = new long[batchHashes.length];
+      var total = 0L;
+      for (var i = 0; i < batchHashes.length; i++) {
+        var counts = pending.get(batchHashes[i]);
+        clicks[i] = counts[0];
+        lastAccess[i] = counts[1];
+        total += counts[0];
+      }
+
+      try {
+        clickStatsRepository.addClicks(batchHashes, clicks, lastAccess);
+        flushedClicks.increment(total);
+      } catch (RuntimeException e) {
+        log.warn("Could not write {} clicks of {} hashes, dropping them", total, batchHashes.length, e);
+        droppedFlushFailed.increment(total);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every stored url in memory, in a {@link CompactUrlMap}, so that the redirects are served without going to the cache
+ * or the store, at a few dozen bytes per url off heap.
+ * <p>
+ * The index is loaded in the background at startup, by streaming the stored urls, and misses every url until then.
+ * The prefixes of the urls are learned from the first ones loaded. The urls stored by this instance are added right
+ * away, and the ones stored by other instances when first looked up here (found by the store), so a url missing from
+ * the index is always looked up the usual way.
+ */
+@Component
+public class CompactUrlIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(CompactUrlIndex.class);
+
+  // urls loaded before learning the prefixes from them
+  private static final int PREFIX_SAMPLE_SIZE = 100_000;
+
+  private final UrlStore urlStore;
+  private final boolean enabled;
+  // null if disabled
+  private final CompactUrlMap urls;
+  private ExecutorService loader;
+
+  @Autowired
+  public CompactUrlIndex(UrlStore urlStore, UrlShortenerProperties properties, MeterRegistry meterRegistry) {
+    var config = properties.getCompactIndex();
+    this.urlStore = urlStore;
+    this.enabled = config.isEnabled();
+    this.urls = enabled
+        ? new CompactUrlMap(config.getExpectedSize(), Math.toIntExact(config.getSlabSize().toBytes()),
+            config.isPrefixCompression())
+        : null;
+
+    Gauge.builder("shortener.compact.index.size", this, CompactUrlIndex::size)
+        .description("Urls in the compact index of the stored urls")
+        .register(meterRegistry);
+    Gauge.builder("shortener.compact.index.memory", this, CompactUrlIndex::memoryBytes)
+        .description("Memory allocated (off heap) by the compact index of the stored urls")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    loader = Executors.newSingleThreadExecutor(runnable -> {
+      var thread = new Thread(runnable, "compact-url-index-loader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    loader.execute(() -> {
+      try {
+        load();
+      } catch (RuntimeException e) {
+        // the urls missing from the index are looked up the usual way
+        log.error("Could not load the compact index of the stored urls", e);
+      }
+    });
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (loader != null) {
+      loader.shutdownNow();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Adds every stored url.
+   */
+  public void load() {
+    if (!enabled) {
+      return;
+    }
+    var start = System.nanoTime();
+    var sample = new ArrayList<String[]>();
+    var sampled = new boolean[1];
+    urlStore.forEachUrl((hash, longUrl) -> {
+      if (sampled[0]) {
+        urls.put(hash, longUrl);
+        return;
+      }
+      sample.add(new String[]{hash, longUrl});
+      if (sample.size() == PREFIX_SAMPLE_SIZE) {
+        putSample(sample);
+        sampled[0] = true;
+      }
+    });
+    if (!sampled[0]) {
+      putSample(sample);
+    }
+    log.info("Loaded {} urls in the compact index in {} ms ({} MB, {} bytes per url, {} prefixes)", urls.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), urls.memoryBytes() >> 20,
+        urls.size() == 0 ? 0 : urls.memoryBytes() / urls.size(), urls.prefixCount());
+  }
+
+  private void putSample(List<String[]> sample) {
+    var longUrls = new ArrayList<String>(sample.size());
+    for (var url : sample) {
+      longUrls.add(url[1]);
+    }
+    urls.learnPrefixes(longUrls);
+    for (var url : sample) {
+      urls.put(url[0], url[1]);
+    }
+    sample.clear();
+  }
+
+  /**
+   * @return the url stored for the hash, or null if it is not indexed (which doesn't mean it wasn't stored)
+   */
+  public String get(String hash) {
+    return enabled ? urls.get(hash) : null;
+  }
+
+  /**
+   * Adds a stored url. The first url added for a hash is kept, so a url accepted by the write-behind is only added
+   * once written.
+   */
+  public void put(String hash, String longUrl) {
+    if (enabled) {
+      urls.put(hash, longUrl);
+    }
+  }
+
+  private double size() {
+    return enabled ? urls.size() : 0;
+  }
+
+  private double memoryBytes() {
+    return enabled ? urls.memoryBytes() : 0;
+  }
+
+}
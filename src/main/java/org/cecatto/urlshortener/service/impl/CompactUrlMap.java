@@ -0,0 +1,417 @@
+package org.cecatto.urlshortener.service.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map of short codes to long urls holding millions of entries in a fraction of the memory of a map of strings, where
+ * each entry costs two strings and their arrays, a node and a slot of the table, ~120 bytes plus the url. Here, the
+ * codes (up to 12 characters of [0-9a-z], which every generator produces by default) are packed in a {@code long},
+ * the key of an open addressing (linear probing) table of 16 bytes per slot, and the urls are appended as UTF-8 to
+ * large slabs, both in direct buffers, so the entries cost neither heap nor garbage collection work.
+ * <p>
+ * A url starting with one of the prefixes of the dictionary is stored without it, as the id of the prefix: the
+ * schemes with and without www by default, plus the scheme and host of the most common sites once
+ * {@link #learnPrefixes learned} from a sample of the urls. So the bytes of an entry are the slot, 1 byte for the
+ * prefix, 1 or 2 for the length and the rest of the url.
+ * <p>
+ * Only one thread puts at a time (puts are synchronized), while any number of threads get without locking: the url is
+ * written and the position of its slot set before the key is published with release semantics, which the gets read
+ * with acquire semantics. Growing builds a bigger table and swaps it in, so a get probing the previous one may miss
+ * an entry put meanwhile. Entries are never removed.
+ */
+public class CompactUrlMap {
+
+  /**
+   * Longest code that can be packed, as its characters are digits of base 37.
+   */
+  public static final int MAX_PACKED_LENGTH = 12;
+
+  static final double MAX_LOAD_FACTOR = 0.7;
+
+  private static final int RADIX = 37;
+  // the key of an empty slot, which no code packs to
+  private static final long EMPTY = 0;
+
+  private static final int SEGMENT_SHIFT = 16;
+  private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+  private static final int SLOT_BYTES = 16;
+  private static final int MIN_CAPACITY = 1 << 10;
+
+  // longest first, as the first one matching is used
+  private static final String[] DEFAULT_PREFIXES = {"https://www.", "http://www.", "https://", "http://"};
+  // ids are a byte, 0 being no prefix
+  private static final int MAX_PREFIXES = 255;
+  private static final byte[] NO_PREFIX = new byte[0];
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private final int slabSize;
+  private final boolean prefixCompression;
+
+  private volatile Table table;
+  // only grown (copied) by the thread putting
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+  // by id - 1, only appended to, so the ids of the stored urls stay valid; the gets read their UTF-8 bytes
+  private volatile String[] prefixes;
+  private volatile byte[][] prefixBytes;
+  // the following are only written by the thread putting
+  private final Map<String, Integer> prefixIds = new HashMap<>();
+  private volatile long size;
+  private volatile long usedSlabBytes;
+  private int slabOffset;
+
+  /**
+   * @param expectedSize      number of entries the table is sized for, it grows beyond
+   * @param slabSize          bytes of each slab holding the urls, which no url can exceed
+   * @param prefixCompression whether the urls are stored without their prefixes in the dictionary
+   */
+  public CompactUrlMap(long expectedSize, int slabSize, boolean prefixCompression) {
+    if (slabSize < 1024) {
+      throw new IllegalArgumentException("slabSize must be at least 1KB");
+    }
+    this.table = new Table(capacityFor(expectedSize));
+    this.slabSize = slabSize;
+    this.prefixCompression = prefixCompression;
+    this.prefixes = prefixCompression ? DEFAULT_PREFIXES.clone() : new String[0];
+    this.prefixBytes = new byte[prefixes.length][];
+    for (var i = 0; i < prefixes.length; i++) {
+      prefixIds.put(prefixes[i], i + 1);
+      prefixBytes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static long capacityFor(long size) {
+    return Math.max(MIN_CAPACITY, Long.highestOneBit((long) (size / MAX_LOAD_FACTOR)) << 1);
+  }
+
+  /**
+   * @return the code as a key of the table, or 0 if it can't be packed (too long, or other characters)
+   */
+  public static long pack(String code) {
+    var length = code.length();
+    if (length == 0 || length > MAX_PACKED_LENGTH) {
+      return EMPTY;
+    }
+    // bijective: every digit is at least 1, so codes of different lengths never share a key
+    var key = 0L;
+    for (var i = 0; i < length; i++) {
+      var c = code.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0' + 1;
+      } else if (c >= 'a' && c <= 'z') {
+        digit = c - 'a' + 11;
+      } else {
+        return EMPTY;
+      }
+      key = key * RADIX + digit;
+    }
+    return key;
+  }
+
+  /**
+   * @return the url of the code, or null if it is not in the map
+   */
+  public String get(String code) {
+    var key = pack(code);
+    if (key == EMPTY) {
+      return null;
+    }
+    var current = table;
+    for (var slot = current.home(key); ; slot = current.next(slot)) {
+      var slotKey = current.key(slot);
+      if (slotKey == key) {
+        return readUrl(current.position(slot));
+      }
+      if (slotKey == EMPTY) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Adds the url of the code, unless the code is already in the map, or can't be packed, or the url is longer than a
+   * slab.
+   *
+   * @return whether the url was added
+   */
+  public synchronized boolean put(String code, String longUrl) {
+    var key = pack(code);
+    if (key == EMPTY || contains(key)) {
+      return false;
+    }
+
+    var prefixId = prefixIdOf(longUrl);
+    var suffix = longUrl.substring(prefixId == 0 ? 0 : prefixes[prefixId - 1].length())
+        .getBytes(StandardCharsets.UTF_8);
+    var entryBytes = 1 + varIntBytes(suffix.length) + suffix.length;
+    if (entryBytes > slabSize) {
+      return false;
+    }
+    var position = append(prefixId, suffix, entryBytes);
+
+    var current = table;
+    if (size + 1 > current.capacity * MAX_LOAD_FACTOR) {
+      current = grow(current);
+    }
+    current.insert(key, position);
+    size++;
+    return true;
+  }
+
+  private boolean contains(long key) {
+    var current = table;
+    for (var slot = current.home(key); ; slot = current.next(slot)) {
+      var slotKey = current.key(slot);
+      if (slotKey == key) {
+        return true;
+      }
+      if (slotKey == EMPTY) {
+        return false;
+      }
+    }
+  }
+
+  private Table grow(Table current) {
+    var next = new Table(current.capacity << 1);
+    for (var slot = 0L; slot < current.capacity; slot++) {
+      var key = current.key(slot);
+      if (key != EMPTY) {
+        next.insert(key, current.position(slot));
+      }
+    }
+    table = next;
+    return next;
+  }
+
+  /**
+   * Adds the scheme and host of the urls of the sample that appear the most, more than once, to the dictionary of
+   * prefixes, as long as it has room (up to 255 prefixes). The urls already stored keep their prefixes.
+   *
+   * @return the number of prefixes added
+   */
+  public synchronized int learnPrefixes(Collection<String> sample) {
+    if (!prefixCompression) {
+      return 0;
+    }
+    var counts = new HashMap<String, Integer>();
+    for (var url : sample) {
+      var host = hostPrefix(url);
+      if (host != null && !prefixIds.containsKey(host)) {
+        counts.merge(host, 1, Integer::sum);
+      }
+    }
+    var learned = new ArrayList<Map.Entry<String, Integer>>();
+    for (var entry : counts.entrySet()) {
+      if (entry.getValue() > 1) {
+        learned.add(entry);
+      }
+    }
+    // the most bytes saved first
+    learned.sort((a, b) -> Long.compare((long) b.getValue() * b.getKey().length(),
+        (long) a.getValue() * a.getKey().length()));
+
+    var room = MAX_PREFIXES - prefixes.length;
+    var added = Math.min(room, learned.size());
+    var next = Arrays.copyOf(prefixes, prefixes.length + added);
+    var nextBytes = Arrays.copyOf(prefixBytes, prefixes.length + added);
+    for (var i = 0; i < added; i++) {
+      var prefix = learned.get(i).getKey();
+      next[prefixes.length + i] = prefix;
+      nextBytes[prefixes.length + i] = prefix.getBytes(StandardCharsets.UTF_8);
+      prefixIds.put(prefix, prefixes.length + i + 1);
+    }
+    prefixBytes = nextBytes;
+    prefixes = next;
+    return added;
+  }
+
+  /**
+   * @return the scheme and host of the url, up to the slash starting its path, or null if it has no path
+   */
+  private static String hostPrefix(String url) {
+    var scheme = url.indexOf("://");
+    if (scheme < 0) {
+      return null;
+    }
+    var path = url.indexOf('/', scheme + 3);
+    return path < 0 ? null : url.substring(0, path + 1);
+  }
+
+  /**
+   * @return the id of the longest prefix of the url in the dictionary, or 0 if none
+   */
+  private int prefixIdOf(String url) {
+    if (!prefixCompression) {
+      return 0;
+    }
+    var host = hostPrefix(url);
+    var id = host == null ? null : prefixIds.get(host);
+    if (id != null) {
+      return id;
+    }
+    for (var i = 0; i < DEFAULT_PREFIXES.length; i++) {
+      if (url.startsWith(DEFAULT_PREFIXES[i])) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Writes the entry to the current slab, or to a new one if it doesn't fit in what is left.
+   *
+   * @return the position of the entry, across the slabs
+   */
+  private long append(int prefixId, byte[] suffix, int entryBytes) {
+    var current = slabs;
+    if (current.length == 0 || slabOffset + entryBytes > slabSize) {
+      current = Arrays.copyOf(current, current.length + 1);
+      current[current.length - 1] = ByteBuffer.allocateDirect(slabSize);
+      slabs = current;
+      slabOffset = 0;
+    }
+    var slab = current[current.length - 1];
+    var offset = slabOffset;
+    slab.put(offset++, (byte) prefixId);
+    for (var length = suffix.length; ; length >>>= 7) {
+      if (length < 0x80) {
+        slab.put(offset++, (byte) length);
+        break;
+      }
+      slab.put(offset++, (byte) (length & 0x7f | 0x80));
+    }
+    slab.put(offset, suffix);
+    slabOffset += entryBytes;
+    usedSlabBytes += entryBytes;
+    return (long) (current.length - 1) * slabSize + slabOffset - entryBytes;
+  }
+
+  private static int varIntBytes(int value) {
+    var bytes = 1;
+    while (value >= 0x80) {
+      value >>>= 7;
+      bytes++;
+    }
+    return bytes;
+  }
+
+  private String readUrl(long position) {
+    var slab = slabs[(int) (position / slabSize)];
+    var offset = (int) (position % slabSize);
+    var prefixId = slab.get(offset++) & 0xff;
+    var length = 0;
+    for (var shift = 0; ; shift += 7) {
+      var b = slab.get(offset++);
+      length |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    // a single copy of the prefix and one of the rest, then the one of the string
+    var prefix = prefixId == 0 ? NO_PREFIX : prefixBytes[prefixId - 1];
+    var url = new byte[prefix.length + length];
+    System.arraycopy(prefix, 0, url, 0, prefix.length);
+    slab.get(offset, url, prefix.length, length);
+    return new String(url, StandardCharsets.UTF_8);
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return the bytes allocated by the table and the slabs
+   */
+  public long memoryBytes() {
+    return tableBytes() + (long) slabs.length * slabSize;
+  }
+
+  /**
+   * @return the bytes allocated by the table, up to 16 / {@link #MAX_LOAD_FACTOR} per url
+   */
+  public long tableBytes() {
+    return table.capacity * SLOT_BYTES;
+  }
+
+  /**
+   * @return the bytes of the slabs taken by the urls, without the room left in the last one
+   */
+  public long usedSlabBytes() {
+    return usedSlabBytes;
+  }
+
+  public int prefixCount() {
+    return prefixes.length;
+  }
+
+  private static final class Table {
+
+    private final ByteBuffer[] segments;
+    private final long capacity;
+    private final long mask;
+
+    private Table(long capacity) {
+      this.capacity = capacity;
+      this.mask = capacity - 1;
+      var slotsPerSegment = (int) Math.min(capacity, SEGMENT_SLOTS);
+      this.segments = new ByteBuffer[(int) (capacity / slotsPerSegment)];
+      for (var i = 0; i < segments.length; i++) {
+        segments[i] = ByteBuffer.allocateDirect(slotsPerSegment * SLOT_BYTES).order(ByteOrder.nativeOrder());
+      }
+    }
+
+    /**
+     * @return the first slot to probe for the key, mixing its bits as the packed codes of a length are not spread
+     * evenly over the low ones
+     */
+    private long home(long key) {
+      var h = key * 0x9e3779b97f4a7c15L;
+      return (h ^ h >>> 32) & mask;
+    }
+
+    private long next(long slot) {
+      return (slot + 1) & mask;
+    }
+
+    /**
+     * @return the key of the slot, or {@link #EMPTY}, to be read before the position
+     */
+    private long key(long slot) {
+      return (long) LONGS.getAcquire(segment(slot), offset(slot));
+    }
+
+    private long position(long slot) {
+      return (long) LONGS.get(segment(slot), offset(slot) + Long.BYTES);
+    }
+
+    private void insert(long key, long position) {
+      var slot = home(key);
+      while (key(slot) != EMPTY) {
+        slot = next(slot);
+      }
+      var segment = segment(slot);
+      var offset = offset(slot);
+      LONGS.set(segment, offset + Long.BYTES, position);
+      LONGS.setRelease(segment, offset, key);
+    }
+
+    private ByteBuffer segment(long slot) {
+      return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+      return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+    }
+  }
+
+}
@@ -0,0 +1,335 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of the urls accepted by the write-behind creates (see {@link WriteBehindCreates}), so that none
+ * is lost if the process or the machine stops before they are written to the store: every url is forced to disk before
+ * its create returns, and the journal is replayed at startup.
+ * <p>
+ * Concurrent appends share their fsyncs (a group commit): an append whose record was already forced by another one
+ * returns right away, and otherwise forces everything written so far, on behalf of the appends that queued up behind
+ * it. The journal is written in segments, each one deleted once it is full and all of its urls were written to the
+ * store.
+ * <p>
+ * Records are the length of what follows, its crc32c, then the hash (ascii) and the long url (utf-8), each after its
+ * length. A record that was being written when the process stopped is incomplete or fails its checksum, and ends the
+ * replay of its segment.
+ * <p>
+ * The directory is locked by the instance using it (see {@link #tryLock}), so it can't be shared between instances.
+ */
+final class CreateJournal implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(CreateJournal.class);
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String LOCK_FILE = "journal.lock";
+  // length and crc32c
+  private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+  private final Path directory;
+  private final long segmentSize;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  // separate from the write lock, so that records keep being written while a group of them is forced
+  private final ReentrantLock syncLock = new ReentrantLock();
+  // urls journaled and not written to the store yet
+  private final AtomicLong unwritten = new AtomicLong();
+  // bytes of the segments not deleted yet
+  private final AtomicLong size = new AtomicLong();
+
+  // only used under the write lock
+  private Segment current;
+  private long nextSegmentId;
+  private ByteBuffer scratch = ByteBuffer.allocate(1024);
+  private final CRC32C crc = new CRC32C();
+
+  /**
+   * Opens the journal in the given directory, after any segment left in it, which must have been replayed first.
+   */
+  CreateJournal(Path directory, long segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    try {
+      Files.createDirectories(directory);
+      nextSegmentId = segments(directory).stream().mapToLong(CreateJournal::idOf).max().orElse(-1) + 1;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the create journal " + directory, e);
+    }
+  }
+
+  /**
+   * Locks the directory for this process, creating it if needed. Another instance configured with the same directory
+   * would otherwise replay (and delete) the segments this one is still writing, and clash on the ids of new ones.
+   *
+   * @return the lock, released by closing its channel, or null if the directory is already locked
+   */
+  static FileLock tryLock(Path directory) {
+    try {
+      Files.createDirectories(directory);
+      var channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // already locked by this process
+        lock = null;
+      }
+      if (lock == null) {
+        channel.close();
+      }
+      return lock;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not lock the create journal " + directory, e);
+    }
+  }
+
+  /**
+   * Gives the urls of every segment in the directory to the writer, in the order they were journaled and in batches of
+   * up to the given size, deleting each segment once all of its urls were written.
+   *
+   * @return the number of urls replayed
+   */
+  static long replay(Path directory, int batchSize, Consumer<List<StoredUrl>> writer) {
+    if (!Files.isDirectory(directory)) {
+      return 0;
+    }
+    var replayed = 0L;
+    try {
+      for (var segment : segments(directory)) {
+        var storedUrls = read(segment);
+        for (var from = 0; from < storedUrls.size(); from += batchSize) {
+          writer.accept(storedUrls.subList(from, Math.min(from + batchSize, storedUrls.size())));
+        }
+        replayed += storedUrls.size();
+        Files.delete(segment);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not replay the create journal " + directory, e);
+    }
+    return replayed;
+  }
+
+  private static List<Path> segments(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long idOf(Path segment) {
+    var name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static List<StoredUrl> read(Path segment) throws IOException {
+    var storedUrls = new ArrayList<StoredUrl>();
+    var buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+    var crc = new CRC32C();
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      var length = buffer.getInt();
+      var checksum = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+      crc.reset();
+      crc.update(buffer.slice(buffer.position(), length));
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      var hash = new byte[buffer.getShort()];
+      buffer.get(hash);
+      var longUrl = new byte[buffer.getInt()];
+      buffer.get(longUrl);
+      storedUrls.add(new StoredUrl(new String(longUrl, StandardCharsets.UTF_8), new String(hash, StandardCharsets.US_ASCII)));
+    }
+    if (buffer.hasRemaining()) {
+      log.warn("Discarding the last {} bytes of {}, an incomplete record", buffer.remaining(), segment);
+    }
+    return storedUrls;
+  }
+
+  /**
+   * Writes the url to the journal and forces it to disk.
+   *
+   * @return the segment it was written to, to be given to {@link #written} once the url is in the store
+   */
+  Segment append(String hash, String longUrl) {
+    Segment segment;
+    long end;
+    writeLock.lock();
+    try {
+      var record = encode(hash, longUrl);
+      if (current == null || (current.written > 0 && current.written + record.remaining() > segmentSize)) {
+        roll();
+      }
+      segment = current;
+      var length = record.remaining();
+      while (record.hasRemaining()) {
+        segment.channel.write(record, segment.written + length - record.remaining());
+      }
+      segment.written += length;
+      end = segment.written;
+      segment.unwritten.incrementAndGet();
+      unwritten.incrementAndGet();
+      size.addAndGet(length);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write to the create journal " + directory, e);
+    } finally {
+      writeLock.unlock();
+    }
+    sync(segment, end);
+    return segment;
+  }
+
+  private ByteBuffer encode(String hash, String longUrl) {
+    var hashBytes = hash.getBytes(StandardCharsets.US_ASCII);
+    var longUrlBytes = longUrl.getBytes(StandardCharsets.UTF_8);
+    var length = Short.BYTES + hashBytes.length + Integer.BYTES + longUrlBytes.length;
+    if (scratch.capacity() < RECORD_HEADER_SIZE + length) {
+      scratch = ByteBuffer.allocate(Integer.highestOneBit(RECORD_HEADER_SIZE + length) << 1);
+    }
+    scratch.clear();
+    scratch.position(RECORD_HEADER_SIZE);
+    scratch.putShort((short) hashBytes.length).put(hashBytes).putInt(longUrlBytes.length).put(longUrlBytes);
+    crc.reset();
+    crc.update(scratch.slice(RECORD_HEADER_SIZE, length));
+    scratch.putInt(0, length).putInt(Integer.BYTES, (int) crc.getValue());
+    return scratch.flip();
+  }
+
+  /**
+   * Starts a new segment, after forcing the current one, which is deleted right away if all of its urls were written.
+   */
+  private void roll() throws IOException {
+    var previous = current;
+    if (previous != null) {
+      sync(previous, previous.written);
+      previous.full = true;
+      deleteIfWritten(previous);
+    }
+    var path = directory.resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+    current = new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    forceDirectory();
+  }
+
+  /**
+   * Forces the new segment into the directory, without which it may be missing after a crash of the machine.
+   */
+  private void forceDirectory() {
+    try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // not every platform can open directories (e.g. windows), nor needs to
+      log.debug("Could not force the create journal directory {}", directory, e);
+    }
+  }
+
+  private void sync(Segment segment, long end) {
+    if (segment.synced >= end) {
+      return;
+    }
+    syncLock.lock();
+    try {
+      // forced by the append that held the lock meanwhile
+      if (segment.synced >= end) {
+        return;
+      }
+      // everything written so far, including the records of the appends waiting for the lock
+      var written = segment.written;
+      segment.channel.force(false);
+      segment.synced = Math.max(segment.synced, written);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not force the create journal " + directory, e);
+    } finally {
+      syncLock.unlock();
+    }
+  }
+
+  /**
+   * Records that one of the urls of the segment was written to the store (or doesn't need to be).
+   */
+  void written(Segment segment) {
+    unwritten.decrementAndGet();
+    segment.unwritten.decrementAndGet();
+    deleteIfWritten(segment);
+  }
+
+  private void deleteIfWritten(Segment segment) {
+    if (!segment.full || segment.unwritten.get() > 0 || !segment.deleted.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      segment.channel.close();
+      Files.delete(segment.path);
+      size.addAndGet(-segment.written);
+    } catch (IOException e) {
+      // it only holds urls in the store already, so replaying it does no harm
+      log.warn("Could not delete the create journal segment {}", segment.path, e);
+    }
+  }
+
+  long unwritten() {
+    return unwritten.get();
+  }
+
+  long size() {
+    return size.get();
+  }
+
+  @Override
+  public void close() {
+    writeLock.lock();
+    try {
+      if (current != null) {
+        current.channel.close();
+      }
+    } catch (IOException e) {
+      log.warn("Could not close the create journal {}", directory, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  static final class Segment {
+
+    private final Path path;
+    private final FileChannel channel;
+    // only written under the write lock
+    private volatile long written;
+    // only written under the sync lock
+    private volatile long synced;
+    private volatile boolean full;
+    private final AtomicInteger unwritten = new AtomicInteger();
+    private final AtomicBoolean deleted = new AtomicBoolean();
+
+    private Segment(Path path, FileChannel channel) {
+      this.path = path;
+      this.channel = channel;
+    }
+
+  }
+
+}
@@ -1,86 +1,307 @@
 package org.cecatto.urlshortener.service.impl;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
 import org.cecatto.urlshortener.persistence.StoredUrl;
-import org.cecatto.urlshortener.persistence.UrlRepository;
+import org.cecatto.urlshortener.persistence.UrlStore;
 import org.cecatto.urlshortener.service.HashService;
-import org.postgresql.util.PSQLException;
-import org.postgresql.util.PSQLState;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
 import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class HashServiceImpl implements HashService {
 
   private static final Logger log = LoggerFactory.getLogger(HashServiceImpl.class);
 
-  private final UrlRepository urlRepository;
+  // every attempt uses a different hash, so this is only reached if something is very wrong
+  private static final int MAX_ATTEMPTS = 10;
+
+  private final UrlStore urlStore;
+  private final UrlLookupCache lookupCache;
+  private final KnownHashesFilter knownHashes;
+  private final CompactUrlIndex compactIndex;
+  private final WriteBehindCreates writeBehind;
+  private final StoredUrlBroadcast broadcast;
+  private final ShortCodeGenerator shortCodeGenerator;
+  // concurrent lookups of the same hash (e.g. a link going viral, before it is cached) and creates of the same url
+  // share a single call to the store, or null if disabled
+  private final SingleFlight<String, Optional<String>> lookupFlights;
+  private final SingleFlight<String, String> createFlights;
+
+  // all meters are registered upfront, so recording is just a few atomic updates
+  private final Timer createTimer;
+  private final Timer createBatchTimer;
+  private final Timer lookupFoundTimer;
+  private final Timer lookupNotFoundTimer;
+  private final Counter collisions;
+  private final DistributionSummary attempts;
 
   @Autowired
-  public HashServiceImpl(UrlRepository urlRepository) {
-    this.urlRepository = urlRepository;
+  public HashServiceImpl(UrlStore urlStore, UrlLookupCache lookupCache, KnownHashesFilter knownHashes,
+                         CompactUrlIndex compactIndex, WriteBehindCreates writeBehind, StoredUrlBroadcast broadcast,
+                         ShortCodeGenerator shortCodeGenerator, UrlShortenerProperties properties,
+                         MeterRegistry meterRegistry) {
+    if (writeBehind.isEnabled() && !shortCodeGenerator.isDerivedFromUrl()) {
+      // another instance would give the same url another code, which couldn't be stored once handed out
+      throw new IllegalStateException("url-shortener.write-behind needs codes derived from the urls (murmur3 or md5)");
+    }
+    if (writeBehind.isEnabled() && !properties.getBloomFilter().isEnabled()) {
+      // only the hashes the filter tells were never stored are written behind, without it every create would be
+      // written synchronously
+      throw new IllegalStateException("url-shortener.write-behind needs url-shortener.bloom-filter.enabled");
+    }
+    if (writeBehind.isEnabled() && !broadcast.isEnabled()) {
+      // the filter would only learn the hashes stored by other instances at its next refresh, so a hash handed out
+      // meanwhile could be taken by another url, and redirect to it
+      throw new IllegalStateException("url-shortener.write-behind needs url-shortener.notifications.enabled");
+    }
+    this.urlStore = urlStore;
+    this.lookupCache = lookupCache;
+    this.knownHashes = knownHashes;
+    this.compactIndex = compactIndex;
+    this.writeBehind = writeBehind;
+    this.broadcast = broadcast;
+    this.shortCodeGenerator = shortCodeGenerator;
+    if (properties.getCoalescing().isEnabled()) {
+      this.lookupFlights = new SingleFlight<>(coalescedCounter("lookup").register(meterRegistry));
+      this.createFlights = new SingleFlight<>(coalescedCounter("create").register(meterRegistry));
+    } else {
+      this.lookupFlights = null;
+      this.createFlights = null;
+    }
+
+    this.createTimer = latencyTimer("shortener.create", "Time to store a url and get its hash", "type", "single")
+        .register(meterRegistry);
+    this.createBatchTimer = latencyTimer("shortener.create", "Time to store a url and get its hash", "type", "batch")
+        .register(meterRegistry);
+    this.lookupFoundTimer = latencyTimer("shortener.lookup", "Time to find the url of a hash", "result", "found")
+        .register(meterRegistry);
+    this.lookupNotFoundTimer = latencyTimer("shortener.lookup", "Time to find the url of a hash", "result", "not_found")
+        .register(meterRegistry);
+    this.collisions = Counter.builder("shortener.create.collisions")
+        .description("Hashes that were already taken by another url when storing a url")
+        .register(meterRegistry);
+    this.attempts = DistributionSummary.builder("shortener.create.attempts")
+        .description("Attempts needed to store a url, i.e. 1 plus the depth of the retries after collisions")
+        .serviceLevelObjectives(1, 2, 3, 5, MAX_ATTEMPTS)
+        .register(meterRegistry);
+  }
+
+  private static Counter.Builder coalescedCounter(String operation) {
+    return Counter.builder("shortener.coalesced")
+        .description("Calls that got the result of a concurrent call for the same hash or url instead of their own")
+        .tag("operation", operation);
+  }
+
+  /**
+   * Timer publishing a histogram (from which percentiles are computed at query time, aggregating instances), with
+   * the buckets limited to the range of latencies expected from the service.
+   */
+  private static Timer.Builder latencyTimer(String name, String description, String... tags) {
+    return Timer.builder(name)
+        .description(description)
+        .tags(tags)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(10)))
+        .maximumExpectedValue(Duration.ofSeconds(10));
   }
 
   @Override
   public String hashUrl(URI longUrl) {
-    var uriToSave = longUrl;
+    var start = System.nanoTime();
+    var urlToSave = withDefaultScheme(longUrl).toString();
 
-    if (!StringUtils.hasText(longUrl.getScheme())) {
-      // default scheme to HTTP if nothing was provided
-      log.info("Provided URL is missing the scheme, using 'http://'");
-      uriToSave = URI.create("http://" + longUrl);
+    var hash = createFlights == null
+        ? createUrl(urlToSave)
+        : createFlights.execute(urlToSave, () -> createUrl(urlToSave));
+    createTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return hash;
+  }
+
+  @Override
+  public List<String> hashUrls(List<URI> longUrls) {
+    var start = System.nanoTime();
+    // all the distinct urls still to be stored, with the hash to be tried next
+    var pending = new LinkedHashMap<String, String>(longUrls.size() * 2);
+    var urlsToSave = new ArrayList<String>(longUrls.size());
+    for (var longUrl : longUrls) {
+      var urlToSave = withDefaultScheme(longUrl).toString();
+      urlsToSave.add(urlToSave);
+      if (!pending.containsKey(urlToSave)) {
+        pending.put(urlToSave, buildHash(urlToSave, 0));
+      }
+    }
+
+    var hashesByUrl = new HashMap<String, String>(pending.size() * 2);
+    for (var attempt = 0; !pending.isEmpty(); attempt++) {
+      if (attempt == MAX_ATTEMPTS) {
+        throw new IllegalStateException("Could not store " + pending.size() + " urls after " + attempt + " attempts");
+      }
+
+      var toInsert = new ArrayList<StoredUrl>(pending.size());
+      pending.forEach((url, hash) -> toInsert.add(new StoredUrl(url, hash)));
+      urlStore.insertAllIgnoringConflicts(toInsert);
+
+      // both the urls that were already there and the ones just inserted are found here
+      var storedHashes = urlStore.findHashesByLongUrls(pending.keySet());
+      hashesByUrl.putAll(storedHashes);
+      for (var i = 0; i < storedHashes.size(); i++) {
+        attempts.record(attempt + 1);
+      }
+
+      var nextAttempt = attempt + 1;
+      var conflicting = new LinkedHashMap<String, String>();
+      pending.forEach((url, hash) -> {
+        if (!storedHashes.containsKey(url)) {
+          log.warn("Conflicted hash {} for url {} when storing it in batch. Retrying...", hash, url);
+          collisions.increment();
+          conflicting.put(url, buildHash(url, nextAttempt));
+        }
+      });
+      pending = conflicting;
     }
 
-    var hash = buildHash(uriToSave);
+    log.info("Stored batch of {} urls", hashesByUrl.size());
+    hashesByUrl.forEach((url, hash) -> {
+      knownHashes.add(hash);
+      compactIndex.put(hash, url);
+      lookupCache.putUrl(hash, url);
+      broadcast.send(hash, url);
+    });
 
-    return storeUrl(uriToSave, hash);
+    var hashes = new ArrayList<String>(urlsToSave.size());
+    for (var urlToSave : urlsToSave) {
+      hashes.add(hashesByUrl.get(urlToSave));
+    }
+    createBatchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return hashes;
   }
 
   @Override
-  public Optional<URI> lookup(String hash) {
-    var maybeUrl = urlRepository.findByHash(hash);
-    return maybeUrl.map(storedUrl -> URI.create(storedUrl.getLongUrl()));
+  public Optional<String> lookup(String hash) {
+    var start = System.nanoTime();
+    var maybeUrl = findUrl(hash);
+    var timer = maybeUrl.isPresent() ? lookupFoundTimer : lookupNotFoundTimer;
+    timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return maybeUrl;
   }
 
-  private String buildHash(URI longUrl) {
-    return buildHash(longUrl, "");
+  private Optional<String> findUrl(String hash) {
+    var indexedUrl = compactIndex.get(hash);
+    if (indexedUrl != null) {
+      return Optional.of(indexedUrl);
+    }
+    var cachedUrl = lookupCache.getUrl(hash);
+    if (cachedUrl != null) {
+      return Optional.of(cachedUrl);
+    }
+    var pendingUrl = writeBehind.pendingUrl(hash);
+    if (pendingUrl != null) {
+      return Optional.of(pendingUrl);
+    }
+    if (!knownHashes.mightContain(hash) || lookupCache.isKnownMissing(hash)) {
+      return Optional.empty();
+    }
+
+    return lookupFlights == null ? loadUrl(hash) : lookupFlights.execute(hash, () -> loadUrl(hash));
   }
 
-  private String buildHash(URI longUrl, String salt) {
-    return UUID.nameUUIDFromBytes((salt + longUrl.toString()).getBytes()).toString().substring(0, 8);
+  private Optional<String> loadUrl(String hash) {
+    if (lookupFlights != null) {
+      // a call for the same hash may have just finished, after this one missed the cache
+      var cachedUrl = lookupCache.getUrl(hash);
+      if (cachedUrl != null) {
+        return Optional.of(cachedUrl);
+      }
+    }
+    var maybeUrl = urlStore.findLongUrlByHash(hash);
+    maybeUrl.ifPresentOrElse(url -> {
+      // e.g. stored by another instance
+      compactIndex.put(hash, url);
+      lookupCache.putUrl(hash, url);
+    }, () -> lookupCache.putMissing(hash));
+    return maybeUrl;
   }
 
-  private String storeUrl(URI longUrl, String hash) {
-    try {
-      var storedUrl = urlRepository.save(new StoredUrl(longUrl.toString(), hash));
-      log.info("Stored " + storedUrl);
-      return storedUrl.getHash();
-    } catch (DataIntegrityViolationException e) {
-      if (e.getRootCause() instanceof PSQLException) {
-        var psqlException = (PSQLException) e.getRootCause();
-        if (PSQLState.UNIQUE_VIOLATION.getState().equals(psqlException.getSQLState())) {
-          var maybeUrl = lookup(hash);
-          if (maybeUrl.isPresent()) {
-            var existingUrl = maybeUrl.get();
-            if (existingUrl.equals(longUrl)) {
-              // it means the url was already added to the database in the meantime, nothing to do
-              return hash;
-            } else {
-              log.warn("Conflicted hash {} for url {} when storing it, found url {}. Retrying...", hash, longUrl, existingUrl);
-              // retry with a salted hash (using the previous hash as salt)
-              return storeUrl(longUrl, buildHash(longUrl, hash));
-            }
-          }
-        }
+  private URI withDefaultScheme(URI longUrl) {
+    if (!StringUtils.hasText(longUrl.getScheme())) {
+      // default scheme to HTTP if nothing was provided
+      log.info("Provided URL is missing the scheme, using 'http://'");
+      return URI.create("http://" + longUrl);
+    }
+    return longUrl;
+  }
+
+  private String buildHash(String longUrl, int attempt) {
+    return shortCodeGenerator.generate(longUrl, attempt);
+  }
+
+  /**
+   * Hands the url to the write-behind if enabled and its first hash can't be taken by another url (it was never stored),
+   * or else stores it right away.
+   */
+  private String createUrl(String urlToSave) {
+    if (writeBehind.isEnabled()) {
+      var hash = buildHash(urlToSave, 0);
+      if (knownHashes.wasNeverStored(hash) && writeBehind.accept(hash, urlToSave)) {
+        attempts.record(1);
+        knownHashes.add(hash);
+        // indexed once written, the hash may turn out to be taken
+        lookupCache.putUrl(hash, urlToSave);
+        return hash;
       }
-      throw e;
     }
+    return storeUrl(urlToSave);
+  }
+
+  private String storeUrl(String urlToSave) {
+    for (var attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      var hashToSave = buildHash(urlToSave, attempt);
+      // accepted by the write-behind but not stored yet, so the store can't tell
+      var pendingUrl = writeBehind.pendingUrl(hashToSave);
+      if (urlToSave.equals(pendingUrl)) {
+        attempts.record(attempt + 1);
+        return hashToSave;
+      }
+      if (pendingUrl != null) {
+        log.warn("Conflicted hash {} for url {} with a url not stored yet. Retrying...", hashToSave, urlToSave);
+        collisions.increment();
+        continue;
+      }
+      // if nothing comes back, the url may have been stored concurrently, which a new statement is able to see
+      var storedHash = urlStore.insertIfAbsent(new StoredUrl(urlToSave, hashToSave))
+          .or(() -> urlStore.findHashByLongUrl(urlToSave));
+
+      if (storedHash.isPresent()) {
+        attempts.record(attempt + 1);
+        log.info("Stored {} - {}", urlToSave, storedHash.get());
+        knownHashes.add(storedHash.get());
+        compactIndex.put(storedHash.get(), urlToSave);
+        lookupCache.putUrl(storedHash.get(), urlToSave);
+        broadcast.send(storedHash.get(), urlToSave);
+        return storedHash.get();
+      }
+
+      log.warn("Conflicted hash {} for url {} when storing it. Retrying...", hashToSave, urlToSave);
+      collisions.increment();
+    }
+
+    throw new IllegalStateException("Could not store " + urlToSave + " after " + MAX_ATTEMPTS + " attempts");
   }
 }
@@ -0,0 +1,82 @@
+package org.cecatto.urlshortener.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * File with the hottest urls of the lookup cache, by hash: a header with the number of urls, followed by the hash and
+ * the long url of each one (as length-prefixed utf-8), the hottest first.
+ */
+final class HotUrlsSnapshot {
+
+  // "HOTU"
+  private static final int MAGIC = 0x484f5455;
+  private static final int VERSION = 1;
+  // far longer than any url, a bigger length means the file is corrupted
+  private static final int MAX_STRING_BYTES = 1 << 20;
+
+  private HotUrlsSnapshot() {
+  }
+
+  /**
+   * Replaces the file atomically, so a crash while writing it leaves the previous one.
+   */
+  static void write(Path path, Map<String, String> urlsByHash) throws IOException {
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(urlsByHash.size());
+      for (var entry : urlsByHash.entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Passes up to limit urls of the file to the consumer, as hash and long url, the hottest first.
+   */
+  static void read(Path path, int limit, BiConsumer<String, String> consumer) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(path + " is not a snapshot of version " + VERSION);
+      }
+      var count = Math.min(in.readInt(), limit);
+      for (var i = 0; i < count; i++) {
+        var hash = readString(in);
+        consumer.accept(hash, readString(in));
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    var length = in.readInt();
+    if (length < 0 || length > MAX_STRING_BYTES) {
+      throw new IOException("Corrupted snapshot, found a string of " + length + " bytes");
+    }
+    var bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,191 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BloomFilter} of every stored hash, so that lookups of hashes that were never stored (scanners, typos) can be
+ * answered without querying the database.
+ * <p>
+ * The filter is loaded in the background at startup, by streaming the stored hashes, and every hash is reported as
+ * possibly present until then. Hashes stored by this instance are added right away, and the ones stored by other
+ * instances every refresh interval (the filter may then miss them for that long). The filter is rebuilt periodically,
+ * sized after the number of stored hashes, so the false positive rate doesn't grow with them; two filters are in memory
+ * while rebuilding.
+ */
+@Component
+public class KnownHashesFilter {
+
+  private static final Logger log = LoggerFactory.getLogger(KnownHashesFilter.class);
+
+  // room for the hashes stored until the next rebuild
+  private static final double GROWTH_HEADROOM = 1.5;
+
+  private final UrlStore urlStore;
+  private final boolean enabled;
+  private final long expectedInsertions;
+  private final double falsePositiveRate;
+  private final Duration rebuildInterval;
+  private final Duration refreshInterval;
+  private final Duration refreshOverlap;
+  private final Counter rejections;
+
+  // null until the first load finishes
+  private volatile BloomFilter filter;
+  // the filter being loaded, which also gets the hashes added meanwhile
+  private volatile BloomFilter loading;
+  // only written by the refreshes (and the first load)
+  private volatile OffsetDateTime refreshedUntil;
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public KnownHashesFilter(UrlStore urlStore, UrlShortenerProperties properties, MeterRegistry meterRegistry) {
+    var config = properties.getBloomFilter();
+    this.urlStore = urlStore;
+    this.enabled = config.isEnabled();
+    this.expectedInsertions = config.getExpectedInsertions();
+    this.falsePositiveRate = config.getFalsePositiveRate();
+    this.rebuildInterval = config.getRebuildInterval();
+    this.refreshInterval = config.getRefreshInterval();
+    this.refreshOverlap = config.getRefreshOverlap();
+
+    this.rejections = Counter.builder("shortener.bloom.filter.rejections")
+        .description("Lookups of hashes that were never stored, answered without querying the database")
+        .register(meterRegistry);
+    Gauge.builder("shortener.bloom.filter.memory", this, KnownHashesFilter::memoryBytes)
+        .description("Memory used by the filters of known hashes, two of them while rebuilding")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    var threads = new AtomicInteger();
+    // a rebuild can take minutes, during which the refreshes must keep going
+    scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+      var thread = new Thread(runnable, "known-hashes-filter-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> runLogging(this::rebuild, "rebuild"),
+        0, rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(() -> runLogging(this::refresh, "refresh"),
+        refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static void runLogging(Runnable task, String name) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      // the next runs may succeed, until then the filter keeps its previous contents
+      log.error("Could not {} the filter of known hashes", name, e);
+    }
+  }
+
+  /**
+   * @return false if the hash was definitely never stored, true if it may have been (or the filter is not loaded)
+   */
+  public boolean mightContain(String hash) {
+    var current = filter;
+    if (current == null || current.mightContain(hash)) {
+      return true;
+    }
+    rejections.increment();
+    return false;
+  }
+
+  /**
+   * Unlike {@link #mightContain}, for the creates: not counted as a rejected lookup.
+   *
+   * @return true if the hash was definitely never stored, false if it may have been (or the filter is not loaded)
+   */
+  public boolean wasNeverStored(String hash) {
+    var current = filter;
+    return current != null && !current.mightContain(hash);
+  }
+
+  public void add(String hash) {
+    // in this order, so that a hash is never missing from a filter being swapped in: it was either read by the load,
+    // or added to it
+    var next = loading;
+    var current = filter;
+    if (next != null) {
+      next.put(hash);
+    }
+    if (current != null && current != next) {
+      current.put(hash);
+    }
+  }
+
+  /**
+   * Loads a new filter with every stored hash and swaps it in.
+   */
+  public void rebuild() {
+    var start = System.nanoTime();
+    var next = new BloomFilter(Math.max(expectedInsertions, (long) (urlStore.estimateCount() * GROWTH_HEADROOM)),
+        falsePositiveRate);
+    loading = next;
+    if (refreshedUntil == null) {
+      // the load sees everything committed before it starts, the refreshes the rest
+      refreshedUntil = OffsetDateTime.now();
+    }
+    try {
+      var count = new long[1];
+      urlStore.forEachHash(hash -> {
+        next.put(hash);
+        count[0]++;
+      });
+      filter = next;
+      log.info("Loaded {} known hashes in {} ms ({} MB, {} hash functions)", count[0],
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), next.memoryBytes() >> 20, next.hashFunctions());
+    } finally {
+      loading = null;
+    }
+  }
+
+  /**
+   * Adds the hashes stored recently, possibly by other instances.
+   */
+  public void refresh() {
+    var since = refreshedUntil;
+    if (since == null) {
+      return;
+    }
+    var now = OffsetDateTime.now();
+    urlStore.forEachHashCreatedSince(since.minus(refreshOverlap), this::add);
+    refreshedUntil = now;
+  }
+
+  private double memoryBytes() {
+    var current = filter;
+    var next = loading;
+    return (current == null ? 0 : current.memoryBytes()) + (next == null || next == current ? 0 : next.memoryBytes());
+  }
+
+}
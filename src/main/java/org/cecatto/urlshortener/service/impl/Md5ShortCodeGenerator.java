@@ -0,0 +1,27 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The original generator: the first 8 characters of the name-based (MD5) UUID of the url, salted with the previous
+ * code on every new attempt. Kept for compatibility, {@link Murmur3ShortCodeGenerator} is cheaper and collides less.
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.hash.generator", havingValue = "md5")
+public class Md5ShortCodeGenerator implements ShortCodeGenerator {
+
+  @Override
+  public String generate(String longUrl, int attempt) {
+    var code = "";
+    for (var i = 0; i <= attempt; i++) {
+      code = UUID.nameUUIDFromBytes((code + longUrl).getBytes(StandardCharsets.UTF_8)).toString().substring(0, 8);
+    }
+    return code;
+  }
+
+}
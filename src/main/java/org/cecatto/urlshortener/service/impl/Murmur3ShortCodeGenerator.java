@@ -0,0 +1,189 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes the UTF-8 bytes of the url with the 128-bit MurmurHash3 (x64 variant, seeded with the attempt) and encodes
+ * it in base 36 ([0-9a-z]), which gives ~41 bits for the default 8 characters instead of the 32 bits of 8 hex
+ * characters. The UTF-8 bytes are hashed as they are encoded, a block at a time in local variables, so nothing is
+ * allocated besides the returned code (and the bytes it is built from) and nothing is kept per thread, which would be
+ * lost with a thread per request (url-shortener.execution.mode=virtual-threads).
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.hash.generator", havingValue = "murmur3", matchIfMissing = true)
+public class Murmur3ShortCodeGenerator implements ShortCodeGenerator {
+
+  // the bounds accepted by UrlShortenerController.HASH_REGEX
+  public static final int MIN_LENGTH = 8;
+  public static final int MAX_LENGTH = 20;
+
+  private static final byte[] ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.ISO_8859_1);
+  // base 36 digits that fit in 63 bits
+  private static final int DIGITS_PER_LONG = 12;
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final int length;
+
+  @Autowired
+  public Murmur3ShortCodeGenerator(UrlShortenerProperties properties) {
+    this(properties.getHash().getLength());
+  }
+
+  public Murmur3ShortCodeGenerator(int length) {
+    if (length < MIN_LENGTH || length > MAX_LENGTH) {
+      throw new IllegalArgumentException("Short code length must be between " + MIN_LENGTH + " and " + MAX_LENGTH);
+    }
+    this.length = length;
+  }
+
+  @Override
+  public String generate(String longUrl, int attempt) {
+    var seed = attempt & 0xffffffffL;
+    var h1 = seed;
+    var h2 = seed;
+    // the block of 16 bytes being filled, as two little-endian longs
+    var k1 = 0L;
+    var k2 = 0L;
+    var numBytes = 0;
+
+    var len = longUrl.length();
+    var i = 0;
+    while (i < len) {
+      // the next UTF-8 bytes, the first one lowest, as s.getBytes(UTF_8) would give them: 8 ascii chars at once if
+      // they are, otherwise those of a single char (or surrogate pair)
+      long bytes;
+      int numEncoded;
+      if ((numBytes & 7) == 0 && i + 8 <= len && (bytes = asciiBytes(longUrl, i)) >= 0) {
+        numEncoded = 8;
+        i += 8;
+      } else {
+        var c = longUrl.charAt(i++);
+        if (c < 0x80) {
+          bytes = c;
+          numEncoded = 1;
+        } else if (c < 0x800) {
+          bytes = (0xc0 | (c >> 6)) | (0x80 | (c & 0x3f)) << 8;
+          numEncoded = 2;
+        } else if (Character.isSurrogate(c)) {
+          if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(longUrl.charAt(i))) {
+            var codePoint = Character.toCodePoint(c, longUrl.charAt(i++));
+            bytes = (0xf0 | (codePoint >> 18)) | (0x80 | ((codePoint >> 12) & 0x3f)) << 8
+                | (0x80 | ((codePoint >> 6) & 0x3f)) << 16 | (long) (0x80 | (codePoint & 0x3f)) << 24;
+            numEncoded = 4;
+          } else {
+            // unpaired surrogates are replaced, like the JDK encoder does
+            bytes = '?';
+            numEncoded = 1;
+          }
+        } else {
+          bytes = (0xe0 | (c >> 12)) | (0x80 | ((c >> 6) & 0x3f)) << 8 | (0x80 | (c & 0x3f)) << 16;
+          numEncoded = 3;
+        }
+      }
+
+      // appended to the block, spilling over into the next one
+      var pos = numBytes & 15;
+      numBytes += numEncoded;
+      if (pos < 8) {
+        k1 |= bytes << (pos << 3);
+        if (pos + numEncoded > 8) {
+          k2 = bytes >>> ((8 - pos) << 3);
+        }
+      } else {
+        k2 |= bytes << ((pos - 8) << 3);
+      }
+      if (pos + numEncoded >= 16) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+        k1 = pos + numEncoded > 16 ? bytes >>> ((16 - pos) << 3) : 0;
+        k2 = 0;
+      }
+    }
+
+    // the tail, of less than a block
+    var tail = numBytes & 15;
+    if (tail > 8) {
+      h2 ^= mixK2(k2);
+    }
+    if (tail > 0) {
+      h1 ^= mixK1(k1);
+    }
+
+    h1 ^= numBytes;
+    h2 ^= numBytes;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    return encode(h1, h2);
+  }
+
+  private String encode(long h1, long h2) {
+    var code = new byte[length];
+    var bits = h1 & Long.MAX_VALUE;
+    for (var i = 0; i < length; i++) {
+      if (i == DIGITS_PER_LONG) {
+        bits = h2 & Long.MAX_VALUE;
+      }
+      code[i] = ALPHABET[(int) (bits % ALPHABET.length)];
+      bits /= ALPHABET.length;
+    }
+    return new String(code, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @return the 8 chars from the given index as bytes, the first one lowest, or -1 if any of them is not ascii
+   */
+  private static long asciiBytes(String s, int from) {
+    var bytes = 0L;
+    var bits = 0;
+    for (var i = 0; i < 8; i++) {
+      var c = s.charAt(from + i);
+      bits |= c;
+      bytes |= (long) c << (i << 3);
+    }
+    return bits < 0x80 ? bytes : -1;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
@@ -0,0 +1,164 @@
+package org.cecatto.urlshortener.service.impl;
+
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.IdBlock;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Hands out codes for numeric ids taken from blocks reserved in the database sequence, so codes never collide with
+ * each other, not even across instances, and a create is a single insert. The ids are scrambled with a keyed Feistel
+ * permutation over [0, 36^length) before being encoded in base 36, so consecutive ids give unrelated codes.
+ * <p>
+ * The url and the attempt are ignored: a retry just takes the next id, which only happens if the code was already
+ * taken by a url stored with another generator.
+ */
+@Component
+@ConditionalOnProperty(name = "url-shortener.hash.generator", havingValue = "sequence")
+public class SequenceShortCodeGenerator implements ShortCodeGenerator {
+
+  private static final Logger log = LoggerFactory.getLogger(SequenceShortCodeGenerator.class);
+
+  public static final int MIN_LENGTH = Murmur3ShortCodeGenerator.MIN_LENGTH;
+  // 36^12 is the largest code space that fits in a long
+  public static final int MAX_LENGTH = 12;
+
+  private static final char[] ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+  private static final int ROUNDS = 4;
+
+  private final Supplier<IdBlock> idBlocks;
+  private final int length;
+  // number of distinct codes, ids must be below it
+  private final long space;
+  private final int halfBits;
+  private final long halfMask;
+  private final long[] roundKeys = new long[ROUNDS];
+  // not synchronized, which would pin a virtual thread to its carrier while reserving a block from the database
+  private final ReentrantLock refillLock = new ReentrantLock();
+
+  private volatile Block block = new Block(new IdBlock(0, 0));
+
+  @Autowired
+  public SequenceShortCodeGenerator(UrlStore urlStore, UrlShortenerProperties properties) {
+    this(urlStore::allocateIdBlock, properties.getHash().getLength(), properties.getHash().getSequenceKey());
+  }
+
+  public SequenceShortCodeGenerator(Supplier<IdBlock> idBlocks, int length, long key) {
+    if (length < MIN_LENGTH || length > MAX_LENGTH) {
+      throw new IllegalArgumentException("Short code length must be between " + MIN_LENGTH + " and " + MAX_LENGTH);
+    }
+    this.idBlocks = idBlocks;
+    this.length = length;
+
+    var space = 1L;
+    for (var i = 0; i < length; i++) {
+      space *= ALPHABET.length;
+    }
+    this.space = space;
+    // the permutation works on an even number of bits covering the whole space, see scramble
+    var bits = 64 - Long.numberOfLeadingZeros(space - 1);
+    this.halfBits = (bits + 1) / 2;
+    this.halfMask = (1L << halfBits) - 1;
+    for (var i = 0; i < ROUNDS; i++) {
+      roundKeys[i] = fmix64(key + (i + 1) * 0x9e3779b97f4a7c15L);
+    }
+  }
+
+  @Override
+  public boolean isDerivedFromUrl() {
+    return false;
+  }
+
+  @Override
+  public String generate(String longUrl, int attempt) {
+    return encode(scramble(nextId()));
+  }
+
+  private long nextId() {
+    while (true) {
+      var current = block;
+      var id = current.next.getAndIncrement();
+      if (id < current.end) {
+        return id;
+      }
+      refillLock.lock();
+      try {
+        // only the first thread to find the block exhausted reserves a new one
+        if (block == current) {
+          var idBlock = idBlocks.get();
+          log.info("Reserved ids {} for short codes", idBlock);
+          block = new Block(idBlock);
+        }
+      } finally {
+        refillLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Bijection of [0, space): a balanced Feistel network is a permutation of [0, 2^(2 * halfBits)), and applying it
+   * again while the result falls outside the space (cycle walking) restricts it to the space. Since 2 * halfBits is at
+   * most 2 bits more than needed, it takes fewer than 4 trips on average.
+   */
+  private long scramble(long id) {
+    if (id < 0 || id >= space) {
+      throw new IllegalStateException("Id " + id + " is out of the short code space of length " + length);
+    }
+    var x = id;
+    do {
+      x = feistel(x);
+    } while (Long.compareUnsigned(x, space) >= 0);
+    return x;
+  }
+
+  private long feistel(long x) {
+    var left = (x >>> halfBits) & halfMask;
+    var right = x & halfMask;
+    for (var roundKey : roundKeys) {
+      var newRight = left ^ (fmix64(right ^ roundKey) & halfMask);
+      left = right;
+      right = newRight;
+    }
+    return (left << halfBits) | right;
+  }
+
+  private String encode(long value) {
+    var code = new char[length];
+    for (var i = 0; i < length; i++) {
+      code[i] = ALPHABET[(int) (value % ALPHABET.length)];
+      value /= ALPHABET.length;
+    }
+    return new String(code);
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static class Block {
+
+    private final AtomicLong next;
+    private final long end;
+
+    private Block(IdBlock idBlock) {
+      this.next = new AtomicLong(idBlock.getStart());
+      this.end = idBlock.getEnd();
+    }
+
+  }
+
+}
@@ -0,0 +1,62 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the call, and the ones arriving while it is in
+ * flight wait for it and get the same result (or exception) instead of running their own. Once the call is done, the
+ * next caller runs a new one.
+ * <p>
+ * The calls in flight are kept in a {@link ConcurrentHashMap}, which locks a single bin per update, so callers of
+ * unrelated keys don't contend with each other.
+ */
+final class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final Counter coalesced;
+
+  SingleFlight(Counter coalesced) {
+    this.coalesced = coalesced;
+  }
+
+  V execute(K key, Supplier<V> call) {
+    var flight = new CompletableFuture<V>();
+    var existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalesced.increment();
+      return await(existing);
+    }
+
+    try {
+      var result = call.get();
+      flight.complete(result);
+      return result;
+    } catch (RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> flight) {
+    try {
+      return flight.join();
+    } catch (CompletionException e) {
+      // the exception thrown by the call, as the caller that ran it got it
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof Error cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+}
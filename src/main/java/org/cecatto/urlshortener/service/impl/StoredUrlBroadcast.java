@@ -0,0 +1,256 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.PostgresUrlNotifications;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the in-memory lookup structures of the instances coherent (url-shortener.notifications): every instance
+ * sends the urls it stores to the others through {@link PostgresUrlNotifications}, and adds the ones stored by the
+ * others to its filter of known hashes, compact index and lookup cache as they arrive, dropping any miss remembered
+ * for them. So a url created on an instance is found by the others within milliseconds, instead of being answered
+ * with 404 until their filter is refreshed and their remembered miss expires.
+ * <p>
+ * The urls are sent in the background, as many as are waiting with each statement, so the creates don't wait for
+ * them. The notifications received are applied by a listener holding a connection of its own; when it loses it, it
+ * connects again and catches up with the urls created since shortly before it was lost (by their created_at), as
+ * Postgres doesn't keep the notifications of a listener that is gone. A url that is not sent (the queue is full or
+ * the database failed) is still found by the others the usual way, once their filter is refreshed and the miss
+ * expires.
+ * <p>
+ * Only available with the Postgres store.
+ */
+@Component
+public class StoredUrlBroadcast {
+
+  private static final Logger log = LoggerFactory.getLogger(StoredUrlBroadcast.class);
+
+  private static final long POLL_MILLIS = 100;
+  // how long the listener waits for notifications at a time, checking whether it is stopped in between
+  private static final Duration LISTEN_TIMEOUT = Duration.ofMillis(500);
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private final UrlStore urlStore;
+  private final UrlLookupCache lookupCache;
+  private final KnownHashesFilter knownHashes;
+  private final CompactUrlIndex compactIndex;
+  // null if the store is not Postgres
+  private final PostgresUrlNotifications notifications;
+  private final boolean enabled;
+  private final boolean populateCache;
+  private final Duration reconnectDelay;
+  private final Duration catchUpOverlap;
+  // tells the notifications of this instance from those of the others
+  private final String instanceId;
+  // stored urls waiting to be sent
+  private final BlockingQueue<StoredUrl> outbox;
+  private volatile boolean running;
+  private Thread publisher;
+  private Thread listener;
+
+  private final Counter sentUrls;
+  private final Counter droppedUrls;
+  private final Counter receivedUrls;
+  private final Counter caughtUpUrls;
+  private final Counter reconnects;
+  private final Timer lag;
+
+  @Autowired
+  public StoredUrlBroadcast(UrlStore urlStore, UrlLookupCache lookupCache, KnownHashesFilter knownHashes,
+                            CompactUrlIndex compactIndex, @Nullable PostgresUrlNotifications notifications,
+                            UrlShortenerProperties properties, MeterRegistry meterRegistry) {
+    var config = properties.getNotifications();
+    this.urlStore = urlStore;
+    this.lookupCache = lookupCache;
+    this.knownHashes = knownHashes;
+    this.compactIndex = compactIndex;
+    this.notifications = notifications;
+    this.enabled = config.isEnabled() && notifications != null;
+    this.populateCache = config.isPopulateCache();
+    this.reconnectDelay = config.getReconnectDelay();
+    this.catchUpOverlap = config.getCatchUpOverlap();
+    this.instanceId = Long.toString(new SplittableRandom().nextLong() & Long.MAX_VALUE, 36);
+    this.outbox = new ArrayBlockingQueue<>(config.getQueueCapacity());
+
+    this.sentUrls = Counter.builder("shortener.notifications.sent")
+        .description("Stored urls sent to the other instances")
+        .register(meterRegistry);
+    this.droppedUrls = Counter.builder("shortener.notifications.dropped")
+        .description("Stored urls not sent to the other instances, because too many were waiting or sending failed")
+        .register(meterRegistry);
+    this.receivedUrls = Counter.builder("shortener.notifications.received")
+        .description("Urls stored by other instances received from them")
+        .register(meterRegistry);
+    this.caughtUpUrls = Counter.builder("shortener.notifications.caught.up")
+        .description("Urls read from the store after (re)connecting the listener, as it may have missed them")
+        .register(meterRegistry);
+    this.reconnects = Counter.builder("shortener.notifications.reconnects")
+        .description("Times the listener lost its connection and connected again")
+        .register(meterRegistry);
+    this.lag = Timer.builder("shortener.notifications.lag")
+        .description("Time from another instance sending its stored urls to applying them here (clock skew included)")
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(100)))
+        .maximumExpectedValue(Duration.ofSeconds(10))
+        .register(meterRegistry);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    running = true;
+    publisher = new Thread(this::sendStored, "stored-url-publisher");
+    publisher.setDaemon(true);
+    publisher.start();
+    listener = new Thread(this::listen, "stored-url-listener");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    if (!running) {
+      return;
+    }
+    // the publisher sends what is waiting before exiting, the listener exits after its current wait
+    running = false;
+    publisher.join(TimeUnit.SECONDS.toMillis(5));
+    listener.interrupt();
+    listener.join(TimeUnit.SECONDS.toMillis(5));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sends a url stored by this instance to the others, in the background.
+   */
+  public void send(String hash, String longUrl) {
+    if (enabled && !outbox.offer(new StoredUrl(longUrl, hash))) {
+      droppedUrls.increment();
+    }
+  }
+
+  private void sendStored() {
+    var batch = new ArrayList<StoredUrl>(MAX_BATCH_SIZE);
+    while (running || !outbox.isEmpty()) {
+      try {
+        var first = outbox.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        outbox.drainTo(batch, MAX_BATCH_SIZE - 1);
+        notifications.notify(instanceId, batch);
+        sentUrls.increment(batch.size());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        // the others find them the usual way
+        droppedUrls.increment(batch.size());
+        log.warn("Could not send {} stored urls to the other instances", batch.size(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void listen() {
+    // the first connection catches up from the startup, in case it can't connect right away
+    var listenedUntil = OffsetDateTime.now();
+    while (running) {
+      try (var subscription = notifications.subscribe()) {
+        catchUp(listenedUntil.minus(catchUpOverlap));
+        while (running) {
+          var polledAt = OffsetDateTime.now();
+          apply(subscription.poll(LISTEN_TIMEOUT));
+          // what was sent before is either received by now or in flight, which the overlap covers
+          listenedUntil = polledAt;
+        }
+      } catch (SQLException | RuntimeException e) {
+        if (!running) {
+          return;
+        }
+        reconnects.increment();
+        log.warn("Lost the connection listening to the urls stored by other instances, reconnecting in {} ms",
+            reconnectDelay.toMillis(), e);
+        try {
+          Thread.sleep(reconnectDelay.toMillis());
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the urls created since the given time, which may have been sent while not listening.
+   */
+  private void catchUp(OffsetDateTime since) {
+    var start = System.nanoTime();
+    var count = new long[1];
+    urlStore.forEachUrlCreatedSince(since, (hash, longUrl) -> {
+      apply(hash, longUrl);
+      count[0]++;
+    });
+    caughtUpUrls.increment(count[0]);
+    log.info("Listening to the urls stored by other instances, caught up with {} urls created since {} in {} ms",
+        count[0], since, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private void apply(List<PostgresUrlNotifications.Notification> received) {
+    var now = System.currentTimeMillis();
+    for (var notification : received) {
+      if (notification.getSender().equals(instanceId)) {
+        continue;
+      }
+      for (var storedUrl : notification.getStoredUrls()) {
+        apply(storedUrl.getHash(), storedUrl.getLongUrl());
+      }
+      receivedUrls.increment(notification.getStoredUrls().size());
+      lag.record(Math.max(0, now - notification.getSentAtMillis()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @param longUrl null if it was too long to be sent, in which case it is looked up the usual way
+   */
+  private void apply(String hash, String longUrl) {
+    knownHashes.add(hash);
+    if (longUrl != null) {
+      compactIndex.put(hash, longUrl);
+      if (populateCache) {
+        lookupCache.putUrl(hash, longUrl);
+        return;
+      }
+    }
+    lookupCache.forgetMissing(hash);
+  }
+
+}
@@ -0,0 +1,121 @@
+package org.cecatto.urlshortener.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache in front of the hash lookups. Stored mappings never change, so found urls are only subject to
+ * size-based eviction (W-TinyLFU), while unknown hashes are remembered for a short time only, since they may be
+ * created at any moment.
+ * <p>
+ * The size, hit, miss and eviction counters of both caches are published as cache metrics (named url_lookup and
+ * url_lookup_misses).
+ */
+@Component
+public class UrlLookupCache implements MeterBinder {
+
+  private final boolean enabled;
+  private final Cache<String, String> urls;
+  private final Cache<String, Boolean> misses;
+
+  @Autowired
+  public UrlLookupCache(UrlShortenerProperties properties) {
+    var config = properties.getCache();
+    this.enabled = config.isEnabled();
+    this.urls = Caffeine.newBuilder()
+        .maximumSize(config.getMaximumSize())
+        .recordStats()
+        .build();
+    this.misses = Caffeine.newBuilder()
+        .maximumSize(config.getNegativeMaximumSize())
+        .expireAfterWrite(config.getNegativeTtl())
+        .recordStats()
+        .build();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the cached url for the hash, or null if it is not cached
+   */
+  public String getUrl(String hash) {
+    return enabled ? urls.getIfPresent(hash) : null;
+  }
+
+  public boolean isKnownMissing(String hash) {
+    return enabled && misses.getIfPresent(hash) != null;
+  }
+
+  public void putUrl(String hash, String longUrl) {
+    if (enabled) {
+      urls.put(hash, longUrl);
+      misses.invalidate(hash);
+    }
+  }
+
+  public void invalidate(String hash) {
+    urls.invalidate(hash);
+  }
+
+  /**
+   * Drops the remembered miss of the hash, e.g. once another instance stored it.
+   */
+  public void forgetMissing(String hash) {
+    misses.invalidate(hash);
+  }
+
+  public void putMissing(String hash) {
+    if (enabled) {
+      misses.put(hash, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * @return up to limit cached urls by hash, the ones most likely to be requested again (by frequency) first
+   */
+  public Map<String, String> hottest(int limit) {
+    // applies the pending reads to the frequencies first
+    urls.cleanUp();
+    return urls.policy().eviction()
+        .map(eviction -> eviction.hottest(limit))
+        .orElseGet(LinkedHashMap::new);
+  }
+
+  public void invalidateAll() {
+    urls.invalidateAll();
+    misses.invalidateAll();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, urls, "url_lookup");
+    CaffeineCacheMetrics.monitor(registry, misses, "url_lookup_misses");
+  }
+
+  /**
+   * @return hit, miss and eviction counters of the found urls
+   */
+  public CacheStats urlStats() {
+    return urls.stats();
+  }
+
+  /**
+   * @return hit, miss and eviction counters of the remembered misses
+   */
+  public CacheStats missStats() {
+    return misses.stats();
+  }
+
+}
@@ -0,0 +1,184 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Loads the lookup cache with the hottest urls at startup, so that the first requests after a restart don't all go to
+ * the database. The hottest urls of the cache are written to a snapshot file periodically and on shutdown, and loaded
+ * from it at startup; without a snapshot (e.g. on a new instance), the most clicked urls are loaded from the database
+ * instead.
+ * <p>
+ * The warm-up runs before the application reports ready (readiness is only accepting traffic once every
+ * {@link ApplicationRunner} is done), for up to the time budget: after that, the instance gets ready with the urls
+ * loaded so far.
+ */
+@Component
+public class UrlLookupCacheWarmer implements ApplicationRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(UrlLookupCacheWarmer.class);
+
+  private final UrlLookupCache lookupCache;
+  private final ClickStatsRepository clickStatsRepository;
+  private final boolean enabled;
+  private final int size;
+  private final Duration timeBudget;
+  private final Path snapshotPath;
+  private final Duration snapshotInterval;
+
+  private final AtomicLong loadedUrls = new AtomicLong();
+  private volatile long warmUpNanos;
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public UrlLookupCacheWarmer(UrlLookupCache lookupCache, ClickStatsRepository clickStatsRepository,
+                              UrlShortenerProperties properties, MeterRegistry meterRegistry) {
+    var config = properties.getWarmUp();
+    this.lookupCache = lookupCache;
+    this.clickStatsRepository = clickStatsRepository;
+    this.enabled = config.isEnabled() && lookupCache.isEnabled();
+    this.size = config.getSize();
+    this.timeBudget = config.getTimeBudget();
+    this.snapshotPath = Path.of(config.getSnapshotPath());
+    this.snapshotInterval = config.getSnapshotInterval();
+
+    Gauge.builder("shortener.cache.warmup.urls", loadedUrls, AtomicLong::get)
+        .description("Urls loaded in the lookup cache at startup")
+        .register(meterRegistry);
+    TimeGauge.builder("shortener.cache.warmup.duration", this, TimeUnit.NANOSECONDS, warmer -> warmer.warmUpNanos)
+        .description("Time taken by the warm-up of the lookup cache at startup")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    if (!enabled) {
+      return;
+    }
+    warmUp();
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "lookup-cache-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::snapshot,
+        snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes a last snapshot, unless the warm-up never ran, which would replace a good snapshot with an empty cache.
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      snapshot();
+    }
+  }
+
+  /**
+   * Loads the hottest urls in the lookup cache, waiting for up to the time budget.
+   */
+  public void warmUp() {
+    var start = System.nanoTime();
+    var cancelled = new AtomicBoolean();
+    var loading = CompletableFuture.runAsync(() -> load(cancelled), runnable -> {
+      var thread = new Thread(runnable, "lookup-cache-warm-up");
+      thread.setDaemon(true);
+      thread.start();
+    });
+
+    try {
+      loading.get(timeBudget.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      log.warn("Warm-up of the lookup cache did not finish within {}, going on without the rest", timeBudget);
+    } catch (ExecutionException e) {
+      // an instance with a cold cache is still better than no instance
+      log.error("Could not warm up the lookup cache", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      cancelled.set(true);
+    }
+
+    warmUpNanos = System.nanoTime() - start;
+    log.info("Warmed up the lookup cache with {} urls in {} ms", loadedUrls.get(),
+        TimeUnit.NANOSECONDS.toMillis(warmUpNanos));
+  }
+
+  private void load(AtomicBoolean cancelled) {
+    BiConsumer<String, String> cacheUrl = (hash, longUrl) -> {
+      if (cancelled.get()) {
+        // stops reading the snapshot or the query
+        throw new CancellationException();
+      }
+      lookupCache.putUrl(hash, longUrl);
+      loadedUrls.incrementAndGet();
+    };
+
+    try {
+      if (Files.exists(snapshotPath)) {
+        try {
+          HotUrlsSnapshot.read(snapshotPath, size, cacheUrl);
+        } catch (IOException e) {
+          log.warn("Could not read the snapshot of the lookup cache {}, keeping the {} urls read", snapshotPath,
+              loadedUrls.get(), e);
+        }
+        if (loadedUrls.get() > 0) {
+          log.info("Loaded the hottest urls from {}", snapshotPath);
+          return;
+        }
+        // e.g. truncated by a crash
+        log.info("No urls read from the snapshot {}, loading the most clicked urls instead", snapshotPath);
+      }
+      clickStatsRepository.forEachMostClicked(size, cacheUrl);
+      log.info("Loaded the most clicked urls");
+    } catch (CancellationException e) {
+      // the startup went on already
+    }
+  }
+
+  /**
+   * Writes the hottest urls of the lookup cache to the snapshot file.
+   */
+  public void snapshot() {
+    try {
+      var hottest = lookupCache.hottest(size);
+      HotUrlsSnapshot.write(snapshotPath, hottest);
+      log.debug("Wrote the {} hottest urls to {}", hottest.size(), snapshotPath);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not write the snapshot of the lookup cache to {}", snapshotPath, e);
+    }
+  }
+
+  public long loadedUrls() {
+    return loadedUrls.get();
+  }
+
+}
@@ -0,0 +1,342 @@
+package org.cecatto.urlshortener.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind mode of the creates (url-shortener.write-behind): instead of waiting for the store, a create journals
+ * the url (see {@link CreateJournal}), keeps it in memory, where the lookups of this instance find it, and returns. A
+ * background writer drains the accepted urls into the store, as many as are waiting (up to the batch size) with each
+ * statement, so the creates share the round trips and commits instead of each paying for its own. The urls are only
+ * added to the compact index once written with their hash, as it keeps the first url given for a hash.
+ * <p>
+ * The hash is handed out before the url is stored, so it must not be taken by another url in the meantime:
+ * {@link HashServiceImpl} only accepts a url here if the filter of known hashes tells its first hash was never stored,
+ * and stores any other url synchronously. The filter must know the hashes stored by the other instances as they are
+ * stored, hence the notifications are required (see {@link StoredUrlBroadcast}). Another instance may still store a
+ * url with the same hash within the lag of the notifications (or write behind one, as those are only notified once
+ * written): the store keeps the other url, and the short link already handed out redirects to it, permanently. Such
+ * collisions are counted and logged when the writer finds them. Until the writer gets to them, the accepted urls are
+ * not found by other instances.
+ * <p>
+ * When the queue is full (the store is slow or down), creates are written synchronously again. Accepted urls are kept
+ * in the journal until written, and the journal is replayed at startup, even if the mode was disabled since. The
+ * journal can't be shared: an instance in write-behind mode fails to start if another one holds it, and a disabled one
+ * leaves it to its holder.
+ */
+@Component
+public class WriteBehindCreates {
+
+  private static final Logger log = LoggerFactory.getLogger(WriteBehindCreates.class);
+
+  private static final long POLL_MILLIS = 100;
+  private static final Duration MIN_RETRY_DELAY = Duration.ofMillis(100);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(10);
+
+  private final UrlStore urlStore;
+  private final UrlLookupCache lookupCache;
+  private final CompactUrlIndex compactIndex;
+  private final StoredUrlBroadcast broadcast;
+  private final boolean enabled;
+  private final int batchSize;
+  private final Path journalPath;
+  private final long journalSegmentSize;
+  // accepted urls by hash, until written
+  private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<>();
+  private final BlockingQueue<Accepted> queue;
+  // null until started, and if disabled
+  private volatile CreateJournal journal;
+  // held while the journal is replayed and written, null otherwise
+  private FileLock journalLock;
+  private Thread writer;
+  private volatile boolean running;
+
+  private final Counter fallbacks;
+  private final Counter collisions;
+  private final DistributionSummary batchSizes;
+  private final Timer writeTimer;
+  private final Timer journalTimer;
+
+  @Autowired
+  public WriteBehindCreates(UrlStore urlStore, UrlLookupCache lookupCache, CompactUrlIndex compactIndex,
+                            StoredUrlBroadcast broadcast, UrlShortenerProperties properties,
+                            MeterRegistry meterRegistry) {
+    var config = properties.getWriteBehind();
+    this.urlStore = urlStore;
+    this.lookupCache = lookupCache;
+    this.compactIndex = compactIndex;
+    this.broadcast = broadcast;
+    this.enabled = config.isEnabled();
+    this.batchSize = config.getBatchSize();
+    this.journalPath = Path.of(config.getJournalPath());
+    this.journalSegmentSize = config.getJournalSegmentSize().toBytes();
+    this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+
+    this.fallbacks = Counter.builder("shortener.write.behind.fallbacks")
+        .description("Creates written synchronously because the queue of accepted urls was full")
+        .register(meterRegistry);
+    this.collisions = Counter.builder("shortener.write.behind.collisions")
+        .description("Accepted urls whose hash was taken by another url by the time they were written, so their " +
+            "short links don't resolve")
+        .register(meterRegistry);
+    this.batchSizes = DistributionSummary.builder("shortener.write.behind.batch.size")
+        .description("Accepted urls written to the store by each statement")
+        .serviceLevelObjectives(1, 10, 100, 1000)
+        .register(meterRegistry);
+    this.writeTimer = Timer.builder("shortener.write.behind.write")
+        .description("Time to write a batch of accepted urls to the store")
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofMillis(1))
+        .maximumExpectedValue(Duration.ofSeconds(10))
+        .register(meterRegistry);
+    this.journalTimer = Timer.builder("shortener.write.behind.journal.append")
+        .description("Time to journal an accepted url and force it to disk")
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(10)))
+        .maximumExpectedValue(Duration.ofSeconds(1))
+        .register(meterRegistry);
+    Gauge.builder("shortener.write.behind.queued", queue, BlockingQueue::size)
+        .description("Accepted urls waiting to be written to the store")
+        .register(meterRegistry);
+    Gauge.builder("shortener.write.behind.journal.lag", this, WriteBehindCreates::journalLag)
+        .description("Journaled urls not written to the store yet, which a restart would replay")
+        .register(meterRegistry);
+    Gauge.builder("shortener.write.behind.journal.size", this, WriteBehindCreates::journalSize)
+        .description("Size of the segments of the create journal on disk")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  private double journalLag() {
+    var current = journal;
+    return current == null ? 0 : current.unwritten();
+  }
+
+  private double journalSize() {
+    var current = journal;
+    return current == null ? 0 : current.size();
+  }
+
+  @PostConstruct
+  public void start() {
+    if (enabled || Files.isDirectory(journalPath)) {
+      journalLock = CreateJournal.tryLock(journalPath);
+      if (journalLock == null) {
+        if (enabled) {
+          throw new IllegalStateException("The create journal " + journalPath + " is already in use by another " +
+              "instance, set url-shortener.write-behind.journal-path to a directory of its own");
+        }
+        log.info("Not replaying the create journal {}, in use by another instance", journalPath);
+        return;
+      }
+    }
+    var start = System.nanoTime();
+    var replayed = CreateJournal.replay(journalPath, batchSize, this::write);
+    if (replayed > 0) {
+      log.info("Replayed {} urls of the create journal in {} ms", replayed,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    if (!enabled) {
+      unlockJournal();
+      return;
+    }
+
+    journal = new CreateJournal(journalPath, journalSegmentSize);
+    running = true;
+    writer = new Thread(this::writeAccepted, "write-behind-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    if (writer == null) {
+      return;
+    }
+    // the writer drains the queue before exiting, what it can't write is left in the journal
+    running = false;
+    writer.join(TimeUnit.SECONDS.toMillis(10));
+    if (writer.isAlive()) {
+      log.warn("Write-behind writer did not finish in time, {} accepted urls are left to the journal", queue.size());
+      writer.interrupt();
+    }
+    journal.close();
+    unlockJournal();
+  }
+
+  private void unlockJournal() {
+    if (journalLock == null) {
+      return;
+    }
+    try {
+      journalLock.channel().close();
+    } catch (IOException e) {
+      log.warn("Could not unlock the create journal {}", journalPath, e);
+    }
+    journalLock = null;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the url accepted with the hash and not written yet, or null
+   */
+  public String pendingUrl(String hash) {
+    return pending.get(hash);
+  }
+
+  /**
+   * Journals the url, to be written in the background.
+   *
+   * @return false if the url was not accepted and must be written synchronously, because the queue is full or the hash
+   * was just accepted for another url
+   */
+  public boolean accept(String hash, String longUrl) {
+    if (queue.remainingCapacity() == 0) {
+      fallbacks.increment();
+      return false;
+    }
+    if (pending.putIfAbsent(hash, longUrl) != null) {
+      return false;
+    }
+
+    CreateJournal.Segment segment;
+    var start = System.nanoTime();
+    try {
+      segment = journal.append(hash, longUrl);
+    } catch (RuntimeException e) {
+      pending.remove(hash, longUrl);
+      throw e;
+    }
+    journalTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+    if (!queue.offer(new Accepted(new StoredUrl(longUrl, hash), segment))) {
+      // filled up meanwhile: the synchronous write supersedes the journaled url
+      pending.remove(hash, longUrl);
+      journal.written(segment);
+      fallbacks.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private void writeAccepted() {
+    var batch = new ArrayList<Accepted>(batchSize);
+    var storedUrls = new ArrayList<StoredUrl>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        var first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        batch.forEach(accepted -> storedUrls.add(accepted.storedUrl));
+        if (!writeRetrying(storedUrls)) {
+          return;
+        }
+        for (var accepted : batch) {
+          journal.written(accepted.segment);
+          pending.remove(accepted.storedUrl.getHash(), accepted.storedUrl.getLongUrl());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        // the writer must keep running, the urls are left to the journal
+        log.error("Unexpected error writing {} accepted urls", batch.size(), e);
+      } finally {
+        batch.clear();
+        storedUrls.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes the urls, retrying with a growing delay while the store fails, until stopped.
+   *
+   * @return false if stopped before the urls could be written
+   */
+  private boolean writeRetrying(List<StoredUrl> storedUrls) throws InterruptedException {
+    for (var delay = MIN_RETRY_DELAY; ; delay = min(delay.multipliedBy(2), MAX_RETRY_DELAY)) {
+      try {
+        writeTimer.record(() -> write(storedUrls));
+        batchSizes.record(storedUrls.size());
+        return true;
+      } catch (RuntimeException e) {
+        if (!running) {
+          log.warn("Could not write {} accepted urls before stopping, leaving them to the journal", storedUrls.size(), e);
+          return false;
+        }
+        log.warn("Could not write {} accepted urls, retrying in {} ms", storedUrls.size(), delay.toMillis(), e);
+        Thread.sleep(delay.toMillis());
+      }
+    }
+  }
+
+  private static Duration min(Duration a, Duration b) {
+    return a.compareTo(b) <= 0 ? a : b;
+  }
+
+  /**
+   * Inserts the urls with a single statement, then checks that each one got the hash it was accepted with.
+   */
+  private void write(List<StoredUrl> storedUrls) {
+    urlStore.insertAllIgnoringConflicts(storedUrls);
+    var longUrls = new ArrayList<String>(storedUrls.size());
+    storedUrls.forEach(storedUrl -> longUrls.add(storedUrl.getLongUrl()));
+    var storedHashes = urlStore.findHashesByLongUrls(longUrls);
+
+    for (var storedUrl : storedUrls) {
+      var storedHash = storedHashes.get(storedUrl.getLongUrl());
+      if (storedUrl.getHash().equals(storedHash)) {
+        compactIndex.put(storedHash, storedUrl.getLongUrl());
+        broadcast.send(storedHash, storedUrl.getLongUrl());
+      } else {
+        collisions.increment();
+        lookupCache.invalidate(storedUrl.getHash());
+        log.error("Accepted url {} could not be stored with its hash {}: {}", storedUrl.getLongUrl(),
+            storedUrl.getHash(), storedHash == null ? "taken by another url" : "already stored as " + storedHash);
+      }
+    }
+  }
+
+  private static final class Accepted {
+
+    private final StoredUrl storedUrl;
+    private final CreateJournal.Segment segment;
+
+    private Accepted(StoredUrl storedUrl, CreateJournal.Segment segment) {
+      this.storedUrl = storedUrl;
+      this.segment = segment;
+    }
+
+  }
+
+}
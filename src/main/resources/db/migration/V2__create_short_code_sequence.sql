@@ -0,0 +1,5 @@
+-- every nextval reserves a whole block of ids (the increment) for one application instance
+create sequence if not exists short_code_id_seq
+    start with 0
+    minvalue 0
+    increment by 10000;
@@ -0,0 +1,17 @@
+-- first step of moving the primary key to hash and deduplicating on a fixed-width digest of long_url instead of the
+-- url text itself. Adding a nullable column without default only touches the catalog, so this doesn't rewrite or
+-- lock the table for long. Existing rows are backfilled in batches by V4.
+alter table stored_url add column if not exists long_url_digest bytea;
+
+-- keeps the digest of new and updated rows, whoever writes them (including instances still running older versions)
+create or replace function stored_url_set_long_url_digest() returns trigger as $$
+begin
+    new.long_url_digest := sha256(convert_to(new.long_url, 'UTF8'));
+    return new;
+end;
+$$ language plpgsql;
+
+drop trigger if exists stored_url_set_long_url_digest on stored_url;
+create trigger stored_url_set_long_url_digest
+    before insert or update of long_url on stored_url
+    for each row execute function stored_url_set_long_url_digest();
@@ -0,0 +1,6 @@
+-- clicks of the redirects, aggregated in memory and upserted periodically by every instance
+create table if not exists url_click_stats (
+    hash            varchar(20)                 primary key,
+    clicks          bigint                      not null,
+    last_access_at  timestamp with time zone    not null
+);
@@ -0,0 +1,5 @@
+-- lets every instance fetch the hashes created recently (by the other instances), e.g. to add them to its filter of
+-- known hashes. Concurrently, so creates are not blocked while it builds: flyway runs these statements outside of a
+-- transaction. An index left invalid by a failed build is dropped first.
+drop index concurrently if exists stored_url_created_at_idx;
+create index concurrently stored_url_created_at_idx on stored_url (created_at);
@@ -0,0 +1,115 @@
+package org.cecatto.urlshortener.bulk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BulkFormatTest {
+
+  // as configured by Spring Boot
+  private final ObjectMapper objectMapper = new ObjectMapper()
+      .registerModule(new JavaTimeModule())
+      .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+  @ParameterizedTest
+  @EnumSource(BulkFormat.class)
+  public void testWrittenRecordsAreReadBack(BulkFormat format) throws IOException {
+    var createdAt = OffsetDateTime.of(2024, 1, 31, 10, 0, 0, 123_000_000, ZoneOffset.UTC);
+    var records = List.of(
+        new UrlRecord("c0xt4es4", "http://www.example.com", createdAt),
+        // needs quoting in CSV
+        new UrlRecord("5g73357h", "http://www.google.com/search?q=\"a,b\"", createdAt.plusSeconds(1)),
+        new UrlRecord("iptd0j21", "http://www.example.com/" + new String(Character.toChars(0x1F600)), createdAt));
+
+    var out = new StringWriter();
+    try (var writer = format.writer(out, objectMapper)) {
+      for (var record : records) {
+        writer.write(record);
+      }
+    }
+    var readRecords = readAll(format, out.toString());
+
+    Assertions.assertEquals(records.size(), readRecords.size());
+    for (var i = 0; i < records.size(); i++) {
+      Assertions.assertEquals(records.get(i).hash, readRecords.get(i).hash);
+      Assertions.assertEquals(records.get(i).longUrl, readRecords.get(i).longUrl);
+      Assertions.assertTrue(records.get(i).createdAt.isEqual(readRecords.get(i).createdAt));
+    }
+  }
+
+  @Test
+  public void testCsvColumnsMayBeMissingOrReordered() throws IOException {
+    var records = readAll(BulkFormat.CSV, "long_url,hash\nhttp://www.example.com,c0xt4es4\n\nhttp://www.google.com,\n");
+
+    Assertions.assertEquals(2, records.size());
+    Assertions.assertEquals("c0xt4es4", records.get(0).hash);
+    Assertions.assertEquals("http://www.example.com", records.get(0).longUrl);
+    Assertions.assertNull(records.get(1).hash);
+    Assertions.assertNull(records.get(1).createdAt);
+  }
+
+  @Test
+  public void testCsvReadsPostgresTimestamps() throws IOException {
+    var records = readAll(BulkFormat.CSV,
+        "hash,long_url,created_at\r\nc0xt4es4,http://www.example.com,2024-01-31 10:00:00.123+01\r\n");
+
+    Assertions.assertEquals(OffsetDateTime.of(2024, 1, 31, 9, 0, 0, 123_000_000, ZoneOffset.UTC).toInstant(),
+        records.get(0).createdAt.toInstant());
+  }
+
+  @Test
+  public void testCsvQuotedFieldSpansLines() throws IOException {
+    var records = readAll(BulkFormat.CSV, "long_url\n\"http://www.example.com/a\nb\"\n");
+
+    Assertions.assertEquals("http://www.example.com/a\nb", records.get(0).longUrl);
+  }
+
+  @Test
+  public void testCsvWithoutLongUrlColumnIsRejected() {
+    var exception = Assertions.assertThrows(IOException.class, () -> readAll(BulkFormat.CSV, "hash,url\n"));
+    Assertions.assertTrue(exception.getMessage().contains("long_url"));
+  }
+
+  @Test
+  public void testCsvWithUnterminatedQuoteIsRejected() {
+    Assertions.assertThrows(IOException.class, () -> readAll(BulkFormat.CSV, "long_url\n\"http://www.example.com\n"));
+  }
+
+  @Test
+  public void testNdjsonWithoutOptionalFields() throws IOException {
+    var records = readAll(BulkFormat.NDJSON, "{\"longUrl\":\"http://www.example.com\"}\n\n{\"longUrl\":\"http://www.google.com\"}");
+
+    Assertions.assertEquals(2, records.size());
+    Assertions.assertNull(records.get(0).hash);
+    Assertions.assertEquals("http://www.google.com", records.get(1).longUrl);
+  }
+
+  @Test
+  public void testUnknownFormatIsRejected() {
+    Assertions.assertEquals(BulkFormat.NDJSON, BulkFormat.of("ndjson"));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> BulkFormat.of("xml"));
+  }
+
+  private List<UrlRecord> readAll(BulkFormat format, String input) throws IOException {
+    var records = new ArrayList<UrlRecord>();
+    try (var reader = format.reader(new StringReader(input), objectMapper)) {
+      for (var record = reader.next(); record != null; record = reader.next()) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+}
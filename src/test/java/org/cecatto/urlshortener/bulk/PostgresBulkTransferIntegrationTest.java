@@ -0,0 +1,139 @@
+package org.cecatto.urlshortener.bulk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.HashService;
+import org.cecatto.urlshortener.service.ShortCodeGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Optional;
+
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("integration-tests")
+// batches of 2 records, so the tests go through several of them
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE, properties = "url-shortener.bulk.batch-size=2")
+public class PostgresBulkTransferIntegrationTest {
+
+  @Autowired
+  private PostgresBulkTransfer bulkTransfer;
+
+  @Autowired
+  private UrlStore urlStore;
+
+  @Autowired
+  private HashService hashService;
+
+  @Autowired
+  private ShortCodeGenerator shortCodeGenerator;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @AfterEach
+  public void tearDown() {
+    urlStore.deleteAll();
+  }
+
+  @Test
+  public void testImportGivesTheHashesOfCreates() throws IOException {
+    var result = importCsv("long_url\nhttp://www.example.com\nwww.google.com\nhttps://www.linkedin.com/in/lcecatto/\n");
+
+    Assertions.assertEquals(3, result.records);
+    Assertions.assertEquals(3, result.stored);
+    Assertions.assertEquals(Optional.of("http://www.example.com"), urlStore.findLongUrlByHash("c0xt4es4"));
+    // the missing scheme is defaulted as for creates
+    Assertions.assertEquals(Optional.of(shortCodeGenerator.generate("http://www.google.com", 0)),
+        urlStore.findHashByLongUrl("http://www.google.com"));
+    Assertions.assertEquals(Optional.of("https://www.linkedin.com/in/lcecatto/"), urlStore.findLongUrlByHash("ywwtbuk6"));
+  }
+
+  @Test
+  public void testImportKeepsGivenHashesAndCreationTimes() throws IOException {
+    importCsv("hash,long_url,created_at\nmigrated1,http://www.example.com,2020-05-01T12:00:00Z\n");
+
+    var storedUrl = urlStore.findByHash("migrated1").orElseThrow();
+    Assertions.assertEquals("http://www.example.com", storedUrl.getLongUrl());
+    Assertions.assertTrue(OffsetDateTime.of(2020, 5, 1, 12, 0, 0, 0, ZoneOffset.UTC).isEqual(storedUrl.getCreatedAt()));
+  }
+
+  @Test
+  public void testImportSkipsStoredUrls() throws IOException {
+    var existingHash = hashService.hashUrl(URI.create("http://www.example.com"));
+
+    var result = importCsv(
+        "hash,long_url\nother123,http://www.example.com\n,http://www.example.com\n,http://www.google.com\n");
+
+    Assertions.assertEquals(1, result.stored);
+    Assertions.assertEquals(2, result.alreadyStored);
+    Assertions.assertEquals(Optional.of(existingHash), urlStore.findHashByLongUrl("http://www.example.com"));
+    Assertions.assertEquals(2, urlStore.count());
+  }
+
+  @Test
+  public void testImportRehashesCollisionsAsCreates() throws IOException {
+    // takes the first hash of the imported url
+    var collidingHash = shortCodeGenerator.generate("http://www.example.com", 0);
+    urlStore.insertIfAbsent(new StoredUrl("http://www.other.com", collidingHash));
+
+    var result = importCsv("long_url\nhttp://www.example.com\n");
+
+    Assertions.assertEquals(1, result.rehashed);
+    Assertions.assertEquals(Optional.of(shortCodeGenerator.generate("http://www.example.com", 1)),
+        urlStore.findHashByLongUrl("http://www.example.com"));
+  }
+
+  @Test
+  public void testImportRejectsInvalidRecords() throws IOException {
+    urlStore.insertIfAbsent(new StoredUrl("http://www.other.com", "taken123"));
+
+    var result = importCsv("hash,long_url\ntaken123,http://www.example.com\n,http://in valid\n,\n" +
+        "a-hash-longer-than-20-chars,http://www.google.com\n" +
+        // not accepted by the lookups
+        "short,http://www.linkedin.com\nUPPER123,http://www.github.com\nwith_underscore,http://www.gitlab.com\n");
+
+    Assertions.assertEquals(7, result.records);
+    Assertions.assertEquals(7, result.rejected);
+    Assertions.assertEquals(1, urlStore.count());
+  }
+
+  @Test
+  public void testExportedUrlsCanBeImported() throws IOException {
+    hashService.hashUrl(URI.create("http://www.example.com"));
+    hashService.hashUrl(URI.create("http://www.google.com/search?q=a,b"));
+    hashService.hashUrl(URI.create("http://www.linkedin.com"));
+
+    var out = new StringWriter();
+    try (var writer = BulkFormat.NDJSON.writer(out, objectMapper)) {
+      Assertions.assertEquals(3, bulkTransfer.exportUrls(writer));
+    }
+    var exportedCreatedAt = urlStore.findByHash("c0xt4es4").orElseThrow().getCreatedAt();
+    urlStore.deleteAll();
+
+    try (var reader = BulkFormat.NDJSON.reader(new StringReader(out.toString()), objectMapper)) {
+      Assertions.assertEquals(3, bulkTransfer.importUrls(reader).stored);
+    }
+    Assertions.assertEquals(3, urlStore.count());
+    Assertions.assertTrue(exportedCreatedAt.isEqual(urlStore.findByHash("c0xt4es4").orElseThrow().getCreatedAt()));
+  }
+
+  private PostgresBulkTransfer.ImportResult importCsv(String csv) throws IOException {
+    try (var reader = BulkFormat.CSV.reader(new StringReader(csv), null)) {
+      return bulkTransfer.importUrls(reader);
+    }
+  }
+
+}
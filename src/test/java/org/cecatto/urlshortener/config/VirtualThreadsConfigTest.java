@@ -0,0 +1,27 @@
+package org.cecatto.urlshortener.config;
+
+import org.apache.coyote.http11.Http11NioProtocol;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class VirtualThreadsConfigTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRequestsRunOnVirtualThreads() throws Exception {
+    var protocolHandler = new Http11NioProtocol();
+    var customizer = (TomcatProtocolHandlerCustomizer<Http11NioProtocol>) new VirtualThreadsConfig().virtualThreadsProtocolHandlerCustomizer();
+
+    customizer.customize(protocolHandler);
+
+    var thread = new CompletableFuture<Thread>();
+    protocolHandler.getExecutor().execute(() -> thread.complete(Thread.currentThread()));
+    Assertions.assertTrue(thread.get(10, TimeUnit.SECONDS).isVirtual());
+    Assertions.assertTrue(thread.get().getName().startsWith("http-vt-"));
+  }
+
+}
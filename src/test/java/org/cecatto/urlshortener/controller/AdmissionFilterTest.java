@@ -0,0 +1,180 @@
+package org.cecatto.urlshortener.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionFilterTest {
+
+  private UrlShortenerProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  public void setUp() {
+    properties = new UrlShortenerProperties();
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  private AdmissionFilter newFilter() {
+    return new AdmissionFilter(properties, new ObjectMapper(), meterRegistry);
+  }
+
+  private static MockHttpServletRequest request(String method, String path, String remoteAddr) {
+    var request = new MockHttpServletRequest(method, path);
+    request.setRemoteAddr(remoteAddr);
+    return request;
+  }
+
+  private static MockHttpServletResponse filter(AdmissionFilter filter, MockHttpServletRequest request)
+      throws Exception {
+    var response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new MockFilterChain());
+    return response;
+  }
+
+  private double rejected(String endpoint, String reason) {
+    return meterRegistry.get("shortener.admission.rejected").tag("endpoint", endpoint).tag("reason", reason)
+        .counter().count();
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+      "POST, /v1/create, CREATE",
+      "POST, /v2/create/batch, CREATE_BATCH",
+      "GET, /s/5g73357h, LOOKUP",
+      "HEAD, /s/5g73357h, LOOKUP",
+      "GET, /v1/stats/5g73357h, STATS",
+      "GET, /v1/create, ",
+      "POST, /s/5g73357h, ",
+      "GET, /actuator/prometheus, "
+  })
+  public void testEndpointOfRequest(String method, String path, AdmissionFilter.Endpoint expected) {
+    Assertions.assertEquals(expected, AdmissionFilter.endpointOf(new MockHttpServletRequest(method, path)));
+  }
+
+  @Test
+  public void testClientOverTheRateIsRejected() throws Exception {
+    properties.getRateLimit().getEndpoints().put("create", new UrlShortenerProperties.EndpointLimit(0.5, 2));
+    var filter = newFilter();
+
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.1")).getStatus());
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.1")).getStatus());
+    var rejected = filter(filter, request("POST", "/v1/create", "10.0.0.1"));
+
+    Assertions.assertEquals(429, rejected.getStatus());
+    Assertions.assertEquals("2", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+    Assertions.assertEquals("{\"errorMessage\":\"Too many requests, retry later\"}", rejected.getContentAsString());
+    Assertions.assertEquals(1, rejected("create", "rate_limited"));
+    // another client, and another endpoint of the same client
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.2")).getStatus());
+    Assertions.assertEquals(200, filter(filter, request("GET", "/s/5g73357h", "10.0.0.1")).getStatus());
+  }
+
+  @Test
+  public void testClientIdentifiedByHeader() throws Exception {
+    properties.getRateLimit().setClientHeader("X-API-Key");
+    properties.getRateLimit().getEndpoints().put("lookup", new UrlShortenerProperties.EndpointLimit(1, 1));
+    var filter = newFilter();
+    var first = request("GET", "/s/5g73357h", "10.0.0.1");
+    first.addHeader("X-API-Key", "key-1");
+    var second = request("GET", "/s/5g73357h", "10.0.0.1");
+    second.addHeader("X-API-Key", "key-2");
+
+    Assertions.assertEquals(200, filter(filter, first).getStatus());
+    Assertions.assertEquals(200, filter(filter, second).getStatus());
+    // without the header, by address
+    Assertions.assertEquals(200, filter(filter, request("GET", "/s/5g73357h", "10.0.0.1")).getStatus());
+    Assertions.assertEquals(429, filter(filter, request("GET", "/s/5g73357h", "10.0.0.1")).getStatus());
+  }
+
+  @Test
+  public void testEndpointsWithoutRateAndOtherRequestsAreNotLimited() throws Exception {
+    var endpoints = new HashMap<String, UrlShortenerProperties.EndpointLimit>();
+    endpoints.put("create", new UrlShortenerProperties.EndpointLimit(0, 0));
+    properties.getRateLimit().setEndpoints(endpoints);
+    var filter = newFilter();
+
+    for (var i = 0; i < 100; i++) {
+      Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.1")).getStatus());
+      Assertions.assertEquals(200, filter(filter, request("GET", "/s/5g73357h", "10.0.0.1")).getStatus());
+    }
+  }
+
+  @Test
+  public void testRequestsOverTheConcurrencyLimitAreShed() throws Exception {
+    properties.getRateLimit().setMaxConcurrentRequests(2);
+    // a single create per client
+    properties.getRateLimit().getEndpoints().put("create", new UrlShortenerProperties.EndpointLimit(0.001, 1));
+    var filter = newFilter();
+    var entered = new CountDownLatch(2);
+    var release = new CountDownLatch(1);
+    FilterChain blockingChain = (request, response) -> {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      for (var i = 0; i < 2; i++) {
+        var client = "10.0.0." + i;
+        executor.execute(() -> {
+          try {
+            filter.doFilter(request("GET", "/s/5g73357h", client), new MockHttpServletResponse(), blockingChain);
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        });
+      }
+      Assertions.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+      var shed = filter(filter, request("POST", "/v1/create", "10.0.0.3"));
+      Assertions.assertEquals(429, shed.getStatus());
+      Assertions.assertEquals("1", shed.getHeader(HttpHeaders.RETRY_AFTER));
+      Assertions.assertEquals(1, rejected("create", "overloaded"));
+      Assertions.assertEquals(2, meterRegistry.get("shortener.admission.in.flight").gauge().value());
+      // not counted
+      Assertions.assertEquals(200, filter(filter, request("GET", "/actuator/health", "10.0.0.3")).getStatus());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    Assertions.assertEquals(0, meterRegistry.get("shortener.admission.in.flight").gauge().value());
+    // the shed request didn't use up the rate of its client
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.3")).getStatus());
+  }
+
+  @Test
+  public void testRateLimitedRequestsAreNotInFlight() throws Exception {
+    properties.getRateLimit().setMaxConcurrentRequests(1);
+    properties.getRateLimit().getEndpoints().put("create", new UrlShortenerProperties.EndpointLimit(0.001, 1));
+    var filter = newFilter();
+
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.1")).getStatus());
+    Assertions.assertEquals(429, filter(filter, request("POST", "/v1/create", "10.0.0.1")).getStatus());
+
+    Assertions.assertEquals(1, rejected("create", "rate_limited"));
+    Assertions.assertEquals(0, meterRegistry.get("shortener.admission.in.flight").gauge().value());
+    Assertions.assertEquals(200, filter(filter, request("POST", "/v1/create", "10.0.0.2")).getStatus());
+  }
+
+}
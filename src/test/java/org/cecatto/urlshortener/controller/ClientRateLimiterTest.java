@@ -0,0 +1,109 @@
+package org.cecatto.urlshortener.controller;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClientRateLimiterTest {
+
+  private final AtomicLong now = new AtomicLong(-TimeUnit.HOURS.toNanos(1));
+
+  private ClientRateLimiter newLimiter(double tokensPerSecond, int burst, long maxClients) {
+    return new ClientRateLimiter(tokensPerSecond, burst, maxClients, Duration.ofMinutes(10), now::get);
+  }
+
+  @Test
+  public void testBurstThenSteadyRate() {
+    var limiter = newLimiter(10, 5, 100);
+
+    for (var i = 0; i < 5; i++) {
+      Assertions.assertEquals(0, limiter.acquire("client"));
+    }
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.acquire("client"));
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+    Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(60), limiter.acquire("client"));
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(60));
+    Assertions.assertEquals(0, limiter.acquire("client"));
+    Assertions.assertTrue(limiter.acquire("client") > 0);
+  }
+
+  @Test
+  public void testBucketsRefillUpToTheBurst() {
+    var limiter = newLimiter(10, 3, 100);
+    for (var i = 0; i < 3; i++) {
+      limiter.acquire("client");
+    }
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+    for (var i = 0; i < 3; i++) {
+      Assertions.assertEquals(0, limiter.acquire("client"));
+    }
+    Assertions.assertTrue(limiter.acquire("client") > 0);
+  }
+
+  @Test
+  public void testClientsHaveTheirOwnBuckets() {
+    var limiter = newLimiter(1, 1, 100);
+
+    Assertions.assertEquals(0, limiter.acquire("10.0.0.1"));
+    Assertions.assertTrue(limiter.acquire("10.0.0.1") > 0);
+    Assertions.assertEquals(0, limiter.acquire("10.0.0.2"));
+  }
+
+  @Test
+  public void testIdleAndExcessClientsAreEvicted() {
+    var limiter = newLimiter(1, 1, 100);
+    for (var i = 0; i < 1000; i++) {
+      limiter.acquire("client" + i);
+    }
+    limiter.cleanUp();
+    Assertions.assertTrue(limiter.clients() <= 100, () -> limiter.clients() + " clients");
+
+    now.addAndGet(TimeUnit.MINUTES.toNanos(11));
+    limiter.cleanUp();
+    Assertions.assertEquals(0, limiter.clients());
+  }
+
+  @Test
+  public void testConcurrentClientGetsTheBurstOnly() throws Exception {
+    var limiter = newLimiter(1, 1000, 100);
+    var executor = Executors.newFixedThreadPool(8);
+    try {
+      var futures = new ArrayList<Future<Integer>>();
+      for (var t = 0; t < 8; t++) {
+        futures.add(executor.submit(() -> {
+          var acquired = 0;
+          for (var i = 0; i < 10_000; i++) {
+            if (limiter.acquire("client") == 0) {
+              acquired++;
+            }
+          }
+          return acquired;
+        }));
+      }
+      var acquired = 0;
+      for (var future : futures) {
+        acquired += future.get();
+      }
+      // the clock is stopped
+      Assertions.assertEquals(1000, acquired);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInvalidLimits() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> newLimiter(0, 1, 100));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> newLimiter(1, 0, 100));
+  }
+
+}
@@ -0,0 +1,32 @@
+package org.cecatto.urlshortener.controller;
+
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * The scenarios of {@link UrlShortenerControllerIntegrationTest}, with the urls stored in a local file instead of
+ * Postgres.
+ */
+@ActiveProfiles("mapped-file")
+public class MappedFileUrlShortenerControllerIntegrationTest extends UrlShortenerControllerIntegrationTest {
+
+  @DynamicPropertySource
+  static void mappedFileProperties(DynamicPropertyRegistry registry) {
+    registry.add("url-shortener.store.mapped-file.path", () -> {
+      try {
+        var directory = Files.createTempDirectory("url-store");
+        directory.toFile().deleteOnExit();
+        return directory.resolve("urls.store").toString();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    registry.add("url-shortener.store.mapped-file.chunk-size", () -> "1MB");
+  }
+
+}
@@ -1,9 +1,15 @@
 package org.cecatto.urlshortener.controller;
 
 import org.cecatto.urlshortener.dto.ApiError;
+import org.cecatto.urlshortener.dto.BatchCreateRequest;
+import org.cecatto.urlshortener.dto.BatchCreateResponse;
+import org.cecatto.urlshortener.dto.ClickStats;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
 import org.cecatto.urlshortener.persistence.StoredUrl;
-import org.cecatto.urlshortener.persistence.UrlRepository;
+import org.cecatto.urlshortener.persistence.UrlStore;
 import org.cecatto.urlshortener.service.HashService;
+import org.cecatto.urlshortener.service.impl.ClickStatsServiceImpl;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -27,6 +33,8 @@ import org.springframework.web.util.UriTemplate;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -45,7 +53,16 @@ public class UrlShortenerControllerIntegrationTest {
   private HashService hashService;
 
   @Autowired
-  private UrlRepository urlRepository;
+  private UrlStore urlStore;
+
+  @Autowired
+  private UrlLookupCache lookupCache;
+
+  @Autowired
+  private ClickStatsServiceImpl clickStatsService;
+
+  @Autowired
+  private ClickStatsRepository clickStatsRepository;
 
   @BeforeEach
   public void setUp() {
@@ -54,13 +71,16 @@ public class UrlShortenerControllerIntegrationTest {
 
   @AfterEach
   public void tearDown() {
-    urlRepository.deleteAll();
+    urlStore.deleteAll();
+    lookupCache.invalidateAll();
+    clickStatsService.flush();
+    clickStatsRepository.deleteAll();
   }
 
   @Test
   public void testCreateSuccessful() {
     var longUrl = "http://www.google.com";
-    var expectedHash = "ed646a33";
+    var expectedHash = "5g73357h";
     var response = makeCreateRequest(longUrl, Void.class);
 
     Assertions.assertEquals(HttpStatus.CREATED, response.getStatusCode());
@@ -68,7 +88,7 @@ public class UrlShortenerControllerIntegrationTest {
     var expectedLocation = new UriTemplate(testRestTemplate.getRootUri() + UrlShortenerController.PATH_LOOKUP).expand(expectedHash);
     Assertions.assertEquals(expectedLocation, response.getHeaders().getLocation());
 
-    var optionalStoredUrl = urlRepository.findById(longUrl);
+    var optionalStoredUrl = urlStore.findByHash(expectedHash);
     Assertions.assertTrue(optionalStoredUrl.isPresent());
 
     var storedUrl = optionalStoredUrl.get();
@@ -109,12 +129,59 @@ public class UrlShortenerControllerIntegrationTest {
     makeConcurrentCreateRequests("https://www.google.com");
   }
 
+  @Test
+  public void testCreateBatchSuccessful() {
+    urlStore.insertIfAbsent(new StoredUrl("https://www.example.com", "iptd0j21"));
+
+    var response = makeCreateBatchRequest(
+        Arrays.asList("http://www.google.com", "www.example.com", "https://www.example.com", "http://www.google.com"),
+        BatchCreateResponse.class);
+
+    Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+    Assertions.assertNotNull(response.getBody());
+    Assertions.assertEquals(List.of("5g73357h", "c0xt4es4", "iptd0j21", "5g73357h"), response.getBody().hashes);
+    Assertions.assertEquals(3, urlStore.count());
+
+    var storedUrl = urlStore.findByHash("c0xt4es4");
+    Assertions.assertTrue(storedUrl.isPresent());
+    Assertions.assertEquals("http://www.example.com", storedUrl.get().getLongUrl());
+  }
+
+  @Test
+  public void testCreateBatchEmptyIsRejected() {
+    var response = makeCreateBatchRequest(List.of(), ApiError.class);
+    Assertions.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+    var apiError = response.getBody();
+    Assertions.assertNotNull(apiError);
+    Assertions.assertTrue(apiError.errorMessage.startsWith(UrlShortenerController.PARAM_URLS));
+  }
+
+  @ParameterizedTest
+  @NullAndEmptySource
+  public void testCreateBatchMissingValueIsRejected(String emptyUrl) {
+    var response = makeCreateBatchRequest(Arrays.asList("http://www.google.com", emptyUrl), ApiError.class);
+    Assertions.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    Assertions.assertEquals(0, urlStore.count());
+  }
+
+  @Test
+  public void testCreateBatchInvalidUrlIsRejected() {
+    var response = makeCreateBatchRequest(List.of("http://www.google.com", "www.example|.com"), ApiError.class);
+    Assertions.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+    var apiError = response.getBody();
+    Assertions.assertNotNull(apiError);
+    Assertions.assertTrue(apiError.errorMessage.contains("Invalid URI syntax"));
+    Assertions.assertEquals(0, urlStore.count());
+  }
+
   @Test
   public void testLookupSuccessful() {
     var longUrl = "http://www.google.com";
-    var hash = "ed646a33";
+    var hash = "5g73357h";
 
-    urlRepository.save(new StoredUrl(longUrl, hash));
+    urlStore.insertIfAbsent(new StoredUrl(longUrl, hash));
 
     var response = testRestTemplate.getForEntity(UrlShortenerController.PATH_LOOKUP, Void.class, hash);
 
@@ -123,6 +190,66 @@ public class UrlShortenerControllerIntegrationTest {
     Assertions.assertEquals(longUrl, response.getHeaders().getLocation().toString());
   }
 
+  @Test
+  public void testLookupIsCacheable() {
+    var hash = "5g73357h";
+    urlStore.insertIfAbsent(new StoredUrl("http://www.google.com", hash));
+
+    var response = testRestTemplate.getForEntity(UrlShortenerController.PATH_LOOKUP, Void.class, hash);
+
+    Assertions.assertEquals(HttpStatus.MOVED_PERMANENTLY, response.getStatusCode());
+    Assertions.assertEquals("public, max-age=3600", response.getHeaders().getCacheControl());
+    Assertions.assertEquals("\"" + hash + "\"", response.getHeaders().getETag());
+  }
+
+  @Test
+  public void testLookupRevalidatedIsNotModified() {
+    var hash = "5g73357h";
+    urlStore.insertIfAbsent(new StoredUrl("http://www.google.com", hash));
+
+    var headers = new HttpHeaders();
+    headers.setIfNoneMatch(List.of("\"other123\"", "W/\"" + hash + "\""));
+    var response = testRestTemplate.exchange(UrlShortenerController.PATH_LOOKUP, HttpMethod.GET,
+        new HttpEntity<>(headers), Void.class, hash);
+
+    Assertions.assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+    Assertions.assertEquals("\"" + hash + "\"", response.getHeaders().getETag());
+    Assertions.assertNull(response.getHeaders().getLocation());
+
+    // a revalidated redirect is followed, so it is counted
+    clickStatsService.flush();
+    var stats = testRestTemplate.getForEntity(UrlShortenerController.PATH_STATS_V1, ClickStats.class, hash);
+    Assertions.assertNotNull(stats.getBody());
+    Assertions.assertEquals(1, stats.getBody().clicks);
+  }
+
+  @Test
+  public void testLookupWithOtherEntityTagRedirects() {
+    var hash = "5g73357h";
+    urlStore.insertIfAbsent(new StoredUrl("http://www.google.com", hash));
+
+    var headers = new HttpHeaders();
+    headers.setIfNoneMatch("\"5g73357\"");
+    var response = testRestTemplate.exchange(UrlShortenerController.PATH_LOOKUP, HttpMethod.GET,
+        new HttpEntity<>(headers), Void.class, hash);
+
+    Assertions.assertEquals(HttpStatus.MOVED_PERMANENTLY, response.getStatusCode());
+    Assertions.assertEquals("http://www.google.com", response.getHeaders().getFirst(HttpHeaders.LOCATION));
+  }
+
+  @Test
+  public void testLookupEncodesNonAsciiLocation() {
+    var longUrl = "https://example.com/" + new String(new int[]{0xfc, 0x4e2d}, 0, 2);
+    var hash = "bkun4432";
+
+    urlStore.insertIfAbsent(new StoredUrl(longUrl, hash));
+
+    var response = testRestTemplate.getForEntity(UrlShortenerController.PATH_LOOKUP, Void.class, hash);
+
+    Assertions.assertEquals(HttpStatus.MOVED_PERMANENTLY, response.getStatusCode());
+    Assertions.assertEquals("https://example.com/%C3%BC%E4%B8%AD", response.getHeaders().getFirst(HttpHeaders.LOCATION));
+  }
+
   @Test
   public void testLookupNotFound() {
     var hash = "12345678";
@@ -151,6 +278,39 @@ public class UrlShortenerControllerIntegrationTest {
     Mockito.verify(hashService, Mockito.never()).lookup(any());
   }
 
+  @Test
+  public void testStatsCountsRedirects() {
+    var hash = "5g73357h";
+    urlStore.insertIfAbsent(new StoredUrl("http://www.google.com", hash));
+
+    var response = testRestTemplate.getForEntity(UrlShortenerController.PATH_STATS_V1, ClickStats.class, hash);
+    Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+    Assertions.assertNotNull(response.getBody());
+    Assertions.assertEquals(hash, response.getBody().hash);
+    Assertions.assertEquals(0, response.getBody().clicks);
+    Assertions.assertNull(response.getBody().lastAccessAt);
+
+    for (var i = 0; i < 3; i++) {
+      testRestTemplate.getForEntity(UrlShortenerController.PATH_LOOKUP, Void.class, hash);
+    }
+    clickStatsService.flush();
+    testRestTemplate.getForEntity(UrlShortenerController.PATH_LOOKUP, Void.class, hash);
+    clickStatsService.flush();
+
+    response = testRestTemplate.getForEntity(UrlShortenerController.PATH_STATS_V1, ClickStats.class, hash);
+    Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+    Assertions.assertNotNull(response.getBody());
+    Assertions.assertEquals(4, response.getBody().clicks);
+    Assertions.assertNotNull(response.getBody().lastAccessAt);
+  }
+
+  @Test
+  public void testStatsNotFound() {
+    var response = testRestTemplate.getForEntity(UrlShortenerController.PATH_STATS_V1, ClickStats.class, "12345678");
+
+    Assertions.assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+  }
+
   private <T> ResponseEntity<T> makeCreateRequest(String longUrl, Class<T> expectedResponseClass) {
     var headers = new HttpHeaders();
     headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
@@ -166,6 +326,12 @@ public class UrlShortenerControllerIntegrationTest {
         expectedResponseClass);
   }
 
+  private <T> ResponseEntity<T> makeCreateBatchRequest(List<String> longUrls, Class<T> expectedResponseClass) {
+    return testRestTemplate.postForEntity(UrlShortenerController.PATH_CREATE_BATCH_V2,
+        new BatchCreateRequest(longUrls),
+        expectedResponseClass);
+  }
+
   private void makeConcurrentCreateRequests(String sameUrl) throws InterruptedException {
     var numRequests = 10;
     var finishedLatch = new CountDownLatch(numRequests);
@@ -0,0 +1,115 @@
+package org.cecatto.urlshortener.controller;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.service.ClickStatsService;
+import org.cecatto.urlshortener.service.HashService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class UrlShortenerControllerTest {
+
+  private static final String HASH = "5g73357h";
+
+  private HashService mockedHashService;
+  private ClickStatsService mockedClickStatsService;
+  private UrlShortenerProperties properties;
+
+  @BeforeEach
+  public void setUp() {
+    mockedHashService = Mockito.mock(HashService.class);
+    Mockito.when(mockedHashService.hashUrl(any())).thenReturn(HASH);
+    Mockito.when(mockedHashService.lookup(HASH)).thenReturn(Optional.of("http://www.google.com"));
+    mockedClickStatsService = Mockito.mock(ClickStatsService.class);
+    properties = new UrlShortenerProperties();
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+      "http, 80, http://short.example/s/" + HASH,
+      "https, 443, https://short.example/s/" + HASH,
+      "http, 8080, http://short.example:8080/s/" + HASH,
+      "https, 80, https://short.example:80/s/" + HASH
+  })
+  public void testCreateLocationFromRequest(String scheme, int port, String expectedLocation) {
+    var request = new MockHttpServletRequest();
+    request.setScheme(scheme);
+    request.setServerName("short.example");
+    request.setServerPort(port);
+
+    var response = newController().createV1(URI.create("http://www.google.com"), request);
+
+    Assertions.assertEquals(expectedLocation, response.getHeaders().getFirst(HttpHeaders.LOCATION));
+  }
+
+  @Test
+  public void testCreateLocationFromBaseUrl() {
+    properties.getHttp().setBaseUrl("https://sho.rt/");
+    var request = new MockHttpServletRequest();
+    request.setServerName("10.0.0.1");
+    request.setServerPort(8080);
+
+    var response = newController().createV1(URI.create("http://www.google.com"), request);
+
+    Assertions.assertEquals("https://sho.rt/s/" + HASH, response.getHeaders().getFirst(HttpHeaders.LOCATION));
+  }
+
+  @Test
+  public void testLookupNotCacheableWithoutMaxAge() {
+    properties.getHttp().setRedirectMaxAge(Duration.ZERO);
+    var response = new MockHttpServletResponse();
+
+    newController().lookup(HASH, null, response);
+
+    Assertions.assertEquals(301, response.getStatus());
+    Assertions.assertEquals("no-cache", response.getHeader(HttpHeaders.CACHE_CONTROL));
+    Assertions.assertEquals("\"" + HASH + "\"", response.getHeader(HttpHeaders.ETAG));
+  }
+
+  @Test
+  public void testLookupNotFoundIsNotCacheable() {
+    var response = new MockHttpServletResponse();
+
+    newController().lookup("12345678", "*", response);
+
+    Assertions.assertEquals(404, response.getStatus());
+    Assertions.assertNull(response.getHeader(HttpHeaders.ETAG));
+    Assertions.assertNull(response.getHeader(HttpHeaders.CACHE_CONTROL));
+    Mockito.verify(mockedClickStatsService, Mockito.never()).recordClick(any());
+  }
+
+  @ParameterizedTest
+  @CsvSource(delimiter = '|', value = {
+      "\"5g73357h\"|true",
+      "W/\"5g73357h\"|true",
+      "*|true",
+      "\"other123\", \"5g73357h\"|true",
+      "\"5g73357\"|false",
+      "\"5g73357h1\"|false",
+      "\"other123\"|false",
+      "5g73357h|false",
+      "\"5g73357h|false",
+      "''|false"
+  })
+  public void testMatchesEntityTag(String ifNoneMatch, boolean expectedMatch) {
+    Assertions.assertEquals(expectedMatch, UrlShortenerController.matchesEntityTag(ifNoneMatch, HASH));
+  }
+
+  private UrlShortenerController newController() {
+    return new UrlShortenerController(mockedHashService, mockedClickStatsService, properties, new SimpleMeterRegistry());
+  }
+
+}
@@ -0,0 +1,199 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.cecatto.urlshortener.persistence.mapped.MappedFileUrlStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+public class MappedFileUrlStoreTest {
+
+  // the smallest chunk, so the tests go over several of them
+  private static final long CHUNK_SIZE = 64 * 1024;
+  private static final int HEADER_SIZE = 4096;
+
+  @TempDir
+  Path directory;
+
+  private Path path;
+  private MappedFileUrlStore store;
+
+  @BeforeEach
+  public void setUp() {
+    path = directory.resolve("urls.store");
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    store.close();
+  }
+
+  @Test
+  public void testStoredUrlIsFoundByHashAndByLongUrl() {
+    Assertions.assertEquals(Optional.of("5g73357h"), store.insertIfAbsent(new StoredUrl("http://www.google.com", "5g73357h")));
+
+    Assertions.assertEquals(Optional.of("http://www.google.com"), store.findLongUrlByHash("5g73357h"));
+    Assertions.assertEquals(Optional.of("5g73357h"), store.findHashByLongUrl("http://www.google.com"));
+    var storedUrl = store.findByHash("5g73357h").orElseThrow();
+    Assertions.assertEquals("http://www.google.com", storedUrl.getLongUrl());
+    Assertions.assertNotNull(storedUrl.getCreatedAt());
+    Assertions.assertEquals(1, store.count());
+
+    Assertions.assertTrue(store.findLongUrlByHash("c0xt4es4").isEmpty());
+    Assertions.assertTrue(store.findHashByLongUrl("http://www.example.com").isEmpty());
+  }
+
+  @Test
+  public void testInsertIfAbsentHonorsBothUniqueKeys() {
+    store.insertIfAbsent(new StoredUrl("http://www.google.com", "5g73357h"));
+
+    // same url: the hash it already had
+    Assertions.assertEquals(Optional.of("5g73357h"), store.insertIfAbsent(new StoredUrl("http://www.google.com", "c0xt4es4")));
+    // hash taken by another url: nothing
+    Assertions.assertTrue(store.insertIfAbsent(new StoredUrl("http://www.example.com", "5g73357h")).isEmpty());
+    Assertions.assertEquals(1, store.count());
+  }
+
+  @Test
+  public void testInsertAllIgnoresConflicts() {
+    store.insertIfAbsent(new StoredUrl("https://www.example.com", "iptd0j21"));
+
+    store.insertAllIgnoringConflicts(List.of(
+        new StoredUrl("http://www.google.com", "5g73357h"),
+        new StoredUrl("https://www.example.com", "c0xt4es4"),
+        new StoredUrl("http://www.example.com", "iptd0j21")));
+
+    Assertions.assertEquals(2, store.count());
+    Assertions.assertEquals(Map.of("http://www.google.com", "5g73357h", "https://www.example.com", "iptd0j21"),
+        store.findHashesByLongUrls(List.of("http://www.google.com", "https://www.example.com", "http://www.example.com")));
+  }
+
+  @Test
+  public void testNonAsciiUrlIsStoredAsIs() {
+    var longUrl = "https://example.com/" + new String(new int[]{0xfc, 0x4e2d, 0x1f600}, 0, 3);
+    store.insertIfAbsent(new StoredUrl(longUrl, "bkun4432"));
+
+    Assertions.assertEquals(Optional.of(longUrl), store.findLongUrlByHash("bkun4432"));
+    Assertions.assertEquals(Optional.of("bkun4432"), store.findHashByLongUrl(longUrl));
+  }
+
+  @Test
+  public void testReopenedStoreHasEveryUrl() {
+    // enough to grow the indexes and to fill several chunks
+    var storedUrls = storedUrls(5_000);
+    store.insertAllIgnoringConflicts(storedUrls.subList(0, 2_500));
+    storedUrls.subList(2_500, storedUrls.size()).forEach(store::insertIfAbsent);
+    var idBlock = store.allocateIdBlock();
+    store.close();
+
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+
+    Assertions.assertEquals(storedUrls.size(), store.count());
+    for (var storedUrl : storedUrls) {
+      Assertions.assertEquals(Optional.of(storedUrl.getLongUrl()), store.findLongUrlByHash(storedUrl.getHash()));
+      Assertions.assertEquals(Optional.of(storedUrl.getHash()), store.findHashByLongUrl(storedUrl.getLongUrl()));
+    }
+    Assertions.assertEquals(idBlock.getEnd(), store.allocateIdBlock().getStart());
+  }
+
+  @Test
+  public void testReopeningDiscardsIncompleteRecord() throws IOException {
+    store.insertIfAbsent(new StoredUrl("http://www.google.com", "5g73357h"));
+    var end = store.logBytes();
+    store.close();
+    // the length of a record that was not completely written, and part of its contents
+    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.allocate(16).putInt(64).putInt(0x12345678).putLong(42).flip(), HEADER_SIZE + end);
+    }
+
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+
+    Assertions.assertEquals(1, store.count());
+    Assertions.assertEquals(end, store.logBytes());
+    Assertions.assertEquals(Optional.of("c0xt4es4"), store.insertIfAbsent(new StoredUrl("http://www.example.com", "c0xt4es4")));
+    store.close();
+
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+    Assertions.assertEquals(2, store.count());
+    Assertions.assertEquals(Optional.of("http://www.example.com"), store.findLongUrlByHash("c0xt4es4"));
+  }
+
+  @Test
+  public void testReopeningDiscardsEverythingAfterCorruptedRecord() throws IOException {
+    store.insertIfAbsent(new StoredUrl("http://www.google.com", "5g73357h"));
+    var second = store.logBytes();
+    store.insertIfAbsent(new StoredUrl("http://www.example.com", "c0xt4es4"));
+    store.insertIfAbsent(new StoredUrl("https://www.example.com", "iptd0j21"));
+    store.close();
+    // a byte of the url of the second record
+    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{'X'}), HEADER_SIZE + second + 40);
+    }
+
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+
+    Assertions.assertEquals(1, store.count());
+    Assertions.assertEquals(Optional.of("http://www.google.com"), store.findLongUrlByHash("5g73357h"));
+    Assertions.assertTrue(store.findLongUrlByHash("c0xt4es4").isEmpty());
+    Assertions.assertTrue(store.findLongUrlByHash("iptd0j21").isEmpty());
+  }
+
+  @Test
+  public void testHashesAreStreamed() {
+    var before = OffsetDateTime.now().minusSeconds(1);
+    var storedUrls = storedUrls(100);
+    store.insertAllIgnoringConflicts(storedUrls);
+
+    var hashes = new HashSet<String>();
+    store.forEachHash(hashes::add);
+    Assertions.assertEquals(100, hashes.size());
+
+    var recentHashes = new HashSet<String>();
+    store.forEachHashCreatedSince(before, recentHashes::add);
+    Assertions.assertEquals(hashes, recentHashes);
+    store.forEachHashCreatedSince(OffsetDateTime.now().plusMinutes(1), recentHashes::remove);
+    Assertions.assertEquals(100, recentHashes.size());
+  }
+
+  @Test
+  public void testDeleteAllEmptiesTheStore() {
+    store.insertAllIgnoringConflicts(storedUrls(100));
+    store.deleteAll();
+
+    Assertions.assertEquals(0, store.count());
+    Assertions.assertTrue(store.findLongUrlByHash(String.format("h%07d", 0)).isEmpty());
+    store.insertIfAbsent(new StoredUrl("http://www.google.com", "5g73357h"));
+    store.close();
+
+    store = new MappedFileUrlStore(path, CHUNK_SIZE, true);
+    Assertions.assertEquals(1, store.count());
+  }
+
+  @Test
+  public void testStoreCanOnlyBeOpenedOnce() {
+    Assertions.assertThrows(IllegalStateException.class, () -> new MappedFileUrlStore(path, CHUNK_SIZE, true));
+  }
+
+  private static List<StoredUrl> storedUrls(int count) {
+    var storedUrls = new ArrayList<StoredUrl>(count);
+    for (var i = 0; i < count; i++) {
+      storedUrls.add(new StoredUrl("https://www.example.com/" + i, String.format("h%07d", i)));
+    }
+    return storedUrls;
+  }
+
+}
@@ -0,0 +1,80 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The notifications going through Postgres are checked by StoredUrlBroadcastIntegrationTest.
+ */
+public class PostgresUrlNotificationsTest {
+
+  @Test
+  public void testEncodeAndDecode() {
+    var storedUrls = List.of(new StoredUrl("http://a.example/\u00e9t\u00e9", "aaaaaaaa"),
+        new StoredUrl("http://b.example/?q=a b", "bbbbbbbb"));
+
+    var payloads = PostgresUrlNotifications.encode("sender1", 1234L, storedUrls);
+
+    Assertions.assertEquals(1, payloads.size());
+    var notification = PostgresUrlNotifications.decode(payloads.get(0));
+    Assertions.assertEquals("sender1", notification.getSender());
+    Assertions.assertEquals(1234L, notification.getSentAtMillis());
+    Assertions.assertEquals(storedUrls, notification.getStoredUrls());
+  }
+
+  @Test
+  public void testPayloadsStayUnderTheLimit() {
+    var storedUrls = new ArrayList<StoredUrl>();
+    for (var i = 0; i < 1000; i++) {
+      // 3 bytes per char
+      storedUrls.add(new StoredUrl("http://example.com/" + "\u20ac".repeat(i % 50), String.format("%08d", i)));
+    }
+
+    var payloads = PostgresUrlNotifications.encode("sender1", 1234L, storedUrls);
+
+    Assertions.assertTrue(payloads.size() > 1);
+    var decoded = new ArrayList<StoredUrl>();
+    for (var payload : payloads) {
+      var bytes = payload.getBytes(StandardCharsets.UTF_8).length;
+      Assertions.assertTrue(bytes <= PostgresUrlNotifications.MAX_PAYLOAD_BYTES, "payload of " + bytes + " bytes");
+      var notification = PostgresUrlNotifications.decode(payload);
+      Assertions.assertEquals("sender1", notification.getSender());
+      decoded.addAll(notification.getStoredUrls());
+    }
+    Assertions.assertEquals(storedUrls, decoded);
+  }
+
+  @Test
+  public void testOnlyTheHashOfTooLongUrlsIsSent() {
+    var longUrl = "http://example.com/" + "a".repeat(PostgresUrlNotifications.MAX_PAYLOAD_BYTES);
+    var storedUrls = List.of(new StoredUrl("http://a.example", "aaaaaaaa"), new StoredUrl(longUrl, "bbbbbbbb"));
+
+    var payloads = PostgresUrlNotifications.encode("sender1", 1234L, storedUrls);
+
+    Assertions.assertEquals(1, payloads.size());
+    var decoded = PostgresUrlNotifications.decode(payloads.get(0)).getStoredUrls();
+    Assertions.assertEquals(2, decoded.size());
+    Assertions.assertEquals(new StoredUrl("http://a.example", "aaaaaaaa"), decoded.get(0));
+    Assertions.assertEquals("bbbbbbbb", decoded.get(1).getHash());
+    Assertions.assertNull(decoded.get(1).getLongUrl());
+  }
+
+  @Test
+  public void testSubscribeWithoutCredentials() {
+    var dataSourceProperties = new DataSourceProperties();
+    // nothing listening there
+    dataSourceProperties.setUrl("jdbc:postgresql://localhost:1/url_shortener");
+    var notifications = new PostgresUrlNotifications(new JdbcTemplate(), dataSourceProperties);
+
+    // fails to connect, not on the missing password
+    Assertions.assertThrows(SQLException.class, notifications::subscribe);
+  }
+
+}
@@ -0,0 +1,125 @@
+package org.cecatto.urlshortener.persistence;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionOperations;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class PostgresUrlStoreTest {
+
+  private static final String HASH = "5g73357h";
+  private static final String LONG_URL = "http://www.google.com";
+
+  private JdbcTemplate mockedPrimary;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  public void setUp() {
+    mockedPrimary = Mockito.mock(JdbcTemplate.class);
+    Mockito.when(mockedPrimary.queryForList(anyString(), eq(String.class), eq(HASH))).thenReturn(List.of(LONG_URL));
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  public void testLookupWithoutReplicasGoesToPrimary() {
+    var store = new PostgresUrlStore(mockedPrimary, ReadReplicas.none(),
+        TransactionOperations.withoutTransaction(), meterRegistry);
+
+    Assertions.assertEquals(Optional.of(LONG_URL), store.findLongUrlByHash(HASH));
+    Mockito.verify(mockedPrimary, Mockito.times(1)).queryForList(anyString(), eq(String.class), eq(HASH));
+  }
+
+  @Test
+  public void testLookupFoundOnReplicaSkipsPrimary() throws Exception {
+    var replica = replicaReturning(LONG_URL);
+    var store = new PostgresUrlStore(mockedPrimary, new ReadReplicas(List.of(replica)),
+        TransactionOperations.withoutTransaction(), meterRegistry);
+    // the layout of stored_url is read from the primary once
+    Mockito.clearInvocations(mockedPrimary);
+
+    Assertions.assertEquals(Optional.of(LONG_URL), store.findLongUrlByHash(HASH));
+    Mockito.verify(replica, Mockito.times(1)).getConnection();
+    Mockito.verifyNoInteractions(mockedPrimary);
+  }
+
+  @Test
+  public void testLookupMissingOnReplicaFallsBackToPrimary() throws Exception {
+    var replica = replicaReturning();
+    var store = new PostgresUrlStore(mockedPrimary, new ReadReplicas(List.of(replica)),
+        TransactionOperations.withoutTransaction(), meterRegistry);
+
+    Assertions.assertEquals(Optional.of(LONG_URL), store.findLongUrlByHash(HASH));
+    Mockito.verify(mockedPrimary, Mockito.times(1)).queryForList(anyString(), eq(String.class), eq(HASH));
+    Assertions.assertEquals(1, fallbackCount("miss"));
+  }
+
+  @Test
+  public void testLookupFailingOnReplicaFallsBackToPrimary() throws Exception {
+    var replica = Mockito.mock(DataSource.class);
+    Mockito.when(replica.getConnection()).thenThrow(new SQLException("Connection refused"));
+    var store = new PostgresUrlStore(mockedPrimary, new ReadReplicas(List.of(replica)),
+        TransactionOperations.withoutTransaction(), meterRegistry);
+
+    Assertions.assertEquals(Optional.of(LONG_URL), store.findLongUrlByHash(HASH));
+    Assertions.assertEquals(1, fallbackCount("error"));
+  }
+
+  @Test
+  public void testReplicasAreUsedInTurn() throws Exception {
+    var first = replicaReturning(LONG_URL);
+    var second = replicaReturning(LONG_URL);
+    var store = new PostgresUrlStore(mockedPrimary, new ReadReplicas(List.of(first, second)),
+        TransactionOperations.withoutTransaction(), meterRegistry);
+
+    for (var i = 0; i < 4; i++) {
+      store.findLongUrlByHash(HASH);
+    }
+
+    Mockito.verify(first, Mockito.times(2)).getConnection();
+    Mockito.verify(second, Mockito.times(2)).getConnection();
+  }
+
+  /**
+   * @return a datasource whose queries return the given values, in a single column
+   */
+  private static DataSource replicaReturning(String... values) throws SQLException {
+    var metaData = Mockito.mock(ResultSetMetaData.class);
+    Mockito.when(metaData.getColumnCount()).thenReturn(1);
+
+    var dataSource = Mockito.mock(DataSource.class);
+    Mockito.when(dataSource.getConnection()).thenAnswer(invocation -> {
+      var resultSet = Mockito.mock(ResultSet.class);
+      var rows = new int[]{-1};
+      Mockito.when(resultSet.getMetaData()).thenReturn(metaData);
+      Mockito.when(resultSet.next()).thenAnswer(next -> ++rows[0] < values.length);
+      Mockito.when(resultSet.getString(1)).thenAnswer(get -> values[rows[0]]);
+
+      var statement = Mockito.mock(PreparedStatement.class);
+      Mockito.when(statement.executeQuery()).thenReturn(resultSet);
+      var connection = Mockito.mock(Connection.class);
+      Mockito.when(connection.prepareStatement(anyString())).thenReturn(statement);
+      return connection;
+    });
+    return dataSource;
+  }
+
+  private double fallbackCount(String reason) {
+    return meterRegistry.get("shortener.db.replica.fallbacks").tag("reason", reason).counter().count();
+  }
+
+}
@@ -0,0 +1,122 @@
+package org.cecatto.urlshortener.persistence;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.service.HashService;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Lookups against a primary and a streaming replica, in their own containers (not the shared one of the
+ * integration-tests profile).
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class ReadReplicasIntegrationTest {
+
+  private static final ReplicatedPostgres postgres = ReplicatedPostgres.start(1);
+
+  @Autowired
+  private HashService hashService;
+
+  @Autowired
+  private UrlRepository urlRepository;
+
+  @Autowired
+  private UrlLookupCache lookupCache;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @DynamicPropertySource
+  static void datasources(DynamicPropertyRegistry registry) {
+    registry.add("spring.datasource.url", postgres::getPrimaryJdbcUrl);
+    registry.add("spring.datasource.username", postgres::getUsername);
+    registry.add("spring.datasource.password", postgres::getPassword);
+    registry.add("url-shortener.read-replicas.urls", () -> String.join(",", postgres.getReplicaJdbcUrls()));
+  }
+
+  @AfterEach
+  public void tearDown() {
+    replica().execute("select pg_wal_replay_resume()");
+    urlRepository.deleteAll();
+    lookupCache.invalidateAll();
+  }
+
+  @Test
+  public void testLookupIsServedByReplica() throws Exception {
+    var hash = hashService.hashUrl(URI.create("https://www.example.com/replicated"));
+    awaitReplicated(hash);
+    lookupCache.invalidateAll();
+    var replicaLookups = queryCount("find_long_url_by_hash_on_replica");
+    var primaryLookups = queryCount("find_long_url_by_hash");
+
+    var longUrl = hashService.lookup(hash);
+
+    Assertions.assertEquals("https://www.example.com/replicated", longUrl.orElseThrow());
+    Assertions.assertEquals(replicaLookups + 1, queryCount("find_long_url_by_hash_on_replica"));
+    Assertions.assertEquals(primaryLookups, queryCount("find_long_url_by_hash"));
+  }
+
+  @Test
+  public void testLookupFallsBackToPrimaryWhileReplicaLags() {
+    // the replica keeps receiving the WAL but doesn't apply it, as if it was far behind
+    replica().execute("select pg_wal_replay_pause()");
+    var misses = fallbackCount("miss");
+
+    var hash = hashService.hashUrl(URI.create("https://www.example.com/not-replicated-yet"));
+    lookupCache.invalidateAll();
+    var longUrl = hashService.lookup(hash);
+
+    Assertions.assertEquals("https://www.example.com/not-replicated-yet", longUrl.orElseThrow());
+    Assertions.assertEquals(misses + 1, fallbackCount("miss"));
+  }
+
+  @Test
+  public void testCreateGoesToPrimary() {
+    // the replica is read-only, so this would fail if routed there
+    var hashes = hashService.hashUrls(List.of(URI.create("https://www.example.com/a"),
+        URI.create("https://www.example.com/b")));
+
+    Assertions.assertEquals(2, hashes.size());
+    Assertions.assertEquals(2, urlRepository.count());
+  }
+
+  private JdbcTemplate replica() {
+    return new JdbcTemplate(new DriverManagerDataSource(postgres.getReplicaJdbcUrls().get(0),
+        postgres.getUsername(), postgres.getPassword()));
+  }
+
+  private void awaitReplicated(String hash) throws InterruptedException {
+    var replica = replica();
+    for (var i = 0; i < 100; i++) {
+      var found = replica.queryForObject("select count(*) from stored_url where hash = ?", Long.class, hash);
+      if (found != null && found > 0) {
+        return;
+      }
+      Thread.sleep(100);
+    }
+    Assertions.fail("Hash " + hash + " was not replicated in time");
+  }
+
+  private long queryCount(String query) {
+    return meterRegistry.get("shortener.db.query").tag("query", query).timer().count();
+  }
+
+  private double fallbackCount(String reason) {
+    return meterRegistry.get("shortener.db.replica.fallbacks").tag("reason", reason).counter().count();
+  }
+
+}
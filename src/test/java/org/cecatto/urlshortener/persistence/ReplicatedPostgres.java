@@ -0,0 +1,103 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+import org.testcontainers.utility.MountableFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A Postgres primary and the given number of hot standbys, cloned from it with pg_basebackup and kept up to date by
+ * streaming replication (asynchronous, as usually deployed), each one in its own container.
+ */
+public class ReplicatedPostgres implements AutoCloseable {
+
+  private static final DockerImageName IMAGE = DockerImageName.parse("postgres:14.2");
+  private static final int PORT = 5432;
+  private static final String PRIMARY_ALIAS = "primary";
+
+  private final Network network;
+  private final PostgreSQLContainer<?> primary;
+  private final List<GenericContainer<?>> replicas;
+
+  private ReplicatedPostgres(Network network, PostgreSQLContainer<?> primary, List<GenericContainer<?>> replicas) {
+    this.network = network;
+    this.primary = primary;
+    this.replicas = replicas;
+  }
+
+  public static ReplicatedPostgres start(int numReplicas) {
+    return start(numReplicas, 0);
+  }
+
+  /**
+   * @param cpusPerInstance cpus available to each instance, so that they don't compete for the cpus of the host when
+   *                        comparing throughputs; 0 for no limit
+   */
+  @SuppressWarnings("resource")
+  public static ReplicatedPostgres start(int numReplicas, double cpusPerInstance) {
+    var network = Network.newNetwork();
+    var primary = new PostgreSQLContainer<>(IMAGE)
+        .withNetwork(network)
+        .withNetworkAliases(PRIMARY_ALIAS)
+        .withCopyFileToContainer(MountableFile.forClasspathResource("replication/primary-init.sh", 0755),
+            "/docker-entrypoint-initdb.d/replication.sh");
+    limitCpus(primary, cpusPerInstance);
+    primary.start();
+
+    var replicas = new ArrayList<GenericContainer<?>>();
+    for (var i = 0; i < numReplicas; i++) {
+      var replica = new GenericContainer<>(IMAGE)
+          .withNetwork(network)
+          .withExposedPorts(PORT)
+          .withEnv("PGPASSWORD", primary.getPassword())
+          // -R writes the primary_conninfo and standby.signal, so the server starts as a standby of the primary
+          .withCreateContainerCmdModifier(cmd -> cmd.withUser("postgres").withEntrypoint("bash", "-c",
+              "pg_basebackup -h " + PRIMARY_ALIAS + " -p " + PORT + " -U " + primary.getUsername() +
+              " -D \"$PGDATA\" -R -X stream && chmod 700 \"$PGDATA\" && exec postgres"))
+          .waitingFor(Wait.forLogMessage(".*ready to accept read.only connections.*\\n", 1));
+      limitCpus(replica, cpusPerInstance);
+      replica.start();
+      replicas.add(replica);
+    }
+    return new ReplicatedPostgres(network, primary, replicas);
+  }
+
+  private static void limitCpus(GenericContainer<?> container, double cpus) {
+    if (cpus > 0) {
+      container.withCreateContainerCmdModifier(cmd -> cmd.getHostConfig().withNanoCPUs((long) (cpus * 1e9)));
+    }
+  }
+
+  public String getUsername() {
+    return primary.getUsername();
+  }
+
+  public String getPassword() {
+    return primary.getPassword();
+  }
+
+  public String getPrimaryJdbcUrl() {
+    return primary.getJdbcUrl();
+  }
+
+  public List<String> getReplicaJdbcUrls() {
+    return replicas.stream()
+        .map(replica -> "jdbc:postgresql://" + replica.getHost() + ":" + replica.getMappedPort(PORT) + "/" +
+            primary.getDatabaseName())
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public void close() {
+    replicas.forEach(GenericContainer::stop);
+    primary.stop();
+    network.close();
+  }
+
+}
@@ -0,0 +1,145 @@
+package org.cecatto.urlshortener.persistence;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Runs the optional migration hash partitioning stored_url (V6.1) against a table that already has rows, and the
+ * store against the partitioned table.
+ */
+public class StoredUrlPartitionedIntegrationTest {
+
+  // its own database, so it doesn't interfere with the application context of the other tests
+  private static final String URL = "jdbc:tc:postgresql:14.2:///partitioning?TC_DAEMON=true";
+  // more than a couple of copy batches
+  private static final int NUM_ROWS = 25_000;
+  private static final int PARTITIONS = 8;
+  private static final String URL_1 = "https://www.example.com/1";
+  private static final String URL_2 = "https://www.example.com/2";
+  private static final String URL_3 = "https://www.example.com/3";
+  private static final String URL_4 = "https://www.example.com/4";
+
+  private DriverManagerDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  public void setUp() {
+    dataSource = new DriverManagerDataSource(URL, "postgres", "postgres");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    flyway(false).clean();
+  }
+
+  @Test
+  public void testExistingRowsAreMigrated() {
+    flyway(false).migrate();
+    jdbcTemplate.update("insert into stored_url (long_url, hash) " +
+        "select 'https://www.example.com/' || i, 'code' || lpad(i::text, 8, '0') from generate_series(1, ?) i",
+        NUM_ROWS);
+
+    flyway(true).migrate();
+
+    Assertions.assertEquals("p", jdbcTemplate.queryForObject(
+        "select relkind from pg_class where oid = 'stored_url'::regclass", String.class));
+    Assertions.assertEquals(NUM_ROWS, jdbcTemplate.queryForObject("select count(*) from stored_url", Long.class));
+    Assertions.assertEquals(NUM_ROWS, jdbcTemplate.queryForObject(
+        "select count(*) from stored_url_long_url", Long.class));
+    Assertions.assertEquals(NUM_ROWS, jdbcTemplate.queryForObject(
+        "select count(*) from stored_url_unpartitioned", Long.class));
+    Assertions.assertEquals(PARTITIONS, jdbcTemplate.queryForObject(
+        "select count(*) from pg_inherits where inhparent = 'stored_url'::regclass", Long.class));
+    // used by the instances started before the migration
+    Assertions.assertEquals(List.of("stored_url_created_at_idx", "stored_url_long_url_digest_idx", "stored_url_pkey"),
+        jdbcTemplate.queryForList("select indexname from pg_indexes where tablename = 'stored_url' order by indexname",
+            String.class));
+
+    var store = newStore();
+    Assertions.assertEquals(Optional.of("https://www.example.com/42"), store.findLongUrlByHash("code00000042"));
+    Assertions.assertEquals(Optional.of("code00000042"), store.findHashByLongUrl("https://www.example.com/42"));
+    // the url is already stored, whatever the hash
+    Assertions.assertEquals(Optional.of("code00000042"),
+        store.insertIfAbsent(new StoredUrl("https://www.example.com/42", "othercode")));
+    Assertions.assertEquals(NUM_ROWS, store.count());
+  }
+
+  @Test
+  public void testLookupsAreRoutedToThePartitions() {
+    flyway(true).migrate();
+
+    var partitions = StoredUrlPartitions.load(jdbcTemplate);
+
+    Assertions.assertTrue(partitions.isPartitioned());
+    Assertions.assertTrue(partitions.isRouted());
+    var store = newStore();
+    for (var i = 0; i < 100; i++) {
+      store.insertIfAbsent(new StoredUrl("https://www.example.com/" + i, "code" + i));
+    }
+    for (var i = 0; i < 100; i++) {
+      Assertions.assertEquals(Optional.of("https://www.example.com/" + i), store.findLongUrlByHash("code" + i));
+      Assertions.assertEquals("code" + i, store.findByHash("code" + i).orElseThrow().getHash());
+      Assertions.assertEquals(partitions.partitions()[partitions.partitionOf("code" + i)], jdbcTemplate.queryForObject(
+          "select tableoid::regclass::text from stored_url where hash = ?", String.class, "code" + i));
+    }
+  }
+
+  @Test
+  public void testUrlsAreDeduplicated() {
+    flyway(true).migrate();
+    var store = newStore();
+
+    Assertions.assertEquals(Optional.of("code1"), store.insertIfAbsent(new StoredUrl(URL_1, "code1")));
+    // the url again, with another hash
+    Assertions.assertEquals(Optional.of("code1"), store.insertIfAbsent(new StoredUrl(URL_1, "code2")));
+    // another url, with a hash that is taken: its claim is left behind
+    Assertions.assertEquals(Optional.empty(), store.insertIfAbsent(new StoredUrl(URL_2, "code1")));
+    Assertions.assertEquals(Optional.empty(), store.findHashByLongUrl(URL_2));
+    // and taken over by the next attempt
+    Assertions.assertEquals(Optional.of("code2"), store.insertIfAbsent(new StoredUrl(URL_2, "code2")));
+    Assertions.assertEquals(Optional.of("code2"), store.findHashByLongUrl(URL_2));
+
+    store.insertAllIgnoringConflicts(List.of(
+        new StoredUrl(URL_1, "code3"),
+        new StoredUrl(URL_3, "code3"),
+        new StoredUrl(URL_4, "code3")));
+    Assertions.assertEquals(Map.of(URL_1, "code1", URL_2, "code2", URL_3, "code3"),
+        store.findHashesByLongUrls(List.of(URL_1, URL_2, URL_3, URL_4)));
+    Assertions.assertEquals(3, store.count());
+
+    // deleting a url releases its claim
+    jdbcTemplate.update("delete from stored_url where hash = 'code1'");
+    Assertions.assertEquals(Optional.of("code4"), store.insertIfAbsent(new StoredUrl(URL_1, "code4")));
+
+    store.deleteAll();
+    Assertions.assertEquals(0, store.count());
+    Assertions.assertEquals(0, jdbcTemplate.queryForObject("select count(*) from stored_url_long_url", Long.class));
+  }
+
+  private PostgresUrlStore newStore() {
+    return new PostgresUrlStore(jdbcTemplate, ReadReplicas.none(), TransactionOperations.withoutTransaction(),
+        new SimpleMeterRegistry());
+  }
+
+  private Flyway flyway(boolean partitioned) {
+    var locations = partitioned ?
+        new String[]{"classpath:db/migration", "classpath:org/cecatto/urlshortener/persistence/migration",
+            "classpath:org/cecatto/urlshortener/persistence/partitioning"} :
+        new String[]{"classpath:db/migration", "classpath:org/cecatto/urlshortener/persistence/migration"};
+    return Flyway.configure()
+        .dataSource(dataSource)
+        .cleanDisabled(false)
+        .locations(locations)
+        .outOfOrder(true)
+        .placeholders(Map.of("stored-url-partitions", String.valueOf(PARTITIONS)))
+        .load();
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+/**
+ * The partitions computed for the hashes are checked against Postgres by StoredUrlPartitionedIntegrationTest.
+ */
+public class StoredUrlPartitionsTest {
+
+  private JdbcTemplate mockedJdbcTemplate;
+
+  @BeforeEach
+  public void setUp() {
+    mockedJdbcTemplate = Mockito.mock(JdbcTemplate.class);
+  }
+
+  @Test
+  public void testSingleTable() {
+    var partitions = StoredUrlPartitions.load(mockedJdbcTemplate);
+
+    Assertions.assertFalse(partitions.isPartitioned());
+    Assertions.assertFalse(partitions.isRouted());
+  }
+
+  @Test
+  public void testHashPartitionsAreRoutedOnceChecked() {
+    withPartitions(4, 0, 1, 2, 3);
+    withMisrouted(0);
+
+    var partitions = StoredUrlPartitions.load(mockedJdbcTemplate);
+
+    Assertions.assertTrue(partitions.isPartitioned());
+    Assertions.assertTrue(partitions.isRouted());
+    Assertions.assertArrayEquals(new String[]{"stored_url_p0", "stored_url_p1", "stored_url_p2", "stored_url_p3"},
+        partitions.partitions());
+  }
+
+  @Test
+  public void testMisroutedHashesAreNotRouted() {
+    withPartitions(4, 0, 1, 2, 3);
+    withMisrouted(3);
+
+    var partitions = StoredUrlPartitions.load(mockedJdbcTemplate);
+
+    Assertions.assertTrue(partitions.isPartitioned());
+    Assertions.assertFalse(partitions.isRouted());
+  }
+
+  @Test
+  public void testPartitionsOfDifferentModuliAreNotRouted() {
+    // e.g. one of 2 partitions split in 2 of modulus 4
+    withPartitions(4, 0, 1, 3);
+    withMisrouted(0);
+
+    var partitions = StoredUrlPartitions.load(mockedJdbcTemplate);
+
+    Assertions.assertTrue(partitions.isPartitioned());
+    Assertions.assertFalse(partitions.isRouted());
+  }
+
+  @Test
+  public void testHashesAreSpreadOverThePartitions() {
+    var random = new SplittableRandom(42);
+    var counts = new int[16];
+    for (var i = 0; i < 160_000; i++) {
+      var hash = Long.toString(random.nextLong() & Long.MAX_VALUE, 36).substring(0, 8);
+      counts[StoredUrlPartitions.remainder(hash, counts.length)]++;
+    }
+
+    for (var count : counts) {
+      Assertions.assertEquals(10_000, count, 500);
+    }
+  }
+
+  @Test
+  public void testHashCoversEveryByte() {
+    // the tail of every length up to two blocks
+    var bytes = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+    for (var length = 1; length <= 24; length++) {
+      var key = new byte[length];
+      System.arraycopy(bytes, 0, key, 0, length);
+      var hash = StoredUrlPartitions.hashTextExtended(key, 0);
+      for (var i = 0; i < length; i++) {
+        key[i]++;
+        Assertions.assertNotEquals(hash, StoredUrlPartitions.hashTextExtended(key, 0), "byte " + i + " of " + length);
+        key[i]--;
+      }
+      Assertions.assertNotEquals(hash, StoredUrlPartitions.hashTextExtended(key, 1));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void withPartitions(int modulus, int... remainders) {
+    var bounds = new ArrayList<String[]>();
+    for (var remainder : remainders) {
+      bounds.add(new String[]{"stored_url_p" + remainder,
+          "FOR VALUES WITH (modulus " + modulus + ", remainder " + remainder + ")"});
+    }
+    Mockito.when(mockedJdbcTemplate.query(anyString(), any(RowMapper.class))).thenReturn(List.copyOf(bounds));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void withMisrouted(long misrouted) {
+    Mockito.when(mockedJdbcTemplate.query(anyString(), any(PreparedStatementSetter.class),
+        any(ResultSetExtractor.class))).thenReturn(misrouted);
+  }
+
+}
@@ -0,0 +1,73 @@
+package org.cecatto.urlshortener.persistence;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * Runs the migration moving the primary key to hash (V3 and V4) against a table that already has rows, which the
+ * other integration tests can't do since they start from an empty database.
+ */
+public class StoredUrlSchemaMigrationIntegrationTest {
+
+  // its own database, so it doesn't interfere with the application context of the other tests
+  private static final String URL = "jdbc:tc:postgresql:14.2:///schema_migration?TC_DAEMON=true";
+  // more than a couple of backfill batches
+  private static final int NUM_ROWS = 25_000;
+
+  private DriverManagerDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  public void setUp() {
+    dataSource = new DriverManagerDataSource(URL, "postgres", "postgres");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    flyway(null).clean();
+  }
+
+  @Test
+  public void testExistingRowsAreMigrated() {
+    flyway("3").migrate();
+    // rows stored before the trigger existed
+    jdbcTemplate.execute("alter table stored_url disable trigger stored_url_set_long_url_digest");
+    jdbcTemplate.update("insert into stored_url (long_url, hash) " +
+        "select 'https://www.example.com/' || i, 'code' || lpad(i::text, 8, '0') from generate_series(1, ?) i", NUM_ROWS);
+    jdbcTemplate.execute("alter table stored_url enable trigger stored_url_set_long_url_digest");
+
+    flyway(null).migrate();
+
+    Assertions.assertEquals(0, jdbcTemplate.queryForObject(
+        "select count(*) from stored_url where long_url_digest is distinct from sha256(convert_to(long_url, 'UTF8'))",
+        Long.class));
+    Assertions.assertEquals("hash", jdbcTemplate.queryForObject(
+        "select a.attname from pg_index i join pg_attribute a on a.attrelid = i.indrelid and a.attnum = i.indkey[0] " +
+        "where i.indrelid = 'stored_url'::regclass and i.indisprimary", String.class));
+    Assertions.assertEquals(0, jdbcTemplate.queryForObject(
+        "select count(*) from pg_index where indrelid = 'stored_url'::regclass and not indisvalid", Long.class));
+    Assertions.assertEquals(Boolean.TRUE, jdbcTemplate.queryForObject(
+        "select attnotnull from pg_attribute where attrelid = 'stored_url'::regclass and attname = 'long_url_digest'",
+        Boolean.class));
+
+    // urls are now deduplicated on the digest
+    Assertions.assertThrows(DuplicateKeyException.class, () -> jdbcTemplate.update(
+        "insert into stored_url (long_url, hash) values ('https://www.example.com/1', 'othercode')"));
+    jdbcTemplate.update("insert into stored_url (long_url, hash) values ('https://www.example.com/0', 'othercode')");
+    Assertions.assertEquals(NUM_ROWS + 1, jdbcTemplate.queryForObject("select count(*) from stored_url", Long.class));
+  }
+
+  private Flyway flyway(String target) {
+    var configuration = Flyway.configure()
+        .dataSource(dataSource)
+        .cleanDisabled(false)
+        .locations("classpath:db/migration", "classpath:org/cecatto/urlshortener/persistence/migration");
+    if (target != null) {
+      configuration.target(target);
+    }
+    return configuration.load();
+  }
+
+}
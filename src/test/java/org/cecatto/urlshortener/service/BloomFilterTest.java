@@ -0,0 +1,84 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.service.impl.BloomFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BloomFilterTest {
+
+  @Test
+  public void testIsSizedForFalsePositiveRate() {
+    var filter = new BloomFilter(100_000_000, 0.01);
+
+    // ~9.59 bits per entry and 7 hash functions
+    Assertions.assertEquals(958_505_856, filter.bitSize(), 64);
+    Assertions.assertEquals(7, filter.hashFunctions());
+    Assertions.assertEquals(filter.bitSize() / 8, filter.memoryBytes());
+  }
+
+  @ParameterizedTest
+  @ValueSource(doubles = {0.1, 0.01, 0.001})
+  public void testHasNoFalseNegativesAndExpectedFalsePositives(double falsePositiveRate) {
+    var numEntries = 200_000;
+    var filter = new BloomFilter(numEntries, falsePositiveRate);
+    for (var i = 0; i < numEntries; i++) {
+      filter.put(String.format("%08x", i));
+    }
+
+    for (var i = 0; i < numEntries; i++) {
+      Assertions.assertTrue(filter.mightContain(String.format("%08x", i)));
+    }
+    var falsePositives = 0;
+    for (var i = numEntries; i < 2 * numEntries; i++) {
+      if (filter.mightContain(String.format("%08x", i))) {
+        falsePositives++;
+      }
+    }
+    var actualRate = falsePositives / (double) numEntries;
+    Assertions.assertTrue(actualRate < falsePositiveRate * 1.3,
+        "false positive rate " + actualRate + " above " + falsePositiveRate);
+    Assertions.assertEquals(falsePositiveRate, filter.expectedFalsePositiveRate(), falsePositiveRate * 0.3);
+  }
+
+  @Test
+  public void testConcurrentPutsAreNotLost() throws Exception {
+    var numThreads = 8;
+    var entriesPerThread = 50_000;
+    var filter = new BloomFilter(numThreads * entriesPerThread, 0.01);
+    var executor = Executors.newFixedThreadPool(numThreads);
+    var results = new ArrayList<Future<?>>();
+
+    for (var t = 0; t < numThreads; t++) {
+      var thread = t;
+      results.add(executor.submit(() -> {
+        for (var i = 0; i < entriesPerThread; i++) {
+          filter.put(thread + "-" + i);
+        }
+      }));
+    }
+    for (var result : results) {
+      result.get();
+    }
+    executor.shutdown();
+
+    for (var t = 0; t < numThreads; t++) {
+      for (var i = 0; i < entriesPerThread; i++) {
+        Assertions.assertTrue(filter.mightContain(t + "-" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidParametersAreRejected() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new BloomFilter(0, 0.01));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new BloomFilter(1000, 0));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new BloomFilter(1000, 1));
+  }
+
+}
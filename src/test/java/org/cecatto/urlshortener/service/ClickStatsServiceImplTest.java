@@ -0,0 +1,163 @@
+package org.cecatto.urlshortener.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
+import org.cecatto.urlshortener.service.impl.ClickStatsServiceImpl;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class ClickStatsServiceImplTest {
+
+  private ClickStatsRepository mockedRepository;
+  private UrlShortenerProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  // hash -> clicks, of every addClicks call
+  private HashMap<String, Long> writtenClicks;
+  private List<String[]> writtenBatches;
+
+  @BeforeEach
+  public void setUp() {
+    mockedRepository = Mockito.mock(ClickStatsRepository.class);
+    properties = new UrlShortenerProperties();
+    meterRegistry = new SimpleMeterRegistry();
+    writtenClicks = new HashMap<>();
+    writtenBatches = new ArrayList<>();
+    Mockito.doAnswer(invocation -> {
+      String[] hashes = invocation.getArgument(0);
+      long[] clicks = invocation.getArgument(1);
+      writtenBatches.add(hashes);
+      for (var i = 0; i < hashes.length; i++) {
+        writtenClicks.merge(hashes[i], clicks[i], Long::sum);
+      }
+      return null;
+    }).when(mockedRepository).addClicks(any(), any(), any());
+  }
+
+  // not started, so clicks are only written when flushed by the test
+  private ClickStatsServiceImpl createService() {
+    return new ClickStatsServiceImpl(mockedRepository, properties, meterRegistry);
+  }
+
+  @Test
+  public void testFlushAggregatesClicksInSortedBatches() {
+    properties.getClicks().setFlushBatchSize(2);
+    var service = createService();
+
+    for (var hash : List.of("cccccccc", "aaaaaaaa", "bbbbbbbb", "aaaaaaaa", "cccccccc", "aaaaaaaa")) {
+      service.recordClick(hash);
+    }
+    service.flush();
+
+    Assertions.assertEquals(2, writtenBatches.size());
+    Assertions.assertArrayEquals(new String[]{"aaaaaaaa", "bbbbbbbb"}, writtenBatches.get(0));
+    Assertions.assertArrayEquals(new String[]{"cccccccc"}, writtenBatches.get(1));
+    Assertions.assertEquals(3, writtenClicks.get("aaaaaaaa"));
+    Assertions.assertEquals(1, writtenClicks.get("bbbbbbbb"));
+    Assertions.assertEquals(2, writtenClicks.get("cccccccc"));
+    Assertions.assertEquals(6, meterRegistry.get("shortener.clicks.flushed").counter().count());
+
+    // nothing pending anymore
+    service.flush();
+    Assertions.assertEquals(2, writtenBatches.size());
+  }
+
+  @Test
+  public void testClicksAreDroppedWhenBufferIsFull() {
+    properties.getClicks().setBufferSize(4);
+    var service = createService();
+
+    for (var i = 0; i < 6; i++) {
+      service.recordClick("aaaaaaaa");
+    }
+    Assertions.assertEquals(2, meterRegistry.get("shortener.clicks.dropped").tag("reason", "buffer_full").counter().count());
+
+    service.flush();
+    Assertions.assertEquals(4, writtenClicks.get("aaaaaaaa"));
+
+    // room again after flushing
+    service.recordClick("aaaaaaaa");
+    service.flush();
+    Assertions.assertEquals(5, writtenClicks.get("aaaaaaaa"));
+  }
+
+  @Test
+  public void testFailedFlushDropsClicksAndKeepsGoing() {
+    var service = createService();
+    Mockito.doThrow(new IllegalStateException("database is down")).when(mockedRepository).addClicks(any(), any(), any());
+
+    service.recordClick("aaaaaaaa");
+    service.recordClick("bbbbbbbb");
+    service.flush();
+
+    Assertions.assertEquals(2, meterRegistry.get("shortener.clicks.dropped").tag("reason", "flush_failed").counter().count());
+  }
+
+  @Test
+  public void testDisabledClicksAreNotRecorded() {
+    properties.getClicks().setEnabled(false);
+    var service = createService();
+
+    service.recordClick("aaaaaaaa");
+    service.flush();
+
+    Mockito.verify(mockedRepository, Mockito.never()).addClicks(any(), any(), any());
+  }
+
+  @Test
+  public void testConcurrentClicksAreCountedOnce() throws Exception {
+    var numThreads = 8;
+    var clicksPerThread = 20_000;
+    properties.getClicks().setBufferSize(1024);
+    var service = createService();
+    var executor = Executors.newFixedThreadPool(numThreads);
+    var startLatch = new CountDownLatch(1);
+    var results = new ArrayList<Future<?>>();
+
+    for (var t = 0; t < numThreads; t++) {
+      var hash = String.format("%08d", t);
+      results.add(executor.submit(() -> {
+        startLatch.await();
+        for (var i = 0; i < clicksPerThread; i++) {
+          service.recordClick(hash);
+        }
+        return null;
+      }));
+    }
+
+    startLatch.countDown();
+    var done = false;
+    while (!done) {
+      service.flush();
+      done = results.stream().allMatch(Future::isDone);
+    }
+    service.flush();
+    executor.shutdown();
+    Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    for (var result : results) {
+      result.get();
+    }
+    // producers may outrun the flusher, but every click is either written once or counted as dropped
+    var dropped = meterRegistry.get("shortener.clicks.dropped").tag("reason", "buffer_full").counter().count();
+    var written = writtenClicks.values().stream().mapToLong(Long::longValue).sum();
+    Assertions.assertEquals(numThreads * clicksPerThread, written + (long) dropped);
+    Assertions.assertTrue(written >= 1024);
+    for (var clicks : writtenClicks.values()) {
+      Assertions.assertTrue(clicks <= clicksPerThread);
+    }
+  }
+
+}
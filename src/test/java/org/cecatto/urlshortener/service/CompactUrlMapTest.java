@@ -0,0 +1,154 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.service.impl.CompactUrlMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CompactUrlMapTest {
+
+  private static final int SLAB_SIZE = 64 * 1024;
+
+  @Test
+  public void testCodesArePackedWithoutCollisions() {
+    var keys = new HashSet<Long>();
+    for (var code : List.of("0", "00", "000", "a", "a0", "0a", "zzzzzzzzzzzz", "000000000000", "c0xt4es4")) {
+      var key = CompactUrlMap.pack(code);
+      Assertions.assertTrue(key > 0, code);
+      Assertions.assertTrue(keys.add(key), code);
+    }
+
+    Assertions.assertEquals(0, CompactUrlMap.pack(""));
+    Assertions.assertEquals(0, CompactUrlMap.pack("0123456789abc"));
+    Assertions.assertEquals(0, CompactUrlMap.pack("C0xt4es4"));
+    Assertions.assertEquals(0, CompactUrlMap.pack("c0xt-es4"));
+  }
+
+  @Test
+  public void testUrlsAreFoundAsPut() {
+    var map = new CompactUrlMap(100, SLAB_SIZE, true);
+    var urls = List.of("https://www.example.com/a", "http://www.example.com/b", "https://example.com/c",
+        "http://example.com/d", "ftp://example.com/e", "https://www.example.com/\u00fcn\u00efc\u00f6d\u00e9?q=\u2713",
+        "https://www.");
+
+    for (var i = 0; i < urls.size(); i++) {
+      Assertions.assertTrue(map.put("code" + i, urls.get(i)));
+    }
+
+    for (var i = 0; i < urls.size(); i++) {
+      Assertions.assertEquals(urls.get(i), map.get("code" + i));
+    }
+    Assertions.assertNull(map.get("code" + urls.size()));
+    Assertions.assertNull(map.get("CODE0"));
+    Assertions.assertEquals(urls.size(), map.size());
+  }
+
+  @Test
+  public void testFirstUrlOfCodeIsKept() {
+    var map = new CompactUrlMap(100, SLAB_SIZE, true);
+
+    Assertions.assertTrue(map.put("c0xt4es4", "http://www.example.com"));
+    Assertions.assertFalse(map.put("c0xt4es4", "http://www.google.com"));
+
+    Assertions.assertEquals("http://www.example.com", map.get("c0xt4es4"));
+    Assertions.assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testCodesAndUrlsThatCantBeIndexedAreSkipped() {
+    var map = new CompactUrlMap(100, 1024, true);
+
+    Assertions.assertFalse(map.put("0123456789abc", "http://www.example.com"));
+    Assertions.assertFalse(map.put("c0xt4es4", "http://www.example.com/" + "a".repeat(1024)));
+
+    Assertions.assertEquals(0, map.size());
+    Assertions.assertNull(map.get("c0xt4es4"));
+  }
+
+  @Test
+  public void testGrowsBeyondExpectedSize() {
+    var map = new CompactUrlMap(10, SLAB_SIZE, true);
+    var numUrls = 100_000;
+
+    for (var i = 0; i < numUrls; i++) {
+      Assertions.assertTrue(map.put(Integer.toString(i, 36), "https://www.example.com/" + i));
+    }
+
+    for (var i = 0; i < numUrls; i++) {
+      Assertions.assertEquals("https://www.example.com/" + i, map.get(Integer.toString(i, 36)));
+    }
+    Assertions.assertEquals(numUrls, map.size());
+    Assertions.assertTrue(map.memoryBytes() > map.usedSlabBytes());
+  }
+
+  @Test
+  public void testLearnedPrefixesAreStoredAsIds() {
+    var plain = new CompactUrlMap(100, SLAB_SIZE, false);
+    var compressed = new CompactUrlMap(100, SLAB_SIZE, true);
+    var urls = new ArrayList<String>();
+    for (var i = 0; i < 100; i++) {
+      urls.add("https://www.linkedin.com/in/" + i);
+    }
+
+    // the urls stored before learning keep the default prefix
+    compressed.put("before", urls.get(0));
+    Assertions.assertEquals(1, compressed.learnPrefixes(urls));
+    for (var i = 0; i < urls.size(); i++) {
+      plain.put("code" + i, urls.get(i));
+      compressed.put("code" + i, urls.get(i));
+    }
+
+    Assertions.assertEquals(urls.get(0), compressed.get("before"));
+    for (var i = 0; i < urls.size(); i++) {
+      Assertions.assertEquals(urls.get(i), compressed.get("code" + i));
+    }
+    // without "https://www.linkedin.com/", plus the url stored before without "https://www."
+    Assertions.assertEquals(plain.usedSlabBytes() - urls.size() * "https://www.linkedin.com/".length() +
+        2 + urls.get(0).length() - "https://www.".length(), compressed.usedSlabBytes());
+    Assertions.assertEquals(0, plain.learnPrefixes(urls));
+  }
+
+  @Test
+  public void testUrlsAreFoundWhilePutting() throws Exception {
+    var map = new CompactUrlMap(10, SLAB_SIZE, true);
+    var numUrls = 200_000;
+    var executor = Executors.newFixedThreadPool(4);
+    var done = new AtomicBoolean();
+    try {
+      var readers = new ArrayList<Future<?>>();
+      for (var t = 0; t < 4; t++) {
+        readers.add(executor.submit(() -> {
+          while (!done.get()) {
+            for (var i = 0; i < numUrls; i += 997) {
+              var url = map.get(Integer.toString(i, 36));
+              // missing (not put yet, or put while growing), never wrong
+              if (url != null) {
+                Assertions.assertEquals("https://www.example.com/" + i, url);
+              }
+            }
+          }
+        }));
+      }
+      for (var i = 0; i < numUrls; i++) {
+        map.put(Integer.toString(i, 36), "https://www.example.com/" + i);
+      }
+      done.set(true);
+      for (var reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (var i = 0; i < numUrls; i++) {
+      Assertions.assertEquals("https://www.example.com/" + i, map.get(Integer.toString(i, 36)));
+    }
+  }
+
+}
@@ -0,0 +1,139 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlRepository;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("integration-tests")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class HashServiceImplConcurrencyIntegrationTest {
+
+  private static final Logger log = LoggerFactory.getLogger(HashServiceImplConcurrencyIntegrationTest.class);
+
+  private static final int NUM_THREADS = 16;
+  private static final int CREATES_PER_THREAD = 200;
+  // generous enough for any CI machine, it only protects against pathological slowness (e.g. lock waits)
+  private static final long MIN_CREATES_PER_SECOND = 100;
+
+  @Autowired
+  private HashService hashService;
+
+  @Autowired
+  private UrlRepository urlRepository;
+
+  @Autowired
+  private UrlLookupCache lookupCache;
+
+  @AfterEach
+  public void tearDown() {
+    urlRepository.deleteAll();
+    lookupCache.invalidateAll();
+  }
+
+  @Test
+  public void testCreateSameUrlFromManyThreads() throws Exception {
+    var hashes = hashConcurrently(i -> "https://www.google.com");
+
+    Assertions.assertEquals(1, hashes.stream().distinct().count());
+    Assertions.assertEquals("55rhac89", hashes.get(0));
+    Assertions.assertEquals(1, urlRepository.count());
+  }
+
+  @Test
+  public void testCreateCollidingUrlsFromManyThreads() throws Exception {
+    // takes the hash of http://www.example.com, so every create of it has to fall back to the salted hash
+    urlRepository.save(new StoredUrl("http://www.google.com", "c0xt4es4"));
+
+    var hashes = hashConcurrently(i -> i % 2 == 0 ? "http://www.example.com" : "http://www.google.com");
+
+    for (var i = 0; i < hashes.size(); i++) {
+      Assertions.assertEquals(i % 2 == 0 ? "pw3kr60g" : "c0xt4es4", hashes.get(i));
+    }
+    Assertions.assertEquals(2, urlRepository.count());
+  }
+
+  @Test
+  public void testCreateManyUrlsFromManyThreads() throws Exception {
+    var hashes = hashConcurrently(i -> "http://www.example.com/" + (i % 500));
+
+    var hashesByUrl = new ConcurrentHashMap<String, String>();
+    for (var i = 0; i < hashes.size(); i++) {
+      var previous = hashesByUrl.putIfAbsent("http://www.example.com/" + (i % 500), hashes.get(i));
+      Assertions.assertTrue(previous == null || previous.equals(hashes.get(i)));
+    }
+    Assertions.assertEquals(500, urlRepository.count());
+    Assertions.assertEquals(500, hashesByUrl.values().stream().distinct().count());
+    hashesByUrl.forEach((url, hash) ->
+        Assertions.assertEquals(url, urlRepository.findById(hash).map(StoredUrl::getLongUrl).orElse(null)));
+  }
+
+  /**
+   * Creates NUM_THREADS * CREATES_PER_THREAD urls from NUM_THREADS threads started at the same time.
+   *
+   * @return the hash of each create, indexed like the urls
+   */
+  private List<String> hashConcurrently(IntFunction<String> urlForIndex) throws Exception {
+    var executor = Executors.newFixedThreadPool(NUM_THREADS);
+    var greenSignalLatch = new CountDownLatch(1);
+    try {
+      var futures = new ArrayList<Future<List<String>>>();
+      for (var t = 0; t < NUM_THREADS; t++) {
+        final var thread = t;
+        futures.add(executor.submit((Callable<List<String>>) () -> {
+          greenSignalLatch.await();
+          var hashes = new ArrayList<String>(CREATES_PER_THREAD);
+          for (var i = 0; i < CREATES_PER_THREAD; i++) {
+            hashes.add(hashService.hashUrl(URI.create(urlForIndex.apply(i * NUM_THREADS + thread))));
+          }
+          return hashes;
+        }));
+      }
+
+      var start = System.nanoTime();
+      greenSignalLatch.countDown();
+      var perThreadHashes = new ArrayList<List<String>>();
+      for (var future : futures) {
+        perThreadHashes.add(future.get(60, TimeUnit.SECONDS));
+      }
+      var elapsedNanos = System.nanoTime() - start;
+
+      var total = NUM_THREADS * CREATES_PER_THREAD;
+      var createsPerSecond = total * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+      log.info("{} concurrent creates took {} ms ({} creates/s)", total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), createsPerSecond);
+      Assertions.assertTrue(createsPerSecond >= MIN_CREATES_PER_SECOND, "Too slow: " + createsPerSecond + " creates/s");
+
+      var hashes = new ArrayList<String>(total);
+      for (var i = 0; i < CREATES_PER_THREAD; i++) {
+        for (var t = 0; t < NUM_THREADS; t++) {
+          hashes.add(perThreadHashes.get(t).get(i));
+        }
+      }
+      return hashes;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
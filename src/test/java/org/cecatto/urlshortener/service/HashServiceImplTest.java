@@ -1,40 +1,79 @@
 package org.cecatto.urlshortener.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.IdBlock;
 import org.cecatto.urlshortener.persistence.StoredUrl;
-import org.cecatto.urlshortener.persistence.UrlRepository;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.CompactUrlIndex;
 import org.cecatto.urlshortener.service.impl.HashServiceImpl;
+import org.cecatto.urlshortener.service.impl.KnownHashesFilter;
+import org.cecatto.urlshortener.service.impl.Murmur3ShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.SequenceShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.StoredUrlBroadcast;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.cecatto.urlshortener.service.impl.WriteBehindCreates;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.mockito.Mockito;
-import org.postgresql.util.PSQLException;
-import org.postgresql.util.PSQLState;
-import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.util.unit.DataSize;
 
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import static org.mockito.ArgumentMatchers.any;
+
 public class HashServiceImplTest {
 
-  private UrlRepository mockedUrlRepository;
+  private UrlStore mockedUrlStore;
+  private UrlLookupCache lookupCache;
+  private KnownHashesFilter knownHashes;
+  private StoredUrlBroadcast broadcast;
+  private SimpleMeterRegistry meterRegistry;
   private HashServiceImpl hashService;
 
   @BeforeEach
   public void setUp() {
-    mockedUrlRepository = Mockito.mock(UrlRepository.class);
-    hashService = new HashServiceImpl(mockedUrlRepository);
+    mockedUrlStore = Mockito.mock(UrlStore.class);
+    Mockito.doAnswer(invocation -> Optional.of(((StoredUrl) invocation.getArgument(0)).getHash()))
+        .when(mockedUrlStore).insertIfAbsent(any());
+    lookupCache = new UrlLookupCache(new UrlShortenerProperties());
+    meterRegistry = new SimpleMeterRegistry();
+    // not started, so every hash may be known until it is rebuilt by a test
+    knownHashes = new KnownHashesFilter(mockedUrlStore, new UrlShortenerProperties(), meterRegistry);
+    broadcast = Mockito.mock(StoredUrlBroadcast.class);
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, new UrlShortenerProperties(), meterRegistry);
+    hashService = new HashServiceImpl(mockedUrlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, new UrlShortenerProperties(),
+            meterRegistry),
+        broadcast, new Murmur3ShortCodeGenerator(8), new UrlShortenerProperties(), meterRegistry);
   }
 
   private static Stream<Arguments> validCasesForCreate() {
     return Stream.of(
-        Arguments.of("http://www.example.com", "847310eb"),
-        Arguments.of("https://www.example.com", "e149be13"),
-        Arguments.of("https://www.linkedin.com/in/lcecatto/", "b0176ed1"),
-        Arguments.of("https://*www.example.com", "e973bec8")
+        Arguments.of("http://www.example.com", "c0xt4es4"),
+        Arguments.of("https://www.example.com", "iptd0j21"),
+        Arguments.of("https://www.linkedin.com/in/lcecatto/", "ywwtbuk6"),
+        Arguments.of("https://*www.example.com", "n7hbpw6a")
     );
   }
 
@@ -44,57 +83,551 @@ public class HashServiceImplTest {
     var uri = URI.create(longUrl);
     var actualHash = hashService.hashUrl(uri);
     Assertions.assertEquals(expectedHash, actualHash);
-    Mockito.verify(mockedUrlRepository, Mockito.times(1)).save(new StoredUrl(longUrl, expectedHash));
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertIfAbsent(new StoredUrl(longUrl, expectedHash));
   }
 
   @Test
   public void testCreateWithMissingScheme() {
     var uri = URI.create("www.example.com");
-    var expectedHash = "847310eb";
+    var expectedHash = "c0xt4es4";
     var actualHash = hashService.hashUrl(uri);
     Assertions.assertEquals(expectedHash, actualHash);
-    Mockito.verify(mockedUrlRepository, Mockito.times(1)).save(new StoredUrl("http://www.example.com", expectedHash));
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertIfAbsent(new StoredUrl("http://www.example.com", expectedHash));
   }
 
   @Test
   public void testLookupIsSuccessful() {
     var hash = "the_hash_value";
-    var mockedUri = URI.create("http://www.example.com");
-    Mockito.doReturn(Optional.of(new StoredUrl("http://www.example.com", hash))).when(mockedUrlRepository).findByHash(hash);
-    var uri = hashService.lookup(hash);
-    Assertions.assertFalse(uri.isEmpty());
-    Assertions.assertEquals(mockedUri, uri.get());
+    Mockito.doReturn(Optional.of("http://www.example.com")).when(mockedUrlStore).findLongUrlByHash(hash);
+    var url = hashService.lookup(hash);
+    Assertions.assertFalse(url.isEmpty());
+    Assertions.assertEquals("http://www.example.com", url.get());
   }
 
   @Test
   public void testLookupReturnsNull() {
     var hash = "the_hash_value";
-    Mockito.doReturn(Optional.empty()).when(mockedUrlRepository).findByHash(hash);
-    var uri = hashService.lookup(hash);
-    Assertions.assertFalse(uri.isPresent());
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).findLongUrlByHash(hash);
+    var url = hashService.lookup(hash);
+    Assertions.assertFalse(url.isPresent());
   }
 
   @Test
   public void testCreateWithConflictingHashes() {
     var originalUrl = "http://www.example.com";
-    var anotherUrl = "http://www.google.com";
-    var originalHash = "847310eb";
-    var saltedHash = "4828244d";
-    var storedUrl = new StoredUrl(originalUrl, originalHash);
-    var storedUrlWithSaltedHash = new StoredUrl(originalUrl, saltedHash);
-
-    Mockito.doThrow(
-            new DataIntegrityViolationException("mocked data integrity violation",
-                new PSQLException("mocked unique violation", PSQLState.UNIQUE_VIOLATION)))
-        .when(mockedUrlRepository).save(storedUrl);
+    var originalHash = "c0xt4es4";
+    var saltedHash = "pw3kr60g";
 
-    Mockito.doReturn(Optional.of(new StoredUrl(anotherUrl, originalHash))).when(mockedUrlRepository).findByHash(originalHash);
-    Mockito.doReturn(storedUrlWithSaltedHash).when(mockedUrlRepository).save(storedUrlWithSaltedHash);
+    // the original hash is taken by another url, so nothing comes back for it
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).insertIfAbsent(new StoredUrl(originalUrl, originalHash));
 
     var newHash = hashService.hashUrl(URI.create(originalUrl));
 
     Assertions.assertEquals(saltedHash, newHash);
     Assertions.assertNotEquals(originalHash, newHash);
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertIfAbsent(new StoredUrl(originalUrl, saltedHash));
+  }
+
+  @Test
+  public void testCreateWithConflictingHashesIsMeasured() {
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).insertIfAbsent(new StoredUrl("http://www.example.com", "c0xt4es4"));
+
+    hashService.hashUrl(URI.create("http://www.example.com"));
+    hashService.hashUrl(URI.create("http://www.google.com"));
+
+    Assertions.assertEquals(1, meterRegistry.get("shortener.create.collisions").counter().count());
+    var attempts = meterRegistry.get("shortener.create.attempts").summary();
+    Assertions.assertEquals(2, attempts.count());
+    Assertions.assertEquals(3, attempts.totalAmount());
+    Assertions.assertEquals(2, meterRegistry.get("shortener.create").tag("type", "single").timer().count());
+  }
+
+  @Test
+  public void testCreateWithUrlStoredConcurrently() {
+    var originalUrl = "http://www.example.com";
+    var originalHash = "c0xt4es4";
+
+    // the url was stored by another transaction while inserting, so only a new statement can see it
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).insertIfAbsent(new StoredUrl(originalUrl, originalHash));
+    Mockito.doReturn(Optional.of(originalHash)).when(mockedUrlStore).findHashByLongUrl(originalUrl);
+
+    var newHash = hashService.hashUrl(URI.create(originalUrl));
+
+    Assertions.assertEquals(originalHash, newHash);
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertIfAbsent(any());
+  }
+
+  @Test
+  public void testCreateReturnsExistingHash() {
+    var originalUrl = "http://www.example.com";
+    var existingHash = "pw3kr60g";
+
+    Mockito.doReturn(Optional.of(existingHash)).when(mockedUrlStore).insertIfAbsent(any());
+
+    var newHash = hashService.hashUrl(URI.create(originalUrl));
+
+    Assertions.assertEquals(existingHash, newHash);
+    Assertions.assertEquals(Optional.of(originalUrl), hashService.lookup(existingHash));
+    Mockito.verify(mockedUrlStore, Mockito.never()).findHashByLongUrl(any());
+  }
+
+  @Test
+  public void testCreateGivesUpAfterTooManyConflicts() {
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).insertIfAbsent(any());
+
+    Assertions.assertThrows(IllegalStateException.class, () -> hashService.hashUrl(URI.create("http://www.example.com")));
+  }
+
+  @Test
+  public void testLookupIsServedFromCache() {
+    var hash = "the_hash_value";
+    Mockito.doReturn(Optional.of("http://www.example.com")).when(mockedUrlStore).findLongUrlByHash(hash);
+
+    Assertions.assertTrue(hashService.lookup(hash).isPresent());
+    Assertions.assertTrue(hashService.lookup(hash).isPresent());
+
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).findLongUrlByHash(hash);
+    Assertions.assertEquals(1, lookupCache.urlStats().hitCount());
+  }
+
+  @Test
+  public void testLookupIsMeasured() {
+    Mockito.doReturn(Optional.of("http://www.example.com")).when(mockedUrlStore).findLongUrlByHash("c0xt4es4");
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).findLongUrlByHash("pw3kr60g");
+
+    hashService.lookup("c0xt4es4");
+    hashService.lookup("c0xt4es4");
+    hashService.lookup("pw3kr60g");
+
+    Assertions.assertEquals(2, meterRegistry.get("shortener.lookup").tag("result", "found").timer().count());
+    Assertions.assertEquals(1, meterRegistry.get("shortener.lookup").tag("result", "not_found").timer().count());
+  }
+
+  @Test
+  public void testLookupMissIsCached() {
+    var hash = "the_hash_value";
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).findLongUrlByHash(hash);
+
+    Assertions.assertTrue(hashService.lookup(hash).isEmpty());
+    Assertions.assertTrue(hashService.lookup(hash).isEmpty());
+
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).findLongUrlByHash(hash);
+  }
+
+  @Test
+  public void testCreateWarmsUpLookup() {
+    var longUrl = "http://www.example.com";
+    var hash = hashService.hashUrl(URI.create(longUrl));
+
+    var url = hashService.lookup(hash);
+
+    Assertions.assertEquals(Optional.of(longUrl), url);
+    Mockito.verify(mockedUrlStore, Mockito.never()).findLongUrlByHash(any());
+  }
+
+  @Test
+  public void testCreateReplacesCachedMiss() {
+    var longUrl = "http://www.example.com";
+    var hash = "c0xt4es4";
+    Mockito.doReturn(Optional.empty()).when(mockedUrlStore).findLongUrlByHash(hash);
+    Assertions.assertTrue(hashService.lookup(hash).isEmpty());
+
+    hashService.hashUrl(URI.create(longUrl));
+
+    Assertions.assertEquals(Optional.of(longUrl), hashService.lookup(hash));
+  }
+
+  @Test
+  public void testCreateBatchKeepsInputOrder() {
+    var storedHashes = stubBatchStorage();
+    storedHashes.put("https://www.example.com", "iptd0j21");
+
+    var hashes = hashService.hashUrls(List.of(
+        URI.create("https://www.linkedin.com/in/lcecatto/"),
+        URI.create("www.example.com"),
+        URI.create("https://www.example.com"),
+        URI.create("http://www.example.com")));
+
+    Assertions.assertEquals(List.of("ywwtbuk6", "c0xt4es4", "iptd0j21", "c0xt4es4"), hashes);
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertAllIgnoringConflicts(any());
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).findHashesByLongUrls(any());
+    Mockito.verify(mockedUrlStore, Mockito.never()).insertIfAbsent(any());
+  }
+
+  @Test
+  public void testCreateBatchWithConflictingHashes() {
+    var storedHashes = stubBatchStorage();
+    storedHashes.put("http://www.google.com", "c0xt4es4");
+
+    var hashes = hashService.hashUrls(List.of(URI.create("http://www.example.com"), URI.create("http://www.google.com")));
+
+    Assertions.assertEquals(List.of("pw3kr60g", "c0xt4es4"), hashes);
+    Mockito.verify(mockedUrlStore, Mockito.times(2)).insertAllIgnoringConflicts(any());
+  }
+
+  @Test
+  public void testCreateBatchWarmsUpLookup() {
+    stubBatchStorage();
+
+    var hashes = hashService.hashUrls(List.of(URI.create("http://www.example.com")));
+
+    Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup(hashes.get(0)));
+    Mockito.verify(mockedUrlStore, Mockito.never()).findLongUrlByHash(any());
+  }
+
+  @Test
+  public void testLookupOfUnknownHashSkipsRepository() {
+    withStoredHashes("c0xt4es4");
+    knownHashes.rebuild();
+
+    Assertions.assertTrue(hashService.lookup("pw3kr60g").isEmpty());
+    Mockito.verify(mockedUrlStore, Mockito.never()).findLongUrlByHash(any());
+    Assertions.assertEquals(1, meterRegistry.get("shortener.bloom.filter.rejections").counter().count());
+  }
+
+  @Test
+  public void testLookupOfKnownHashGoesToRepository() {
+    withStoredHashes("c0xt4es4");
+    Mockito.doReturn(Optional.of("http://www.example.com")).when(mockedUrlStore).findLongUrlByHash("c0xt4es4");
+    knownHashes.rebuild();
+
+    Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup("c0xt4es4"));
+  }
+
+  @Test
+  public void testCreatedHashesAreKnown() {
+    stubBatchStorage();
+    withStoredHashes();
+    knownHashes.rebuild();
+    var hash = hashService.hashUrl(URI.create("http://www.example.com"));
+    var batchHashes = hashService.hashUrls(List.of(URI.create("https://www.example.com")));
+
+    Assertions.assertTrue(knownHashes.mightContain(hash));
+    Assertions.assertTrue(knownHashes.mightContain(batchHashes.get(0)));
+  }
+
+  @Test
+  public void testHashesCreatedElsewhereAreKnownAfterRefresh() {
+    withStoredHashes();
+    knownHashes.rebuild();
+    Assertions.assertFalse(knownHashes.mightContain("c0xt4es4"));
+
+    Mockito.doAnswer(invocation -> {
+      invocation.<Consumer<String>>getArgument(1).accept("c0xt4es4");
+      return null;
+    }).when(mockedUrlStore).forEachHashCreatedSince(any(), any());
+    knownHashes.refresh();
+
+    Assertions.assertTrue(knownHashes.mightContain("c0xt4es4"));
+  }
+
+  @Test
+  public void testLookupIsServedFromCompactIndex() {
+    Mockito.doAnswer(invocation -> {
+      invocation.<BiConsumer<String, String>>getArgument(0).accept("c0xt4es4", "http://www.example.com");
+      return null;
+    }).when(mockedUrlStore).forEachUrl(any());
+    startCompactIndex().load();
+
+    Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup("c0xt4es4"));
+    Mockito.verify(mockedUrlStore, Mockito.never()).findLongUrlByHash(any());
+  }
+
+  @Test
+  public void testCreatedAndFoundUrlsAreIndexed() {
+    var compactIndex = startCompactIndex();
+    Mockito.doReturn(Optional.of("http://www.google.com")).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+
+    var hash = hashService.hashUrl(URI.create("http://www.example.com"));
+    hashService.lookup("5g73357h");
+
+    Assertions.assertEquals("http://www.example.com", compactIndex.get(hash));
+    // e.g. stored by another instance
+    Assertions.assertEquals("http://www.google.com", compactIndex.get("5g73357h"));
+    Assertions.assertEquals(Optional.of("http://www.google.com"), hashService.lookup("5g73357h"));
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).findLongUrlByHash("5g73357h");
+  }
+
+  @Test
+  public void testStoredUrlsAreSentToOtherInstances() {
+    Mockito.doAnswer(invocation -> {
+      var storedHashes = new HashMap<String, String>();
+      invocation.<Collection<String>>getArgument(0).forEach(url -> storedHashes.put(url, "b" + url.length()));
+      return storedHashes;
+    }).when(mockedUrlStore).findHashesByLongUrls(any());
+    Mockito.doReturn(Optional.of("http://www.google.com")).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+
+    var hash = hashService.hashUrl(URI.create("http://www.example.com"));
+    hashService.hashUrls(List.of(URI.create("http://a.example.com"), URI.create("http://bb.example.com")));
+    hashService.lookup("5g73357h");
+
+    Mockito.verify(broadcast).send(hash, "http://www.example.com");
+    Mockito.verify(broadcast).send("b20", "http://a.example.com");
+    Mockito.verify(broadcast).send("b21", "http://bb.example.com");
+    // found, not stored here
+    Mockito.verifyNoMoreInteractions(broadcast);
+  }
+
+  @Test
+  public void testConcurrentLookupsOfSameHashShareOneQuery() throws Exception {
+    var threads = 8;
+    Mockito.doAnswer(invocation -> {
+      // holds the query until every other lookup is waiting for it
+      awaitCoalesced("lookup", threads - 1);
+      return Optional.of("http://www.google.com");
+    }).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+
+    var results = runConcurrently(threads, () -> hashService.lookup("5g73357h"));
+
+    results.forEach(result -> Assertions.assertEquals(Optional.of("http://www.google.com"), result));
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).findLongUrlByHash("5g73357h");
+  }
+
+  @Test
+  public void testConcurrentCreatesOfSameUrlShareOneInsert() throws Exception {
+    var threads = 8;
+    Mockito.doAnswer(invocation -> {
+      awaitCoalesced("create", threads - 1);
+      return Optional.of(((StoredUrl) invocation.getArgument(0)).getHash());
+    }).when(mockedUrlStore).insertIfAbsent(any());
+
+    // the same url once the scheme is added
+    var results = runConcurrently(threads, () -> hashService.hashUrl(URI.create("www.example.com")));
+
+    results.forEach(result -> Assertions.assertEquals("c0xt4es4", result));
+    Mockito.verify(mockedUrlStore, Mockito.times(1)).insertIfAbsent(any());
+  }
+
+  @Test
+  public void testLookupIsNotHeldByQueryOfOtherHash() throws Exception {
+    var release = new CountDownLatch(1);
+    Mockito.doAnswer(invocation -> {
+      release.await(10, TimeUnit.SECONDS);
+      return Optional.of("http://www.google.com");
+    }).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+    Mockito.doReturn(Optional.of("http://www.example.com")).when(mockedUrlStore).findLongUrlByHash("c0xt4es4");
+    var executor = Executors.newSingleThreadExecutor();
+    try {
+      var slowLookup = executor.submit(() -> hashService.lookup("5g73357h"));
+
+      Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup("c0xt4es4"));
+      release.countDown();
+      Assertions.assertEquals(Optional.of("http://www.google.com"), slowLookup.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedLookupIsSharedAndNotRemembered() throws Exception {
+    var threads = 4;
+    Mockito.doAnswer(invocation -> {
+      awaitCoalesced("lookup", threads - 1);
+      throw new IllegalStateException("database down");
+    }).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+
+    var results = runConcurrently(threads, () -> {
+      try {
+        return hashService.lookup("5g73357h");
+      } catch (IllegalStateException e) {
+        return Optional.of(e.getMessage());
+      }
+    });
+
+    results.forEach(result -> Assertions.assertEquals(Optional.of("database down"), result));
+    Mockito.doReturn(Optional.of("http://www.google.com")).when(mockedUrlStore).findLongUrlByHash("5g73357h");
+    Assertions.assertEquals(Optional.of("http://www.google.com"), hashService.lookup("5g73357h"));
+  }
+
+  @Test
+  public void testWriteBehindCreateReturnsBeforeStoring(@TempDir Path journal) throws Exception {
+    var storing = new CountDownLatch(1);
+    Mockito.doAnswer(invocation -> {
+      storing.await();
+      return null;
+    }).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    Mockito.when(mockedUrlStore.findHashesByLongUrls(any())).thenReturn(Map.of("http://www.example.com", "c0xt4es4"));
+    withStoredHashes();
+    knownHashes.rebuild();
+    var writeBehind = startWriteBehind(journal);
+    try {
+      var hash = hashService.hashUrl(URI.create("http://www.example.com"));
+
+      Assertions.assertEquals("c0xt4es4", hash);
+      Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup(hash));
+      lookupCache.invalidateAll();
+      // found while pending, even if not cached
+      Assertions.assertEquals(Optional.of("http://www.example.com"), hashService.lookup(hash));
+      Assertions.assertEquals(hash, hashService.hashUrl(URI.create("http://www.example.com")));
+      Mockito.verify(mockedUrlStore, Mockito.never()).insertIfAbsent(any());
+      Mockito.verify(mockedUrlStore, Mockito.never()).findLongUrlByHash(any());
+
+      storing.countDown();
+      Mockito.verify(mockedUrlStore, Mockito.timeout(10_000)).findHashesByLongUrls(List.of("http://www.example.com"));
+      awaitWritten(writeBehind, hash);
+      Assertions.assertEquals(0, meterRegistry.get("shortener.write.behind.collisions").counter().count());
+    } finally {
+      storing.countDown();
+      writeBehind.stop();
+    }
+  }
+
+  @Test
+  public void testWriteBehindStoresPossiblyTakenHashSynchronously(@TempDir Path journal) throws Exception {
+    // the first hash of the url may be taken (by itself or another url), which only the store can tell
+    withStoredHashes("c0xt4es4");
+    knownHashes.rebuild();
+    var writeBehind = startWriteBehind(journal);
+    try {
+      Assertions.assertEquals("c0xt4es4", hashService.hashUrl(URI.create("http://www.example.com")));
+
+      Mockito.verify(mockedUrlStore).insertIfAbsent(new StoredUrl("http://www.example.com", "c0xt4es4"));
+      Assertions.assertNull(writeBehind.pendingUrl("c0xt4es4"));
+    } finally {
+      writeBehind.stop();
+    }
+  }
+
+  @Test
+  public void testWriteBehindNeedsCodesDerivedFromUrls() {
+    var properties = new UrlShortenerProperties();
+    properties.getWriteBehind().setEnabled(true);
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, properties, meterRegistry);
+    var writeBehind = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+    var generator = new SequenceShortCodeGenerator(() -> new IdBlock(0, 10), 8, 0);
+
+    Assertions.assertThrows(IllegalStateException.class, () -> new HashServiceImpl(mockedUrlStore, lookupCache,
+        knownHashes, compactIndex, writeBehind, broadcast, generator, properties, meterRegistry));
+  }
+
+  @Test
+  public void testWriteBehindNeedsTheFilterOfKnownHashes() {
+    var properties = new UrlShortenerProperties();
+    properties.getWriteBehind().setEnabled(true);
+    properties.getBloomFilter().setEnabled(false);
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, properties, meterRegistry);
+    var writeBehind = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+
+    Assertions.assertThrows(IllegalStateException.class, () -> new HashServiceImpl(mockedUrlStore, lookupCache,
+        knownHashes, compactIndex, writeBehind, broadcast, new Murmur3ShortCodeGenerator(8), properties,
+        meterRegistry));
+  }
+
+  @Test
+  public void testWriteBehindNeedsTheNotifications() {
+    var properties = new UrlShortenerProperties();
+    properties.getWriteBehind().setEnabled(true);
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, properties, meterRegistry);
+    var writeBehind = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+    Mockito.when(broadcast.isEnabled()).thenReturn(false);
+
+    Assertions.assertThrows(IllegalStateException.class, () -> new HashServiceImpl(mockedUrlStore, lookupCache,
+        knownHashes, compactIndex, writeBehind, broadcast, new Murmur3ShortCodeGenerator(8), properties,
+        meterRegistry));
+  }
+
+  /**
+   * Replaces the service with one creating in write-behind mode, journaling to the given directory.
+   */
+  private WriteBehindCreates startWriteBehind(Path journal) {
+    var properties = new UrlShortenerProperties();
+    properties.getWriteBehind().setEnabled(true);
+    properties.getWriteBehind().setJournalPath(journal.toString());
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, properties, meterRegistry);
+    var writeBehind = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+    writeBehind.start();
+    Mockito.when(broadcast.isEnabled()).thenReturn(true);
+    hashService = new HashServiceImpl(mockedUrlStore, lookupCache, knownHashes, compactIndex, writeBehind, broadcast,
+        new Murmur3ShortCodeGenerator(8), properties, meterRegistry);
+    return writeBehind;
+  }
+
+  /**
+   * Replaces the service with one looking up the compact index first, without the lookup cache.
+   */
+  private CompactUrlIndex startCompactIndex() {
+    var properties = new UrlShortenerProperties();
+    properties.getCompactIndex().setEnabled(true);
+    properties.getCompactIndex().setExpectedSize(1000);
+    properties.getCompactIndex().setSlabSize(DataSize.ofKilobytes(64));
+    properties.getCache().setEnabled(false);
+    var compactIndex = new CompactUrlIndex(mockedUrlStore, properties, meterRegistry);
+    var lookupCache = new UrlLookupCache(properties);
+    hashService = new HashServiceImpl(mockedUrlStore, lookupCache, knownHashes, compactIndex,
+        new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry),
+        broadcast,
+        new Murmur3ShortCodeGenerator(8), properties, meterRegistry);
+    return compactIndex;
+  }
+
+  private static void awaitWritten(WriteBehindCreates writeBehind, String hash) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (writeBehind.pendingUrl(hash) != null && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assertions.assertNull(writeBehind.pendingUrl(hash));
+  }
+
+  private void awaitCoalesced(String operation, int calls) throws InterruptedException {
+    var counter = meterRegistry.get("shortener.coalesced").tag("operation", operation).counter();
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (counter.count() < calls && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static <T> List<T> runConcurrently(int threads, Callable<T> task) throws Exception {
+    var executor = Executors.newFixedThreadPool(threads);
+    try {
+      var futures = executor.invokeAll(Collections.nCopies(threads, task));
+      var results = new ArrayList<T>(threads);
+      for (var future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Backs the bulk store operations by a map of long url to hash, honoring both unique constraints.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, String> stubBatchStorage() {
+    var storedHashes = new HashMap<String, String>();
+    Mockito.doAnswer(invocation -> {
+      for (var storedUrl : (Collection<StoredUrl>) invocation.getArgument(0)) {
+        if (!storedHashes.containsKey(storedUrl.getLongUrl()) && !storedHashes.containsValue(storedUrl.getHash())) {
+          storedHashes.put(storedUrl.getLongUrl(), storedUrl.getHash());
+        }
+      }
+      return null;
+    }).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    Mockito.doAnswer(invocation -> {
+      var found = new HashMap<String, String>();
+      for (var longUrl : (Collection<String>) invocation.getArgument(0)) {
+        if (storedHashes.containsKey(longUrl)) {
+          found.put(longUrl, storedHashes.get(longUrl));
+        }
+      }
+      return found;
+    }).when(mockedUrlStore).findHashesByLongUrls(any());
+    return storedHashes;
+  }
+
+  private void withStoredHashes(String... hashes) {
+    Mockito.doAnswer(invocation -> {
+      var consumer = invocation.<Consumer<String>>getArgument(0);
+      for (var hash : hashes) {
+        consumer.accept(hash);
+      }
+      return null;
+    }).when(mockedUrlStore).forEachHash(any());
   }
 
 }
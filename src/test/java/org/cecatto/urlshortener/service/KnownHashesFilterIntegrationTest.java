@@ -0,0 +1,73 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.KnownHashesFilter;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.ArrayList;
+
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("integration-tests")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {"url-shortener.bloom-filter.enabled=true", "url-shortener.bloom-filter.expected-insertions=100000",
+        // only the refreshes of the tests
+        "url-shortener.bloom-filter.refresh-interval=1h"})
+public class KnownHashesFilterIntegrationTest {
+
+  @Autowired
+  private KnownHashesFilter knownHashes;
+
+  @Autowired
+  private HashService hashService;
+
+  @Autowired
+  private UrlStore urlStore;
+
+  @Autowired
+  private UrlLookupCache lookupCache;
+
+  @AfterEach
+  public void tearDown() {
+    urlStore.deleteAll();
+    lookupCache.invalidateAll();
+  }
+
+  @Test
+  public void testRebuildStreamsStoredHashes() {
+    var storedUrls = new ArrayList<StoredUrl>();
+    // more than a fetch, so the cursor is read in several round trips
+    for (var i = 0; i < 25_000; i++) {
+      storedUrls.add(new StoredUrl("https://www.example.com/" + i, String.format("known-%06d", i)));
+    }
+    urlStore.insertAllIgnoringConflicts(storedUrls);
+
+    knownHashes.rebuild();
+
+    for (var storedUrl : storedUrls) {
+      Assertions.assertTrue(knownHashes.mightContain(storedUrl.getHash()));
+    }
+    Assertions.assertTrue(hashService.lookup("unknown1").isEmpty());
+  }
+
+  @Test
+  public void testRefreshAddsHashesStoredElsewhere() {
+    knownHashes.rebuild();
+    // as if stored by another instance
+    urlStore.insertIfAbsent(new StoredUrl("https://www.example.com/elsewhere", "elsewhere"));
+    Assertions.assertTrue(hashService.lookup("elsewhere").isEmpty());
+
+    knownHashes.refresh();
+
+    Assertions.assertEquals("https://www.example.com/elsewhere", hashService.lookup("elsewhere").orElseThrow());
+  }
+
+}
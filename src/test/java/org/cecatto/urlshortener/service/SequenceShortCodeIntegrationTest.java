@@ -0,0 +1,67 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.controller.UrlShortenerController;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("integration-tests")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {"url-shortener.hash.generator=sequence", "url-shortener.hash.sequence-key=42"})
+public class SequenceShortCodeIntegrationTest {
+
+  @Autowired
+  private HashService hashService;
+
+  @Autowired
+  private UrlStore urlStore;
+
+  @Autowired
+  private UrlLookupCache lookupCache;
+
+  @AfterEach
+  public void tearDown() {
+    urlStore.deleteAll();
+    lookupCache.invalidateAll();
+  }
+
+  @Test
+  public void testIdBlocksComeFromTheSequence() {
+    var first = urlStore.allocateIdBlock();
+    var second = urlStore.allocateIdBlock();
+
+    Assertions.assertEquals(10_000, first.getEnd() - first.getStart());
+    Assertions.assertEquals(first.getEnd(), second.getStart());
+  }
+
+  @Test
+  public void testCreateGivesDistinctCodesAndKeepsDeduplicating() {
+    var codes = new HashSet<String>();
+    for (var i = 0; i < 100; i++) {
+      var code = hashService.hashUrl(URI.create("https://www.example.com/" + i));
+      Assertions.assertTrue(code.matches(UrlShortenerController.HASH_REGEX), code);
+      codes.add(code);
+    }
+    Assertions.assertEquals(100, codes.size());
+
+    var code = hashService.hashUrl(URI.create("https://www.example.com/7"));
+    Assertions.assertTrue(codes.contains(code));
+    Assertions.assertEquals(List.of(code, code), hashService.hashUrls(
+        List.of(URI.create("https://www.example.com/7"), URI.create("https://www.example.com/7"))));
+    Assertions.assertEquals(100, urlStore.count());
+    Assertions.assertEquals(URI.create("https://www.example.com/7"), hashService.lookup(code).orElseThrow());
+  }
+
+}
@@ -0,0 +1,190 @@
+package org.cecatto.urlshortener.service;
+
+import org.cecatto.urlshortener.controller.UrlShortenerController;
+import org.cecatto.urlshortener.persistence.IdBlock;
+import org.cecatto.urlshortener.service.impl.Md5ShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.Murmur3ShortCodeGenerator;
+import org.cecatto.urlshortener.service.impl.SequenceShortCodeGenerator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+public class ShortCodeGeneratorTest {
+
+  private static Stream<Arguments> knownCodes() {
+    var unicodeUrl = "https://example.com/" + new String(new int[]{0xfc, 0x4e2d, 0x1f600}, 0, 3);
+    // multi-byte chars straddling the blocks, and an unpaired surrogate
+    var straddlingUrl = "https://example.com/" + "\u00e9".repeat(9) + "/x";
+    var mixedUrl = "https://example.com/\u4e2d\ud800abcdefghijklmnop/" + "\u4e2d".repeat(7) + "\ud83d\ude00";
+    return Stream.of(
+        Arguments.of(new Md5ShortCodeGenerator(), "http://www.example.com", 0, "847310eb"),
+        Arguments.of(new Md5ShortCodeGenerator(), "http://www.example.com", 1, "4828244d"),
+        Arguments.of(new Md5ShortCodeGenerator(), "http://www.google.com", 0, "ed646a33"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), "http://www.example.com", 0, "c0xt4es4"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), "http://www.example.com", 1, "pw3kr60g"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), "http://www.google.com", 0, "5g73357h"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), unicodeUrl, 0, "bkun4432"),
+        Arguments.of(new Murmur3ShortCodeGenerator(20), unicodeUrl, 0, "bkun4432zr2gnn0v7k1z"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), straddlingUrl, 0, "19mohdi4"),
+        Arguments.of(new Murmur3ShortCodeGenerator(20), straddlingUrl, 2, "e2oup833chrbd9wr1lei"),
+        Arguments.of(new Murmur3ShortCodeGenerator(8), mixedUrl, 0, "5mfl1dfo"),
+        Arguments.of(new Murmur3ShortCodeGenerator(20), mixedUrl, 2, "17ep3ukr2r6n9io353xe"),
+        // the first id of the sequence, whatever the url
+        Arguments.of(new SequenceShortCodeGenerator(idBlocks(100), 8, 42), "http://www.example.com", 0, "qeqfb8gn"),
+        Arguments.of(new SequenceShortCodeGenerator(idBlocks(100), 12, 42), "http://www.google.com", 3, "dyy6gawq66x9")
+    );
+  }
+
+  @ParameterizedTest
+  @MethodSource("knownCodes")
+  public void testKnownCodes(ShortCodeGenerator generator, String longUrl, int attempt, String expectedCode) {
+    Assertions.assertEquals(expectedCode, generator.generate(longUrl, attempt));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {Murmur3ShortCodeGenerator.MIN_LENGTH, 12, 13, Murmur3ShortCodeGenerator.MAX_LENGTH})
+  public void testMurmur3CodesMatchTheLookupPattern(int length) {
+    var generator = new Murmur3ShortCodeGenerator(length);
+    var codes = new HashSet<String>();
+    for (var i = 0; i < 1000; i++) {
+      var code = generator.generate("https://www.example.com/" + i, i % 3);
+      Assertions.assertEquals(length, code.length());
+      Assertions.assertTrue(code.matches(UrlShortenerController.HASH_REGEX), code);
+      codes.add(code);
+    }
+    Assertions.assertEquals(1000, codes.size());
+  }
+
+  @Test
+  public void testMurmur3HandlesLongUrls() {
+    var longUrl = "https://www.example.com/?q=" + "x".repeat(100_000);
+    var generator = new Murmur3ShortCodeGenerator(8);
+    Assertions.assertEquals(generator.generate(longUrl, 0), generator.generate(longUrl, 0));
+    Assertions.assertNotEquals(generator.generate(longUrl, 0), generator.generate(longUrl + "y", 0));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {Murmur3ShortCodeGenerator.MIN_LENGTH - 1, Murmur3ShortCodeGenerator.MAX_LENGTH + 1})
+  public void testMurmur3RejectsInvalidLengths(int length) {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new Murmur3ShortCodeGenerator(length));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {SequenceShortCodeGenerator.MIN_LENGTH, 10, SequenceShortCodeGenerator.MAX_LENGTH})
+  public void testSequenceCodesAreDistinctAndMatchTheLookupPattern(int length) {
+    var generator = new SequenceShortCodeGenerator(idBlocks(1000), length, 42);
+    var codes = new HashSet<String>();
+    for (var i = 0; i < 100_000; i++) {
+      var code = generator.generate("https://www.example.com", 0);
+      Assertions.assertEquals(length, code.length());
+      Assertions.assertTrue(code.matches(UrlShortenerController.HASH_REGEX), code);
+      codes.add(code);
+    }
+    Assertions.assertEquals(100_000, codes.size());
+  }
+
+  @Test
+  public void testSequenceCodesDependOnTheKey() {
+    var generator = new SequenceShortCodeGenerator(idBlocks(100), 8, 42);
+    var otherGenerator = new SequenceShortCodeGenerator(idBlocks(100), 8, 43);
+    for (var i = 0; i < 100; i++) {
+      Assertions.assertNotEquals(generator.generate("https://www.example.com", 0),
+          otherGenerator.generate("https://www.example.com", 0));
+    }
+  }
+
+  @Test
+  public void testSequenceReservesBlocksOnlyWhenExhausted() {
+    var reservedBlocks = new AtomicInteger();
+    var blocks = idBlocks(100);
+    var generator = new SequenceShortCodeGenerator(() -> {
+      reservedBlocks.incrementAndGet();
+      return blocks.get();
+    }, 8, 42);
+
+    for (var i = 0; i < 250; i++) {
+      generator.generate("https://www.example.com/" + i, 0);
+    }
+
+    Assertions.assertEquals(3, reservedBlocks.get());
+  }
+
+  @Test
+  public void testSequenceHandsOutEveryIdOnceAcrossThreads() throws Exception {
+    var numThreads = 8;
+    var codesPerThread = 10_000;
+    var reservedBlocks = new AtomicInteger();
+    var blocks = idBlocks(1000);
+    var generator = new SequenceShortCodeGenerator(() -> {
+      reservedBlocks.incrementAndGet();
+      return blocks.get();
+    }, 8, 42);
+
+    var codes = ConcurrentHashMap.<String>newKeySet();
+    var executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      var futures = new ArrayList<Future<Void>>();
+      for (var t = 0; t < numThreads; t++) {
+        futures.add(executor.submit((Callable<Void>) () -> {
+          for (var i = 0; i < codesPerThread; i++) {
+            codes.add(generator.generate("https://www.example.com", 0));
+          }
+          return null;
+        }));
+      }
+      for (var future : futures) {
+        future.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assertions.assertEquals(numThreads * codesPerThread, codes.size());
+    Assertions.assertEquals(numThreads * codesPerThread / 1000, reservedBlocks.get());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {SequenceShortCodeGenerator.MIN_LENGTH - 1, SequenceShortCodeGenerator.MAX_LENGTH + 1})
+  public void testSequenceRejectsInvalidLengths(int length) {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> new SequenceShortCodeGenerator(idBlocks(100), length, 42));
+  }
+
+  @Test
+  public void testSequenceFailsWhenTheCodeSpaceIsExhausted() {
+    var lastId = 2_821_109_907_456L - 1; // 36^8 - 1
+    var blocks = List.of(new IdBlock(lastId, lastId + 2)).iterator();
+    var generator = new SequenceShortCodeGenerator(blocks::next, 8, 42);
+
+    generator.generate("https://www.example.com", 0);
+    Assertions.assertThrows(IllegalStateException.class, () -> generator.generate("https://www.example.com", 0));
+  }
+
+  /**
+   * Consecutive blocks of the given size, like the ones reserved from short_code_id_seq.
+   */
+  private static Supplier<IdBlock> idBlocks(long blockSize) {
+    var sequence = new AtomicLong();
+    return () -> {
+      var start = sequence.getAndAdd(blockSize);
+      return new IdBlock(start, start + blockSize);
+    };
+  }
+
+}
@@ -0,0 +1,129 @@
+package org.cecatto.urlshortener.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.cecatto.urlshortener.App;
+import org.cecatto.urlshortener.persistence.PostgresUrlNotifications;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.PostgreSQLContainer;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two instances of the application sharing a database (in a container of its own, not the shared one of the
+ * integration-tests profile), each with a filter of known hashes refreshed only every hour and misses remembered for
+ * as long: the urls created on one are only found on the other through the notifications.
+ */
+public class StoredUrlBroadcastIntegrationTest {
+
+  private static final Logger log = LoggerFactory.getLogger(StoredUrlBroadcastIntegrationTest.class);
+
+  private static final long TIMEOUT_MILLIS = 10_000;
+
+  private static PostgreSQLContainer<?> postgres;
+  private static ConfigurableApplicationContext instanceA;
+  private static ConfigurableApplicationContext instanceB;
+
+  @BeforeAll
+  public static void setUp() {
+    postgres = new PostgreSQLContainer<>("postgres:14.2");
+    postgres.start();
+    instanceA = startInstance();
+    instanceB = startInstance();
+  }
+
+  private static ConfigurableApplicationContext startInstance() {
+    return SpringApplication.run(App.class,
+        "--spring.main.web-application-type=none",
+        "--spring.datasource.url=" + postgres.getJdbcUrl(),
+        "--spring.datasource.username=" + postgres.getUsername(),
+        "--spring.datasource.password=" + postgres.getPassword(),
+        "--url-shortener.warm-up.enabled=false",
+        "--url-shortener.bloom-filter.expected-insertions=100000",
+        "--url-shortener.bloom-filter.refresh-interval=1h",
+        "--url-shortener.cache.negative-ttl=1h",
+        "--url-shortener.notifications.enabled=true",
+        "--url-shortener.notifications.reconnect-delay=100ms");
+  }
+
+  @AfterAll
+  public static void tearDown() {
+    for (var context : Arrays.asList(instanceB, instanceA)) {
+      if (context != null) {
+        context.close();
+      }
+    }
+    if (postgres != null) {
+      postgres.stop();
+    }
+  }
+
+  @Test
+  public void testCreatedUrlsAreFoundOnTheOtherInstance() throws Exception {
+    var createOnA = instanceA.getBean(HashService.class);
+    var lookupOnB = instanceB.getBean(HashService.class);
+    var lags = new long[200];
+
+    for (var i = 0; i < lags.length; i++) {
+      var longUrl = "https://www.example.com/created-on-a/" + i;
+      var start = System.nanoTime();
+      var hash = createOnA.hashUrl(URI.create(longUrl));
+      awaitFound(lookupOnB, hash);
+      lags[i] = System.nanoTime() - start;
+      Assertions.assertEquals(longUrl, lookupOnB.lookup(hash).orElseThrow());
+    }
+
+    Arrays.sort(lags);
+    log.info("Found on the other instance after creating: p50 {} ms, p99 {} ms, max {} ms",
+        lags[lags.length / 2] / 1e6, lags[lags.length * 99 / 100] / 1e6, lags[lags.length - 1] / 1e6);
+    Assertions.assertTrue(lags[lags.length * 99 / 100] < TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void testRememberedMissIsDropped() throws Exception {
+    var longUrl = "https://www.example.com/missing-on-b";
+    var hash = instanceB.getBean(ShortCodeGenerator.class).generate(longUrl, 0);
+    var lookupOnB = instanceB.getBean(HashService.class);
+    // a 404 remembered for an hour
+    Assertions.assertTrue(lookupOnB.lookup(hash).isEmpty());
+
+    Assertions.assertEquals(hash, instanceA.getBean(HashService.class).hashUrl(URI.create(longUrl)));
+
+    awaitFound(lookupOnB, hash);
+  }
+
+  @Test
+  public void testCatchesUpAfterLosingTheConnection() throws Exception {
+    var reconnects = instanceB.getBean(MeterRegistry.class).get("shortener.notifications.reconnects").counter();
+    var reconnectsBefore = reconnects.count();
+    var jdbcTemplate = instanceA.getBean(JdbcTemplate.class);
+
+    // drops the listeners of both instances, so what A sends until they reconnect is only caught up with
+    var terminated = jdbcTemplate.queryForList(
+        "select pg_terminate_backend(pid) from pg_stat_activity where application_name = ?", Boolean.class,
+        PostgresUrlNotifications.APPLICATION_NAME);
+    Assertions.assertEquals(2, terminated.size());
+    var hash = instanceA.getBean(HashService.class).hashUrl(URI.create("https://www.example.com/while-disconnected"));
+
+    awaitFound(instanceB.getBean(HashService.class), hash);
+    Assertions.assertTrue(reconnects.count() > reconnectsBefore);
+  }
+
+  private static void awaitFound(HashService hashService, String hash) throws InterruptedException {
+    var deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (hashService.lookup(hash).isEmpty()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, hash + " not found in time");
+      Thread.sleep(1);
+    }
+  }
+
+}
@@ -0,0 +1,256 @@
+package org.cecatto.urlshortener.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.PostgresUrlNotifications;
+import org.cecatto.urlshortener.persistence.PostgresUrlNotifications.Notification;
+import org.cecatto.urlshortener.persistence.PostgresUrlNotifications.Subscription;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.CompactUrlIndex;
+import org.cecatto.urlshortener.service.impl.KnownHashesFilter;
+import org.cecatto.urlshortener.service.impl.StoredUrlBroadcast;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleSupplier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+/**
+ * The notifications going through Postgres between instances are checked by StoredUrlBroadcastIntegrationTest.
+ */
+public class StoredUrlBroadcastTest {
+
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private UrlStore mockedUrlStore;
+  private UrlLookupCache lookupCache;
+  private KnownHashesFilter mockedKnownHashes;
+  private CompactUrlIndex mockedCompactIndex;
+  private PostgresUrlNotifications mockedNotifications;
+  private SimpleMeterRegistry meterRegistry;
+  private UrlShortenerProperties properties;
+  // the notifications given to the subscriptions, as Postgres would
+  private BlockingQueue<Notification> delivered;
+  // the urls given to notify, copied as the publisher reuses its list
+  private List<List<StoredUrl>> sent;
+  private StoredUrlBroadcast broadcast;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    mockedUrlStore = Mockito.mock(UrlStore.class);
+    lookupCache = new UrlLookupCache(new UrlShortenerProperties());
+    mockedKnownHashes = Mockito.mock(KnownHashesFilter.class);
+    mockedCompactIndex = Mockito.mock(CompactUrlIndex.class);
+    mockedNotifications = Mockito.mock(PostgresUrlNotifications.class);
+    meterRegistry = new SimpleMeterRegistry();
+    properties = new UrlShortenerProperties();
+    properties.getNotifications().setEnabled(true);
+    properties.getNotifications().setReconnectDelay(Duration.ofMillis(10));
+    delivered = new LinkedBlockingQueue<>();
+    sent = new CopyOnWriteArrayList<>();
+
+    Mockito.doAnswer(invocation -> {
+      String sender = invocation.getArgument(0);
+      List<StoredUrl> storedUrls = new ArrayList<>(invocation.<Collection<StoredUrl>>getArgument(1));
+      sent.add(storedUrls);
+      // notified to every listener, the sender included
+      delivered.add(new Notification(sender, System.currentTimeMillis(), storedUrls));
+      return null;
+    }).when(mockedNotifications).notify(anyString(), any());
+    Mockito.when(mockedNotifications.subscribe()).thenAnswer(invocation -> subscription());
+  }
+
+  private Subscription subscription() throws Exception {
+    var subscription = Mockito.mock(Subscription.class);
+    Mockito.when(subscription.poll(any())).thenAnswer(invocation -> {
+      var received = new ArrayList<Notification>();
+      var first = delivered.poll(invocation.<Duration>getArgument(0).toMillis(), TimeUnit.MILLISECONDS);
+      if (first != null) {
+        received.add(first);
+        delivered.drainTo(received);
+      }
+      return received;
+    });
+    return subscription;
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    if (broadcast != null) {
+      broadcast.stop();
+    }
+  }
+
+  private StoredUrlBroadcast start() {
+    broadcast = new StoredUrlBroadcast(mockedUrlStore, lookupCache, mockedKnownHashes, mockedCompactIndex,
+        mockedNotifications, properties, meterRegistry);
+    broadcast.start();
+    return broadcast;
+  }
+
+  /**
+   * Waits until the notifications of other instances have been applied, the last thing being timing them.
+   */
+  private void awaitApplied(long count) throws InterruptedException {
+    awaitCount(() -> meterRegistry.get("shortener.notifications.lag").timer().count(), count);
+  }
+
+  /**
+   * Waits until the counter is updated, which comes after what it counts.
+   */
+  private void awaitCounted(String counter, double count) throws InterruptedException {
+    awaitCount(() -> meterRegistry.get(counter).counter().count(), count);
+  }
+
+  private static void awaitCount(DoubleSupplier current, double count) throws InterruptedException {
+    var deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (current.getAsDouble() < count) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, "still " + current.getAsDouble() + " < " + count);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testUrlsStoredByOthersAreApplied() throws Exception {
+    lookupCache.putMissing("aaaaaaaa");
+    lookupCache.putMissing("bbbbbbbb");
+    start();
+
+    // the second long url didn't fit in the notification
+    delivered.add(new Notification("other", System.currentTimeMillis(),
+        List.of(new StoredUrl("http://a.example", "aaaaaaaa"), new StoredUrl(null, "bbbbbbbb"))));
+
+    awaitApplied(1);
+    Mockito.verify(mockedKnownHashes).add("aaaaaaaa");
+    Mockito.verify(mockedKnownHashes).add("bbbbbbbb");
+    Mockito.verify(mockedCompactIndex).put("aaaaaaaa", "http://a.example");
+    Mockito.verify(mockedCompactIndex, Mockito.never()).put(Mockito.eq("bbbbbbbb"), any());
+    Assertions.assertEquals("http://a.example", lookupCache.getUrl("aaaaaaaa"));
+    Assertions.assertFalse(lookupCache.isKnownMissing("aaaaaaaa"));
+    // looked up in the store the next time
+    Assertions.assertNull(lookupCache.getUrl("bbbbbbbb"));
+    Assertions.assertFalse(lookupCache.isKnownMissing("bbbbbbbb"));
+    Assertions.assertEquals(2, meterRegistry.get("shortener.notifications.received").counter().count());
+  }
+
+  @Test
+  public void testCacheIsNotPopulatedIfDisabled() throws Exception {
+    properties.getNotifications().setPopulateCache(false);
+    lookupCache.putMissing("aaaaaaaa");
+    start();
+
+    delivered.add(new Notification("other", System.currentTimeMillis(),
+        List.of(new StoredUrl("http://a.example", "aaaaaaaa"))));
+
+    awaitApplied(1);
+    Mockito.verify(mockedCompactIndex).put("aaaaaaaa", "http://a.example");
+    Assertions.assertNull(lookupCache.getUrl("aaaaaaaa"));
+    Assertions.assertFalse(lookupCache.isKnownMissing("aaaaaaaa"));
+  }
+
+  @Test
+  public void testStoredUrlsAreSentInBatches() throws Exception {
+    broadcast = new StoredUrlBroadcast(mockedUrlStore, lookupCache, mockedKnownHashes, mockedCompactIndex,
+        mockedNotifications, properties, meterRegistry);
+    // waiting before the publisher starts, so sent together
+    broadcast.send("aaaaaaaa", "http://a.example");
+    broadcast.send("bbbbbbbb", "http://b.example");
+    broadcast.send("cccccccc", "http://c.example");
+    broadcast.start();
+
+    awaitCounted("shortener.notifications.sent", 3);
+    Assertions.assertEquals(List.of(List.of(new StoredUrl("http://a.example", "aaaaaaaa"),
+        new StoredUrl("http://b.example", "bbbbbbbb"), new StoredUrl("http://c.example", "cccccccc"))), sent);
+  }
+
+  @Test
+  public void testOwnNotificationsAreIgnored() throws Exception {
+    start();
+
+    broadcast.send("aaaaaaaa", "http://a.example");
+    awaitCounted("shortener.notifications.sent", 1);
+    // then one from another instance, applied after the own one
+    delivered.add(new Notification("other", System.currentTimeMillis(),
+        List.of(new StoredUrl("http://b.example", "bbbbbbbb"))));
+
+    awaitApplied(1);
+    Mockito.verify(mockedKnownHashes).add("bbbbbbbb");
+    Mockito.verify(mockedKnownHashes, Mockito.never()).add("aaaaaaaa");
+    Assertions.assertEquals(1, meterRegistry.get("shortener.notifications.received").counter().count());
+  }
+
+  @Test
+  public void testNothingIsSentWhenFull() {
+    properties.getNotifications().setQueueCapacity(2);
+    broadcast = new StoredUrlBroadcast(mockedUrlStore, lookupCache, mockedKnownHashes, mockedCompactIndex,
+        mockedNotifications, properties, meterRegistry);
+
+    broadcast.send("aaaaaaaa", "http://a.example");
+    broadcast.send("bbbbbbbb", "http://b.example");
+    broadcast.send("cccccccc", "http://c.example");
+
+    Assertions.assertEquals(1, meterRegistry.get("shortener.notifications.dropped").counter().count());
+  }
+
+  @Test
+  public void testCatchesUpAfterReconnecting() throws Exception {
+    var lost = Mockito.mock(Subscription.class);
+    Mockito.when(lost.poll(any())).thenThrow(new SQLException("An I/O error occurred while sending to the backend."));
+    Mockito.when(mockedNotifications.subscribe())
+        .thenReturn(lost)
+        .thenAnswer(invocation -> subscription());
+    // created while the listener was not connected
+    Mockito.doAnswer(invocation -> {
+      invocation.<BiConsumer<String, String>>getArgument(1).accept("aaaaaaaa", "http://a.example");
+      return null;
+    }).when(mockedUrlStore).forEachUrlCreatedSince(any(), any());
+    var startedAt = OffsetDateTime.now();
+    start();
+
+    awaitCounted("shortener.notifications.caught.up", 2);
+    Mockito.verify(lost).close();
+    var since = ArgumentCaptor.forClass(OffsetDateTime.class);
+    Mockito.verify(mockedUrlStore, Mockito.times(2)).forEachUrlCreatedSince(since.capture(), any());
+    for (var catchUpSince : since.getAllValues()) {
+      // from before the listener started, by the overlap
+      Assertions.assertFalse(catchUpSince.isAfter(startedAt.minus(properties.getNotifications().getCatchUpOverlap())
+          .plusSeconds(1)));
+    }
+    Mockito.verify(mockedCompactIndex, Mockito.times(2)).put("aaaaaaaa", "http://a.example");
+    Assertions.assertEquals("http://a.example", lookupCache.getUrl("aaaaaaaa"));
+    Assertions.assertEquals(1, meterRegistry.get("shortener.notifications.reconnects").counter().count());
+  }
+
+  @Test
+  public void testDisabledWithoutPostgres() throws Exception {
+    broadcast = new StoredUrlBroadcast(mockedUrlStore, lookupCache, mockedKnownHashes, mockedCompactIndex, null,
+        properties, meterRegistry);
+    broadcast.start();
+
+    broadcast.send("aaaaaaaa", "http://a.example");
+
+    Assertions.assertFalse(broadcast.isEnabled());
+    Assertions.assertEquals(0, meterRegistry.get("shortener.notifications.dropped").counter().count());
+    Mockito.verifyNoInteractions(mockedUrlStore);
+  }
+
+}
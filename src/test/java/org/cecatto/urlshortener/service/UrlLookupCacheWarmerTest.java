@@ -0,0 +1,146 @@
+package org.cecatto.urlshortener.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.ClickStatsRepository;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.cecatto.urlshortener.service.impl.UrlLookupCacheWarmer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+
+public class UrlLookupCacheWarmerTest {
+
+  @TempDir
+  Path directory;
+
+  private UrlShortenerProperties properties;
+  private ClickStatsRepository mockedClickStatsRepository;
+
+  @BeforeEach
+  public void setUp() {
+    properties = new UrlShortenerProperties();
+    properties.getWarmUp().setSnapshotPath(directory.resolve("hot-urls.snapshot").toString());
+    mockedClickStatsRepository = Mockito.mock(ClickStatsRepository.class);
+  }
+
+  @Test
+  public void testSnapshotIsLoadedAtStartup() {
+    var lookupCache = new UrlLookupCache(properties);
+    lookupCache.putUrl("5g73357h", "http://www.google.com");
+    lookupCache.putUrl("c0xt4es4", "http://www.example.com");
+    warmer(lookupCache).snapshot();
+
+    var restartedCache = new UrlLookupCache(properties);
+    var warmer = warmer(restartedCache);
+    warmer.warmUp();
+
+    Assertions.assertEquals(2, warmer.loadedUrls());
+    Assertions.assertEquals("http://www.google.com", restartedCache.getUrl("5g73357h"));
+    Assertions.assertEquals("http://www.example.com", restartedCache.getUrl("c0xt4es4"));
+    Mockito.verifyNoInteractions(mockedClickStatsRepository);
+  }
+
+  @Test
+  public void testSnapshotKeepsTheHottestUrls() {
+    properties.getWarmUp().setSize(1);
+    var lookupCache = new UrlLookupCache(properties);
+    lookupCache.putUrl("5g73357h", "http://www.google.com");
+    lookupCache.putUrl("c0xt4es4", "http://www.example.com");
+    for (var i = 0; i < 10; i++) {
+      lookupCache.getUrl("c0xt4es4");
+    }
+    warmer(lookupCache).snapshot();
+
+    var restartedCache = new UrlLookupCache(properties);
+    warmer(restartedCache).warmUp();
+
+    Assertions.assertEquals("http://www.example.com", restartedCache.getUrl("c0xt4es4"));
+    Assertions.assertNull(restartedCache.getUrl("5g73357h"));
+  }
+
+  @Test
+  public void testMostClickedUrlsAreLoadedWithoutSnapshot() {
+    Mockito.doAnswer(invocation -> {
+      invocation.<BiConsumer<String, String>>getArgument(1).accept("5g73357h", "http://www.google.com");
+      return null;
+    }).when(mockedClickStatsRepository).forEachMostClicked(anyInt(), any());
+    var lookupCache = new UrlLookupCache(properties);
+    var warmer = warmer(lookupCache);
+
+    warmer.warmUp();
+
+    Assertions.assertEquals(1, warmer.loadedUrls());
+    Assertions.assertEquals("http://www.google.com", lookupCache.getUrl("5g73357h"));
+    Mockito.verify(mockedClickStatsRepository).forEachMostClicked(Mockito.eq(10_000), any());
+  }
+
+  @Test
+  public void testWarmUpStopsAtTimeBudget() throws Exception {
+    properties.getWarmUp().setTimeBudget(Duration.ofMillis(200));
+    var release = new CountDownLatch(1);
+    Mockito.doAnswer(invocation -> {
+      var consumer = invocation.<BiConsumer<String, String>>getArgument(1);
+      consumer.accept("5g73357h", "http://www.google.com");
+      // a slow query
+      release.await(10, TimeUnit.SECONDS);
+      consumer.accept("c0xt4es4", "http://www.example.com");
+      return null;
+    }).when(mockedClickStatsRepository).forEachMostClicked(anyInt(), any());
+    var lookupCache = new UrlLookupCache(properties);
+    var warmer = warmer(lookupCache);
+
+    var start = System.nanoTime();
+    warmer.warmUp();
+    release.countDown();
+
+    Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assertions.assertEquals(1, warmer.loadedUrls());
+    Assertions.assertEquals("http://www.google.com", lookupCache.getUrl("5g73357h"));
+  }
+
+  @Test
+  public void testCorruptedSnapshotIsIgnored() throws IOException {
+    Files.write(Path.of(properties.getWarmUp().getSnapshotPath()), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+    var warmer = warmer(new UrlLookupCache(properties));
+
+    warmer.warmUp();
+
+    Assertions.assertEquals(0, warmer.loadedUrls());
+    Mockito.verify(mockedClickStatsRepository).forEachMostClicked(Mockito.eq(10_000), any());
+  }
+
+  @Test
+  public void testMostClickedUrlsAreLoadedWithEmptySnapshot() {
+    Mockito.doAnswer(invocation -> {
+      invocation.<BiConsumer<String, String>>getArgument(1).accept("5g73357h", "http://www.google.com");
+      return null;
+    }).when(mockedClickStatsRepository).forEachMostClicked(anyInt(), any());
+    var lookupCache = new UrlLookupCache(properties);
+    var warmer = warmer(lookupCache);
+    warmer.snapshot();
+
+    warmer.warmUp();
+
+    Assertions.assertEquals(1, warmer.loadedUrls());
+    Assertions.assertEquals("http://www.google.com", lookupCache.getUrl("5g73357h"));
+  }
+
+  private UrlLookupCacheWarmer warmer(UrlLookupCache lookupCache) {
+    return new UrlLookupCacheWarmer(lookupCache, mockedClickStatsRepository, properties, new SimpleMeterRegistry());
+  }
+
+}
@@ -0,0 +1,286 @@
+package org.cecatto.urlshortener.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cecatto.urlshortener.config.UrlShortenerProperties;
+import org.cecatto.urlshortener.persistence.StoredUrl;
+import org.cecatto.urlshortener.persistence.UrlStore;
+import org.cecatto.urlshortener.service.impl.CompactUrlIndex;
+import org.cecatto.urlshortener.service.impl.StoredUrlBroadcast;
+import org.cecatto.urlshortener.service.impl.UrlLookupCache;
+import org.cecatto.urlshortener.service.impl.WriteBehindCreates;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class WriteBehindCreatesTest {
+
+  @TempDir
+  Path journal;
+
+  private UrlStore mockedUrlStore;
+  private UrlLookupCache lookupCache;
+  private CompactUrlIndex compactIndex;
+  private StoredUrlBroadcast broadcast;
+  private SimpleMeterRegistry meterRegistry;
+  private UrlShortenerProperties properties;
+  // the batches given to insertAllIgnoringConflicts, copied as the writer reuses its list
+  private List<List<StoredUrl>> batches;
+  private CountDownLatch storing;
+  private final List<WriteBehindCreates> started = new ArrayList<>();
+
+  @BeforeEach
+  public void setUp() {
+    mockedUrlStore = Mockito.mock(UrlStore.class);
+    lookupCache = new UrlLookupCache(new UrlShortenerProperties());
+    compactIndex = Mockito.mock(CompactUrlIndex.class);
+    broadcast = Mockito.mock(StoredUrlBroadcast.class);
+    meterRegistry = new SimpleMeterRegistry();
+    properties = new UrlShortenerProperties();
+    properties.getWriteBehind().setEnabled(true);
+    properties.getWriteBehind().setJournalPath(journal.toString());
+    batches = new CopyOnWriteArrayList<>();
+    storing = new CountDownLatch(0);
+    stubStorage();
+  }
+
+  @AfterEach
+  public void tearDown() throws InterruptedException {
+    storing.countDown();
+    for (var writeBehind : started) {
+      writeBehind.stop();
+    }
+  }
+
+  @Test
+  public void testAcceptedUrlsAreWrittenInBatches() throws Exception {
+    storing = new CountDownLatch(1);
+    var writeBehind = start();
+
+    // the writer takes the first url and waits for the store, while the others queue up
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    Mockito.verify(mockedUrlStore, Mockito.timeout(10_000)).insertAllIgnoringConflicts(any());
+    Assertions.assertTrue(writeBehind.accept("bbbbbbbb", "http://b.example"));
+    Assertions.assertTrue(writeBehind.accept("cccccccc", "http://c.example"));
+    Assertions.assertEquals("http://b.example", writeBehind.pendingUrl("bbbbbbbb"));
+    Assertions.assertEquals(2, meterRegistry.get("shortener.write.behind.queued").gauge().value());
+    Assertions.assertEquals(3, meterRegistry.get("shortener.write.behind.journal.lag").gauge().value());
+    storing.countDown();
+    awaitWritten(writeBehind, "aaaaaaaa", "bbbbbbbb", "cccccccc");
+
+    Assertions.assertEquals(List.of(
+        List.of(new StoredUrl("http://a.example", "aaaaaaaa")),
+        List.of(new StoredUrl("http://b.example", "bbbbbbbb"), new StoredUrl("http://c.example", "cccccccc"))
+    ), batches);
+    var batchSizes = meterRegistry.get("shortener.write.behind.batch.size").summary();
+    Assertions.assertEquals(2, batchSizes.count());
+    Assertions.assertEquals(2, batchSizes.max());
+    Assertions.assertEquals(0, meterRegistry.get("shortener.write.behind.journal.lag").gauge().value());
+    Assertions.assertEquals(0, meterRegistry.get("shortener.write.behind.collisions").counter().count());
+    // only once written
+    Mockito.verify(compactIndex).put("aaaaaaaa", "http://a.example");
+    Mockito.verify(compactIndex).put("bbbbbbbb", "http://b.example");
+    Mockito.verify(compactIndex).put("cccccccc", "http://c.example");
+    Mockito.verify(broadcast).send("aaaaaaaa", "http://a.example");
+    Mockito.verify(broadcast).send("bbbbbbbb", "http://b.example");
+    Mockito.verify(broadcast).send("cccccccc", "http://c.example");
+  }
+
+  @Test
+  public void testHashAcceptedForAnotherUrlIsNotAccepted() {
+    storing = new CountDownLatch(1);
+    var writeBehind = start();
+
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    Assertions.assertFalse(writeBehind.accept("aaaaaaaa", "http://b.example"));
+
+    Assertions.assertEquals("http://a.example", writeBehind.pendingUrl("aaaaaaaa"));
+    Assertions.assertEquals(0, meterRegistry.get("shortener.write.behind.fallbacks").counter().count());
+  }
+
+  @Test
+  public void testFullQueueFallsBack() throws Exception {
+    properties.getWriteBehind().setQueueCapacity(1);
+    storing = new CountDownLatch(1);
+    var writeBehind = start();
+
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    Mockito.verify(mockedUrlStore, Mockito.timeout(10_000)).insertAllIgnoringConflicts(any());
+    Assertions.assertTrue(writeBehind.accept("bbbbbbbb", "http://b.example"));
+    Assertions.assertFalse(writeBehind.accept("cccccccc", "http://c.example"));
+
+    Assertions.assertNull(writeBehind.pendingUrl("cccccccc"));
+    Assertions.assertEquals(1, meterRegistry.get("shortener.write.behind.fallbacks").counter().count());
+    storing.countDown();
+    awaitWritten(writeBehind, "aaaaaaaa", "bbbbbbbb");
+    Assertions.assertEquals(2, batches.stream().mapToInt(List::size).sum());
+  }
+
+  @Test
+  public void testCollisionIsCountedAndNotIndexed() throws Exception {
+    // another instance stored a url with the same hash meanwhile, which wins
+    Mockito.doAnswer(invocation -> {
+      batches.add(List.copyOf(invocation.<Collection<StoredUrl>>getArgument(0)));
+      return null;
+    }).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    Mockito.when(mockedUrlStore.findHashesByLongUrls(any())).thenReturn(new HashMap<>());
+    var writeBehind = start();
+    lookupCache.putUrl("aaaaaaaa", "http://a.example");
+
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    awaitWritten(writeBehind, "aaaaaaaa");
+
+    Assertions.assertEquals(1, meterRegistry.get("shortener.write.behind.collisions").counter().count());
+    Assertions.assertNull(lookupCache.getUrl("aaaaaaaa"));
+    // the compact index would keep it, shadowing the url stored with the hash
+    Mockito.verifyNoInteractions(compactIndex);
+    Mockito.verify(broadcast, Mockito.never()).send(any(), any());
+  }
+
+  @Test
+  public void testUnwrittenUrlsAreReplayedAtStartup() throws Exception {
+    Mockito.doThrow(new IllegalStateException("store down")).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    var writeBehind = start();
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    Assertions.assertTrue(writeBehind.accept("bbbbbbbb", "http://b.example"));
+    writeBehind.stop();
+    started.remove(writeBehind);
+
+    stubStorage();
+    // replayed even if disabled since
+    properties.getWriteBehind().setEnabled(false);
+    start();
+
+    Assertions.assertEquals(List.of(
+        List.of(new StoredUrl("http://a.example", "aaaaaaaa"), new StoredUrl("http://b.example", "bbbbbbbb"))
+    ), batches);
+    Assertions.assertEquals(List.of(), segments());
+  }
+
+  @Test
+  public void testIncompleteRecordIsDiscardedOnReplay() throws Exception {
+    Mockito.doThrow(new IllegalStateException("store down")).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    var writeBehind = start();
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+    writeBehind.stop();
+    started.remove(writeBehind);
+    // the process stopped while writing the next record: its length, and part of the rest
+    Files.write(segments().get(0), new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 0, 8, 'b'}, StandardOpenOption.APPEND);
+
+    stubStorage();
+    start();
+
+    Assertions.assertEquals(List.of(List.of(new StoredUrl("http://a.example", "aaaaaaaa"))), batches);
+  }
+
+  @Test
+  public void testJournalInUseFailsStartup() throws Exception {
+    Mockito.doThrow(new IllegalStateException("store down")).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    var writeBehind = start();
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+
+    var second = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+    Assertions.assertThrows(IllegalStateException.class, second::start);
+
+    Assertions.assertEquals(1, segments().size());
+    Assertions.assertEquals("http://a.example", writeBehind.pendingUrl("aaaaaaaa"));
+  }
+
+  @Test
+  public void testJournalInUseIsNotReplayed() throws Exception {
+    Mockito.doThrow(new IllegalStateException("store down")).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    var writeBehind = start();
+    Assertions.assertTrue(writeBehind.accept("aaaaaaaa", "http://a.example"));
+
+    // another instance, with write-behind disabled
+    var otherUrlStore = Mockito.mock(UrlStore.class);
+    properties.getWriteBehind().setEnabled(false);
+    var other = new WriteBehindCreates(otherUrlStore, lookupCache, compactIndex, broadcast, properties, meterRegistry);
+    other.start();
+    started.add(other);
+
+    Mockito.verifyNoInteractions(otherUrlStore);
+    Assertions.assertEquals(1, segments().size());
+  }
+
+  @Test
+  public void testWrittenSegmentsAreDeleted() throws Exception {
+    // a record per segment
+    properties.getWriteBehind().setJournalSegmentSize(DataSize.ofBytes(32));
+    var writeBehind = start();
+
+    var hashes = new String[5];
+    for (var i = 0; i < hashes.length; i++) {
+      hashes[i] = "hash000" + i;
+      Assertions.assertTrue(writeBehind.accept(hashes[i], "http://" + i + ".example"));
+    }
+    awaitWritten(writeBehind, hashes);
+
+    // the last segment is kept open for the next urls
+    var segments = segments();
+    Assertions.assertEquals(1, segments.size());
+    Assertions.assertEquals((double) Files.size(segments.get(0)),
+        meterRegistry.get("shortener.write.behind.journal.size").gauge().value());
+  }
+
+  private WriteBehindCreates start() {
+    var writeBehind = new WriteBehindCreates(mockedUrlStore, lookupCache, compactIndex, broadcast, properties,
+        meterRegistry);
+    writeBehind.start();
+    started.add(writeBehind);
+    return writeBehind;
+  }
+
+  /**
+   * Stores every url with the hash it is given, once the storing latch is released.
+   */
+  @SuppressWarnings("unchecked")
+  private void stubStorage() {
+    Mockito.reset(mockedUrlStore);
+    Mockito.doAnswer(invocation -> {
+      storing.await();
+      batches.add(List.copyOf(invocation.<Collection<StoredUrl>>getArgument(0)));
+      return null;
+    }).when(mockedUrlStore).insertAllIgnoringConflicts(any());
+    Mockito.doAnswer(invocation -> batches.stream()
+        .flatMap(List::stream)
+        .filter(storedUrl -> ((Collection<String>) invocation.getArgument(0)).contains(storedUrl.getLongUrl()))
+        .collect(Collectors.toMap(StoredUrl::getLongUrl, StoredUrl::getHash))
+    ).when(mockedUrlStore).findHashesByLongUrls(any());
+  }
+
+  private List<Path> segments() throws Exception {
+    try (var files = Files.list(journal)) {
+      return files.filter(file -> file.toString().endsWith(".journal")).sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static void awaitWritten(WriteBehindCreates writeBehind, String... hashes) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    for (var hash : hashes) {
+      while (writeBehind.pendingUrl(hash) != null && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      Assertions.assertNull(writeBehind.pendingUrl(hash), hash);
+    }
+  }
+
+}
@@ -0,0 +1,5 @@
+#!/bin/bash
+set -e
+
+# lets the standbys of the other containers stream the WAL (wal_level is already replica by default)
+echo "host replication all all scram-sha-256" >> "$PGDATA/pg_hba.conf"